@@ -0,0 +1,161 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.api;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import de.arpablo.hennirepo.exception.ResourceAccessException;
+import de.arpablo.hennirepo.model.BulkheadStatus;
+import de.arpablo.hennirepo.model.CacheStatistics;
+import de.arpablo.hennirepo.model.RebalanceStatus;
+import de.arpablo.hennirepo.model.RepoResource;
+import de.arpablo.hennirepo.model.ScrubStatus;
+import de.arpablo.hennirepo.model.TieringStatus;
+import de.arpablo.hennirepo.model.TrashEntry;
+import de.arpablo.hennirepo.service.ChecksumScrubber;
+import de.arpablo.hennirepo.service.ContentCache;
+import de.arpablo.hennirepo.service.ShardRebalancer;
+import de.arpablo.hennirepo.service.TieringService;
+import de.arpablo.hennirepo.service.TrashService;
+
+/**
+ * REST interface for the administration of the repository
+ * @author arpablo
+ *
+ */
+@RequestMapping(AdminAPI.CURRENT_API)
+@RestController
+public class AdminAPI {
+
+	static final String CURRENT_API = "/api/admin/v1";
+	
+	@Autowired(required=false)
+	private ContentCache contentCache;
+	
+	@Autowired(required=false)
+	private ShardRebalancer rebalancer;
+	
+	@Autowired(required=false)
+	private TrashService trashService;
+	
+	@Autowired(required=false)
+	private AdmissionFilter admissionFilter;
+	
+	@Autowired(required=false)
+	private ChecksumScrubber scrubber;
+	
+	@Autowired(required=false)
+	private TieringService tiering;
+	
+	@GetMapping(value="/cache", produces="application/json")
+	public @ResponseBody CacheStatistics cacheStatistics() {
+		return getContentCache().getStatistics();
+	}
+	
+	@DeleteMapping(value="/cache", produces="application/json")
+	public @ResponseBody CacheStatistics clearCache() {
+		ContentCache cache = getContentCache();
+		cache.clear();
+		return cache.getStatistics();
+	}
+	
+	@GetMapping(value="/rebalance", produces="application/json")
+	public @ResponseBody RebalanceStatus rebalanceStatus() {
+		return getRebalancer().getStatus();
+	}
+	
+	@PostMapping(value="/rebalance", produces="application/json")
+	public @ResponseBody RebalanceStatus rebalance() {
+		return getRebalancer().start();
+	}
+	
+	@GetMapping(value="/scrub", produces="application/json")
+	public @ResponseBody ScrubStatus scrubStatus() {
+		return getScrubber().getStatus();
+	}
+	
+	@PostMapping(value="/scrub", produces="application/json")
+	public @ResponseBody ScrubStatus scrub() {
+		return getScrubber().start();
+	}
+	
+	@GetMapping(value="/tiering", produces="application/json")
+	public @ResponseBody TieringStatus tieringStatus() {
+		return getTiering().getStatus();
+	}
+	
+	@PostMapping(value="/tiering", produces="application/json")
+	public @ResponseBody TieringStatus tiering() {
+		return getTiering().start();
+	}
+	
+	@GetMapping(value="/trash", produces="application/json")
+	public @ResponseBody List<TrashEntry> listTrash() {
+		return getTrashService().list();
+	}
+	
+	@PostMapping(value="/trash/{id}", params="restore", produces="application/json")
+	public @ResponseBody RepoResource restore(@PathVariable("id") String id) {
+		return getTrashService().restore(id);
+	}
+	
+	@DeleteMapping(value="/trash/{id}", produces="application/json")
+	public @ResponseBody boolean purge(@PathVariable("id") String id) {
+		getTrashService().purge(id);
+		return true;
+	}
+	
+	@GetMapping(value="/admission", produces="application/json")
+	public @ResponseBody List<BulkheadStatus> admissionStatus() {
+		if (admissionFilter == null) {
+			throw new ResourceAccessException("The admission control is not available");
+		}
+		return admissionFilter.getStatus();
+	}
+	
+	protected TrashService getTrashService() {
+		if (trashService == null) {
+			throw new ResourceAccessException("The trash is not available for this repository store");
+		}
+		return trashService;
+	}
+	
+	protected ShardRebalancer getRebalancer() {
+		if (rebalancer == null) {
+			throw new ResourceAccessException("Rebalancing is not available for this repository store");
+		}
+		return rebalancer;
+	}
+	
+	protected ChecksumScrubber getScrubber() {
+		if (scrubber == null) {
+			throw new ResourceAccessException("Checksums are not available for this repository store");
+		}
+		return scrubber;
+	}
+	
+	protected TieringService getTiering() {
+		if (tiering == null) {
+			throw new ResourceAccessException("Tiering is not available for this repository store");
+		}
+		return tiering;
+	}
+	
+	protected ContentCache getContentCache() {
+		if (contentCache == null) {
+			throw new ResourceAccessException("The content cache is not available for this repository store");
+		}
+		return contentCache;
+	}
+	
+}
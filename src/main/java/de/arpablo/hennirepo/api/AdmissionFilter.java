@@ -0,0 +1,417 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UrlPathHelper;
+
+import de.arpablo.hennirepo.common.Bulkhead;
+import de.arpablo.hennirepo.common.RequestTiming;
+import de.arpablo.hennirepo.common.TokenBucket;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.model.BulkheadStatus;
+import de.arpablo.hennirepo.model.RepoResource;
+import de.arpablo.hennirepo.service.RepositoryService;
+
+/**
+ * Admission control for the repository API. Every request is classified
+ * and has to enter the bulkhead of its class, so e.g. archive downloads
+ * can't occupy the threads needed for metadata requests. Requests that
+ * can't be admitted in time are rejected with 503 and a Retry-After header,
+ * clients exceeding their number of concurrent requests with 429.
+ * <p>
+ * The content sent and received by a client is shaped by a token bucket
+ * per client. Asynchronous requests (streamed archives) hold their permit
+ * until they complete. The change feed is long-lived and not limited.
+ * @author arpablo
+ *
+ */
+@Component
+public class AdmissionFilter extends OncePerRequestFilter {
+
+	private static final Logger logger = LoggerFactory.getLogger(AdmissionFilter.class);
+
+	private static final int MAX_CLIENTS = 10000;
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	/**
+	 * The classes of requests
+	 */
+	public enum RequestClass {
+		METADATA, SMALL_READ, BULK_READ, BULK_WRITE, ARCHIVE
+	}
+
+	@Autowired
+	private RepositoryProperties repoConfig;
+
+	@Autowired
+	private RepositoryService service;
+
+	private final UrlPathHelper pathHelper = new UrlPathHelper();
+
+	private final Map<RequestClass, Bulkhead> bulkheads = new EnumMap<RequestClass, Bulkhead>(RequestClass.class);
+
+	private final Map<String, Client> clients = new LinkedHashMap<String, Client>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Client> eldest) {
+			return size() > MAX_CLIENTS;
+		}
+	};
+
+	@PostConstruct
+	protected void initialize() {
+		RepositoryProperties.Admission config = repoConfig.getAdmission();
+		bulkheads.put(RequestClass.METADATA, newBulkhead(RequestClass.METADATA, config.getMetadata()));
+		bulkheads.put(RequestClass.SMALL_READ, newBulkhead(RequestClass.SMALL_READ, config.getSmallRead()));
+		bulkheads.put(RequestClass.BULK_READ, newBulkhead(RequestClass.BULK_READ, config.getBulkRead()));
+		bulkheads.put(RequestClass.BULK_WRITE, newBulkhead(RequestClass.BULK_WRITE, config.getBulkWrite()));
+		bulkheads.put(RequestClass.ARCHIVE, newBulkhead(RequestClass.ARCHIVE, config.getArchive()));
+	}
+
+	/**
+	 * @return the state of the bulkheads
+	 */
+	public List<BulkheadStatus> getStatus() {
+		List<BulkheadStatus> ret = new ArrayList<BulkheadStatus>();
+		for (Bulkhead bulkhead : bulkheads.values()) {
+			ret.add(new BulkheadStatus().setName(bulkhead.getName())
+					.setMaxConcurrent(bulkhead.getMaxConcurrent())
+					.setMaxQueue(bulkhead.getMaxQueue())
+					.setActive(bulkhead.getActive())
+					.setQueued(bulkhead.getQueued())
+					.setAdmitted(bulkhead.getAdmitted())
+					.setRejected(bulkhead.getRejected()));
+		}
+		return ret;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.web.filter.OncePerRequestFilter#shouldNotFilter(javax.servlet.http.HttpServletRequest)
+	 */
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) {
+		return !repoConfig.getAdmission().isEnabled()
+				|| !pathHelper.getPathWithinApplication(request).startsWith(RepositoryAPI.CURRENT_API + "/")
+				|| request.getParameter("changes") != null;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.web.filter.OncePerRequestFilter#doFilterInternal(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, javax.servlet.FilterChain)
+	 */
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		RepositoryProperties.Admission config = repoConfig.getAdmission();
+		RequestClass requestClass = classify(request);
+		Client client = getClient(request);
+		if (config.getMaxRequestsPerClient() > 0 && client.active.incrementAndGet() > config.getMaxRequestsPerClient()) {
+			client.active.decrementAndGet();
+			reject(response, HttpStatus.TOO_MANY_REQUESTS, String.format("Too many concurrent requests of %s", client.name));
+			return;
+		}
+		Bulkhead bulkhead = bulkheads.get(requestClass);
+		boolean admitted;
+		long t = RequestTiming.start();
+		try {
+			admitted = bulkhead.tryEnter();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			admitted = false;
+		}
+		RequestTiming.record(RequestTiming.Phase.QUEUE, t, 1, 0);
+		if (!admitted) {
+			if (config.getMaxRequestsPerClient() > 0) {
+				client.active.decrementAndGet();
+			}
+			reject(response, HttpStatus.SERVICE_UNAVAILABLE, String.format("Too many %s requests", bulkhead.getName()));
+			return;
+		}
+		AtomicBoolean released = new AtomicBoolean();
+		Runnable release = () -> {
+			if (released.compareAndSet(false, true)) {
+				bulkhead.leave();
+				if (config.getMaxRequestsPerClient() > 0) {
+					client.active.decrementAndGet();
+				}
+			}
+		};
+		boolean async = false;
+		try {
+			if (client.bucket != null && requestClass != RequestClass.METADATA) {
+				request = new ThrottledRequest(request, client.bucket);
+				response = new ThrottledResponse(response, client.bucket);
+			}
+			chain.doFilter(request, response);
+			if (request.isAsyncStarted()) {
+				// the permit is held until the streamed response is complete
+				request.getAsyncContext().addListener(new ReleaseListener(release));
+				async = true;
+			}
+		} finally {
+			if (!async) {
+				release.run();
+			}
+		}
+	}
+
+	/**
+	 * Classify a request by its method and parameters. The size of a file
+	 * decides between small and bulk reads
+	 * @param request	the request
+	 * @return the RequestClass
+	 */
+	protected RequestClass classify(HttpServletRequest request) {
+		String method = request.getMethod();
+		if ("GET".equals(method)) {
+			if (request.getParameter("archive") != null) {
+				return RequestClass.ARCHIVE;
+			}
+			if (request.getParameter("version") != null || request.getParameter("query") != null) {
+				return RequestClass.BULK_READ;
+			}
+			if (request.getParameter("content") != null) {
+				String path = pathHelper.getPathWithinApplication(request).substring(RepositoryAPI.CURRENT_API.length());
+				try {
+					RepoResource res = service.info(path);
+					return (res.getSize() <= repoConfig.getAdmission().getSmallReadMaxBytes()) ? RequestClass.SMALL_READ : RequestClass.BULK_READ;
+				} catch (RuntimeException ex) {
+					logger.debug("Unable to classify the read of {}: {}", path, ex.getMessage());
+					return RequestClass.SMALL_READ;
+				}
+			}
+			return RequestClass.METADATA;
+		}
+		if ("PUT".equals(method)) {
+			if (request.getParameter("zip") != null || request.getParameter("extract") != null
+					|| request.getParameter("unzipTo") != null) {
+				return RequestClass.ARCHIVE;
+			}
+			if (request.getParameter("folder") != null || request.getParameter("file") != null
+					|| request.getParameter("snapshot") != null || request.getParameter("moveTo") != null) {
+				return RequestClass.METADATA;
+			}
+			return RequestClass.BULK_WRITE;
+		}
+		if ("POST".equals(method) && request.getParameter("archive") != null) {
+			return RequestClass.ARCHIVE;
+		}
+		return RequestClass.METADATA;
+	}
+
+	/**
+	 * Return the state of the client sending a request. A client is identified
+	 * by the authenticated user or the remote address
+	 */
+	protected Client getClient(HttpServletRequest request) {
+		String name = (request.getRemoteUser() != null) ? request.getRemoteUser() : request.getRemoteAddr();
+		synchronized (clients) {
+			Client client = clients.get(name);
+			if (client == null) {
+				RepositoryProperties.Admission config = repoConfig.getAdmission();
+				TokenBucket bucket = (config.getClientBytesPerSecond() > 0)
+						? new TokenBucket(config.getClientBytesPerSecond(), config.getClientBurstBytes()) : null;
+				client = new Client(name, bucket);
+				clients.put(name, client);
+			}
+			return client;
+		}
+	}
+
+	protected void reject(HttpServletResponse response, HttpStatus status, String message) throws IOException {
+		logger.debug("Rejected request with {}: {}", status.value(), message);
+		response.setHeader("Retry-After", Integer.toString(repoConfig.getAdmission().getRetryAfterSeconds()));
+		response.sendError(status.value(), message);
+	}
+
+	private static Bulkhead newBulkhead(RequestClass requestClass, RepositoryProperties.Admission.Limits limits) {
+		return new Bulkhead(requestClass.name().toLowerCase(), limits.getMaxConcurrent(), limits.getMaxQueue(), limits.getMaxWaitMillis());
+	}
+
+	/**
+	 * The state of a client
+	 */
+	protected static class Client {
+		final String name;
+		final TokenBucket bucket;
+		final AtomicInteger active = new AtomicInteger();
+
+		Client(String name, TokenBucket bucket) {
+			this.name = name;
+			this.bucket = bucket;
+		}
+	}
+
+	/**
+	 * Releases the permits of an asynchronous request when it is done
+	 */
+	protected static class ReleaseListener implements AsyncListener {
+		private final Runnable release;
+
+		ReleaseListener(Runnable release) {
+			this.release = release;
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			release.run();
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			release.run();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			release.run();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			event.getAsyncContext().addListener(this);
+		}
+	}
+
+	/**
+	 * A request whose body is read at the bandwidth of the client
+	 */
+	protected static class ThrottledRequest extends HttpServletRequestWrapper {
+		private final TokenBucket bucket;
+		private ServletInputStream in;
+
+		ThrottledRequest(HttpServletRequest request, TokenBucket bucket) {
+			super(request);
+			this.bucket = bucket;
+		}
+
+		@Override
+		public ServletInputStream getInputStream() throws IOException {
+			if (in == null) {
+				ServletInputStream delegate = super.getInputStream();
+				in = new ServletInputStream() {
+					@Override
+					public int read() throws IOException {
+						bucket.acquire(1);
+						return delegate.read();
+					}
+
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						int n = delegate.read(b, off, Math.min(len, CHUNK_SIZE));
+						if (n > 0) {
+							bucket.acquire(n);
+						}
+						return n;
+					}
+
+					@Override
+					public boolean isFinished() {
+						return delegate.isFinished();
+					}
+
+					@Override
+					public boolean isReady() {
+						return delegate.isReady();
+					}
+
+					@Override
+					public void setReadListener(ReadListener listener) {
+						delegate.setReadListener(listener);
+					}
+				};
+			}
+			return in;
+		}
+	}
+
+	/**
+	 * A response whose body is written at the bandwidth of the client
+	 */
+	protected static class ThrottledResponse extends HttpServletResponseWrapper {
+		private final TokenBucket bucket;
+		private ServletOutputStream out;
+
+		ThrottledResponse(HttpServletResponse response, TokenBucket bucket) {
+			super(response);
+			this.bucket = bucket;
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (out == null) {
+				ServletOutputStream delegate = super.getOutputStream();
+				out = new ServletOutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						bucket.acquire(1);
+						delegate.write(b);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						while (len > 0) {
+							int n = Math.min(len, CHUNK_SIZE);
+							bucket.acquire(n);
+							delegate.write(b, off, n);
+							off += n;
+							len -= n;
+						}
+					}
+
+					@Override
+					public void flush() throws IOException {
+						delegate.flush();
+					}
+
+					@Override
+					public void close() throws IOException {
+						delegate.close();
+					}
+
+					@Override
+					public boolean isReady() {
+						return delegate.isReady();
+					}
+
+					@Override
+					public void setWriteListener(WriteListener listener) {
+						delegate.setWriteListener(listener);
+					}
+				};
+			}
+			return out;
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.api;
+
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import de.arpablo.hennirepo.model.RepositoryEvent;
+import de.arpablo.hennirepo.service.ChangeFeed;
+
+/**
+ * REST interface of the change feed. Clients either subscribe to a subtree
+ * as Server-Sent Events or fetch the events since a given sequence number
+ * @author arpablo
+ *
+ */
+@RequestMapping(RepositoryAPI.CURRENT_API)
+@RestController
+public class ChangeFeedAPI {
+
+	@Autowired
+	private ChangeFeed changeFeed;
+	
+	/**
+	 * Subscribe to the changes below the request path. A reconnecting
+	 * client sends the id of the last event it has received in the
+	 * <code>Last-Event-ID</code> header (or the <code>since</code> parameter)
+	 * @param request		the request
+	 * @param lastEventId	the id of the last event received
+	 * @param since			alternative to lastEventId
+	 * @return an SseEmitter
+	 */
+	@GetMapping(value="/**", params="changes", produces="text/event-stream")
+	public SseEmitter subscribe(HttpServletRequest request, 
+			@RequestHeader(value="Last-Event-ID", required=false) Long lastEventId, 
+			@RequestParam(required=false) Long since) {
+		String path = RepositoryAPI.getRequestURI(request);
+		Long last = (lastEventId != null) ? lastEventId : since;
+		return changeFeed.subscribe(path, (last != null) ? last : -1);
+	}
+	
+	/**
+	 * Return the changes below the request path following the given sequence
+	 * number. Answers with 410 (Gone) if these events are no longer available
+	 * @param request	the request
+	 * @param since		the last sequence number seen by the client
+	 * @return a List of events
+	 */
+	@GetMapping(value="/**", params="changes", produces="application/json")
+	public ResponseEntity<List<RepositoryEvent>> changes(HttpServletRequest request, @RequestParam(defaultValue="0") long since) {
+		String path = RepositoryAPI.getRequestURI(request);
+		List<RepositoryEvent> ret = changeFeed.since(since, path);
+		if (ret == null) {
+			return new ResponseEntity<List<RepositoryEvent>>(HttpStatus.GONE);
+		}
+		return new ResponseEntity<List<RepositoryEvent>>(ret, HttpStatus.OK);
+	}
+	
+}
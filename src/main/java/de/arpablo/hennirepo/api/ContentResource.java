@@ -0,0 +1,111 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.springframework.core.io.AbstractResource;
+
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.model.RepoResource;
+import de.arpablo.hennirepo.service.RepositoryService;
+
+/**
+ * The content of a file of the repository as Resource. The length is known
+ * in advance and every call of {@link #getInputStream()} opens the content
+ * again, so Spring can serve byte ranges of it. Content sent as stored
+ * with a content coding is opened in advance and read once
+ * @author arpablo
+ *
+ */
+public class ContentResource extends AbstractResource {
+
+	private final RepositoryService service;
+	private final RepoResource resource;
+	private final boolean encoded;
+	private final long storedLength;
+	private InputStream stored;
+
+	/**
+	 * Constructor
+	 * @param service	the repository
+	 * @param resource	the file
+	 */
+	public ContentResource(RepositoryService service, RepoResource resource) {
+		this(service, resource, null);
+	}
+
+	/**
+	 * Constructor for the content as stored with a content coding. The
+	 * length is the number of bytes of the opened file
+	 * @param service	the repository
+	 * @param resource	the file
+	 * @param encoded	the encoded content, it can be read once
+	 */
+	public ContentResource(RepositoryService service, RepoResource resource, CompressedFile.Stored encoded) {
+		this.service = service;
+		this.resource = resource;
+		this.encoded = encoded != null;
+		this.storedLength = (encoded != null) ? encoded.getLength() : -1;
+		this.stored = (encoded != null) ? encoded.getInputStream() : null;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.core.io.InputStreamSource#getInputStream()
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if (encoded) {
+			if (stored == null) {
+				throw new IOException("The encoded content of " + resource.getRepositoryPath() + " has been read");
+			}
+			InputStream ret = stored;
+			stored = null;
+			return ret;
+		}
+		return service.getContentInputStream(resource.getRepositoryPath());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.core.io.AbstractResource#exists()
+	 */
+	@Override
+	public boolean exists() {
+		return resource.isExists();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.core.io.AbstractResource#contentLength()
+	 */
+	@Override
+	public long contentLength() {
+		return encoded ? storedLength : resource.getSize();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.core.io.AbstractResource#lastModified()
+	 */
+	@Override
+	public long lastModified() {
+		return (resource.getLastModifiedTime() != null) ? resource.getLastModifiedTime().getTimeInMillis() : 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.core.io.AbstractResource#getFilename()
+	 */
+	@Override
+	public String getFilename() {
+		return resource.getName();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.core.io.Resource#getDescription()
+	 */
+	@Override
+	public String getDescription() {
+		return "Repository content " + resource.getRepositoryPath();
+	}
+
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.api;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.exception.RepositoryException;
+import de.arpablo.hennirepo.model.FileSignature;
+import de.arpablo.hennirepo.model.RepoResource;
+import de.arpablo.hennirepo.service.DeltaSyncService;
+
+/**
+ * REST interface for delta synchronization. A client fetches the signature
+ * of a file, computes the delta to its local version and sends only the delta
+ * @author arpablo
+ *
+ */
+@RequestMapping(RepositoryAPI.CURRENT_API)
+@RestController
+@ConditionalOnFileStore
+public class DeltaAPI {
+
+	@Autowired
+	private DeltaSyncService deltaService;
+	
+	/**
+	 * Return the block signature of a file
+	 * @param request	the request
+	 * @param blockSize	the block size, 0 to let the server choose. Other sizes
+	 * 					are limited to the range supported by the server
+	 * @return a FileSignature
+	 */
+	@GetMapping(value="/**", params="signature", produces="application/json")
+	public @ResponseBody FileSignature signature(HttpServletRequest request, @RequestParam(defaultValue="0") int blockSize) {
+		String path = RepositoryAPI.getRequestURI(request);
+		return deltaService.signature(path, blockSize);
+	}
+	
+	/**
+	 * Update a file with a delta. The request body is the binary delta
+	 * @param request	the request
+	 * @return the RepoResource of the updated file
+	 */
+	@PutMapping(value="/**", params="delta", produces="application/json")
+	public @ResponseBody RepoResource applyDelta(HttpServletRequest request) {
+		String path = RepositoryAPI.getRequestURI(request);
+		try {
+			return deltaService.applyDelta(path, request.getInputStream());
+		} catch (IOException ex) {
+			throw new RepositoryException(ex);
+		}
+	}
+	
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.api;
+
+import java.beans.PropertyEditorSupport;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.bind.WebDataBinder;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.InitBinder;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.model.MetadataQuery;
+import de.arpablo.hennirepo.model.RepoResource;
+import de.arpablo.hennirepo.service.MetadataQueryService;
+import de.arpablo.hennirepo.service.RepositoryService;
+
+/**
+ * REST interface for queries over the metadata of the repository, e.g.
+ * <code>GET /api/repo/v1/projects?query&amp;order=size&amp;limit=100</code>
+ * for the 100 largest files below projects or
+ * <code>GET /api/repo/v1/?query&amp;modifiedWithin=3600000&amp;order=modified</code>
+ * for the files changed in the last hour. The criteria are the properties
+ * of {@link MetadataQuery}
+ * @author arpablo
+ *
+ */
+@RequestMapping(RepositoryAPI.CURRENT_API)
+@RestController
+@ConditionalOnFileStore
+public class QueryAPI {
+
+	@Autowired
+	private MetadataQueryService queryService;
+
+	@Autowired
+	private RepositoryService service;
+
+	@Autowired
+	private ObjectMapper mapper;
+
+	@InitBinder
+	protected void initBinder(WebDataBinder binder) {
+		binder.registerCustomEditor(MetadataQuery.Order.class, new EnumEditor<MetadataQuery.Order>(MetadataQuery.Order.class));
+		binder.registerCustomEditor(MetadataQuery.Type.class, new EnumEditor<MetadataQuery.Type>(MetadataQuery.Type.class));
+	}
+
+	/**
+	 * Return the resources below a directory matching a query. The matches
+	 * are found before the response starts, their RepoResources are
+	 * streamed as JSON array
+	 * @param request	the request
+	 * @param query		the criteria bound from the request parameters
+	 * @return the RepoResources in the order of the query
+	 */
+	@GetMapping(value="/**", params="query", produces="application/json")
+	public ResponseEntity<StreamingResponseBody> query(HttpServletRequest request, MetadataQuery query) {
+		String path = RepositoryAPI.getRequestURI(request);
+		List<MetadataQueryService.Match> matches = queryService.query(path, query);
+		HttpHeaders respHeaders = new HttpHeaders();
+		respHeaders.setContentType(MediaType.APPLICATION_JSON_UTF8);
+		StreamingResponseBody body = out -> {
+			try (JsonGenerator gen = mapper.getFactory().createGenerator(StreamUtils.nonClosing(out))) {
+				gen.writeStartArray();
+				for (MetadataQueryService.Match match : matches) {
+					RepoResource res = service.info(match.getPath());
+					// skip resources deleted since the query
+					if (res.isExists()) {
+						gen.writeObject(res);
+					}
+				}
+				gen.writeEndArray();
+			}
+		};
+		return new ResponseEntity<StreamingResponseBody>(body, respHeaders, HttpStatus.OK);
+	}
+
+	/**
+	 * Binds enum constants ignoring the case
+	 */
+	protected static class EnumEditor<E extends Enum<E>> extends PropertyEditorSupport {
+		private final Class<E> type;
+
+		EnumEditor(Class<E> type) {
+			this.type = type;
+		}
+
+		@Override
+		public void setAsText(String text) {
+			setValue((text == null || text.trim().isEmpty()) ? null : Enum.valueOf(type, text.trim().toUpperCase(Locale.ROOT)));
+		}
+	}
+
+}
@@ -3,17 +3,21 @@
  */
 package de.arpablo.hennirepo.api;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.http.HttpEntity;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -21,13 +25,24 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.util.AntPathMatcher;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import de.arpablo.hennirepo.common.ArchiveFormat;
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.common.ContentChecksum;
+import de.arpablo.hennirepo.common.VerifyingInputStream;
+import de.arpablo.hennirepo.exception.InvalidContentException;
 import de.arpablo.hennirepo.exception.InvalidResourceTypeException;
+import de.arpablo.hennirepo.exception.RepositoryException;
 import de.arpablo.hennirepo.exception.ResourceAccessException;
 import de.arpablo.hennirepo.model.RepoResource;
 import de.arpablo.hennirepo.service.RepositoryService;
@@ -42,14 +57,51 @@ public class RepositoryAPI {
 
 	static final String CURRENT_API = "/api/repo/v1";
 	private static final Logger log = LoggerFactory.getLogger(RepositoryAPI.class);
+	
+	/**
+	 * The maximum number of paths of a batch request
+	 */
+	static final int MAX_BATCH = 1000;
+	
+	static final String DIGEST = "Digest";
+	static final String REPR_DIGEST = "Repr-Digest";
 
 	@Autowired
 	private RepositoryService service;
 	
+	/**
+	 * Return the info of a resource. The response carries an ETag, so
+	 * clients can revalidate their copy with If-None-Match
+	 * @param request		the request
+	 * @param webRequest	the request for the conditional check
+	 * @return the RepoResource or 304, if it has not changed
+	 */
 	@GetMapping(value="/**", produces="application/json")
-	public @ResponseBody RepoResource info(HttpServletRequest request) {
+	public ResponseEntity<RepoResource> info(HttpServletRequest request, WebRequest webRequest) {
 		String path = getRequestURI(request);
-		return service.info(path);		
+		RepoResource res = service.info(path);
+		String etag = etag(res);
+		if (webRequest.checkNotModified(etag)) {
+			return null;
+		}
+		return ResponseEntity.ok().eTag(etag).body(res);
+	}
+	
+	/**
+	 * Return the info of several resources with one request
+	 * @param paths	the repository paths
+	 * @return the RepoResources in the order of the paths
+	 */
+	@PostMapping(value="/**", params="info", consumes="application/json", produces="application/json")
+	public @ResponseBody List<RepoResource> infoAll(@RequestBody List<String> paths) {
+		if (paths.size() > MAX_BATCH) {
+			throw new RepositoryException(String.format("At most %d paths per request", MAX_BATCH));
+		}
+		List<RepoResource> ret = new ArrayList<RepoResource>(paths.size());
+		for (String path : paths) {
+			ret.add(service.info(path));
+		}
+		return ret;
 	}
 
 	@PutMapping(value="/**", params="folder", produces="application/json")
@@ -65,32 +117,68 @@ public class RepositoryAPI {
 	};
 
 	/**
-	 * Upload a resource with an HTTP PUT request. This is only suitable for
-	 * small resources
+	 * Upload a resource with an HTTP PUT request. The content is streamed
+	 * into the repository while it is received.
+	 * <p>
+	 * A client may declare the SHA-256 of the content with a Repr-Digest or
+	 * Digest header. If the repository already has the content, it is linked
+	 * into place and the body is not read, a client sending
+	 * <code>Expect: 100-continue</code> does not send it then. To ask before
+	 * sending the body, the request is sent with an empty body: the status
+	 * 412 (Precondition Failed) tells to send the content. A body not matching
+	 * the declared SHA-256 is rejected with 400 (Bad Request) and not stored.
 	 * 
 	 * @param request	the request
-	 * @param requestEntity	the content
 	 * @return a RepoResource
 	 */
 	@PutMapping(value="/**",produces="application/json")
-	public  @ResponseBody RepoResource setContent(HttpServletRequest request, HttpEntity<byte[]> requestEntity) {
+	public  @ResponseBody ResponseEntity<RepoResource> setContent(HttpServletRequest request) {
 		String path = getRequestURI(request);
-		 byte[] payload = requestEntity.getBody();
-		 if (payload == null) {
-			 return service.createFile(path);
-		 }
-		 InputStream in = new ByteArrayInputStream(payload);
-		 return service.setContent(path, in);
+		String sha256 = ContentChecksum.sha256FromHeader(request.getHeader(REPR_DIGEST));
+		if (sha256 == null) {
+			sha256 = ContentChecksum.sha256FromHeader(request.getHeader(DIGEST));
+		}
+		if (sha256 != null && !sha256.equals(ContentChecksum.EMPTY_SHA256)) {
+			RepoResource linked = service.linkContent(path, sha256);
+			if (linked != null) {
+				return new ResponseEntity<RepoResource>(linked, HttpStatus.OK);
+			}
+			if (request.getContentLengthLong() == 0) {
+				// send the body
+				return new ResponseEntity<RepoResource>(HttpStatus.PRECONDITION_FAILED);
+			}
+		}
+		if (request.getContentLengthLong() == 0) {
+			return new ResponseEntity<RepoResource>(service.createFile(path), HttpStatus.OK);
+		}
+		try {
+			InputStream in = request.getInputStream();
+			if (sha256 != null) {
+				String declared = sha256;
+				in = new VerifyingInputStream(in, declared, () -> new InvalidContentException(
+						String.format("Content of %s does not match the declared SHA-256 %s", path, declared)));
+			}
+			return new ResponseEntity<RepoResource>(service.setContent(path, in, request.getContentLengthLong()), HttpStatus.OK);
+		} catch (IOException ex) {
+			throw new RepositoryException(ex);
+		}
 	}
 
 	/**
 	 * Return the content of the given resource. This will throw a RepositoryException
-	 * if the resource is a folder or not readable 
+	 * if the resource is a folder or not readable. Byte ranges are served
+	 * with 206, requests with If-Match fail with 412 when the content has
+	 * changed, so ranges of different contents are never combined. If the
+	 * checksums of the content are known, they are sent as Digest and
+	 * Repr-Digest headers. Content stored compressed is sent as stored with
+	 * <code>Content-Encoding: gzip</code> to clients accepting it, unless a
+	 * range is requested
 	 * @param request
-	 * @return an InputStream
+	 * @param webRequest	the request for the conditional check
+	 * @return the content
 	 */
 	@GetMapping(value="/**", params="content")
-	public ResponseEntity<InputStreamResource> getContent(HttpServletRequest request) {
+	public ResponseEntity<Resource> getContent(HttpServletRequest request, WebRequest webRequest) {
 		
 		String path = getRequestURI(request);
 		
@@ -101,37 +189,175 @@ public class RepositoryAPI {
 		if (res.isDirectory()) {
 			throw new InvalidResourceTypeException("Path '" + path + "' qualifies a directory");
 		}
-		InputStream in = service.getContentInputStream(path);
+		boolean encoded = res.getStoredSize() != null && request.getHeader(HttpHeaders.RANGE) == null
+				&& acceptsEncoding(request, CompressedFile.GZIP);
+		String etag = encoded ? encodedEtag(res, CompressedFile.GZIP) : etag(res);
+		String ifMatch = request.getHeader(HttpHeaders.IF_MATCH);
+		if (ifMatch != null && !ifMatch.trim().equals("*") && !ifMatch.contains(etag)) {
+			return new ResponseEntity<Resource>(HttpStatus.PRECONDITION_FAILED);
+		}
+		if (webRequest.checkNotModified(etag)) {
+			return null;
+		}
 		
 		HttpHeaders respHeaders = new HttpHeaders();
 		respHeaders.setContentType(MediaType.parseMediaType(getMimeType(request, path)));
-		respHeaders.setContentLength(res.getSize());
 		respHeaders.setContentDispositionFormData("attachment", res.getName());
-		InputStreamResource isr = new InputStreamResource(in);
-		return new ResponseEntity<InputStreamResource>(isr, respHeaders, HttpStatus.OK);	
+		if (res.getStoredSize() != null) {
+			respHeaders.setVary(Collections.singletonList(HttpHeaders.ACCEPT_ENCODING));
+		}
+		CompressedFile.Stored stored = encoded ? service.getEncodedContent(path, CompressedFile.GZIP) : null;
+		if (stored != null) {
+			// the digests would have to be the ones of the encoded content
+			respHeaders.setETag(etag);
+			respHeaders.set(HttpHeaders.CONTENT_ENCODING, CompressedFile.GZIP);
+			return new ResponseEntity<Resource>(new ContentResource(service, res, stored), respHeaders, HttpStatus.OK);
+		}
+		respHeaders.setETag(etag(res));
+		ContentChecksum checksum = ContentChecksum.valueOf(res.getSha256(), res.getCrc32());
+		if (checksum != null) {
+			respHeaders.set(DIGEST, checksum.getDigest());
+			respHeaders.set(REPR_DIGEST, checksum.getReprDigest());
+		}
+		return new ResponseEntity<Resource>(new ContentResource(service, res), respHeaders, HttpStatus.OK);	
 	}
 	
+	/**
+	 * Archive a resource next to it
+	 * @param request	the request
+	 * @param format	the archive format: zip (default), tar or tar.gz
+	 * @param target	the repository path of the archive, by default next to the resource
+	 * @return the RepoResource of the archive
+	 */
 	@PutMapping(value="/**", params="zip")
-	public @ResponseBody RepoResource zipResource(HttpServletRequest request) {
+	public @ResponseBody RepoResource zipResource(HttpServletRequest request, @RequestParam(defaultValue="zip") String format,
+			@RequestParam(required=false) String target) {
 		String path = getRequestURI(request);
+		String extension = toArchiveFormat(format).getExtension();
 		
 		RepoResource res = service.info(path);
 		if (!res.isExists() || !res.isCanRead() ) {
 			throw new ResourceAccessException("Cannot access resource " + path);
 		}
-		String targetPath = path + ".zip";
-		if (res.isDirectory()) {
+		String targetPath = path + extension;
+		if (target != null) {
+			targetPath = target;
+		} else if (res.isDirectory()) {
 			targetPath = res.getParentPath();
 			if (targetPath == null) {
-				targetPath = "/Archive.zip";
+				targetPath = "/Archive" + extension;
 			} else {
-				targetPath = targetPath + "/" + res.getName() + ".zip";
+				targetPath = targetPath + "/" + res.getName() + extension;
 			}
 		}
 		log.debug("Zipping resource {} to targetPath {}", path, targetPath);
 		return service.zip(path,targetPath);
 	}
 	
+	/**
+	 * Download a resource as archive. The archive is streamed while it is created
+	 * @param request	the request
+	 * @param archive	the archive format: zip, tar or tar.gz
+	 * @return the archive
+	 */
+	@GetMapping(value="/**", params="archive")
+	public ResponseEntity<StreamingResponseBody> getArchive(HttpServletRequest request, @RequestParam String archive) {
+		String path = getRequestURI(request);
+		ArchiveFormat format = toArchiveFormat(archive);
+		
+		RepoResource res = service.info(path);
+		if (!res.isExists() || !res.isCanRead() ) {
+			throw new ResourceAccessException("Cannot access resource " + path);
+		}
+		HttpHeaders respHeaders = new HttpHeaders();
+		respHeaders.setContentType(MediaType.parseMediaType(format.getMimeType()));
+		respHeaders.setContentDispositionFormData("attachment", res.getName() + format.getExtension());
+		StreamingResponseBody body = out -> service.writeArchive(path, format, out);
+		return new ResponseEntity<StreamingResponseBody>(body, respHeaders, HttpStatus.OK);
+	}
+	
+	/**
+	 * Download several resources as one archive. The archive is streamed while
+	 * it is created, the entries are named by the paths of the resources
+	 * relative to their common parent directory
+	 * @param archive	the archive format: zip, tar or tar.gz
+	 * @param paths		the repository paths
+	 * @return the archive
+	 */
+	@PostMapping(value="/**", params="archive", consumes="application/json")
+	public ResponseEntity<StreamingResponseBody> getArchive(@RequestParam String archive, @RequestBody List<String> paths) {
+		ArchiveFormat format = toArchiveFormat(archive);
+		if (paths.isEmpty() || paths.size() > MAX_BATCH) {
+			throw new RepositoryException(String.format("Between 1 and %d paths per request", MAX_BATCH));
+		}
+		// fail before the response is committed
+		for (String path : paths) {
+			RepoResource res = service.info(path);
+			if (!res.isExists() || !res.isCanRead() ) {
+				throw new ResourceAccessException("Cannot access resource " + path);
+			}
+		}
+		HttpHeaders respHeaders = new HttpHeaders();
+		respHeaders.setContentType(MediaType.parseMediaType(format.getMimeType()));
+		respHeaders.setContentDispositionFormData("attachment", "Archive" + format.getExtension());
+		StreamingResponseBody body = out -> service.writeArchive(paths, format, out);
+		return new ResponseEntity<StreamingResponseBody>(body, respHeaders, HttpStatus.OK);
+	}
+	
+	/**
+	 * Extract the archive sent as request body into a directory while it is received
+	 * @param request	the request
+	 * @param extract	the archive format: zip, tar or tar.gz
+	 * @return the RepoResource of the directory
+	 */
+	@PutMapping(value="/**", params="extract", produces="application/json")
+	public @ResponseBody RepoResource extractArchive(HttpServletRequest request, @RequestParam String extract) {
+		String path = getRequestURI(request);
+		ArchiveFormat format = toArchiveFormat(extract);
+		try {
+			service.extractArchive(request.getInputStream(), format, path);
+		} catch (IOException ex) {
+			throw new RepositoryException(ex);
+		}
+		return service.info(path);
+	}
+	
+	/**
+	 * Extract a ZIP archive of the repository into a directory
+	 * @param request	the request
+	 * @param unzipTo	the repository path of the target directory
+	 * @return true
+	 */
+	@PutMapping(value="/**", params="unzipTo", produces="application/json")
+	public @ResponseBody boolean unzip(HttpServletRequest request, @RequestParam String unzipTo) {
+		service.unzip(getRequestURI(request), unzipTo);
+		return true;
+	}
+	
+	/**
+	 * Copy a resource
+	 * @param request	the request
+	 * @param copyTo	the repository path of the target
+	 * @return true
+	 */
+	@PutMapping(value="/**", params="copyTo", produces="application/json")
+	public @ResponseBody boolean copy(HttpServletRequest request, @RequestParam String copyTo) {
+		service.copy(getRequestURI(request), copyTo);
+		return true;
+	}
+	
+	/**
+	 * Move a resource
+	 * @param request	the request
+	 * @param moveTo	the repository path of the target
+	 * @return true
+	 */
+	@PutMapping(value="/**", params="moveTo", produces="application/json")
+	public @ResponseBody boolean move(HttpServletRequest request, @RequestParam String moveTo) {
+		service.move(getRequestURI(request), moveTo);
+		return true;
+	}
+	
 	@DeleteMapping(value="/**", produces="application/json")
 	public @ResponseBody boolean delete(HttpServletRequest request) {
 		String path = getRequestURI(request);
@@ -143,10 +369,28 @@ public class RepositoryAPI {
 		}		
 	}
 	
+	/**
+	 * List a directory. The response carries an ETag of the listing
+	 * @param request		the request
+	 * @param webRequest	the request for the conditional check
+	 * @param hidden		if true, hidden resources are listed
+	 * @param glob			an optional glob pattern the names have to match
+	 * @return the RepoResources or 304, if the listing has not changed
+	 */
 	@GetMapping(value="/**", params="list", produces="application/json")
-	public @ResponseBody List<RepoResource> list(HttpServletRequest request) {
+	public ResponseEntity<List<RepoResource>> list(HttpServletRequest request, WebRequest webRequest,
+			@RequestParam(defaultValue="false") boolean hidden, @RequestParam(required=false) String glob) {
 		String path = getRequestURI(request);
-		return service.list(path);
+		List<RepoResource> ret = service.list(path, hidden, glob);
+		CRC32 crc = new CRC32();
+		for (RepoResource res : ret) {
+			crc.update((res.getRepositoryPath() + etag(res)).getBytes(StandardCharsets.UTF_8));
+		}
+		String etag = String.format("\"l-%x-%x\"", ret.size(), crc.getValue());
+		if (webRequest.checkNotModified(etag)) {
+			return null;
+		}
+		return ResponseEntity.ok().eTag(etag).body(ret);
 	}
 	
 	
@@ -158,6 +402,69 @@ public class RepositoryAPI {
 	    return finalPath;
 	}
 	
+	/**
+	 * Compute the entity tag of a resource from its type, size and
+	 * modification time, for directories including their totals
+	 * @param res	the resource
+	 * @return the quoted entity tag
+	 */
+	/**
+	 * Return the ETag of the content of a file sent with a content coding
+	 * @param res		the file
+	 * @param encoding	the content coding
+	 * @return the ETag
+	 */
+	static String encodedEtag(RepoResource res, String encoding) {
+		String etag = etag(res);
+		return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+	}
+	
+	/**
+	 * Checks, if a request accepts a content coding
+	 * @param request	the request
+	 * @param encoding	the content coding
+	 * @return <code>true</code>, if the Accept-Encoding headers list the
+	 * 			coding or <code>*</code> without <code>q=0</code>
+	 */
+	protected static boolean acceptsEncoding(HttpServletRequest request, String encoding) {
+		Enumeration<String> values = request.getHeaders(HttpHeaders.ACCEPT_ENCODING);
+		while (values != null && values.hasMoreElements()) {
+			for (String item : values.nextElement().split(",")) {
+				String[] parts = item.split(";");
+				String coding = parts[0].trim();
+				if (coding.equalsIgnoreCase(encoding) || coding.equals("*")) {
+					for (int i = 1; i < parts.length; i++) {
+						String param = parts[i].replace(" ", "");
+						if (param.startsWith("q=") && param.substring(2).matches("0(\\.0*)?")) {
+							return false;
+						}
+					}
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	static String etag(RepoResource res) {
+		long modified = (res.getLastModifiedTime() != null) ? res.getLastModifiedTime().getTimeInMillis() : 0;
+		StringBuilder sb = new StringBuilder("\"");
+		sb.append(!res.isExists() ? 'n' : res.isDirectory() ? 'd' : 'f');
+		sb.append('-').append(Long.toHexString(res.getSize())).append('-').append(Long.toHexString(modified));
+		if (res.getTotalSize() != null && res.getFileCount() != null) {
+			sb.append('-').append(Long.toHexString(res.getTotalSize())).append('-').append(Long.toHexString(res.getFileCount()));
+		}
+		return sb.append('"').toString();
+	}
+	
+	protected static ArchiveFormat toArchiveFormat(String name) {
+		ArchiveFormat format = ArchiveFormat.forName(name);
+		if (format == null) {
+			throw new InvalidResourceTypeException(String.format("Unsupported archive format %s", name));
+		}
+		return format;
+	}
+	
 	protected String getMimeType(HttpServletRequest request, String fileName) {
 		String retval = "application/octet-stream";
 		if (fileName == null) {
@@ -0,0 +1,232 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.api;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UrlPathHelper;
+
+import de.arpablo.hennirepo.common.RequestTiming;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+
+/**
+ * Times the requests of the API. The cost of a request is returned in a
+ * Server-Timing header, which is added when the response is committed, so
+ * it holds the phases finished until then. Requests slower than the
+ * configured threshold are logged with their complete cost breakdown.
+ * <p>
+ * The filter runs before the admission control, so the time waiting for
+ * admission is part of the timing.
+ * @author arpablo
+ *
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class ServerTimingFilter extends OncePerRequestFilter {
+
+	private static final Logger logger = LoggerFactory.getLogger(ServerTimingFilter.class);
+
+	static final String SERVER_TIMING = "Server-Timing";
+
+	@Autowired
+	private RepositoryProperties repoConfig;
+
+	private final UrlPathHelper pathHelper = new UrlPathHelper();
+
+	/* (non-Javadoc)
+	 * @see org.springframework.web.filter.OncePerRequestFilter#shouldNotFilter(javax.servlet.http.HttpServletRequest)
+	 */
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) {
+		return !repoConfig.getTiming().isEnabled()
+				|| !pathHelper.getPathWithinApplication(request).startsWith("/api/")
+				|| request.getParameter("changes") != null;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.web.filter.OncePerRequestFilter#doFilterInternal(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, javax.servlet.FilterChain)
+	 */
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		RequestTiming timing = RequestTiming.begin();
+		TimedResponse timed = new TimedResponse(response, timing);
+		boolean async = false;
+		try {
+			chain.doFilter(request, timed);
+			if (request.isAsyncStarted()) {
+				request.getAsyncContext().addListener(new CompletionListener(() -> complete(request, timed, timing)));
+				async = true;
+			}
+		} finally {
+			RequestTiming.detach();
+			if (!async) {
+				complete(request, timed, timing);
+			}
+		}
+	}
+
+	/**
+	 * Finish the timing of a request and log it, if it was slow
+	 */
+	protected void complete(HttpServletRequest request, TimedResponse response, RequestTiming timing) {
+		timing.rendered();
+		response.addTiming();
+		long threshold = repoConfig.getTiming().getSlowRequestMillis();
+		if (threshold > 0 && timing.getElapsedMillis() >= threshold) {
+			logger.warn("Slow request method={} uri={} query={} status={} {}", request.getMethod(), request.getRequestURI(),
+					request.getQueryString(), response.getStatus(), timing);
+		}
+	}
+
+	/**
+	 * Calls a Runnable when an asynchronous request is done
+	 */
+	protected static class CompletionListener implements AsyncListener {
+		private final Runnable action;
+
+		CompletionListener(Runnable action) {
+			this.action = action;
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			action.run();
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			event.getAsyncContext().addListener(this);
+		}
+	}
+
+	/**
+	 * A response that adds the Server-Timing header before it is committed
+	 * and records the time spent writing the body
+	 */
+	protected static class TimedResponse extends HttpServletResponseWrapper {
+		private final RequestTiming timing;
+		private ServletOutputStream out;
+		private boolean added;
+
+		TimedResponse(HttpServletResponse response, RequestTiming timing) {
+			super(response);
+			this.timing = timing;
+		}
+
+		/**
+		 * Add the Server-Timing header, unless the response is committed
+		 */
+		protected synchronized void addTiming() {
+			if (!added) {
+				added = true;
+				if (!isCommitted()) {
+					setHeader(SERVER_TIMING, timing.toServerTiming());
+				}
+			}
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			addTiming();
+			super.flushBuffer();
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			addTiming();
+			super.sendError(sc, msg);
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+			addTiming();
+			super.sendError(sc);
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			timing.rendering();
+			addTiming();
+			return super.getWriter();
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (out == null) {
+				ServletOutputStream delegate = super.getOutputStream();
+				out = new ServletOutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						addTiming();
+						long start = System.nanoTime();
+						delegate.write(b);
+						timing.add(RequestTiming.Phase.SEND, System.nanoTime() - start, 0, 1);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						addTiming();
+						long start = System.nanoTime();
+						delegate.write(b, off, len);
+						timing.add(RequestTiming.Phase.SEND, System.nanoTime() - start, 1, len);
+					}
+
+					@Override
+					public void flush() throws IOException {
+						addTiming();
+						long start = System.nanoTime();
+						delegate.flush();
+						timing.add(RequestTiming.Phase.SEND, System.nanoTime() - start, 1, 0);
+					}
+
+					@Override
+					public void close() throws IOException {
+						addTiming();
+						delegate.close();
+					}
+
+					@Override
+					public boolean isReady() {
+						return delegate.isReady();
+					}
+
+					@Override
+					public void setWriteListener(WriteListener listener) {
+						delegate.setWriteListener(listener);
+					}
+				};
+			}
+			timing.rendering();
+			return out;
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.model.RepositoryEvent;
+import de.arpablo.hennirepo.model.SnapshotInfo;
+import de.arpablo.hennirepo.service.SnapshotService;
+
+/**
+ * REST interface for snapshots. The content of a snapshot is browsed with
+ * the endpoints of the {@link RepositoryAPI} below <code>/.snapshots/&lt;name&gt;</code>,
+ * a snapshot is deleted by deleting this path
+ * @author arpablo
+ *
+ */
+@RequestMapping(RepositoryAPI.CURRENT_API)
+@RestController
+@ConditionalOnFileStore
+public class SnapshotAPI {
+
+	@Autowired
+	private SnapshotService snapshotService;
+	
+	/**
+	 * Create a snapshot of the subtree
+	 * @param request	the request
+	 * @param snapshot	the name of the snapshot
+	 * @return the SnapshotInfo
+	 */
+	@PutMapping(value="/**", params="snapshot", produces="application/json")
+	public @ResponseBody SnapshotInfo create(HttpServletRequest request, @RequestParam String snapshot) {
+		String path = RepositoryAPI.getRequestURI(request);
+		return snapshotService.create(path, snapshot);
+	}
+	
+	/**
+	 * List the snapshots of the subtree and its descendants
+	 * @param request	the request
+	 * @return a List of SnapshotInfo
+	 */
+	@GetMapping(value="/**", params="snapshots", produces="application/json")
+	public @ResponseBody List<SnapshotInfo> list(HttpServletRequest request) {
+		String path = RepositoryEvent.normalize(RepositoryAPI.getRequestURI(request));
+		List<SnapshotInfo> ret = new ArrayList<SnapshotInfo>();
+		for (SnapshotInfo info : snapshotService.list()) {
+			String source = info.getSourcePath();
+			if (path.equals("/") || source.equals(path) || source.startsWith(path + "/")) {
+				ret.add(info);
+			}
+		}
+		return ret;
+	}
+	
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.api;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.exception.RepositoryException;
+import de.arpablo.hennirepo.model.RepoResource;
+import de.arpablo.hennirepo.model.UploadInfo;
+import de.arpablo.hennirepo.model.UploadPart;
+import de.arpablo.hennirepo.service.MultipartUploadService;
+
+/**
+ * REST interface for multipart uploads. A client initiates an upload for a
+ * path, PUTs the numbered parts (possibly in parallel and retrying single
+ * parts) and finally completes or aborts the upload.
+ * @author arpablo
+ *
+ */
+@RequestMapping(RepositoryAPI.CURRENT_API)
+@RestController
+@ConditionalOnFileStore
+public class UploadAPI {
+
+	@Autowired
+	private MultipartUploadService uploadService;
+	
+	/**
+	 * Initiate a multipart upload for the resource at the request path
+	 * @param request	the request
+	 * @return the UploadInfo with the id of the new upload
+	 */
+	@PostMapping(value="/**", params="uploads", produces="application/json")
+	public @ResponseBody UploadInfo initiate(HttpServletRequest request) {
+		String path = RepositoryAPI.getRequestURI(request);
+		return uploadService.initiate(path);
+	}
+	
+	/**
+	 * Upload a single part. The request body is streamed to disk
+	 * @param request		the request
+	 * @param uploadId		the id of the upload
+	 * @param partNumber	the number of the part
+	 * @return the UploadPart
+	 */
+	@PutMapping(value="/**", params={"uploadId", "partNumber"}, produces="application/json")
+	public @ResponseBody UploadPart uploadPart(HttpServletRequest request, @RequestParam String uploadId, @RequestParam int partNumber) {
+		try {
+			return uploadService.uploadPart(uploadId, partNumber, request.getInputStream());
+		} catch (IOException ex) {
+			throw new RepositoryException(ex);
+		}
+	}
+	
+	/**
+	 * List the parts of an upload
+	 * @param uploadId	the id of the upload
+	 * @return the UploadInfo
+	 */
+	@GetMapping(value="/**", params="uploadId", produces="application/json")
+	public @ResponseBody UploadInfo listParts(@RequestParam String uploadId) {
+		return uploadService.info(uploadId);
+	}
+	
+	/**
+	 * Complete the upload
+	 * @param uploadId	the id of the upload
+	 * @return the RepoResource of the uploaded resource
+	 */
+	@PostMapping(value="/**", params="uploadId", produces="application/json")
+	public @ResponseBody RepoResource complete(@RequestParam String uploadId) {
+		return uploadService.complete(uploadId);
+	}
+	
+	/**
+	 * Abort the upload
+	 * @param uploadId	the id of the upload
+	 * @return <code>true</code>
+	 */
+	@DeleteMapping(value="/**", params="uploadId", produces="application/json")
+	public @ResponseBody boolean abort(@RequestParam String uploadId) {
+		uploadService.abort(uploadId);
+		return true;
+	}
+	
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.api;
+
+import java.io.InputStream;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.model.FileVersion;
+import de.arpablo.hennirepo.model.RepoResource;
+import de.arpablo.hennirepo.service.VersionService;
+
+/**
+ * REST interface for the version history of files
+ * @author arpablo
+ *
+ */
+@RequestMapping(RepositoryAPI.CURRENT_API)
+@RestController
+@ConditionalOnFileStore
+public class VersionAPI {
+
+	@Autowired
+	private VersionService versionService;
+	
+	/**
+	 * List the versions of a file, the newest first
+	 * @param request	the request
+	 * @return a List of FileVersion
+	 */
+	@GetMapping(value="/**", params="versions", produces="application/json")
+	public @ResponseBody List<FileVersion> list(HttpServletRequest request) {
+		String path = RepositoryAPI.getRequestURI(request);
+		return versionService.list(path);
+	}
+	
+	/**
+	 * Return the content of a version
+	 * @param request	the request
+	 * @param version	the id of the version
+	 * @return the content
+	 */
+	@GetMapping(value="/**", params="version")
+	public ResponseEntity<InputStreamResource> getContent(HttpServletRequest request, @RequestParam String version) {
+		String path = RepositoryAPI.getRequestURI(request);
+		FileVersion info = versionService.info(path, version);
+		InputStream in = versionService.getContentInputStream(path, version);
+		
+		HttpHeaders respHeaders = new HttpHeaders();
+		respHeaders.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+		respHeaders.setContentLength(info.getSize());
+		return new ResponseEntity<InputStreamResource>(new InputStreamResource(in), respHeaders, HttpStatus.OK);
+	}
+	
+	/**
+	 * Make a version the current content of the file
+	 * @param request	the request
+	 * @param version	the id of the version
+	 * @return the RepoResource of the file
+	 */
+	@PostMapping(value="/**", params={"version", "restore"}, produces="application/json")
+	public @ResponseBody RepoResource restore(HttpServletRequest request, @RequestParam String version) {
+		String path = RepositoryAPI.getRequestURI(request);
+		return versionService.restore(path, version);
+	}
+	
+	/**
+	 * Delete a version
+	 * @param request	the request
+	 * @param version	the id of the version
+	 * @return true
+	 */
+	@DeleteMapping(value="/**", params="version", produces="application/json")
+	public @ResponseBody boolean delete(HttpServletRequest request, @RequestParam String version) {
+		String path = RepositoryAPI.getRequestURI(request);
+		versionService.delete(path, version);
+		return true;
+	}
+	
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.client;
+
+import lombok.Data;
+
+/**
+ * The configuration of a {@link RemoteRepositoryService}
+ * @author arpablo
+ *
+ */
+@Data
+public class RemoteRepositoryConfig {
+
+	/**
+	 * The URI of the repository server, e.g. <code>http://localhost:8080</code>
+	 */
+	String baseUri;
+	
+	/**
+	 * The maximum number of pooled connections to the server
+	 */
+	int maxConnections = 16;
+	
+	int connectTimeoutMillis = 5000;
+	int socketTimeoutMillis = 60000;
+	
+	/**
+	 * The number of retries of a failed request. Requests are retried after
+	 * connection failures, if they are idempotent, and when the server is
+	 * overloaded (429, 503)
+	 */
+	int maxRetries = 3;
+	
+	/**
+	 * The delay before the first retry, which doubles with every retry
+	 */
+	long retryBackoffMillis = 200;
+	long maxBackoffMillis = 10000;
+	
+	/**
+	 * The maximum number of infos and listings kept in the metadata cache
+	 */
+	int cacheSize = 10000;
+	
+	/**
+	 * The time an entry of the metadata cache is used without asking the
+	 * server. With 0 (default) every entry is revalidated by its ETag
+	 */
+	long metadataMaxAgeMillis = 0;
+	
+	/**
+	 * The maximum number of infos requested at once. Concurrent calls of
+	 * info are combined into one request up to this size, 1 disables it
+	 */
+	int batchSize = 500;
+	
+	/**
+	 * The size of the parts of a parallel download
+	 */
+	int rangeSize = 8 * 1024 * 1024;
+	
+	/**
+	 * The number of parts of a file downloaded in parallel
+	 */
+	int rangeThreads = 4;
+	
+	/**
+	 * The minimum size of a file downloaded in parallel parts
+	 */
+	long parallelDownloadMinSize = 32L * 1024 * 1024;
+	
+	/**
+	 * The minimum size of content, for which the server is asked if it
+	 * already has the content before it is uploaded. A negative value
+	 * disables asking
+	 */
+	long hashFirstMinSize = 1024 * 1024;
+	
+	/**
+	 * Constructor
+	 */
+	public RemoteRepositoryConfig() {
+	}
+	
+	/**
+	 * Constructor
+	 * @param baseUri	the URI of the repository server
+	 */
+	public RemoteRepositoryConfig(String baseUri) {
+		this.baseUri = baseUri;
+	}
+	
+}
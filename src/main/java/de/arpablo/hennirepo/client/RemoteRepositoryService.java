@@ -0,0 +1,1102 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.arpablo.hennirepo.common.ArchiveFormat;
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.common.ContentChecksum;
+import de.arpablo.hennirepo.exception.QuotaExceededException;
+import de.arpablo.hennirepo.exception.RepositoryException;
+import de.arpablo.hennirepo.exception.ResourceAccessException;
+import de.arpablo.hennirepo.model.RepoResource;
+import de.arpablo.hennirepo.model.RepositoryEvent;
+import de.arpablo.hennirepo.service.RepositoryService;
+
+/**
+ * A RepositoryService accessing a repository server over HTTP, so code
+ * written against the RepositoryService runs unchanged against a local or
+ * a remote repository.
+ * <p>
+ * The connections to the server are pooled. Infos and listings are kept in
+ * a metadata cache and revalidated by their ETag, so unchanged metadata
+ * costs a 304 response. Calls of info issued while another info request is
+ * in flight are combined into one request. Content is streamed in both
+ * directions, large files are downloaded in parallel byte ranges. Requests
+ * are retried with exponential backoff after connection failures and when
+ * the server is overloaded. Uploads are retried only as long as no content
+ * has been sent, because their streams cannot be replayed.
+ * <p>
+ * The Path of the returned RepoResources is the repository path, it does
+ * not denote a local file.
+ * @author arpablo
+ *
+ */
+public class RemoteRepositoryService implements RepositoryService, Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(RemoteRepositoryService.class);
+
+	static final String API = "/api/repo/v1";
+	static final String REPR_DIGEST = "Repr-Digest";
+
+	/**
+	 * The maximum number of paths of a batch request accepted by the server
+	 */
+	static final int MAX_BATCH = 1000;
+
+	private final RemoteRepositoryConfig config;
+	private final URI baseUri;
+	private final CloseableHttpClient client;
+	private final ExecutorService rangeExecutor;
+	private final ObjectMapper mapper = new ObjectMapper()
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+	private final Map<String, Metadata> metadata;
+	private final AtomicLong generation = new AtomicLong();
+
+	private final ConcurrentLinkedQueue<PendingInfo> pendingInfos = new ConcurrentLinkedQueue<PendingInfo>();
+	private final AtomicBoolean sendingInfos = new AtomicBoolean();
+
+	/**
+	 * Constructor
+	 * @param baseUri	the URI of the repository server
+	 */
+	public RemoteRepositoryService(String baseUri) {
+		this(new RemoteRepositoryConfig(baseUri));
+	}
+
+	/**
+	 * Constructor
+	 * @param config	the configuration
+	 */
+	public RemoteRepositoryService(RemoteRepositoryConfig config) {
+		this.config = config;
+		try {
+			this.baseUri = new URI(config.getBaseUri());
+		} catch (URISyntaxException | NullPointerException ex) {
+			throw new IllegalArgumentException("Invalid base URI " + config.getBaseUri(), ex);
+		}
+		PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager(30, TimeUnit.SECONDS);
+		connections.setMaxTotal(config.getMaxConnections());
+		connections.setDefaultMaxPerRoute(config.getMaxConnections());
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(config.getConnectTimeoutMillis())
+				.setConnectionRequestTimeout(config.getConnectTimeoutMillis())
+				.setSocketTimeout(config.getSocketTimeoutMillis())
+				.setExpectContinueEnabled(true)
+				.build();
+		this.client = HttpClients.custom()
+				.setConnectionManager(connections)
+				.setDefaultRequestConfig(requestConfig)
+				.disableAutomaticRetries()
+				.evictExpiredConnections()
+				.evictIdleConnections(30, TimeUnit.SECONDS)
+				.build();
+		AtomicInteger threads = new AtomicInteger();
+		this.rangeExecutor = Executors.newFixedThreadPool(Math.max(config.getRangeThreads(), 1), r -> {
+			Thread t = new Thread(r, "hennirepo-download-" + threads.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		final int cacheSize = config.getCacheSize();
+		this.metadata = Collections.synchronizedMap(new LinkedHashMap<String, Metadata>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Metadata> eldest) {
+				return size() > cacheSize;
+			}
+		});
+	}
+
+	/**
+	 * @return the configuration
+	 */
+	public RemoteRepositoryConfig getConfig() {
+		return config;
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#getRoot()
+	 */
+	@Override
+	public RepoResource getRoot() {
+		return info("");
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#getSource(java.lang.String)
+	 */
+	@Override
+	public Source getSource(String path) {
+		return new StreamSource(getContentInputStream(path), uri(path).toString());
+	}
+
+	/**
+	 * Return a stream result for the given path. The content written to the
+	 * stream of the result is uploaded, when the stream is closed
+	 * @see de.arpablo.hennirepo.service.RepositoryService#getResult(java.lang.String)
+	 */
+	@Override
+	public Result getResult(String path) throws IOException {
+		File tmp = File.createTempFile("hennirepo", ".upload");
+		StreamResult ret = new StreamResult(new UploadOutputStream(path, tmp));
+		ret.setSystemId(uri(path).toString());
+		return ret;
+	}
+
+	/**
+	 * Return information about the RepoResource at the given path. Calls
+	 * issued while an info request is in flight are sent together with the
+	 * next request
+	 * @see de.arpablo.hennirepo.service.RepositoryService#info(java.lang.String)
+	 */
+	@Override
+	public RepoResource info(String path) {
+		Metadata cached = metadata.get(infoKey(path));
+		if (isFresh(cached)) {
+			return toResource(readTree(cached.body));
+		}
+		if (config.getBatchSize() <= 1) {
+			return toResource(readTree(fetchInfo(path).body));
+		}
+		PendingInfo pending = new PendingInfo(path);
+		pendingInfos.add(pending);
+		sendPendingInfos();
+		try {
+			return pending.result.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RepositoryException(ex);
+		} catch (ExecutionException ex) {
+			throw unwrap(ex);
+		}
+	}
+
+	/**
+	 * Return information about several RepoResources with as few requests
+	 * as possible
+	 * @param paths	the paths to query
+	 * @return the RepoResources in the order of the paths
+	 */
+	public List<RepoResource> info(List<String> paths) {
+		List<RepoResource> ret = new ArrayList<RepoResource>(paths.size());
+		int size = Math.min(Math.max(config.getBatchSize(), 1), MAX_BATCH);
+		for (int i = 0; i < paths.size(); i += size) {
+			ret.addAll(fetchInfos(paths.subList(i, Math.min(i + size, paths.size()))));
+		}
+		return ret;
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#exists(java.lang.String)
+	 */
+	@Override
+	public boolean exists(String path) {
+		return info(path).isExists();
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#existsFile(java.lang.String)
+	 */
+	@Override
+	public boolean existsFile(String path) {
+		RepoResource res = info(path);
+		return res.isExists() && res.isFile();
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#existsDirectory(java.lang.String)
+	 */
+	@Override
+	public boolean existsDirectory(String path) {
+		RepoResource res = info(path);
+		return res.isExists() && res.isDirectory();
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#list(java.lang.String)
+	 */
+	@Override
+	public List<RepoResource> list(String path) throws RepositoryException {
+		return list(path, false, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#list(java.lang.String, boolean)
+	 */
+	@Override
+	public List<RepoResource> list(String path, boolean showHidden) throws RepositoryException {
+		return list(path, showHidden, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#list(java.lang.String, boolean, java.lang.String)
+	 */
+	@Override
+	public List<RepoResource> list(String path, boolean showHidden, String glob) throws RepositoryException {
+		URIBuilder uri = uriBuilder(path).addParameter("list", "").addParameter("hidden", String.valueOf(showHidden));
+		if (glob != null) {
+			uri.addParameter("glob", glob);
+		}
+		String key = "l:" + RepositoryEvent.normalize(path) + "?" + showHidden + ":" + glob;
+		Metadata m = fetchMetadata(key, build(uri), false);
+		List<RepoResource> ret = new ArrayList<RepoResource>();
+		for (JsonNode node : readTree(m.body)) {
+			ret.add(toResource(node));
+		}
+		return ret;
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#getContentInputStream(java.lang.String)
+	 */
+	@Override
+	public InputStream getContentInputStream(String path) throws RepositoryException {
+		HttpGet get = new HttpGet(build(uriBuilder(path).addParameter("content", "")));
+		CloseableHttpResponse resp = send(get, true);
+		try {
+			HttpEntity entity = resp.getEntity();
+			if (entity == null) {
+				resp.close();
+				return new ByteArrayInputStream(new byte[0]);
+			}
+			return new ResponseInputStream(entity.getContent(), resp);
+		} catch (IOException ex) {
+			close(resp);
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	/**
+	 * The content is not requested encoded, the HTTP client negotiates the
+	 * content coding of every download and decodes it
+	 * @see de.arpablo.hennirepo.service.RepositoryService#getEncodedContent(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public CompressedFile.Stored getEncodedContent(String path, String encoding) throws RepositoryException {
+		return null;
+	}
+
+	/**
+	 * Write the content at the given path to the provided OutputStream.
+	 * Large files are downloaded in parallel byte ranges, which are written
+	 * in order. All ranges are requested with the ETag of the content, so a
+	 * file changed during the download fails instead of mixing contents
+	 * @see de.arpablo.hennirepo.service.RepositoryService#getContent(java.lang.String, java.io.OutputStream)
+	 */
+	@Override
+	public void getContent(String path, OutputStream out) throws RepositoryException {
+		if (config.getRangeThreads() > 1 && config.getRangeSize() > 0) {
+			Metadata m = fetchInfo(path);
+			RepoResource res = toResource(readTree(m.body));
+			if (res.isFile() && m.etag != null && res.getSize() >= config.getParallelDownloadMinSize()) {
+				getRanges(path, m.etag, res.getSize(), out);
+				return;
+			}
+		}
+		try (InputStream in = getContentInputStream(path)) {
+			copy(in, out);
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#setContent(java.lang.String, java.io.InputStream)
+	 */
+	@Override
+	public RepoResource setContent(String path, InputStream in) throws RepositoryException {
+		HttpPut put = new HttpPut(uri(path));
+		put.setEntity(new UploadEntity(in));
+		return update(path, put, true);
+	}
+
+	/**
+	 * Ask the server to set the content from content it already has. The
+	 * request has an empty body, so nothing is transferred if it does not
+	 * @see de.arpablo.hennirepo.service.RepositoryService#linkContent(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public RepoResource linkContent(String path, String sha256) throws RepositoryException {
+		HttpPut put = new HttpPut(uri(path));
+		put.setHeader(REPR_DIGEST, ContentChecksum.toReprDigest(sha256));
+		put.setEntity(new ByteArrayEntity(new byte[0], ContentType.APPLICATION_OCTET_STREAM));
+		try (CloseableHttpResponse resp = send(put, true, HttpStatus.SC_PRECONDITION_FAILED)) {
+			if (resp.getStatusLine().getStatusCode() == HttpStatus.SC_PRECONDITION_FAILED) {
+				// the server does not have the content
+				EntityUtils.consume(resp.getEntity());
+				return null;
+			}
+			return toResource(readTree(EntityUtils.toString(resp.getEntity(), "UTF-8")));
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		} finally {
+			invalidate(path);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#delete(java.lang.String)
+	 */
+	@Override
+	public void delete(String path) throws RepositoryException {
+		try {
+			if (!Boolean.parseBoolean(execute(new HttpDelete(uri(path)), true).trim())) {
+				throw new RepositoryException("Cannot delete resource " + path);
+			}
+		} finally {
+			invalidate(path);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#copy(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public void copy(String sourcePath, String targetPath) throws RepositoryException {
+		try {
+			execute(new HttpPut(build(uriBuilder(sourcePath).addParameter("copyTo", targetPath))), true);
+		} finally {
+			invalidate(targetPath);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#move(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public void move(String sourcePath, String targetPath) throws RepositoryException {
+		try {
+			execute(new HttpPut(build(uriBuilder(sourcePath).addParameter("moveTo", targetPath))), false);
+		} finally {
+			invalidate(sourcePath);
+			invalidate(targetPath);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#zip(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public RepoResource zip(String sourcePath, String targetPath) throws RepositoryException {
+		HttpPut put = new HttpPut(build(uriBuilder(sourcePath).addParameter("zip", "").addParameter("target", targetPath)));
+		return update(targetPath, put, true);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#unzip(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public void unzip(String sourcePath, String targetPath) throws RepositoryException {
+		try {
+			execute(new HttpPut(build(uriBuilder(sourcePath).addParameter("unzipTo", targetPath))), true);
+		} finally {
+			invalidate(targetPath);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#writeArchive(java.lang.String, de.arpablo.hennirepo.common.ArchiveFormat, java.io.OutputStream)
+	 */
+	@Override
+	public void writeArchive(String path, ArchiveFormat format, OutputStream out) throws RepositoryException {
+		HttpGet get = new HttpGet(build(uriBuilder(path).addParameter("archive", format.getName())));
+		try (CloseableHttpResponse resp = send(get, true)) {
+			if (resp.getEntity() != null) {
+				copy(resp.getEntity().getContent(), out);
+			}
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#writeArchive(java.util.List, de.arpablo.hennirepo.common.ArchiveFormat, java.io.OutputStream)
+	 */
+	@Override
+	public void writeArchive(List<String> paths, ArchiveFormat format, OutputStream out) throws RepositoryException {
+		HttpPost post = new HttpPost(build(uriBuilder("").addParameter("archive", format.getName())));
+		try {
+			post.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(paths), ContentType.APPLICATION_JSON));
+		} catch (IOException ex) {
+			throw new RepositoryException(ex);
+		}
+		try (CloseableHttpResponse resp = send(post, true)) {
+			if (resp.getEntity() != null) {
+				copy(resp.getEntity().getContent(), out);
+			}
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#extractArchive(java.io.InputStream, de.arpablo.hennirepo.common.ArchiveFormat, java.lang.String)
+	 */
+	@Override
+	public void extractArchive(InputStream in, ArchiveFormat format, String targetPath) throws RepositoryException {
+		HttpPut put = new HttpPut(build(uriBuilder(targetPath).addParameter("extract", format.getName())));
+		put.setEntity(new UploadEntity(new FilterInputStream(in) {
+			@Override
+			public void close() {
+				// the stream is closed by the caller
+			}
+		}));
+		update(targetPath, put, false);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#createDirectories(java.lang.String)
+	 */
+	@Override
+	public RepoResource createDirectories(String dirPath) throws RepositoryException {
+		return update(dirPath, new HttpPut(build(uriBuilder(dirPath).addParameter("folder", ""))), true);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#createFile(java.lang.String)
+	 */
+	@Override
+	public RepoResource createFile(String path) throws RepositoryException {
+		return update(path, new HttpPut(build(uriBuilder(path).addParameter("file", ""))), true);
+	}
+
+	/**
+	 * Remove all entries of the metadata cache
+	 */
+	public void clearCache() {
+		generation.incrementAndGet();
+		metadata.clear();
+	}
+
+	/**
+	 * Close the connections to the server
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		rangeExecutor.shutdownNow();
+		client.close();
+	}
+
+	/**
+	 * Send a request changing the resource at the given path and return the
+	 * RepoResource of the response
+	 */
+	protected RepoResource update(String path, HttpUriRequest request, boolean idempotent) {
+		try {
+			return toResource(readTree(execute(request, idempotent)));
+		} finally {
+			invalidate(path);
+		}
+	}
+
+	/**
+	 * Send a request and return the body of the response
+	 */
+	protected String execute(HttpUriRequest request, boolean idempotent) {
+		try (CloseableHttpResponse resp = send(request, idempotent)) {
+			return (resp.getEntity() != null) ? EntityUtils.toString(resp.getEntity(), "UTF-8") : "";
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	/**
+	 * Send a request and return the response, if its status is below 400.
+	 * The request is retried with exponential backoff, if the server is
+	 * overloaded and the body of the request can be sent again. After
+	 * connection failures it is retried only, if it is idempotent as well
+	 * @param request		the request
+	 * @param idempotent	true, if the request may be applied more than once
+	 * @return the response, which must be closed
+	 */
+	protected CloseableHttpResponse send(HttpUriRequest request, boolean idempotent) {
+		return send(request, idempotent, 0);
+	}
+
+	/**
+	 * Send a request and return the response, if its status is below 400
+	 * or the given status
+	 * @param request		the request
+	 * @param idempotent	true, if the request may be applied more than once
+	 * @param accepted		an error status expected by the caller
+	 * @return the response, which must be closed
+	 */
+	protected CloseableHttpResponse send(HttpUriRequest request, boolean idempotent, int accepted) {
+		for (int attempt = 0; ; attempt++) {
+			boolean retry = attempt < config.getMaxRetries();
+			CloseableHttpResponse resp;
+			try {
+				resp = client.execute(request);
+			} catch (IOException ex) {
+				if (!retry || !idempotent || !isRepeatable(request)) {
+					logger.error(ex.getClass().getName()+": "+ex.getMessage());
+					throw new RepositoryException(ex);
+				}
+				logger.warn("{} {} failed, retrying: {}", request.getMethod(), request.getURI(), ex.getMessage());
+				backoff(attempt, null);
+				continue;
+			}
+			int status = resp.getStatusLine().getStatusCode();
+			if (status < 400 || status == accepted) {
+				return resp;
+			}
+			boolean overloaded = status == 429 || status == HttpStatus.SC_SERVICE_UNAVAILABLE;
+			boolean gateway = status == HttpStatus.SC_BAD_GATEWAY || status == HttpStatus.SC_GATEWAY_TIMEOUT;
+			if (retry && isRepeatable(request) && (overloaded || (gateway && idempotent))) {
+				Header retryAfter = resp.getFirstHeader("Retry-After");
+				close(resp);
+				logger.debug("{} {} returned {}, retrying", request.getMethod(), request.getURI(), status);
+				backoff(attempt, (retryAfter != null) ? retryAfter.getValue() : null);
+				continue;
+			}
+			try {
+				throw toException(request, resp);
+			} finally {
+				close(resp);
+			}
+		}
+	}
+
+	/**
+	 * Fetch the info of a resource, revalidating the cached info
+	 */
+	protected Metadata fetchInfo(String path) {
+		return fetchMetadata(infoKey(path), uri(path), true);
+	}
+
+	/**
+	 * Fetch the infos of several resources with one request
+	 */
+	protected List<RepoResource> fetchInfos(List<String> paths) {
+		if (paths.isEmpty()) {
+			return new ArrayList<RepoResource>();
+		}
+		if (paths.size() == 1) {
+			return Collections.singletonList(toResource(readTree(fetchInfo(paths.get(0)).body)));
+		}
+		long gen = generation.get();
+		HttpPost post = new HttpPost(build(uriBuilder("").addParameter("info", "")));
+		try {
+			post.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(paths), ContentType.APPLICATION_JSON));
+		} catch (IOException ex) {
+			throw new RepositoryException(ex);
+		}
+		List<RepoResource> ret = new ArrayList<RepoResource>(paths.size());
+		for (JsonNode node : readTree(execute(post, true))) {
+			String path = paths.get(ret.size());
+			ret.add(toResource(node));
+			if (config.getMetadataMaxAgeMillis() > 0) {
+				try {
+					cache(infoKey(path), new Metadata(null, mapper.writeValueAsBytes(node)), gen);
+				} catch (IOException ex) {
+					logger.debug("Info of {} is not cached: {}", path, ex.getMessage());
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Send the queued infos, unless another thread is sending them. The
+	 * sending thread sends queued infos until the queue is empty
+	 */
+	protected void sendPendingInfos() {
+		while (!pendingInfos.isEmpty() && sendingInfos.compareAndSet(false, true)) {
+			List<PendingInfo> batch = new ArrayList<PendingInfo>();
+			try {
+				int size = Math.min(config.getBatchSize(), MAX_BATCH);
+				for (PendingInfo pending; batch.size() < size && (pending = pendingInfos.poll()) != null; ) {
+					batch.add(pending);
+				}
+				List<String> paths = new ArrayList<String>(batch.size());
+				for (PendingInfo pending : batch) {
+					paths.add(pending.path);
+				}
+				List<RepoResource> infos = fetchInfos(paths);
+				for (int i = 0; i < batch.size(); i++) {
+					batch.get(i).result.complete(infos.get(i));
+				}
+			} catch (RuntimeException ex) {
+				for (PendingInfo pending : batch) {
+					pending.result.completeExceptionally(ex);
+				}
+			} finally {
+				sendingInfos.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Return metadata from the cache or the server. Cached metadata is
+	 * revalidated by its ETag, unless it is younger than the configured
+	 * maximum age
+	 * @param key		the key of the cache
+	 * @param uri		the URI of the metadata
+	 * @param validate	if true, cached metadata without ETag is fetched again
+	 * @return the metadata
+	 */
+	protected Metadata fetchMetadata(String key, URI uri, boolean validate) {
+		long gen = generation.get();
+		Metadata cached = metadata.get(key);
+		if (isFresh(cached) && (!validate || cached.etag != null)) {
+			return cached;
+		}
+		HttpGet get = new HttpGet(uri);
+		get.setHeader("Accept", "application/json");
+		if (cached != null && cached.etag != null) {
+			get.setHeader("If-None-Match", cached.etag);
+		}
+		try (CloseableHttpResponse resp = send(get, true)) {
+			if (resp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+				Metadata ret = new Metadata(cached.etag, cached.body);
+				cache(key, ret, gen);
+				return ret;
+			}
+			Header etag = resp.getFirstHeader("ETag");
+			Metadata ret = new Metadata((etag != null) ? etag.getValue() : null, EntityUtils.toByteArray(resp.getEntity()));
+			if (ret.etag != null) {
+				cache(key, ret, gen);
+			}
+			return ret;
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	/**
+	 * Put metadata into the cache, unless the cache was invalidated since the
+	 * generation, as the metadata may be older than the invalidation
+	 */
+	protected void cache(String key, Metadata m, long gen) {
+		synchronized (metadata) {
+			if (generation.get() == gen) {
+				metadata.put(key, m);
+			}
+		}
+	}
+
+	/**
+	 * Remove the cached metadata changed by a mutation of the given path: the
+	 * path itself, the resources below and the directories above it
+	 * @param path	the changed path
+	 */
+	protected void invalidate(String path) {
+		String p = RepositoryEvent.normalize(path);
+		synchronized (metadata) {
+			generation.incrementAndGet();
+			for (Iterator<String> it = metadata.keySet().iterator(); it.hasNext(); ) {
+				String key = it.next();
+				int end = key.indexOf('?');
+				String k = key.substring(2, (end > 0) ? end : key.length());
+				if (k.equals(p) || k.equals("/") || k.startsWith(p + "/") || p.startsWith(k + "/")) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Download a file in parallel byte ranges. The number of ranges in
+	 * flight is limited, so the memory used is bounded by the number of
+	 * threads times the size of a range
+	 */
+	protected void getRanges(String path, String etag, long size, OutputStream out) {
+		URI uri = build(uriBuilder(path).addParameter("content", ""));
+		long rangeSize = config.getRangeSize();
+		long count = (size + rangeSize - 1) / rangeSize;
+		Deque<Future<byte[]>> window = new ArrayDeque<Future<byte[]>>();
+		long next = 0;
+		try {
+			while (!window.isEmpty() || next < count) {
+				while (next < count && window.size() < config.getRangeThreads()) {
+					long from = next++ * rangeSize;
+					long to = Math.min(from + rangeSize, size) - 1;
+					window.add(rangeExecutor.submit(() -> getRange(uri, etag, from, to)));
+				}
+				out.write(window.poll().get());
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RepositoryException(ex);
+		} catch (ExecutionException ex) {
+			throw unwrap(ex);
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		} finally {
+			for (Future<byte[]> f : window) {
+				f.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Download a byte range of a file, if the file still has the given ETag
+	 */
+	protected byte[] getRange(URI uri, String etag, long from, long to) throws IOException {
+		HttpGet get = new HttpGet(uri);
+		get.setHeader("Range", "bytes=" + from + "-" + to);
+		get.setHeader("If-Match", etag);
+		try (CloseableHttpResponse resp = send(get, true)) {
+			if (resp.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+				throw new RepositoryException("Range request of " + uri + " returned " + resp.getStatusLine());
+			}
+			byte[] ret = new byte[(int) (to - from + 1)];
+			try (DataInputStream in = new DataInputStream(resp.getEntity().getContent())) {
+				in.readFully(ret);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Create the exception for a response with an error status. The message
+	 * of the server is used, if the body is a Spring Boot error
+	 */
+	protected RepositoryException toException(HttpUriRequest request, CloseableHttpResponse resp) {
+		int status = resp.getStatusLine().getStatusCode();
+		String message = request.getMethod() + " " + request.getURI() + " returned " + resp.getStatusLine();
+		try {
+			if (resp.getEntity() != null) {
+				JsonNode body = mapper.readTree(EntityUtils.toString(resp.getEntity(), "UTF-8"));
+				if (body != null && body.hasNonNull("message")) {
+					message = body.get("message").asText();
+				}
+			}
+		} catch (IOException ex) {
+			logger.debug("Error response of {} is not readable: {}", request.getURI(), ex.getMessage());
+		}
+		switch (status) {
+		case HttpStatus.SC_NOT_FOUND:
+		case HttpStatus.SC_FORBIDDEN:
+			return new ResourceAccessException(message);
+		case HttpStatus.SC_INSUFFICIENT_STORAGE:
+			return new QuotaExceededException(message);
+		case HttpStatus.SC_PRECONDITION_FAILED:
+			return new RepositoryException("Content of " + request.getURI() + " changed during the download");
+		default:
+			return new RepositoryException(message);
+		}
+	}
+
+	/**
+	 * Wait before the next attempt. The delay doubles with every attempt and
+	 * is randomized, so clients do not retry in lockstep. A Retry-After of the
+	 * server is honored up to the maximum backoff
+	 */
+	protected void backoff(int attempt, String retryAfter) {
+		long delay = Math.min(config.getRetryBackoffMillis() << Math.min(attempt, 20), config.getMaxBackoffMillis());
+		delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+		if (retryAfter != null) {
+			try {
+				delay = Math.max(delay, Math.min(Long.parseLong(retryAfter.trim()) * 1000, config.getMaxBackoffMillis()));
+			} catch (NumberFormatException ex) {
+				logger.debug("Ignoring Retry-After {}", retryAfter);
+			}
+		}
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RepositoryException(ex);
+		}
+	}
+
+	protected RepoResource toResource(JsonNode node) {
+		String path = node.path("repositoryPath").asText("");
+		RepoResource ret = new RepoResource(Paths.get(path), path);
+		try {
+			return mapper.readerForUpdating(ret).readValue(node);
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	protected JsonNode readTree(byte[] body) {
+		try {
+			return mapper.readTree(body);
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	protected JsonNode readTree(String body) {
+		try {
+			return mapper.readTree(body);
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	protected boolean isFresh(Metadata m) {
+		return m != null && config.getMetadataMaxAgeMillis() > 0
+				&& System.currentTimeMillis() - m.fetched < config.getMetadataMaxAgeMillis();
+	}
+
+	protected URI uri(String path) {
+		return build(uriBuilder(path));
+	}
+
+	protected URIBuilder uriBuilder(String path) {
+		String prefix = (baseUri.getPath() != null) ? baseUri.getPath().replaceAll("/+$", "") : "";
+		String p = (path != null) ? path.replaceAll("^/+", "") : "";
+		return new URIBuilder(baseUri).setPath(prefix + API + "/" + p);
+	}
+
+	protected static URI build(URIBuilder builder) {
+		try {
+			return builder.build();
+		} catch (URISyntaxException ex) {
+			throw new RepositoryException(ex);
+		}
+	}
+
+	protected static String infoKey(String path) {
+		return "i:" + RepositoryEvent.normalize(path);
+	}
+
+	protected static boolean isRepeatable(HttpUriRequest request) {
+		if (request instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			return entity == null || entity.isRepeatable();
+		}
+		return true;
+	}
+
+	protected static RuntimeException unwrap(ExecutionException ex) {
+		if (ex.getCause() instanceof RuntimeException) {
+			return (RuntimeException) ex.getCause();
+		}
+		return new RepositoryException(ex.getCause());
+	}
+
+	protected static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		for (int n; (n = in.read(buffer)) >= 0; ) {
+			out.write(buffer, 0, n);
+		}
+	}
+
+	protected static void close(CloseableHttpResponse resp) {
+		try {
+			resp.close();
+		} catch (IOException ex) {
+			logger.debug("Closing response failed: {}", ex.getMessage());
+		}
+	}
+
+	/**
+	 * Cached metadata with its ETag
+	 */
+	protected static class Metadata {
+		final String etag;
+		final byte[] body;
+		final long fetched = System.currentTimeMillis();
+
+		Metadata(String etag, byte[] body) {
+			this.etag = etag;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * A call of info waiting to be sent
+	 */
+	protected static class PendingInfo {
+		final String path;
+		final CompletableFuture<RepoResource> result = new CompletableFuture<RepoResource>();
+
+		PendingInfo(String path) {
+			this.path = path;
+		}
+	}
+
+	/**
+	 * The streamed content of an upload. It can be sent again as long as
+	 * nothing was read from the stream, e.g. if the server rejected the
+	 * request before it accepted the content
+	 */
+	protected static class UploadEntity extends InputStreamEntity {
+		private volatile boolean started;
+
+		UploadEntity(InputStream in) {
+			super(in, -1, ContentType.APPLICATION_OCTET_STREAM);
+			setChunked(true);
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return !started;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			started = true;
+			super.writeTo(out);
+		}
+	}
+
+	/**
+	 * The content of a response, which releases the connection when it is closed
+	 */
+	protected static class ResponseInputStream extends FilterInputStream {
+		private final CloseableHttpResponse response;
+
+		ResponseInputStream(InputStream in, CloseableHttpResponse response) {
+			super(in);
+			this.response = response;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				response.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes to a temporary file, which is uploaded when the stream is closed.
+	 * The SHA-256 of the content is computed while it is written, so the
+	 * server can be asked if it already has the content
+	 */
+	protected class UploadOutputStream extends FilterOutputStream {
+		private final String path;
+		private final File file;
+		private final MessageDigest digest;
+		private long size;
+		private boolean closed;
+
+		UploadOutputStream(String path, File file) throws IOException {
+			super(new FileOutputStream(file));
+			this.path = path;
+			this.file = file;
+			try {
+				this.digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			digest.update((byte) b);
+			size++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			digest.update(b, off, len);
+			size += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				super.close();
+				if (config.getHashFirstMinSize() >= 0 && size >= config.getHashFirstMinSize()
+						&& linkContent(path, ContentChecksum.toHex(digest.digest())) != null) {
+					return;
+				}
+				HttpPut put = new HttpPut(uri(path));
+				put.setEntity(new FileEntity(file, ContentType.APPLICATION_OCTET_STREAM));
+				update(path, put, true);
+			} catch (RepositoryException ex) {
+				throw new IOException(ex.getMessage(), ex);
+			} finally {
+				if (!file.delete()) {
+					file.deleteOnExit();
+				}
+			}
+		}
+	}
+
+}
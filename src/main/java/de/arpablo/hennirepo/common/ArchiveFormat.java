@@ -0,0 +1,84 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+/**
+ * The archive formats supported by the repository
+ * @author arpablo
+ *
+ */
+public enum ArchiveFormat {
+	
+	ZIP("zip", "application/zip", ".zip"),
+	TAR("tar", "application/x-tar", ".tar"),
+	TAR_GZ("tar.gz", "application/gzip", ".tar.gz", ".tgz");
+	
+	private final String name;
+	private final String mimeType;
+	private final String[] extensions;
+	
+	ArchiveFormat(String name, String mimeType, String... extensions) {
+		this.name = name;
+		this.mimeType = mimeType;
+		this.extensions = extensions;
+	}
+	
+	/**
+	 * @return the name of the format as used in requests
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return the MIME type of archives of this format
+	 */
+	public String getMimeType() {
+		return mimeType;
+	}
+	
+	/**
+	 * @return the preferred file extension including the dot
+	 */
+	public String getExtension() {
+		return extensions[0];
+	}
+	
+	/**
+	 * Return the format by its name, e.g. <code>tar.gz</code>
+	 * @param name	the name or a file extension without dot
+	 * @return the ArchiveFormat or <code>null</code>, if the name is unknown
+	 */
+	public static ArchiveFormat forName(String name) {
+		if (name == null) {
+			return null;
+		}
+		for (ArchiveFormat format : values()) {
+			for (String extension : format.extensions) {
+				if (extension.substring(1).equalsIgnoreCase(name)) {
+					return format;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Return the format of a file by its extension
+	 * @param fileName	the name or path of the file
+	 * @return the ArchiveFormat, ZIP if the extension is unknown
+	 */
+	public static ArchiveFormat of(String fileName) {
+		String lower = (fileName == null) ? "" : fileName.toLowerCase();
+		for (ArchiveFormat format : values()) {
+			for (String extension : format.extensions) {
+				if (lower.endsWith(extension)) {
+					return format;
+				}
+			}
+		}
+		return ZIP;
+	}
+	
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Reads an archive from a stream in a single pass, so an archive can be
+ * extracted while it is received, without temporary files. Only directories
+ * and regular files are extracted, other entries like links are skipped.
+ * @author arpablo
+ *
+ */
+public class ArchiveReader {
+
+	/**
+	 * Receives the entries of an archive
+	 */
+	public interface EntryHandler {
+		
+		/**
+		 * Called for a directory entry
+		 * @param name			the relative name of the directory
+		 * @param lastModified	the modification time in milliseconds or -1
+		 * @throws IOException
+		 */
+		void directory(String name, long lastModified) throws IOException;
+		
+		/**
+		 * Called for a file entry
+		 * @param name			the relative name of the file
+		 * @param size			the size of the content or -1, if unknown
+		 * @param lastModified	the modification time in milliseconds or -1
+		 * @param in			the content, which must not be closed
+		 * @throws IOException
+		 */
+		void file(String name, long size, long lastModified, InputStream in) throws IOException;
+	}
+	
+	private ArchiveReader() {
+	}
+	
+	/**
+	 * Read an archive and pass its entries to the handler
+	 * @param in		the archive, which is not closed
+	 * @param format	the format of the archive
+	 * @param handler	the handler
+	 * @throws IOException if the archive is invalid or contains an entry outside its root
+	 */
+	public static void read(InputStream in, ArchiveFormat format, EntryHandler handler) throws IOException {
+		InputStream source = StreamUtils.nonClosing(in);
+		if (format == ArchiveFormat.ZIP) {
+			ZipInputStream zip = new ZipInputStream(source);
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				String name = checkName(entry.getName());
+				if (entry.isDirectory()) {
+					handler.directory(name, entry.getTime());
+				} else {
+					FlightEvents.ArchiveEntry event = FlightEvents.archiveEntry(format, name, false);
+					handler.file(name, entry.getSize(), entry.getTime(), StreamUtils.nonClosing(zip));
+					FlightEvents.commit(event, entry.getSize());
+				}
+			}
+		} else {
+			if (format == ArchiveFormat.TAR_GZ) {
+				source = new GZIPInputStream(source, 64 * 1024);
+			}
+			TarArchiveInputStream tar = new TarArchiveInputStream(source);
+			TarArchiveEntry entry;
+			while ((entry = tar.getNextTarEntry()) != null) {
+				String name = checkName(entry.getName());
+				if (entry.isDirectory()) {
+					handler.directory(name, entry.getModTime().getTime());
+				} else if (entry.isFile()) {
+					FlightEvents.ArchiveEntry event = FlightEvents.archiveEntry(format, name, false);
+					handler.file(name, entry.getSize(), entry.getModTime().getTime(), StreamUtils.nonClosing(tar));
+					FlightEvents.commit(event, entry.getSize());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Normalize the name of an entry and reject names leaving the target directory
+	 */
+	protected static String checkName(String name) throws IOException {
+		String ret = name.replace('\\', '/');
+		while (ret.startsWith("/") || ret.startsWith("./")) {
+			ret = ret.substring(ret.startsWith("/") ? 1 : 2);
+		}
+		if (ret.endsWith("/")) {
+			ret = ret.substring(0, ret.length() - 1);
+		}
+		for (String segment : ret.split("/")) {
+			if (segment.equals("..")) {
+				throw new IOException(String.format("Invalid entry %s", name));
+			}
+		}
+		return ret;
+	}
+	
+}
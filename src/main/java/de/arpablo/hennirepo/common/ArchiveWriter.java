@@ -0,0 +1,176 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Writes an archive to a stream, entry by entry, so an archive can be sent
+ * while it is created. TAR_GZ is compressed by a {@link ParallelGzipOutputStream}
+ * on the common ForkJoinPool. Closing the writer finishes the archive but
+ * does not close the underlying stream.
+ * @author arpablo
+ *
+ */
+public class ArchiveWriter implements Closeable {
+
+	private static final int GZIP_BLOCK_SIZE = 128 * 1024;
+	
+	private final ArchiveFormat format;
+	private ZipOutputStream zip;
+	private TarArchiveOutputStream tar;
+	
+	/**
+	 * Constructor
+	 * @param out		the stream to write to
+	 * @param format	the format of the archive
+	 * @throws IOException
+	 */
+	public ArchiveWriter(OutputStream out, ArchiveFormat format) throws IOException {
+		this.format = format;
+		OutputStream target = StreamUtils.nonClosing(out);
+		switch (format) {
+		case ZIP:
+			zip = new ZipOutputStream(target);
+			break;
+		case TAR_GZ:
+			ForkJoinPool pool = ForkJoinPool.commonPool();
+			target = new ParallelGzipOutputStream(target, GZIP_BLOCK_SIZE, pool, pool.getParallelism());
+			// fall through
+		case TAR:
+			tar = new TarArchiveOutputStream(target);
+			tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+			tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+			break;
+		}
+	}
+	
+	/**
+	 * @return the format of the archive
+	 */
+	public ArchiveFormat getFormat() {
+		return format;
+	}
+	
+	/**
+	 * Add a directory entry
+	 * @param name			the relative name of the directory
+	 * @param lastModified	the modification time in milliseconds
+	 * @throws IOException
+	 */
+	public void addDirectory(String name, long lastModified) throws IOException {
+		String entryName = name.endsWith("/") ? name : name + "/";
+		if (zip != null) {
+			ZipEntry entry = new ZipEntry(entryName);
+			entry.setTime(lastModified);
+			zip.putNextEntry(entry);
+			zip.closeEntry();
+		} else {
+			TarArchiveEntry entry = new TarArchiveEntry(entryName);
+			entry.setModTime(lastModified);
+			tar.putArchiveEntry(entry);
+			tar.closeArchiveEntry();
+		}
+	}
+	
+	/**
+	 * Add a file entry
+	 * @param name			the relative name of the file
+	 * @param size			the size of the content
+	 * @param lastModified	the modification time in milliseconds
+	 * @param in			the content
+	 * @throws IOException
+	 */
+	public void addFile(String name, long size, long lastModified, InputStream in) throws IOException {
+		FlightEvents.ArchiveEntry event = FlightEvents.archiveEntry(format, name, true);
+		if (zip != null) {
+			ZipEntry entry = new ZipEntry(name);
+			entry.setTime(lastModified);
+			zip.putNextEntry(entry);
+			StreamUtils.copy(in, zip);
+			zip.closeEntry();
+		} else {
+			TarArchiveEntry entry = new TarArchiveEntry(name);
+			entry.setSize(size);
+			entry.setModTime(lastModified);
+			tar.putArchiveEntry(entry);
+			StreamUtils.copy(in, tar);
+			tar.closeArchiveEntry();
+		}
+		FlightEvents.commit(event, size);
+	}
+	
+	/**
+	 * Add a file entry with the content and attributes of a file
+	 * @param name	the relative name of the file
+	 * @param file	the file
+	 * @throws IOException
+	 */
+	public void addFile(String name, Path file) throws IOException {
+		BasicFileAttributes attr = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		try (CompressedFile.Stored stored = CompressedFile.open(file); InputStream in = stored.getContent()) {
+			long size = (stored.getCompressed() != null) ? stored.getCompressed().getSize() : stored.getLength();
+			addFile(name, size, attr.lastModifiedTime().toMillis(), in);
+		}
+	}
+	
+	/**
+	 * Return the entry names of resources archived together: their paths
+	 * relative to their common parent directory. Paths given more than once
+	 * are archived once
+	 * @param paths	the normalized repository paths
+	 * @return the entry names by path in the order of the paths
+	 */
+	public static Map<String, String> selectionNames(List<String> paths) {
+		String parent = null;
+		for (String path : paths) {
+			String dir = path.equals("/") ? "/" : path.substring(0, Math.max(path.lastIndexOf('/'), 1));
+			while (parent != null && !isAncestor(parent, dir)) {
+				parent = parent.substring(0, Math.max(parent.lastIndexOf('/'), 1));
+			}
+			if (parent == null) {
+				parent = dir;
+			}
+		}
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		for (String path : paths) {
+			ret.put(path, path.equals(parent) ? "" : path.substring(parent.equals("/") ? 1 : parent.length() + 1));
+		}
+		return ret;
+	}
+	
+	private static boolean isAncestor(String dir, String path) {
+		return dir.equals("/") || path.equals(dir) || path.startsWith(dir + "/");
+	}
+	
+	/**
+	 * Finish the archive
+	 */
+	@Override
+	public void close() throws IOException {
+		if (zip != null) {
+			zip.close();
+		} else {
+			tar.close();
+		}
+	}
+	
+}
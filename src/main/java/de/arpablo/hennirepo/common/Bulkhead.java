@@ -0,0 +1,113 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of concurrent operations of one kind, so a flood of
+ * them can't occupy all threads of the server. Callers exceeding the limit
+ * wait in a bounded queue for a limited time. When the queue is full or the
+ * time is up, the operation is rejected right away instead of piling up
+ * @author arpablo
+ *
+ */
+public class Bulkhead {
+
+	private final String name;
+	private final int maxConcurrent;
+	private final int maxQueue;
+	private final long maxWaitMillis;
+	private final Semaphore permits;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param name			the name of the bulkhead
+	 * @param maxConcurrent	the maximum number of concurrent operations
+	 * @param maxQueue		the maximum number of waiting operations
+	 * @param maxWaitMillis	the maximum time an operation waits
+	 */
+	public Bulkhead(String name, int maxConcurrent, int maxQueue, long maxWaitMillis) {
+		this.name = name;
+		this.maxConcurrent = Math.max(maxConcurrent, 1);
+		this.maxQueue = Math.max(maxQueue, 0);
+		this.maxWaitMillis = Math.max(maxWaitMillis, 0);
+		this.permits = new Semaphore(this.maxConcurrent, true);
+	}
+
+	/**
+	 * Enter the bulkhead. Every successful call has to be followed by {@link #leave()}
+	 * @return <code>true</code>, if the operation may run, <code>false</code>, if it is rejected
+	 * @throws InterruptedException
+	 */
+	public boolean tryEnter() throws InterruptedException {
+		if (permits.tryAcquire()) {
+			admitted.incrementAndGet();
+			return true;
+		}
+		if (queued.incrementAndGet() > maxQueue) {
+			queued.decrementAndGet();
+			rejected.incrementAndGet();
+			return false;
+		}
+		try {
+			if (permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+				admitted.incrementAndGet();
+				return true;
+			}
+			rejected.incrementAndGet();
+			return false;
+		} finally {
+			queued.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Leave the bulkhead after the operation has finished
+	 */
+	public void leave() {
+		permits.release();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	public int getMaxQueue() {
+		return maxQueue;
+	}
+
+	/**
+	 * @return the number of running operations
+	 */
+	public int getActive() {
+		return maxConcurrent - permits.availablePermits();
+	}
+
+	/**
+	 * @return the number of waiting operations
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Computes the {@link ContentChecksum} of the content read from a stream,
+ * so content is checksummed while it is written without reading it again
+ * @author arpablo
+ *
+ */
+public class ChecksumInputStream extends FilterInputStream {
+
+	private final MessageDigest sha256;
+	private final CRC32 crc32 = new CRC32();
+	private long count;
+
+	/**
+	 * Constructor
+	 * @param in	the stream to read
+	 */
+	public ChecksumInputStream(InputStream in) {
+		super(in);
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			// every Java platform supports SHA-256
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b >= 0) {
+			sha256.update((byte) b);
+			crc32.update(b);
+			count++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if (n > 0) {
+			sha256.update(b, off, n);
+			crc32.update(b, off, n);
+			count += n;
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		// skipped content has to be checksummed as well
+		byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+		long skipped = 0;
+		while (skipped < n) {
+			int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+			if (r < 0) {
+				break;
+			}
+			skipped += r;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * @return the number of bytes read
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Return the checksums of the content read so far. The stream must not
+	 * be read afterwards
+	 * @return the checksums
+	 */
+	public ContentChecksum getChecksum() {
+		return new ContentChecksum(sha256.digest(), crc32.getValue());
+	}
+
+}
@@ -0,0 +1,390 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file whose content is stored compressed. The file is marked by an
+ * extended attribute holding the encoding, the size of the content and the
+ * size and modification time of the file, so the marker is ignored once the
+ * file is changed by other means. The modification time of a compressed
+ * file is the one of its content. Files stored as is have no marker, on
+ * filesystems without extended attributes nothing is compressed.
+ * @author arpablo
+ *
+ */
+public final class CompressedFile {
+
+	private static final Logger logger = LoggerFactory.getLogger(CompressedFile.class);
+
+	/**
+	 * The name of the extended attribute
+	 */
+	public static final String ATTRIBUTE = "hennirepo.compressed";
+
+	/**
+	 * The encoding of gzip compressed content, as in Content-Encoding
+	 */
+	public static final String GZIP = "gzip";
+
+	/**
+	 * The encoding of content that did not get smaller when it was compressed
+	 * and is stored as is
+	 */
+	public static final String IDENTITY = "identity";
+
+	private static final int MAX_ATTRIBUTE_SIZE = 128;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final int MAX_ATTEMPTS = 3;
+
+	private final String encoding;
+	private final long size;
+
+	/**
+	 * Constructor
+	 * @param encoding	the encoding of the stored content
+	 * @param size		the size of the content
+	 */
+	public CompressedFile(String encoding, long size) {
+		this.encoding = encoding;
+		this.size = size;
+	}
+
+	/**
+	 * @return the encoding of the stored content, e.g. {@link #GZIP}
+	 */
+	public String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * @return the size of the content
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return <code>true</code>, if the content is stored compressed
+	 */
+	public boolean isCompressed() {
+		return !IDENTITY.equals(encoding);
+	}
+
+	/**
+	 * Read the marker of a compressed file
+	 * @param p	the file
+	 * @return the marker or <code>null</code>, if the file is stored as is
+	 */
+	public static CompressedFile read(Path p) {
+		try {
+			return read(p, Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Read the marker of a compressed file
+	 * @param p		the file
+	 * @param attrs	the current attributes of the file
+	 * @return the marker or <code>null</code>, if the file is stored as is
+	 */
+	public static CompressedFile read(Path p, BasicFileAttributes attrs) {
+		CompressedFile ret = readMarker(p, attrs);
+		return (ret != null && ret.isCompressed()) ? ret : null;
+	}
+
+	/**
+	 * Check, if a file is known to not get smaller when it is compressed
+	 * @param p		the file
+	 * @param attrs	the current attributes of the file
+	 * @return <code>true</code>, if compressing the file has been tried before
+	 */
+	public static boolean isIncompressible(Path p, BasicFileAttributes attrs) {
+		CompressedFile ret = readMarker(p, attrs);
+		return ret != null && !ret.isCompressed();
+	}
+
+	private static CompressedFile readMarker(Path p, BasicFileAttributes attrs) {
+		if (!attrs.isRegularFile()) {
+			return null;
+		}
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(p, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+		if (view == null) {
+			return null;
+		}
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(MAX_ATTRIBUTE_SIZE);
+			view.read(ATTRIBUTE, buf);
+			String[] fields = new String(buf.array(), 0, buf.position(), StandardCharsets.US_ASCII).split(" ");
+			if (fields.length != 4 || Long.parseLong(fields[2]) != attrs.size()
+					|| Long.parseLong(fields[3]) != attrs.lastModifiedTime().toMillis()) {
+				return null;
+			}
+			return new CompressedFile(fields[0], Long.parseLong(fields[1]));
+		} catch (IOException | UnsupportedOperationException | IllegalArgumentException ex) {
+			// stored as is
+			return null;
+		}
+	}
+
+	/**
+	 * Mark a file as compressed. The marker is valid as long as the size
+	 * and the modification time of the file are unchanged
+	 * @param p	the file with the compressed content
+	 * @return <code>true</code>, if the marker is stored
+	 */
+	public boolean write(Path p) {
+		try {
+			UserDefinedFileAttributeView view = Files.getFileAttributeView(p, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+			if (view == null) {
+				return false;
+			}
+			BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			String value = encoding + " " + size + " " + attrs.size() + " " + attrs.lastModifiedTime().toMillis();
+			view.write(ATTRIBUTE, ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII)));
+			return true;
+		} catch (IOException | UnsupportedOperationException ex) {
+			logger.debug("Compression of {} is not stored: {}", p, ex.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Return the size of the content of a file
+	 * @param p		the file
+	 * @param attrs	the current attributes of the file
+	 * @return the size of the content, which differs from the size of the
+	 * 			file, if it is compressed
+	 */
+	public static long size(Path p, BasicFileAttributes attrs) {
+		CompressedFile compressed = read(p, attrs);
+		return (compressed != null) ? compressed.getSize() : attrs.size();
+	}
+
+	/**
+	 * Open a file as stored. The file is checked to be the one the marker
+	 * was read from, so a file compressed meanwhile is not read as is
+	 * @param p	the file
+	 * @return the stored content, which must be closed after use
+	 * @throws IOException
+	 */
+	public static Stored open(Path p) throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			BasicFileAttributes before = Files.readAttributes(p, BasicFileAttributes.class);
+			CompressedFile compressed = read(p, before);
+			InputStream in = Files.newInputStream(p);
+			BasicFileAttributes after = Files.readAttributes(p, BasicFileAttributes.class);
+			if (Objects.equals(before.fileKey(), after.fileKey()) && before.size() == after.size()
+					&& before.lastModifiedTime().equals(after.lastModifiedTime())) {
+				return new Stored(in, compressed, after.size());
+			}
+			if (attempt == MAX_ATTEMPTS) {
+				// a file changed in place all the time is not compressed
+				return new Stored(in, null, after.size());
+			}
+			// replaced while it was opened
+			in.close();
+		}
+	}
+
+	/**
+	 * Return an InputStream for the content of a file, which is decompressed
+	 * while it is read
+	 * @param p	the file
+	 * @return an InputStream
+	 * @throws IOException
+	 */
+	public static InputStream newInputStream(Path p) throws IOException {
+		return open(p).getContent();
+	}
+
+	/**
+	 * Read the content of a file
+	 * @param p	the file
+	 * @return the content
+	 * @throws IOException
+	 */
+	public static byte[] readAllBytes(Path p) throws IOException {
+		try (Stored stored = open(p)) {
+			long size = (stored.getCompressed() != null) ? stored.getCompressed().getSize() : stored.getLength();
+			if (size > Integer.MAX_VALUE - 8) {
+				throw new OutOfMemoryError("Content of " + p + " is too large");
+			}
+			byte[] ret = new byte[(int) size];
+			try (InputStream in = stored.getContent()) {
+				int n = 0;
+				for (int r; n < ret.length && (r = in.read(ret, n, ret.length - n)) >= 0; ) {
+					n += r;
+				}
+				if (n < ret.length || in.read() >= 0) {
+					throw new IOException("Content of " + p + " does not match its size " + ret.length);
+				}
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Compress content into a file and mark it. The content is given the
+	 * modification time, the marker is written after it
+	 * @param in		the content
+	 * @param target	the file to write, which is replaced
+	 * @param level		the compression level 1 (fastest) to 9 (smallest)
+	 * @param modified	the modification time of the content in milliseconds
+	 * @return the marker
+	 * @throws IOException
+	 */
+	public static CompressedFile compress(InputStream in, Path target, int level, long modified) throws IOException {
+		long size = 0;
+		try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(target), BUFFER_SIZE) {
+				{
+					def.setLevel(level);
+				}
+			}) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			for (int n; (n = in.read(buffer)) >= 0; ) {
+				out.write(buffer, 0, n);
+				size += n;
+			}
+		}
+		Files.setLastModifiedTime(target, FileTime.fromMillis(modified));
+		CompressedFile ret = new CompressedFile(GZIP, size);
+		if (!ret.write(target)) {
+			throw new IOException("Compression of " + target + " cannot be stored");
+		}
+		return ret;
+	}
+
+	/**
+	 * Decompress a file into another file, which is given the modification
+	 * time of the content
+	 * @param source	the compressed file
+	 * @param target	the file to write, which is replaced
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public static long decompress(Path source, Path target) throws IOException {
+		long n;
+		try (Stored stored = open(source); InputStream in = stored.getContent()) {
+			n = Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+			if (stored.getCompressed() != null && n != stored.getCompressed().getSize()) {
+				throw new IOException("Content of " + source + " does not match its size " + stored.getCompressed().getSize());
+			}
+		}
+		Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+		return n;
+	}
+
+	/**
+	 * Mark a file as not getting smaller when it is compressed, so compressing
+	 * it is not tried again until it is changed
+	 * @param p	the file
+	 * @return <code>true</code>, if the marker is stored
+	 */
+	public static boolean markIncompressible(Path p) {
+		try {
+			return new CompressedFile(IDENTITY, Files.size(p)).write(p);
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return encoding + " size=" + size;
+	}
+
+	/**
+	 * The content of a file as stored
+	 */
+	public static final class Stored implements Closeable {
+		private final InputStream in;
+		private final CompressedFile compressed;
+		private final long length;
+
+		/**
+		 * Constructor
+		 * @param in			the stored bytes
+		 * @param compressed	the marker or <code>null</code>, if the file is stored as is
+		 * @param length		the number of bytes stored
+		 */
+		public Stored(InputStream in, CompressedFile compressed, long length) {
+			this.in = in;
+			this.compressed = compressed;
+			this.length = length;
+		}
+
+		/**
+		 * @return the marker or <code>null</code>, if the file is stored as is
+		 */
+		public CompressedFile getCompressed() {
+			return compressed;
+		}
+
+		/**
+		 * @return the number of bytes stored
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * @return the stored bytes
+		 */
+		public InputStream getInputStream() {
+			return in;
+		}
+
+		/**
+		 * @return the content, which is decompressed while it is read
+		 * @throws IOException
+		 */
+		public InputStream getContent() throws IOException {
+			if (compressed == null) {
+				return in;
+			}
+			try {
+				return new GZIPInputStream(in, BUFFER_SIZE);
+			} catch (IOException ex) {
+				in.close();
+				throw ex;
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The checksums of the content of a file: a SHA-256 digest and a CRC32 for
+ * quick comparisons. The checksums are stored in an extended attribute of
+ * the file together with its size and modification time, so they move with
+ * the file and checksums of content changed by other means are ignored.
+ * On filesystems without extended attributes nothing is stored.
+ * @author arpablo
+ *
+ */
+public final class ContentChecksum {
+
+	private static final Logger logger = LoggerFactory.getLogger(ContentChecksum.class);
+
+	/**
+	 * The name of the extended attribute
+	 */
+	public static final String ATTRIBUTE = "hennirepo.checksum";
+
+	/**
+	 * The SHA-256 of empty content in hex
+	 */
+	public static final String EMPTY_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+	private static final int MAX_ATTRIBUTE_SIZE = 256;
+
+	private final byte[] sha256;
+	private final long crc32;
+
+	/**
+	 * Constructor
+	 * @param sha256	the SHA-256 digest
+	 * @param crc32		the CRC32
+	 */
+	public ContentChecksum(byte[] sha256, long crc32) {
+		this.sha256 = sha256.clone();
+		this.crc32 = crc32;
+	}
+
+	/**
+	 * Create the checksums from their hex representation
+	 * @param sha256	the SHA-256 digest in hex
+	 * @param crc32		the CRC32 in hex
+	 * @return the checksums or <code>null</code>, if one of them is missing
+	 */
+	public static ContentChecksum valueOf(String sha256, String crc32) {
+		if (sha256 == null || crc32 == null) {
+			return null;
+		}
+		return new ContentChecksum(fromHex(sha256), Long.parseLong(crc32, 16));
+	}
+
+	/**
+	 * @return the SHA-256 digest in hex
+	 */
+	public String getSha256() {
+		return toHex(sha256);
+	}
+
+	/**
+	 * @return the CRC32 in hex
+	 */
+	public String getCrc32() {
+		return String.format("%08x", crc32);
+	}
+
+	/**
+	 * @return the value of a Digest header (RFC 3230)
+	 */
+	public String getDigest() {
+		return "SHA-256=" + Base64.getEncoder().encodeToString(sha256);
+	}
+
+	/**
+	 * @return the value of a Repr-Digest header (RFC 9530)
+	 */
+	public String getReprDigest() {
+		return "sha-256=:" + Base64.getEncoder().encodeToString(sha256) + ":";
+	}
+
+	/**
+	 * Return the value of a Repr-Digest header
+	 * @param sha256	the SHA-256 digest in hex
+	 * @return the header value
+	 */
+	public static String toReprDigest(String sha256) {
+		return "sha-256=:" + Base64.getEncoder().encodeToString(fromHex(sha256)) + ":";
+	}
+
+	/**
+	 * Read the checksums stored with a file
+	 * @param p	the file
+	 * @return the checksums or <code>null</code>, if none are stored or the
+	 * 			file was changed after they were stored
+	 */
+	public static ContentChecksum read(Path p) {
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(p, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+		if (view == null) {
+			return null;
+		}
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(MAX_ATTRIBUTE_SIZE);
+			view.read(ATTRIBUTE, buf);
+			String[] fields = new String(buf.array(), 0, buf.position(), StandardCharsets.US_ASCII).split(" ");
+			BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if (fields.length != 4 || Long.parseLong(fields[2]) != attrs.size()
+					|| Long.parseLong(fields[3]) != attrs.lastModifiedTime().toMillis()) {
+				return null;
+			}
+			return new ContentChecksum(fromHex(fields[0]), Long.parseLong(fields[1], 16));
+		} catch (IOException | UnsupportedOperationException | IllegalArgumentException ex) {
+			// no checksums stored
+			return null;
+		}
+	}
+
+	/**
+	 * Store the checksums with a file. They are valid as long as the size
+	 * and the modification time of the file are unchanged
+	 * @param p	the file with the content of the checksums
+	 * @return <code>true</code>, if the checksums are stored
+	 */
+	public boolean write(Path p) {
+		try {
+			UserDefinedFileAttributeView view = Files.getFileAttributeView(p, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+			if (view == null) {
+				return false;
+			}
+			BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			String value = getSha256() + " " + getCrc32() + " " + attrs.size() + " " + attrs.lastModifiedTime().toMillis();
+			view.write(ATTRIBUTE, ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII)));
+			return true;
+		} catch (IOException | UnsupportedOperationException ex) {
+			logger.debug("Checksums of {} are not stored: {}", p, ex.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Copy the checksums of a file to its copy
+	 * @param source	the file
+	 * @param target	the copy
+	 * @return <code>true</code>, if the source has checksums
+	 */
+	public static boolean copy(Path source, Path target) {
+		ContentChecksum checksum = read(source);
+		return checksum != null && checksum.write(target);
+	}
+
+	/**
+	 * Return the SHA-256 given in the value of a Digest (RFC 3230) or
+	 * Repr-Digest (RFC 9530) header
+	 * @param header	the header value or <code>null</code>
+	 * @return the SHA-256 in hex or <code>null</code>, if the value has none
+	 */
+	public static String sha256FromHeader(String header) {
+		if (header == null) {
+			return null;
+		}
+		for (String item : header.split(",")) {
+			int i = item.indexOf('=');
+			if (i < 0 || !item.substring(0, i).trim().equalsIgnoreCase("sha-256")) {
+				continue;
+			}
+			String value = item.substring(i + 1).trim();
+			if (value.length() > 1 && value.startsWith(":") && value.endsWith(":")) {
+				value = value.substring(1, value.length() - 1);
+			}
+			try {
+				byte[] digest = Base64.getDecoder().decode(value);
+				return (digest.length == 32) ? toHex(digest) : null;
+			} catch (IllegalArgumentException ex) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param bytes	a digest
+	 * @return the digest in hex
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	private static byte[] fromHex(String hex) {
+		if (hex.length() != 64) {
+			throw new IllegalArgumentException("Invalid SHA-256 " + hex);
+		}
+		byte[] ret = new byte[hex.length() / 2];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return ret;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof ContentChecksum)) {
+			return false;
+		}
+		ContentChecksum other = (ContentChecksum) obj;
+		return crc32 == other.crc32 && Arrays.equals(sha256, other.sha256);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return (int) crc32;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "sha256=" + getSha256() + " crc32=" + getCrc32();
+	}
+
+}
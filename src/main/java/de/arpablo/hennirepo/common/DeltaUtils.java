@@ -0,0 +1,384 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import de.arpablo.hennirepo.model.BlockChecksum;
+import de.arpablo.hennirepo.model.FileSignature;
+
+/**
+ * This class contains the rsync style delta algorithm. A delta is a binary
+ * stream with the following layout (all numbers big endian):
+ * <pre>
+ * int   MAGIC
+ * int   block size
+ * long  length of the basis file
+ * byte[32] SHA-256 of the basis file
+ * ( COPY long firstBlock int count | LITERAL int length byte[length] )*
+ * END
+ * byte[32] SHA-256 of the new content
+ * </pre>
+ * A COPY instruction copies <code>count</code> blocks of the basis file
+ * starting at block <code>firstBlock</code>, a LITERAL instruction contains
+ * new data. A delta is only applied to the basis it was computed for and
+ * its result is only accepted if it has the checksum of the new content.
+ * @author arpablo
+ *
+ */
+public class DeltaUtils {
+
+	public static final int MAGIC = 0x484e4432;
+	public static final byte END = 0;
+	public static final byte COPY = 1;
+	public static final byte LITERAL = 2;
+	
+	public static final int MIN_BLOCK_SIZE = 2 * 1024;
+	public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	/**
+	 * Return a block size suitable for a file of the given length. As rsync
+	 * does, this is roughly the square root of the length
+	 * @param length	the length of the file
+	 * @return	the block size
+	 */
+	public static int blockSize(long length) {
+		int size = Integer.highestOneBit((int) Math.min(Math.sqrt(length), MAX_BLOCK_SIZE));
+		return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+	}
+	
+	/**
+	 * Return a new instance of the digest used as strong checksum
+	 * @return a MessageDigest
+	 */
+	public static MessageDigest newStrongDigest() {
+		return newDigest("MD5");
+	}
+	
+	private static MessageDigest newDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+	
+	/**
+	 * Compute the signature of the given content in a single pass
+	 * @param in		the content
+	 * @param blockSize	the block size to use
+	 * @return a FileSignature
+	 * @throws IOException
+	 */
+	public static FileSignature signature(InputStream in, int blockSize) throws IOException {
+		FileSignature ret = new FileSignature();
+		ret.setBlockSize(blockSize);
+		MessageDigest md = newStrongDigest();
+		ChecksumInputStream content = new ChecksumInputStream(in);
+		byte[] buf = new byte[blockSize];
+		long length = 0;
+		int n;
+		while ((n = readFully(content, buf)) > 0) {
+			BlockChecksum block = new BlockChecksum();
+			block.setWeak(RollingChecksum.checksum(buf, 0, n));
+			md.update(buf, 0, n);
+			block.setStrong(toHex(md.digest()));
+			ret.getBlocks().add(block);
+			length += n;
+		}
+		ret.setLength(length);
+		ret.setSha256(content.getChecksum().getSha256());
+		return ret;
+	}
+	
+	/**
+	 * Compute the delta between the file described by the signature and the
+	 * given content. The content is read once, only a small window of it is kept
+	 * in memory
+	 * @param signature	the signature of the basis file including its SHA-256
+	 * @param in		the new content
+	 * @param out		the stream to write the delta to
+	 * @throws IOException
+	 */
+	public static void encode(FileSignature signature, InputStream in, OutputStream out) throws IOException {
+		if (signature.getSha256() == null) {
+			throw new IOException("The signature has no SHA-256 of the basis file");
+		}
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+		dos.writeInt(MAGIC);
+		dos.writeInt(signature.getBlockSize());
+		dos.writeLong(signature.getLength());
+		dos.write(fromHex(signature.getSha256()));
+		ChecksumInputStream content = new ChecksumInputStream(in);
+		new Encoder(signature, dos).encode(content);
+		dos.writeByte(END);
+		dos.write(fromHex(content.getChecksum().getSha256()));
+		dos.flush();
+	}
+	
+	/**
+	 * Rebuild a file from a basis file and a delta. The delta is rejected,
+	 * if it was computed for other content than the basis or if the result
+	 * does not have the checksum recorded in the delta
+	 * @param basis			the basis file
+	 * @param basisSha256	the SHA-256 of the basis file in hex
+	 * @param delta			the delta
+	 * @param out			the channel to write the new content to
+	 * @return the checksums of the new content
+	 * @throws IOException if the delta is invalid or doesn't match the basis
+	 */
+	public static ContentChecksum apply(FileChannel basis, String basisSha256, InputStream delta, FileChannel out) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(delta));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Invalid delta format");
+		}
+		int blockSize = in.readInt();
+		long basisLength = in.readLong();
+		byte[] sha256 = new byte[32];
+		in.readFully(sha256);
+		if (blockSize <= 0 || basis.size() != basisLength || !toHex(sha256).equals(basisSha256)) {
+			throw new IOException("Delta was not computed for the current content");
+		}
+		MessageDigest result = newDigest("SHA-256");
+		CRC32 crc32 = new CRC32();
+		byte[] buf = new byte[64 * 1024];
+		while (true) {
+			byte op = in.readByte();
+			switch (op) {
+			case END:
+				in.readFully(sha256);
+				ContentChecksum ret = new ContentChecksum(result.digest(), crc32.getValue());
+				if (!toHex(sha256).equals(ret.getSha256())) {
+					throw new IOException("The result of the delta does not match its checksum");
+				}
+				return ret;
+			case COPY:
+				long position = in.readLong() * blockSize;
+				long count = Math.min((long) in.readInt() * blockSize, basisLength - position);
+				if (position < 0 || count < 0) {
+					throw new IOException("Invalid block reference in delta");
+				}
+				while (count > 0) {
+					// the copied blocks are checksummed as well
+					ByteBuffer bb = ByteBuffer.wrap(buf, 0, (int) Math.min(buf.length, count));
+					int n = basis.read(bb, position);
+					if (n <= 0) {
+						throw new EOFException("Unexpected end of basis file");
+					}
+					write(buf, n, out, result, crc32);
+					position += n;
+					count -= n;
+				}
+				break;
+			case LITERAL:
+				int length = in.readInt();
+				while (length > 0) {
+					int n = in.read(buf, 0, Math.min(buf.length, length));
+					if (n < 0) {
+						throw new EOFException("Unexpected end of delta");
+					}
+					write(buf, n, out, result, crc32);
+					length -= n;
+				}
+				break;
+			default:
+				throw new IOException(String.format("Invalid delta instruction %d", op));
+			}
+		}
+	}
+	
+	private static void write(byte[] buf, int length, FileChannel out, MessageDigest result, CRC32 crc32) throws IOException {
+		result.update(buf, 0, length);
+		crc32.update(buf, 0, length);
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, length);
+		while (bb.hasRemaining()) {
+			out.write(bb);
+		}
+	}
+	
+	public static String toHex(byte[] bytes) {
+		char[] ret = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			ret[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			ret[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(ret);
+	}
+	
+	public static byte[] fromHex(String hex) {
+		byte[] ret = new byte[hex.length() / 2];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return ret;
+	}
+	
+	static int readFully(InputStream in, byte[] buf) throws IOException {
+		int off = 0;
+		int n;
+		while (off < buf.length && (n = in.read(buf, off, buf.length - off)) >= 0) {
+			off += n;
+		}
+		return off;
+	}
+	
+	/**
+	 * Searches the new content for blocks of the basis file
+	 */
+	static class Encoder {
+		
+		private final DataOutputStream out;
+		private final int blockSize;
+		private final int lastBlock;
+		private final int lastLength;
+		private final byte[][] strong;
+		private final Map<Integer, List<Integer>> weak = new HashMap<Integer, List<Integer>>();
+		private final MessageDigest md = newStrongDigest();
+		
+		private long copyStart = -1;
+		private int copyCount = 0;
+		
+		Encoder(FileSignature signature, DataOutputStream out) {
+			this.out = out;
+			this.blockSize = signature.getBlockSize();
+			List<BlockChecksum> blocks = signature.getBlocks();
+			this.lastBlock = blocks.size() - 1;
+			this.lastLength = (int) (signature.getLength() - (long) lastBlock * blockSize);
+			this.strong = new byte[blocks.size()][];
+			for (int i = 0; i < blocks.size(); i++) {
+				strong[i] = fromHex(blocks.get(i).getStrong());
+				List<Integer> list = weak.get(blocks.get(i).getWeak());
+				if (list == null) {
+					list = new ArrayList<Integer>(1);
+					weak.put(blocks.get(i).getWeak(), list);
+				}
+				list.add(i);
+			}
+		}
+		
+		void encode(InputStream in) throws IOException {
+			byte[] buf = new byte[Math.max(4 * blockSize, 256 * 1024)];
+			RollingChecksum rc = new RollingChecksum();
+			boolean rcValid = false;
+			boolean eof = false;
+			int start = 0;
+			int end = 0;
+			int literal = 0;
+			while (true) {
+				if (end - start < blockSize && !eof) {
+					// keep the pending literal bytes small and refill the window
+					writeLiteral(buf, literal, start - literal);
+					System.arraycopy(buf, start, buf, 0, end - start);
+					end -= start;
+					start = 0;
+					literal = 0;
+					int n = 0;
+					while (end < buf.length && (n = in.read(buf, end, buf.length - end)) >= 0) {
+						end += n;
+					}
+					eof = n < 0;
+					continue;
+				}
+				int available = end - start;
+				if (available < blockSize) {
+					// the tail can only match the last block of the basis
+					if (available > 0 && available == lastLength && matches(lastBlock, buf, start, available)) {
+						writeLiteral(buf, literal, start - literal);
+						writeCopy(lastBlock);
+						literal = end;
+					}
+					break;
+				}
+				if (!rcValid) {
+					rc.reset(buf, start, blockSize);
+					rcValid = true;
+				}
+				int block = find(rc.getValue(), buf, start);
+				if (block >= 0) {
+					writeLiteral(buf, literal, start - literal);
+					writeCopy(block);
+					start += blockSize;
+					literal = start;
+					rcValid = false;
+				} else if (start + blockSize < end) {
+					rc.roll(buf[start], buf[start + blockSize]);
+					start++;
+				} else {
+					start++;
+					rcValid = false;
+				}
+			}
+			writeLiteral(buf, literal, end - literal);
+			flushCopy();
+		}
+		
+		int find(int checksum, byte[] buf, int offset) {
+			List<Integer> candidates = weak.get(checksum);
+			if (candidates != null) {
+				for (int block : candidates) {
+					if ((block != lastBlock || lastLength == blockSize) && matches(block, buf, offset, blockSize)) {
+						return block;
+					}
+				}
+			}
+			return -1;
+		}
+		
+		boolean matches(int block, byte[] buf, int offset, int length) {
+			if (block < 0) {
+				return false;
+			}
+			md.update(buf, offset, length);
+			return Arrays.equals(strong[block], md.digest());
+		}
+		
+		void writeCopy(long block) throws IOException {
+			if (copyCount > 0 && copyStart + copyCount == block) {
+				copyCount++;
+			} else {
+				flushCopy();
+				copyStart = block;
+				copyCount = 1;
+			}
+		}
+		
+		void flushCopy() throws IOException {
+			if (copyCount > 0) {
+				out.writeByte(COPY);
+				out.writeLong(copyStart);
+				out.writeInt(copyCount);
+				copyCount = 0;
+			}
+		}
+		
+		void writeLiteral(byte[] buf, int offset, int length) throws IOException {
+			if (length > 0) {
+				flushCopy();
+				out.writeByte(LITERAL);
+				out.writeInt(length);
+				out.write(buf, offset, length);
+			}
+		}
+	}
+	
+}
@@ -26,6 +26,7 @@ import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.util.StreamUtils;
 
 /**
  * This class contains utility methods for dealing with files
@@ -57,7 +58,9 @@ public class FileUtils {
 	}
 	
     /**
-     * Copy source file to target location.
+     * Copy source file to target location. The {@link ContentChecksum} of the
+     * source is copied as well, if the source has none it is computed while copying.
+     * A {@link CompressedFile} is copied compressed.
      * @param source	the source directory
      * @param target	the target directory 
      * @param okToOverwrite The {@code okToOverwrite} parameter determines if an existing target can be overwritten
@@ -68,9 +71,44 @@ public class FileUtils {
             new CopyOption[] { StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING } :
             new CopyOption[] { StandardCopyOption.REPLACE_EXISTING };
         if (Files.notExists(target) || okToOverwrite) {
-            Files.copy(source, target, options);
+        	ContentChecksum checksum = ContentChecksum.read(source);
+        	CompressedFile compressed = CompressedFile.read(source);
+        	if (compressed != null) {
+        		// compressed content is copied as stored
+        		Files.copy(source, target, options);
+        		compressed.write(target);
+        		if (checksum == null) {
+        			try (ChecksumInputStream in = new ChecksumInputStream(CompressedFile.newInputStream(target))) {
+        				StreamUtils.drain(in);
+        				checksum = in.getChecksum();
+        			}
+        		}
+        		checksum.write(target);
+        	} else if (checksum != null || preserveAttributes) {
+        		// the checksum is copied with the attributes, if they are preserved
+        		Files.copy(source, target, options);
+        		if (checksum != null && !preserveAttributes) {
+        			checksum.write(target);
+        		}
+        	} else {
+        		copyWithChecksum(source, target);
+        	}
         }
     }    
+    
+    /**
+     * Copy the content of a file and store its {@link ContentChecksum} with the copy
+     * @param source	the source file, e.g. the entry of an archive
+     * @param target	the target file, which is replaced
+     * @return the number of bytes copied
+     */
+    static long copyWithChecksum(Path source, Path target) throws IOException {
+    	try (ChecksumInputStream in = new ChecksumInputStream(Files.newInputStream(source))) {
+    		long n = Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+    		in.getChecksum().write(target);
+    		return n;
+    	}
+    }
 
     /**
      * Copy source directory to target location.
@@ -88,7 +126,16 @@ public class FileUtils {
     	}
         EnumSet<FileVisitOption> opts = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
         TreeCopier tc = new TreeCopier(source, target, okToOverwrite, preserveAttributes);
-        Files.walkFileTree(source, opts, Integer.MAX_VALUE, tc);    	
+        FlightEvents.Operation operation = FlightEvents.operation("copyDirectory", source.toString());
+        try {
+        	Files.walkFileTree(source, opts, Integer.MAX_VALUE, tc);
+        	FlightEvents.count(operation, tc.bytes, tc.entries);
+        } catch (IOException | RuntimeException ex) {
+        	FlightEvents.failed(operation, ex);
+        	throw ex;
+        } finally {
+        	FlightEvents.commit(operation);
+        }
     }
     
     static class TreeCopier implements FileVisitor<Path> {
@@ -99,7 +146,8 @@ public class FileUtils {
         private final Path target;
         private final boolean okToOverwrite;
         private final boolean preserve;
-
+        private long bytes;
+        private long entries;
         
         
         TreeCopier(Path source, Path target, boolean okToOverwrite, boolean preserve) {
@@ -133,6 +181,8 @@ public class FileUtils {
         	try {
         		copyFile(file, target.resolve(source.relativize(file)),
                      okToOverwrite, preserve);
+        		bytes += attrs.size();
+        		entries++;
         		return FileVisitResult.CONTINUE;
         	} catch (IOException ex) {
                 logger.warn(String.format("Unable to copy: %s: %s%n", file, ex.getMessage()));
@@ -180,6 +230,7 @@ public class FileUtils {
 			Files.createDirectories(destDir);
 		}
 
+		FlightEvents.Operation operation = FlightEvents.operation("unzip", zipFileName);
 		try (FileSystem zipFileSystem = getZipFileSystem(zipFileName, false)) {
 			final Path root = zipFileSystem.getPath("/");
 
@@ -189,7 +240,8 @@ public class FileUtils {
 				public FileVisitResult visitFile(Path file,	BasicFileAttributes attrs) throws IOException {
 					final Path destFile = Paths.get(destDir.toString(),	file.toString());
 					logger.debug("Extracting file {} to {}", file, destFile);
-					Files.copy(file, destFile, StandardCopyOption.REPLACE_EXISTING);
+					copyWithChecksum(file, destFile);
+					FlightEvents.count(operation, attrs.size(), 1);
 					return FileVisitResult.CONTINUE;
 				}
 
@@ -204,6 +256,11 @@ public class FileUtils {
 					return FileVisitResult.CONTINUE;
 				}
 			});
+		} catch (IOException | RuntimeException ex) {
+			FlightEvents.failed(operation, ex);
+			throw ex;
+		} finally {
+			FlightEvents.commit(operation);
 		}
 	}    
     
@@ -225,6 +282,7 @@ public class FileUtils {
      */
 	public static void zip(String zipFilename, String... filenames) throws IOException {
 
+		FlightEvents.Operation operation = FlightEvents.operation("zip", zipFilename);
 		try (FileSystem zipFileSystem = getZipFileSystem(zipFilename, true)) {
 //			final Path root = zipFileSystem.getPath("/");
 
@@ -242,6 +300,7 @@ public class FileUtils {
 						Files.createDirectories(parent);
 					}
 					Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING);
+					FlightEvents.count(operation, Files.size(src), 1);
 				} else {
 					// for directories, walk the file tree
 					Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
@@ -250,13 +309,32 @@ public class FileUtils {
 							final Path dest = currentRoot.relativize(zipFileSystem.getPath(file.toString()));
 							Files.createDirectories(dest);
 							Files.copy(file, dest, StandardCopyOption.REPLACE_EXISTING);
+							FlightEvents.count(operation, attrs.size(), 1);
 							return FileVisitResult.CONTINUE;
 						}
 					});
 				}
 			}
+		} catch (IOException | RuntimeException ex) {
+			FlightEvents.failed(operation, ex);
+			throw ex;
+		} finally {
+			FlightEvents.commit(operation);
+		}
+	}
+	
+	/**
+	 * Delete a file, a failure is logged only
+	 * @param file	the file or <code>null</code>
+	 */
+	public static void deleteQuietly(Path file) {
+		if (file != null) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException ex) {
+				logger.warn("Unable to delete {}: {}", file, ex.getMessage());
+			}
 		}
 	}
 	
-
 }
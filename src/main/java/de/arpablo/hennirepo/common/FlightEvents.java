@@ -0,0 +1,348 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import java.util.function.Supplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events of the repository. The events are created only
+ * while a recording has enabled them, otherwise the methods return
+ * <code>null</code> after checking a flag, and all other methods accept
+ * <code>null</code>.
+ * <p>
+ * The settings of the events for a recording are in
+ * <code>jfr/hennirepo.jfc</code>.
+ * @author arpablo
+ *
+ */
+public final class FlightEvents {
+
+	private static final String CATEGORY = "Henni Repository";
+
+	private static final EventType OPERATION = EventType.getEventType(Operation.class);
+	private static final EventType LOCK_WAIT = EventType.getEventType(LockWait.class);
+	private static final EventType CACHE_MISS = EventType.getEventType(CacheMiss.class);
+	private static final EventType ARCHIVE_ENTRY = EventType.getEventType(ArchiveEntry.class);
+
+	/**
+	 * An operation of the repository
+	 */
+	@Name("de.arpablo.hennirepo.Operation")
+	@Label("Repository Operation")
+	@Category(CATEGORY)
+	@Threshold("10 ms")
+	@StackTrace(false)
+	public static class Operation extends Event {
+		@Label("Operation")
+		String operation;
+
+		@Label("Path")
+		String path;
+
+		@Label("Path Depth")
+		@Description("The number of names of the path")
+		int depth;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Entries")
+		@Description("The number of files and directories processed")
+		long entries;
+
+		@Label("Outcome")
+		String outcome = "ok";
+	}
+
+	/**
+	 * Waiting for a lock held by another thread
+	 */
+	@Name("de.arpablo.hennirepo.LockWait")
+	@Label("Repository Lock Wait")
+	@Category(CATEGORY)
+	@Threshold("1 ms")
+	public static class LockWait extends Event {
+		@Label("Lock")
+		String lock;
+
+		@Label("Key")
+		String key;
+	}
+
+	/**
+	 * Loading content missing in a cache
+	 */
+	@Name("de.arpablo.hennirepo.CacheMiss")
+	@Label("Repository Cache Miss")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static class CacheMiss extends Event {
+		@Label("Cache")
+		String cache;
+
+		@Label("Path")
+		String path;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	/**
+	 * Writing or reading an entry of a streamed archive
+	 */
+	@Name("de.arpablo.hennirepo.ArchiveEntry")
+	@Label("Repository Archive Entry")
+	@Category(CATEGORY)
+	@Enabled(false)
+	@StackTrace(false)
+	public static class ArchiveEntry extends Event {
+		@Label("Format")
+		String format;
+
+		@Label("Entry")
+		String entry;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Write")
+		@Description("True for entries written, false for entries extracted")
+		boolean write;
+	}
+
+	/** the operation running on the thread, it receives the counts of {@link #count(long, long)} */
+	private static final ThreadLocal<Operation> current = new ThreadLocal<Operation>();
+
+	private FlightEvents() {
+	}
+
+	/**
+	 * Run an operation. The event of the operation is the current operation
+	 * of the thread while the operation runs, an operation failing with an
+	 * exception is marked as failed
+	 * @param operation	the name of the operation
+	 * @param path		the path the operation is applied to
+	 * @param body		the operation
+	 * @return the result of the operation
+	 */
+	public static <T> T instrumented(String operation, String path, Supplier<T> body) {
+		Operation event = operation(operation, path);
+		if (event == null) {
+			return body.get();
+		}
+		Operation outer = current.get();
+		current.set(event);
+		try {
+			return body.get();
+		} catch (RuntimeException ex) {
+			failed(event, ex);
+			throw ex;
+		} finally {
+			if (outer != null) {
+				current.set(outer);
+			} else {
+				current.remove();
+			}
+			commit(event);
+		}
+	}
+
+	/**
+	 * Run an operation without a result
+	 * @param operation	the name of the operation
+	 * @param path		the path the operation is applied to
+	 * @param body		the operation
+	 * @see #instrumented(String, String, Supplier)
+	 */
+	public static void instrumented(String operation, String path, Runnable body) {
+		instrumented(operation, path, () -> {
+			body.run();
+			return null;
+		});
+	}
+
+	/**
+	 * Start an operation
+	 * @param operation	the name of the operation
+	 * @param path		the path the operation is applied to
+	 * @return the event or <code>null</code>, if the event is not enabled
+	 */
+	public static Operation operation(String operation, String path) {
+		if (!OPERATION.isEnabled()) {
+			return null;
+		}
+		Operation ret = new Operation();
+		ret.operation = operation;
+		ret.path = path;
+		ret.begin();
+		return ret;
+	}
+
+	/**
+	 * Add bytes and entries to an operation
+	 * @param event		the event or <code>null</code>
+	 * @param bytes		the number of bytes
+	 * @param entries	the number of entries
+	 */
+	public static void count(Operation event, long bytes, long entries) {
+		if (event != null) {
+			event.bytes += bytes;
+			event.entries += entries;
+		}
+	}
+
+	/**
+	 * Add bytes and entries to the current operation of the thread
+	 * @param bytes		the number of bytes
+	 * @param entries	the number of entries
+	 */
+	public static void count(long bytes, long entries) {
+		count(current.get(), bytes, entries);
+	}
+
+	/**
+	 * Mark an operation as failed
+	 * @param event	the event or <code>null</code>
+	 * @param ex	the cause
+	 */
+	public static void failed(Operation event, Throwable ex) {
+		if (event != null) {
+			event.outcome = ex.getClass().getSimpleName();
+		}
+	}
+
+	/**
+	 * Finish an operation
+	 * @param event	the event or <code>null</code>
+	 */
+	public static void commit(Operation event) {
+		if (event != null) {
+			event.end();
+			if (event.shouldCommit()) {
+				event.depth = depth(event.path);
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Start waiting for a lock
+	 * @param lock	the name of the lock
+	 * @param key	the key of the lock
+	 * @return the event or <code>null</code>, if the event is not enabled
+	 */
+	public static LockWait lockWait(String lock, String key) {
+		if (!LOCK_WAIT.isEnabled()) {
+			return null;
+		}
+		LockWait ret = new LockWait();
+		ret.lock = lock;
+		ret.key = key;
+		ret.begin();
+		return ret;
+	}
+
+	/**
+	 * Finish waiting for a lock
+	 * @param event	the event or <code>null</code>
+	 */
+	public static void commit(LockWait event) {
+		if (event != null) {
+			event.commit();
+		}
+	}
+
+	/**
+	 * Start loading content missing in a cache
+	 * @param cache	the name of the cache
+	 * @param path	the path of the content
+	 * @param bytes	the size of the content
+	 * @return the event or <code>null</code>, if the event is not enabled
+	 */
+	public static CacheMiss cacheMiss(String cache, String path, long bytes) {
+		if (!CACHE_MISS.isEnabled()) {
+			return null;
+		}
+		CacheMiss ret = new CacheMiss();
+		ret.cache = cache;
+		ret.path = path;
+		ret.bytes = bytes;
+		ret.begin();
+		return ret;
+	}
+
+	/**
+	 * Finish loading content into a cache
+	 * @param event	the event or <code>null</code>
+	 */
+	public static void commit(CacheMiss event) {
+		if (event != null) {
+			event.commit();
+		}
+	}
+
+	/**
+	 * Start writing or reading an archive entry
+	 * @param format	the format of the archive
+	 * @param entry		the name of the entry
+	 * @param write		true, if the entry is written
+	 * @return the event or <code>null</code>, if the event is not enabled
+	 */
+	public static ArchiveEntry archiveEntry(ArchiveFormat format, String entry, boolean write) {
+		if (!ARCHIVE_ENTRY.isEnabled()) {
+			return null;
+		}
+		ArchiveEntry ret = new ArchiveEntry();
+		ret.format = format.getName();
+		ret.entry = entry;
+		ret.write = write;
+		ret.begin();
+		return ret;
+	}
+
+	/**
+	 * Finish an archive entry
+	 * @param event	the event or <code>null</code>
+	 * @param bytes	the size of the content
+	 */
+	public static void commit(ArchiveEntry event, long bytes) {
+		if (event != null) {
+			event.bytes = bytes;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Return the number of names of a path
+	 */
+	static int depth(String path) {
+		int ret = 0;
+		boolean name = false;
+		for (int i = 0; path != null && i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c == '/' || c == '\\') {
+				name = false;
+			} else if (!name) {
+				name = true;
+				ret++;
+			}
+		}
+		return ret;
+	}
+
+}
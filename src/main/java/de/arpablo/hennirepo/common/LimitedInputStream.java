@@ -0,0 +1,75 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Supplier;
+
+/**
+ * Fails as soon as a stream has more than a limit of bytes, so content
+ * exceeding e.g. a quota is not received completely. At most one byte
+ * beyond the limit is read
+ * @author arpablo
+ *
+ */
+public class LimitedInputStream extends FilterInputStream {
+
+	private final long limit;
+	private final Supplier<? extends RuntimeException> exceeded;
+	private long count;
+
+	/**
+	 * Constructor
+	 * @param in		the stream to read
+	 * @param limit		the maximum number of bytes
+	 * @param exceeded	creates the exception thrown when the limit is exceeded
+	 */
+	public LimitedInputStream(InputStream in, long limit, Supplier<? extends RuntimeException> exceeded) {
+		super(in);
+		this.limit = limit;
+		this.exceeded = exceeded;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b >= 0) {
+			count(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, (int) Math.min(len, limit - count + 1));
+		if (n > 0) {
+			count(n);
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(Math.min(n, limit - count + 1));
+		if (skipped > 0) {
+			count(skipped);
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	protected void count(long n) {
+		count += n;
+		if (count > limit) {
+			throw exceeded.get();
+		}
+	}
+
+}
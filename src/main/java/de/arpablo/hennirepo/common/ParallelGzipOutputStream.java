@@ -0,0 +1,217 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An OutputStream writing the GZIP format, which compresses blocks of the
+ * input in parallel. Each block is deflated on its own, primed with the last
+ * 32 KB of the preceding input as dictionary, and ends with a sync flush, so
+ * the compressed blocks concatenate to a single deflate stream which any
+ * GZIP reader can decompress. The CRC is computed while writing.
+ * <p>
+ * The number of blocks in flight is limited, so memory use does not depend
+ * on the size of the input.
+ * @author arpablo
+ *
+ */
+public class ParallelGzipOutputStream extends FilterOutputStream {
+
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+	
+	private final Executor executor;
+	private final int level;
+	private final int maxPending;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private final CRC32 crc = new CRC32();
+	private final byte[] block;
+	private int count;
+	private byte[] dictionary;
+	private long size;
+	private boolean finished;
+	
+	/**
+	 * Constructor
+	 * @param out		the stream to write to
+	 * @param blockSize	the size of the blocks compressed in parallel, at least 32 KB
+	 * @param executor	the executor compressing the blocks
+	 * @param threads	the number of threads of the executor
+	 * @throws IOException
+	 */
+	public ParallelGzipOutputStream(OutputStream out, int blockSize, Executor executor, int threads) throws IOException {
+		this(out, blockSize, executor, threads, Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	/**
+	 * Constructor
+	 * @param out		the stream to write to
+	 * @param blockSize	the size of the blocks compressed in parallel, at least 32 KB
+	 * @param executor	the executor compressing the blocks
+	 * @param threads	the number of threads of the executor
+	 * @param level		the compression level
+	 * @throws IOException
+	 */
+	public ParallelGzipOutputStream(OutputStream out, int blockSize, Executor executor, int threads, int level) throws IOException {
+		super(out);
+		this.block = new byte[Math.max(blockSize, DICTIONARY_SIZE)];
+		this.executor = executor;
+		this.level = level;
+		this.maxPending = 2 * Math.max(1, threads);
+		out.write(HEADER);
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (finished) {
+			throw new IOException("Stream is finished");
+		}
+		crc.update(b, off, len);
+		size += len;
+		while (len > 0) {
+			int n = Math.min(len, block.length - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == block.length) {
+				submit(false);
+			}
+		}
+	}
+	
+	/**
+	 * Compress and write the buffered input. This ends a block early, which
+	 * slightly reduces the compression
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (!finished && count > 0) {
+			submit(false);
+		}
+		drain(0);
+		out.flush();
+	}
+	
+	/**
+	 * Finish the GZIP stream without closing the underlying stream
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		submit(true);
+		drain(0);
+		finished = true;
+		writeInt((int) crc.getValue());
+		writeInt((int) size);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+	
+	protected void submit(boolean last) throws IOException {
+		final byte[] data = Arrays.copyOf(block, count);
+		final byte[] dict = dictionary;
+		dictionary = window(dict, data);
+		count = 0;
+		FutureTask<byte[]> task = new FutureTask<byte[]>(() -> deflate(data, dict, last));
+		executor.execute(task);
+		pending.add(task);
+		drain(maxPending);
+	}
+	
+	/**
+	 * Write the compressed blocks in order until at most the given number is pending
+	 */
+	protected void drain(int max) throws IOException {
+		while (pending.size() > max) {
+			try {
+				out.write(pending.removeFirst().get());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while compressing");
+			} catch (ExecutionException ex) {
+				throw new IOException("Compression failed", ex.getCause());
+			}
+		}
+	}
+	
+	protected byte[] deflate(byte[] data, byte[] dict, boolean last) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if (dict != null) {
+				deflater.setDictionary(dict);
+			}
+			deflater.setInput(data);
+			ByteArrayOutputStream ret = new ByteArrayOutputStream(data.length / 2 + 64);
+			byte[] buf = new byte[16 * 1024];
+			if (last) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					ret.write(buf, 0, deflater.deflate(buf));
+				}
+			} else {
+				// a full buffer means there may be more output
+				int n;
+				do {
+					n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+					ret.write(buf, 0, n);
+				} while (n == buf.length);
+			}
+			return ret.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	/**
+	 * The last 32 KB of the input written so far
+	 */
+	protected static byte[] window(byte[] dict, byte[] data) {
+		if (data.length >= DICTIONARY_SIZE) {
+			return Arrays.copyOfRange(data, data.length - DICTIONARY_SIZE, data.length);
+		}
+		int keep = (dict == null) ? 0 : Math.min(dict.length, DICTIONARY_SIZE - data.length);
+		byte[] ret = new byte[keep + data.length];
+		if (keep > 0) {
+			System.arraycopy(dict, dict.length - keep, ret, 0, keep);
+		}
+		System.arraycopy(data, 0, ret, keep, data.length);
+		return ret;
+	}
+	
+	private void writeInt(int i) throws IOException {
+		out.write(i & 0xff);
+		out.write((i >> 8) & 0xff);
+		out.write((i >> 16) & 0xff);
+		out.write((i >> 24) & 0xff);
+	}
+	
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes an archive in the order the entries are added while the content
+ * of the next small files is read in parallel. The content read ahead is
+ * held in memory, limited by a number of entries and bytes, files larger
+ * than the read ahead size are streamed when it is their turn. Nothing is
+ * staged on disk.
+ * @author arpablo
+ *
+ */
+public class ReadAheadArchiveWriter implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ReadAheadArchiveWriter.class);
+
+	private final ArchiveWriter writer;
+	private final ExecutorService executor;
+	private final int maxEntries;
+	private final long maxBytes;
+	private final long maxFileSize;
+	private final Deque<Pending> pending = new ArrayDeque<Pending>();
+	private long bytes;
+
+	/**
+	 * An entry waiting to be written
+	 */
+	private static class Pending {
+		final String name;
+		final boolean directory;
+		final long lastModified;
+		final Path file;
+		final long size;
+		final Future<byte[]> content;
+
+		Pending(String name, boolean directory, long lastModified, Path file, long size, Future<byte[]> content) {
+			this.name = name;
+			this.directory = directory;
+			this.lastModified = lastModified;
+			this.file = file;
+			this.size = size;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param writer		the archive
+	 * @param executor		the threads reading ahead
+	 * @param maxEntries	the maximum number of entries waiting to be written
+	 * @param maxBytes		the maximum number of bytes read ahead
+	 * @param maxFileSize	files up to this size are read ahead
+	 */
+	public ReadAheadArchiveWriter(ArchiveWriter writer, ExecutorService executor, int maxEntries, long maxBytes, long maxFileSize) {
+		this.writer = writer;
+		this.executor = executor;
+		this.maxEntries = Math.max(1, maxEntries);
+		this.maxBytes = maxBytes;
+		this.maxFileSize = Math.min(maxFileSize, maxBytes);
+	}
+
+	/**
+	 * Add a directory entry
+	 * @param name			the relative name of the directory
+	 * @param lastModified	the modification time in milliseconds
+	 * @throws IOException
+	 */
+	public void addDirectory(String name, long lastModified) throws IOException {
+		add(new Pending(name, true, lastModified, null, 0, null));
+	}
+
+	/**
+	 * Add a file entry with content held in memory
+	 * @param name			the relative name of the file
+	 * @param lastModified	the modification time in milliseconds
+	 * @param data			the content
+	 * @throws IOException
+	 */
+	public void addFile(String name, long lastModified, byte[] data) throws IOException {
+		bytes += data.length;
+		add(new Pending(name, false, lastModified, null, data.length, CompletableFuture.completedFuture(data)));
+	}
+
+	/**
+	 * Add a file entry with the content and attributes of a file. A small
+	 * file is read in the background
+	 * @param name	the relative name of the file
+	 * @param file	the file
+	 * @param attrs	the attributes of the file
+	 * @throws IOException
+	 */
+	public void addFile(String name, Path file, BasicFileAttributes attrs) throws IOException {
+		long size = CompressedFile.size(file, attrs);
+		Future<byte[]> content = null;
+		if (size <= maxFileSize) {
+			content = executor.submit(() -> CompressedFile.readAllBytes(file));
+			bytes += size;
+		}
+		add(new Pending(name, false, attrs.lastModifiedTime().toMillis(), file, size, content));
+	}
+
+	/**
+	 * Add a file entry with the content and attributes of a file
+	 * @param name	the relative name of the file
+	 * @param file	the file
+	 * @throws IOException
+	 */
+	public void addFile(String name, Path file) throws IOException {
+		addFile(name, file, Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+	}
+
+	/**
+	 * Write the remaining entries and finish the archive
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			while (!pending.isEmpty()) {
+				writeNext();
+			}
+			writer.close();
+		} finally {
+			for (Pending p : pending) {
+				if (p.content != null) {
+					p.content.cancel(true);
+				}
+			}
+			pending.clear();
+		}
+	}
+
+	private void add(Pending entry) throws IOException {
+		pending.add(entry);
+		while (pending.size() > maxEntries || (bytes > maxBytes && !pending.isEmpty())) {
+			writeNext();
+		}
+	}
+
+	private void writeNext() throws IOException {
+		Pending p = pending.poll();
+		if (p.directory) {
+			writer.addDirectory(p.name, p.lastModified);
+		} else if (p.content != null) {
+			byte[] data;
+			try {
+				data = p.content.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading " + p.name, ex);
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof NoSuchFileException) {
+					// deleted since the directory was read
+					logger.debug("Skipping {}, it was deleted", p.file);
+					return;
+				}
+				throw (ex.getCause() instanceof IOException) ? (IOException) ex.getCause() : new IOException(ex.getCause());
+			} finally {
+				bytes -= p.size;
+			}
+			writer.addFile(p.name, data.length, p.lastModified, new ByteArrayInputStream(data));
+		} else {
+			writer.addFile(p.name, p.file);
+		}
+	}
+
+}
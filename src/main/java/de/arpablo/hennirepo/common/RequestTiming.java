@@ -0,0 +1,269 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the cost of a request: the time spent in each phase and the
+ * number of filesystem calls and bytes. The timing of the current request
+ * is bound to the thread serving it, code that is not called for a request
+ * records nothing. Recording is cheap enough to stay on in production:
+ * a thread local lookup and a few atomic additions.
+ * @author arpablo
+ *
+ */
+public class RequestTiming {
+
+	/**
+	 * The phases of a request
+	 */
+	public enum Phase {
+		/** waiting for admission */
+		QUEUE,
+		/** reading the attributes of files */
+		STAT,
+		/** iterating directories */
+		LIST,
+		/** reading file content */
+		READ,
+		/** writing file content */
+		WRITE,
+		/** rendering the response body */
+		SERIALIZE,
+		/** writing the response body to the client */
+		SEND;
+
+		public String getName() {
+			return name().toLowerCase();
+		}
+	}
+
+	private static final ThreadLocal<RequestTiming> current = new ThreadLocal<RequestTiming>();
+
+	private final long started = System.nanoTime();
+	private final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+	private final AtomicLongArray calls = new AtomicLongArray(Phase.values().length);
+	private final AtomicLongArray bytes = new AtomicLongArray(Phase.values().length);
+	private volatile long rendering;
+	private volatile long rendered;
+
+	/**
+	 * Start the timing of a request on the current thread
+	 * @return the RequestTiming
+	 */
+	public static RequestTiming begin() {
+		RequestTiming ret = new RequestTiming();
+		current.set(ret);
+		return ret;
+	}
+
+	/**
+	 * Detach the timing from the current thread
+	 */
+	public static void detach() {
+		current.remove();
+	}
+
+	/**
+	 * @return the timing of the request served by the current thread or <code>null</code>
+	 */
+	public static RequestTiming current() {
+		return current.get();
+	}
+
+	/**
+	 * Start measuring an operation
+	 * @return the start time to pass to {@link #record(Phase, long, long, long)},
+	 * 			0 if no request is timed
+	 */
+	public static long start() {
+		return (current.get() != null) ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Record an operation of the current request
+	 * @param phase	the phase
+	 * @param start	the value returned by {@link #start()}
+	 * @param n		the number of calls
+	 * @param size	the number of bytes
+	 * @return the end time, which may start the next operation
+	 */
+	public static long record(Phase phase, long start, long n, long size) {
+		RequestTiming timing = current.get();
+		if (start == 0 || timing == null) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		timing.add(phase, now - start, n, size);
+		return now;
+	}
+
+	/**
+	 * Wrap a stream of file content, so reading it is recorded. The stream
+	 * may be read by another thread than the one that opened it
+	 * @param in	the stream
+	 * @return the wrapped stream or in, if no request is timed
+	 */
+	public static InputStream timed(InputStream in) {
+		RequestTiming timing = current.get();
+		return (timing != null) ? new TimedInputStream(in, timing) : in;
+	}
+
+	/**
+	 * Add to a phase
+	 * @param phase		the phase
+	 * @param elapsed	the time in nanoseconds
+	 * @param n			the number of calls
+	 * @param size		the number of bytes
+	 */
+	public void add(Phase phase, long elapsed, long n, long size) {
+		nanos.addAndGet(phase.ordinal(), elapsed);
+		calls.addAndGet(phase.ordinal(), n);
+		bytes.addAndGet(phase.ordinal(), size);
+	}
+
+	/**
+	 * Mark the start of rendering the response body
+	 */
+	public void rendering() {
+		if (rendering == 0) {
+			rendering = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Mark the end of rendering the response body
+	 */
+	public void rendered() {
+		if (rendering != 0 && rendered == 0) {
+			rendered = System.nanoTime();
+		}
+	}
+
+	/**
+	 * @return the time since the start of the request in milliseconds
+	 */
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+	}
+
+	/**
+	 * Return the time spent in a phase. The time of rendering the response
+	 * body that is spent neither reading files nor writing to the client
+	 * is the time of the serialization
+	 * @param phase	the phase
+	 * @return the time in nanoseconds
+	 */
+	public long getNanos(Phase phase) {
+		if (phase == Phase.SERIALIZE && rendering != 0) {
+			long end = (rendered != 0) ? rendered : System.nanoTime();
+			return Math.max(end - rendering - getNanos(Phase.READ) - getNanos(Phase.SEND), 0);
+		}
+		return nanos.get(phase.ordinal());
+	}
+
+	public long getCalls(Phase phase) {
+		if (phase == Phase.SERIALIZE) {
+			return 0;
+		}
+		return calls.get(phase.ordinal());
+	}
+
+	public long getBytes(Phase phase) {
+		return bytes.get(phase.ordinal());
+	}
+
+	/**
+	 * Format the timing as value of a Server-Timing header. Phases without
+	 * cost are left out
+	 * @return the header value
+	 */
+	public String toServerTiming() {
+		StringBuilder sb = new StringBuilder();
+		for (Phase phase : Phase.values()) {
+			if (getNanos(phase) == 0 && getCalls(phase) == 0) {
+				continue;
+			}
+			sb.append(phase.getName()).append(";dur=").append(millis(getNanos(phase)));
+			if (getCalls(phase) > 0 || getBytes(phase) > 0) {
+				sb.append(";desc=\"").append(getCalls(phase)).append(" calls");
+				if (getBytes(phase) > 0) {
+					sb.append(", ").append(getBytes(phase)).append(" bytes");
+				}
+				sb.append('"');
+			}
+			sb.append(", ");
+		}
+		return sb.append("total;dur=").append(millis(System.nanoTime() - started)).toString();
+	}
+
+	/**
+	 * Format the timing as key=value pairs for the log
+	 * @return the formatted timing
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("total_ms=").append(millis(System.nanoTime() - started));
+		for (Phase phase : Phase.values()) {
+			if (getNanos(phase) == 0 && getCalls(phase) == 0) {
+				continue;
+			}
+			sb.append(' ').append(phase.getName()).append("_ms=").append(millis(getNanos(phase)));
+			if (getCalls(phase) > 0) {
+				sb.append(' ').append(phase.getName()).append("_calls=").append(getCalls(phase));
+			}
+			if (getBytes(phase) > 0) {
+				sb.append(' ').append(phase.getName()).append("_bytes=").append(getBytes(phase));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+	}
+
+	/**
+	 * Records the reads of file content
+	 */
+	protected static class TimedInputStream extends FilterInputStream {
+		private final RequestTiming timing;
+
+		TimedInputStream(InputStream in, RequestTiming timing) {
+			super(in);
+			this.timing = timing;
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int b = super.read();
+			timing.add(Phase.READ, System.nanoTime() - start, 1, (b >= 0) ? 1 : 0);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			int n = super.read(b, off, len);
+			timing.add(Phase.READ, System.nanoTime() - start, 1, Math.max(n, 0));
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long start = System.nanoTime();
+			long skipped = super.skip(n);
+			timing.add(Phase.READ, System.nanoTime() - start, 1, 0);
+			return skipped;
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+/**
+ * The weak rolling checksum used by the rsync algorithm. The checksum of a
+ * window can be moved forward by one byte in constant time, which allows to
+ * search for matching blocks at every offset of a file
+ * @author arpablo
+ *
+ */
+public class RollingChecksum {
+
+	private int length;
+	private int a;
+	private int b;
+	
+	/**
+	 * Compute the checksum of the given window
+	 * @param buf		the buffer
+	 * @param offset	the start of the window
+	 * @param length	the length of the window
+	 * @return this
+	 */
+	public RollingChecksum reset(byte[] buf, int offset, int length) {
+		this.length = length;
+		a = 0;
+		b = 0;
+		for (int i = 0; i < length; i++) {
+			int v = buf[offset + i] & 0xff;
+			a += v;
+			b += (length - i) * v;
+		}
+		a &= 0xffff;
+		b &= 0xffff;
+		return this;
+	}
+	
+	/**
+	 * Move the window one byte forward
+	 * @param out	the byte leaving the window
+	 * @param in	the byte entering the window
+	 * @return this
+	 */
+	public RollingChecksum roll(byte out, byte in) {
+		int o = out & 0xff;
+		a = (a - o + (in & 0xff)) & 0xffff;
+		b = (b - length * o + a) & 0xffff;
+		return this;
+	}
+	
+	/**
+	 * @return the current checksum
+	 */
+	public int getValue() {
+		return (b << 16) | a;
+	}
+	
+	/**
+	 * Compute the checksum of a single block
+	 * @param buf		the buffer
+	 * @param offset	the start of the block
+	 * @param length	the length of the block
+	 * @return the checksum
+	 */
+	public static int checksum(byte[] buf, int offset, int length) {
+		return new RollingChecksum().reset(buf, offset, length).getValue();
+	}
+	
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting a rate, e.g. of bytes per second. The bucket is
+ * refilled continuously up to its capacity, which is the largest burst.
+ * Taking more tokens than available makes the balance negative, the caller
+ * has to wait until it is paid back. So large requests are shaped instead
+ * of rejected
+ * @author arpablo
+ *
+ */
+public class TokenBucket {
+
+	private final long rate;
+	private final long capacity;
+	private double tokens;
+	private long refilled;
+
+	/**
+	 * Constructor, the bucket starts full
+	 * @param rate		the tokens added per second
+	 * @param capacity	the maximum number of tokens
+	 */
+	public TokenBucket(long rate, long capacity) {
+		this.rate = rate;
+		this.capacity = Math.max(capacity, 1);
+		this.tokens = this.capacity;
+		this.refilled = System.nanoTime();
+	}
+
+	/**
+	 * Take tokens from the bucket
+	 * @param n	the number of tokens
+	 * @return the nanoseconds to wait until the tokens are covered
+	 */
+	public synchronized long take(long n) {
+		refill();
+		tokens -= n;
+		return (tokens >= 0) ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+	}
+
+	/**
+	 * Take tokens from the bucket and wait until they are covered
+	 * @param n	the number of tokens
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	public void acquire(long n) throws InterruptedIOException {
+		long wait = take(n);
+		if (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code>, if the bucket is full, i.e. it wasn't used for a while
+	 */
+	public synchronized boolean isFull() {
+		refill();
+		return tokens >= capacity;
+	}
+
+	/**
+	 * @return the capacity of the bucket
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (double) (now - refilled) * rate / TimeUnit.SECONDS.toNanos(1));
+		refilled = now;
+	}
+
+}
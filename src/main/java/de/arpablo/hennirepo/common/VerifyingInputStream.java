@@ -0,0 +1,71 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Supplier;
+
+/**
+ * Fails at the end of a stream, if the content read does not have the
+ * expected SHA-256. The end is only reported to the reader, if the content
+ * matches, so content received with a wrong checksum is never complete
+ * @author arpablo
+ *
+ */
+public class VerifyingInputStream extends ChecksumInputStream {
+
+	private final String sha256;
+	private final Supplier<? extends RuntimeException> mismatch;
+	private ContentChecksum checksum;
+
+	/**
+	 * Constructor
+	 * @param in		the stream to read
+	 * @param sha256	the expected SHA-256 in hex
+	 * @param mismatch	creates the exception thrown when the content does not match
+	 */
+	public VerifyingInputStream(InputStream in, String sha256, Supplier<? extends RuntimeException> mismatch) {
+		super(in);
+		this.sha256 = sha256;
+		this.mismatch = mismatch;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b < 0) {
+			verify();
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if (n < 0) {
+			verify();
+		}
+		return n;
+	}
+
+	/**
+	 * The checksums are only known after the end of the stream was read
+	 * @see de.arpablo.hennirepo.common.ChecksumInputStream#getChecksum()
+	 */
+	@Override
+	public ContentChecksum getChecksum() {
+		return (checksum != null) ? checksum : super.getChecksum();
+	}
+
+	protected void verify() {
+		if (checksum == null) {
+			checksum = super.getChecksum();
+		}
+		if (!checksum.getSha256().equalsIgnoreCase(sha256)) {
+			throw mismatch.get();
+		}
+	}
+
+}
@@ -0,0 +1,26 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.config;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+
+/**
+ * Marks the components that require the filesystem based repository.
+ * They are active unless <code>henni.repo.store</code> selects another store
+ * @author arpablo
+ *
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.TYPE, ElementType.METHOD })
+@Documented
+@ConditionalOnProperty(prefix="henni.repo", name="store", havingValue="file", matchIfMissing=true)
+public @interface ConditionalOnFileStore {
+
+}
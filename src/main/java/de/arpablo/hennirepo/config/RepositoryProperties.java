@@ -4,6 +4,10 @@
 
 package de.arpablo.hennirepo.config;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.util.StringUtils;
@@ -22,6 +26,47 @@ public class RepositoryProperties {
 	String basedir;
 	String uri;
 	
+	/**
+	 * The store of the repository: <code>file</code> (default) keeps the
+	 * resources below basedir, <code>memory</code> keeps them in memory only
+	 */
+	String store = "file";
+	
+	/**
+	 * Additional root directories. If set, the repository is distributed
+	 * across basedir and these directories
+	 */
+	List<String> roots = new ArrayList<String>();
+	
+	/**
+	 * The number of leading names of a repository path that decide on which
+	 * root a resource is stored
+	 */
+	int shardDepth = 1;
+	
+	Upload upload = new Upload();
+	Changes changes = new Changes();
+	Cache cache = new Cache();
+	Journal journal = new Journal();
+	Trash trash = new Trash();
+	Versions versions = new Versions();
+	Snapshots snapshots = new Snapshots();
+	Archives archives = new Archives();
+	Pack pack = new Pack();
+	Admission admission = new Admission();
+	Checkpoint checkpoint = new Checkpoint();
+	Timing timing = new Timing();
+	Checksums checksums = new Checksums();
+	Dedupe dedupe = new Dedupe();
+	Query query = new Query();
+	Tiering tiering = new Tiering();
+	Compression compression = new Compression();
+	
+	/**
+	 * Limits of the size and number of files of directories
+	 */
+	List<Quota> quotas = new ArrayList<Quota>();
+	
 	/**
 	 * Set the basedir
 	 * @param basedir
@@ -30,11 +75,26 @@ public class RepositoryProperties {
 		if (basedir == null || basedir.equals("")) {
 			basedir = System.getProperty("user.home") + "/henni-repo";
 		}
-		basedir = StringUtils.cleanPath(basedir);
-		if (basedir.startsWith("~/")) {
-			basedir = System.getProperty("user.home") + basedir.substring(1);
+		this.basedir = expandPath(basedir);
+	}
+	
+	/**
+	 * Set the additional roots
+	 * @param roots
+	 */
+	public void setRoots(List<String> roots) {
+		this.roots = new ArrayList<String>();
+		for (String root : roots) {
+			this.roots.add(expandPath(root));
+		}
+	}
+	
+	protected static String expandPath(String path) {
+		path = StringUtils.cleanPath(path);
+		if (path.startsWith("~/")) {
+			path = System.getProperty("user.home") + path.substring(1);
 		}
-		this.basedir = basedir;
+		return path;
 	}
 	
 	/**
@@ -54,4 +114,514 @@ public class RepositoryProperties {
 		this.uri = uri;
 	}
 	
+	/**
+	 * Settings for multipart uploads
+	 */
+	@Data
+	public static class Upload {
+		
+		/**
+		 * Uploads without activity for this number of minutes are discarded
+		 */
+		long expiryMinutes = 24 * 60;
+		
+		/**
+		 * The maximum number of parts of a single upload, at most 99999
+		 */
+		int maxParts = 10000;
+		
+		/**
+		 * The time between two runs of the removal of expired uploads in milliseconds
+		 */
+		long cleanupInterval = 10 * 60 * 1000;
+	}
+	
+	/**
+	 * Settings for the change feed
+	 */
+	@Data
+	public static class Changes {
+		
+		/**
+		 * The number of events kept for clients resuming the feed
+		 */
+		int capacity = 10000;
+		
+		/**
+		 * If true, external changes of the repository directory are reported as well
+		 */
+		boolean watch = true;
+		
+		/**
+		 * The timeout of a change feed connection in milliseconds
+		 */
+		long timeout = 30 * 60 * 1000;
+		
+		/**
+		 * The interval of the heartbeat comments sent to idle change feed connections in milliseconds
+		 */
+		long heartbeat = 30 * 1000;
+	}
+	
+	/**
+	 * Settings for the content cache
+	 */
+	@Data
+	public static class Cache {
+		
+		/**
+		 * If false, the content cache is disabled
+		 */
+		boolean enabled = true;
+		
+		/**
+		 * The total size of the files held in memory
+		 */
+		long maxBytes = 64 * 1024 * 1024;
+		
+		/**
+		 * Files up to this size are held in memory
+		 */
+		int maxFileSize = 256 * 1024;
+		
+		/**
+		 * If true, files up to maxMappedFileSize are memory-mapped. Only enable this, if
+		 * no other process truncates files of the repository in place: reading a mapped
+		 * file truncated by another process crashes the JVM
+		 */
+		boolean map = false;
+		
+		/**
+		 * Files up to this size (and larger than maxFileSize) are memory-mapped, if map is true
+		 */
+		long maxMappedFileSize = 16 * 1024 * 1024;
+		
+		/**
+		 * The maximum number of memory-mapped files
+		 */
+		int maxMappedFiles = 256;
+		
+		/**
+		 * Glob patterns of the repository paths to cache. If empty, all files are cached
+		 */
+		List<String> includes = new ArrayList<String>();
+	}
+	
+	/**
+	 * Settings for the operation journal
+	 */
+	@Data
+	public static class Journal {
+		
+		/**
+		 * If false, multi-step operations are not journaled
+		 */
+		boolean enabled = true;
+		
+		/**
+		 * The journal is truncated when it exceeds this size and no operation is running
+		 */
+		long maxBytes = 1024 * 1024;
+	}
+	
+	/**
+	 * The quota of a directory including all subdirectories
+	 */
+	@Data
+	public static class Quota {
+		
+		/**
+		 * The repository path of the directory
+		 */
+		String path;
+		
+		/**
+		 * The maximum size of all files in bytes, a negative value means unlimited
+		 */
+		long maxBytes = -1;
+		
+		/**
+		 * The maximum number of files, a negative value means unlimited
+		 */
+		long maxFiles = -1;
+	}
+	
+	/**
+	 * Settings for the trash holding deleted resources
+	 */
+	@Data
+	public static class Trash {
+		
+		/**
+		 * Deleted resources can be restored for this number of minutes.
+		 * With 0, they are purged right after the deletion
+		 */
+		long retentionMinutes = 0;
+		
+		/**
+		 * The interval of purging the expired entries of the trash in milliseconds
+		 */
+		long purgeInterval = 60 * 1000;
+		
+		/**
+		 * The number of threads purging the trash
+		 */
+		int threads = 4;
+		
+		/**
+		 * The maximum number of files and directories purged per second, 0 means unlimited
+		 */
+		int maxDeletesPerSecond = 0;
+	}
+	
+	/**
+	 * Settings for the version history of files
+	 */
+	@Data
+	public static class Versions {
+		
+		/**
+		 * If true, the previous content of an overwritten file is kept
+		 */
+		boolean enabled = false;
+		
+		/**
+		 * The maximum number of versions kept per file, a negative value means unlimited
+		 */
+		int maxCount = 10;
+		
+		/**
+		 * Versions are removed after this number of minutes, 0 means unlimited
+		 */
+		long maxAgeMinutes = 0;
+		
+		/**
+		 * The interval of removing the versions exceeding maxCount or maxAgeMinutes in milliseconds
+		 */
+		long pruneInterval = 10 * 60 * 1000;
+		
+		/**
+		 * Glob patterns of the repository paths with history. If empty, all files have a history
+		 */
+		List<String> includes = new ArrayList<String>();
+	}
+	
+	/**
+	 * Settings for snapshots
+	 */
+	@Data
+	public static class Snapshots {
+		
+		/**
+		 * The number of threads creating the links of a snapshot
+		 */
+		int threads = 4;
+	}
+	
+	/**
+	 * Settings for browsing archives
+	 */
+	@Data
+	public static class Archives {
+		
+		/**
+		 * The maximum number of archives kept open
+		 */
+		int maxOpen = 32;
+		
+		/**
+		 * The number of threads reading files ahead of an archive download
+		 */
+		int readAheadThreads = 4;
+		
+		/**
+		 * The maximum number of entries of an archive download read ahead
+		 */
+		int readAheadEntries = 256;
+		
+		/**
+		 * The maximum number of bytes of an archive download held in memory
+		 */
+		long readAheadBytes = 32 * 1024 * 1024;
+		
+		/**
+		 * Files up to this size are read ahead, larger files are streamed
+		 */
+		long readAheadFileSize = 1024 * 1024;
+	}
+	
+	/**
+	 * Settings for packing small files into segment files
+	 */
+	@Data
+	public static class Pack {
+		
+		/**
+		 * If true, small files are packed
+		 */
+		boolean enabled = false;
+		
+		/**
+		 * Files up to this size are packed
+		 */
+		int maxFileSize = 4096;
+		
+		/**
+		 * The size of a segment file
+		 */
+		long segmentSize = 64 * 1024 * 1024;
+		
+		/**
+		 * A segment is compacted when this ratio of its content is garbage
+		 */
+		double garbageRatio = 0.5;
+		
+		/**
+		 * The interval in milliseconds between the compactions of the segments
+		 */
+		long compactInterval = 10 * 60 * 1000;
+	}
+	
+	/**
+	 * Settings for the admission control of requests
+	 */
+	@Data
+	public static class Admission {
+		
+		/**
+		 * If false, all requests are admitted
+		 */
+		boolean enabled = true;
+		
+		/**
+		 * Reads of files up to this size are small reads
+		 */
+		long smallReadMaxBytes = 1024 * 1024;
+		
+		Limits metadata = new Limits().setMaxConcurrent(64).setMaxQueue(256);
+		Limits smallRead = new Limits().setMaxConcurrent(64).setMaxQueue(256);
+		Limits bulkRead = new Limits().setMaxConcurrent(16).setMaxQueue(32);
+		Limits bulkWrite = new Limits().setMaxConcurrent(16).setMaxQueue(32);
+		Limits archive = new Limits().setMaxConcurrent(4).setMaxQueue(8);
+		
+		/**
+		 * The maximum number of concurrent requests of a client, 0 means unlimited
+		 */
+		int maxRequestsPerClient = 0;
+		
+		/**
+		 * The bandwidth of a client for content in bytes per second, 0 means unlimited
+		 */
+		long clientBytesPerSecond = 0;
+		
+		/**
+		 * The number of bytes a client may transfer at once before it is shaped
+		 */
+		long clientBurstBytes = 1024 * 1024;
+		
+		/**
+		 * The seconds a rejected client is asked to wait before retrying
+		 */
+		int retryAfterSeconds = 1;
+		
+		/**
+		 * The limits of one class of requests
+		 */
+		@Data
+		public static class Limits {
+			
+			/**
+			 * The maximum number of concurrent requests
+			 */
+			int maxConcurrent = 16;
+			
+			/**
+			 * The maximum number of requests waiting for admission
+			 */
+			int maxQueue = 32;
+			
+			/**
+			 * The maximum time a request waits for admission in milliseconds
+			 */
+			long maxWaitMillis = 1000;
+		}
+	}
+	
+	/**
+	 * Settings for the metadata checkpoint
+	 */
+	@Data
+	public static class Checkpoint {
+		
+		/**
+		 * If false, the metadata is computed by walking the repository on every start
+		 */
+		boolean enabled = true;
+		
+		/**
+		 * The interval in milliseconds between the checkpoints
+		 */
+		long interval = 5 * 60 * 1000;
+	}
+	
+	/**
+	 * Settings for the timing of requests
+	 */
+	@Data
+	public static class Timing {
+		
+		/**
+		 * If true, the responses of the API carry a Server-Timing header
+		 */
+		boolean enabled = true;
+		
+		/**
+		 * Requests taking longer are logged with their cost breakdown, 0 disables the log
+		 */
+		long slowRequestMillis = 1000;
+	}
+	
+	/**
+	 * Settings for the verification of the stored checksums
+	 */
+	@Data
+	public static class Checksums {
+		
+		/**
+		 * If true, the scrubber verifies the checksums of all files periodically
+		 */
+		boolean scrub = true;
+		
+		/**
+		 * The time between two runs of the scrubber in milliseconds
+		 */
+		long scrubInterval = 24 * 60 * 60 * 1000;
+		
+		/**
+		 * The rate the scrubber reads content with in bytes per second
+		 */
+		long scrubBytesPerSecond = 16 * 1024 * 1024;
+		
+		/**
+		 * If true, the scrubber stores the checksums of files that have none
+		 */
+		boolean storeMissing = true;
+	}
+	
+	/**
+	 * Settings for setting content the repository already has without uploading it
+	 */
+	@Data
+	public static class Dedupe {
+		
+		/**
+		 * If true, content can be set by its SHA-256
+		 */
+		boolean enabled = true;
+		
+		/**
+		 * The maximum number of SHA-256 values remembered
+		 */
+		int indexSize = 100000;
+		
+		/**
+		 * If true, the content is hard linked instead of copied where possible
+		 */
+		boolean hardLinks = true;
+	}
+	
+	/**
+	 * Settings for metadata queries
+	 */
+	@Data
+	public static class Query {
+		
+		/**
+		 * The number of threads walking the directories
+		 */
+		int threads = 4;
+		
+		/**
+		 * The maximum number of results of a query
+		 */
+		int maxLimit = 10000;
+	}
+	
+	/**
+	 * Settings for storing cold files compressed
+	 */
+	@Data
+	public static class Tiering {
+		
+		/**
+		 * If true, cold files are compressed in the background
+		 */
+		boolean enabled = false;
+		
+		/**
+		 * The time between two runs in milliseconds
+		 */
+		long interval = 60 * 60 * 1000;
+		
+		/**
+		 * The minutes since a file was last accessed or modified after which
+		 * it is cold. The access time depends on the mount options, with
+		 * relatime it is updated at most once a day
+		 */
+		long coldAfterMinutes = 30 * 24 * 60;
+		
+		/**
+		 * The minimum size of a file to compress in bytes
+		 */
+		long minFileSize = 64 * 1024;
+		
+		/**
+		 * The extensions of files whose content is compressed already
+		 */
+		List<String> excludedExtensions = new ArrayList<String>(Arrays.asList("zip", "jar", "war", "gz", "tgz", "bz2", "xz", "7z", "png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4", "mov", "pdf", "docx", "xlsx", "pptx", "odt"));
+		
+		/**
+		 * The rate files are read with while they are compressed in bytes per second
+		 */
+		long bytesPerSecond = 8 * 1024 * 1024;
+		
+		/**
+		 * The compression level from 1 (fastest) to 9 (smallest)
+		 */
+		int level = 6;
+		
+		/**
+		 * The percentage of its size a file has to shrink by to be stored compressed
+		 */
+		int minSavingsPercent = 10;
+		
+		/**
+		 * The number of reads of a compressed file after which it is stored
+		 * as is again. If 0, files are not promoted
+		 */
+		int promoteAfterReads = 2;
+	}
+	
+	/**
+	 * Settings for storing the content of selected files compressed
+	 */
+	@Data
+	public static class Compression {
+		
+		/**
+		 * If true, the content of files matching the includes is compressed
+		 * while it is written
+		 */
+		boolean enabled = false;
+		
+		/**
+		 * Glob patterns of the repository paths to store compressed
+		 */
+		List<String> includes = new ArrayList<String>(Arrays.asList("/**/*.xml", "/**/*.json", "/**/*.log"));
+		
+		/**
+		 * The compression level from 1 (fastest) to 9 (smallest)
+		 */
+		int level = 1;
+	}
 }
@@ -0,0 +1,27 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * This exception is thrown, if received content does not match the
+ * checksum declared for it
+ * @author arpablo
+ *
+ */
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class InvalidContentException extends RepositoryException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param message
+	 */
+	public InvalidContentException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,23 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.model;
+
+import java.io.Serializable;
+
+import lombok.Data;
+
+/**
+ * The weak (rolling) and strong checksum of a single block of a file
+ * @author arpablo
+ *
+ */
+@Data
+public class BlockChecksum implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int weak;
+	private String strong;
+	
+}
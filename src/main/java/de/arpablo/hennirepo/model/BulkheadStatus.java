@@ -0,0 +1,31 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.model;
+
+import java.io.Serializable;
+
+import com.fasterxml.jackson.annotation.JsonRootName;
+
+import lombok.Data;
+
+/**
+ * The state of the admission control of one class of requests
+ * @author arpablo
+ *
+ */
+@JsonRootName(value="BulkheadStatus")
+@Data
+public class BulkheadStatus implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private String name;
+	private int maxConcurrent;
+	private int maxQueue;
+	private int active;
+	private int queued;
+	private long admitted;
+	private long rejected;
+
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.model;
+
+import java.io.Serializable;
+
+import com.fasterxml.jackson.annotation.JsonRootName;
+
+import lombok.Data;
+
+/**
+ * Statistics of the content cache
+ * @author arpablo
+ *
+ */
+@JsonRootName(value="CacheStatistics")
+@Data
+public class CacheStatistics implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+	private int entries;
+	private long bytesCached;
+	private int mappedEntries;
+	private long bytesMapped;
+	private long maxBytes;
+	
+	/**
+	 * @return the ratio of hits to all cacheable reads
+	 */
+	public double getHitRatio() {
+		long total = hits + misses;
+		return (total == 0) ? 0 : (double) hits / total;
+	}
+	
+}
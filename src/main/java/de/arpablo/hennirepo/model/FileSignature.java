@@ -0,0 +1,36 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonRootName;
+
+import lombok.Data;
+
+/**
+ * The block checksums of a file. A client uses the signature to compute
+ * a delta between the file on the server and its local version. The
+ * last block may be shorter than the block size
+ * @author arpablo
+ *
+ */
+@JsonRootName(value="Signature")
+@Data
+public class FileSignature implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private String repositoryPath;
+	private int blockSize;
+	private long length;
+	/**
+	 * The SHA-256 of the file in hex, a delta records it to be applied to this content only
+	 */
+	private String sha256;
+	private List<BlockChecksum> blocks = new ArrayList<BlockChecksum>();
+	
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.model;
+
+import java.io.Serializable;
+import java.util.Calendar;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonRootName;
+
+import lombok.Data;
+
+/**
+ * A previous version of a file
+ * @author arpablo
+ *
+ */
+@JsonRootName(value="FileVersion")
+@Data
+public class FileVersion implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private String id;
+	private String repositoryPath;
+	/**
+	 * The time the version was replaced by newer content
+	 */
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+	private Calendar replaced;
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+	private Calendar lastModifiedTime;
+	private long size;
+	
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.model;
+
+import java.io.Serializable;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonRootName;
+
+import lombok.Data;
+
+/**
+ * A query over the metadata of the resources below a directory. All
+ * criteria that are set have to match. Without an order the first
+ * matches found are returned.
+ * @author arpablo
+ *
+ */
+@JsonRootName(value="MetadataQuery")
+@Data
+public class MetadataQuery implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The sort keys
+	 */
+	public enum Order {
+		SIZE, MODIFIED, NAME, PATH
+	}
+
+	/**
+	 * The kinds of resources
+	 */
+	public enum Type {
+		FILE, DIRECTORY, ANY
+	}
+
+	/**
+	 * A glob pattern matched against the name, or against the path relative
+	 * to the queried directory, if it contains a slash
+	 */
+	private String glob;
+	private Type type = Type.FILE;
+	/**
+	 * The file extensions without dot, e.g. xml
+	 */
+	private List<String> extensions;
+	private Long minSize;
+	private Long maxSize;
+	/**
+	 * The earliest modification time in milliseconds since the epoch
+	 */
+	private Long modifiedAfter;
+	/**
+	 * The latest modification time in milliseconds since the epoch
+	 */
+	private Long modifiedBefore;
+	/**
+	 * Matches resources modified within the given milliseconds before the query
+	 */
+	private Long modifiedWithin;
+	private boolean hidden;
+	private Order order;
+	private boolean descending = true;
+	private int limit = 100;
+
+}
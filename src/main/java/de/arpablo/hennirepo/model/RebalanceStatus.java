@@ -0,0 +1,35 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.model;
+
+import java.io.Serializable;
+import java.util.Calendar;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonRootName;
+
+import lombok.Data;
+
+/**
+ * Progress of the migration of resources to the roots they are placed on
+ * @author arpablo
+ *
+ */
+@JsonRootName(value="RebalanceStatus")
+@Data
+public class RebalanceStatus implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean running;
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+	private Calendar started;
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+	private Calendar finished;
+	private long keysChecked;
+	private long keysMoved;
+	private long keysFailed;
+	private long bytesMoved;
+	
+}
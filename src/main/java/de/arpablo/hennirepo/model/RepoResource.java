@@ -10,6 +10,7 @@ import java.util.Calendar;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonRootName;
 
 
@@ -41,6 +42,16 @@ public class RepoResource implements Serializable {
 	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")	
 	private Calendar lastModifiedTime;
 	private long size;
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	private Long totalSize;
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	private Long fileCount;
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	private String sha256;
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	private String crc32;
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	private Long storedSize;
 	
 	/**
 	 * Constructor
@@ -295,6 +306,80 @@ public class RepoResource implements Serializable {
 		this.size = size;
 	}
 
+	/**
+	 * @return the size of all files of a directory including its subdirectories
+	 * or <code>null</code>, if it is not known
+	 */
+	public Long getTotalSize() {
+		return totalSize;
+	}
+
+	/**
+	 * @param totalSize the totalSize to set
+	 */
+	public void setTotalSize(Long totalSize) {
+		this.totalSize = totalSize;
+	}
+
+	/**
+	 * @return the number of files of a directory including its subdirectories
+	 * or <code>null</code>, if it is not known
+	 */
+	public Long getFileCount() {
+		return fileCount;
+	}
+
+	/**
+	 * @param fileCount the fileCount to set
+	 */
+	public void setFileCount(Long fileCount) {
+		this.fileCount = fileCount;
+	}
+
+	/**
+	 * @return the SHA-256 digest of the content in hex or <code>null</code>,
+	 * if it is not known
+	 */
+	public String getSha256() {
+		return sha256;
+	}
+
+	/**
+	 * @param sha256 the sha256 to set
+	 */
+	public void setSha256(String sha256) {
+		this.sha256 = sha256;
+	}
+
+	/**
+	 * @return the CRC32 of the content in hex or <code>null</code>, if it is not known
+	 */
+	public String getCrc32() {
+		return crc32;
+	}
+
+	/**
+	 * @param crc32 the crc32 to set
+	 */
+	public void setCrc32(String crc32) {
+		this.crc32 = crc32;
+	}
+
+	/**
+	 * @return the number of bytes stored of a file whose content is stored
+	 * compressed or <code>null</code>, if it is stored as is
+	 */
+	public Long getStoredSize() {
+		return storedSize;
+	}
+
+	/**
+	 * @param storedSize the storedSize to set
+	 */
+	public void setStoredSize(Long storedSize) {
+		this.storedSize = storedSize;
+	}
+
 	
 	/* (non-Javadoc)
 	 * @see java.lang.Object#hashCode()
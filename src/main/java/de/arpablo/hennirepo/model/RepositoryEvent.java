@@ -0,0 +1,85 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.model;
+
+import java.io.Serializable;
+import java.util.Calendar;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonRootName;
+
+import lombok.Data;
+
+/**
+ * This class describes a change of the repository. Events are published by
+ * the RepositoryService for its own mutations and by the filesystem watcher
+ * for external changes. The sequence number is assigned by the change feed
+ * @author arpablo
+ *
+ */
+@JsonRootName(value="Event")
+@Data
+public class RepositoryEvent implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Type { CREATE, MODIFY, DELETE, MOVE }
+	
+	private long sequence;
+	private Type type;
+	private String path;
+	private String targetPath;
+	private boolean external;
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")	
+	private Calendar timestamp;
+	
+	public RepositoryEvent() {
+	}
+	
+	/**
+	 * Constructor
+	 * @param type			the type of the change
+	 * @param path			the repository path of the changed resource
+	 * @param targetPath	the new repository path, if the resource was moved
+	 * @param external		<code>true</code>, if the change was not made through the RepositoryService
+	 */
+	public RepositoryEvent(Type type, String path, String targetPath, boolean external) {
+		this.type = type;
+		this.path = normalize(path);
+		this.targetPath = (targetPath != null) ? normalize(targetPath) : null;
+		this.external = external;
+		this.timestamp = Calendar.getInstance();
+	}
+	
+	/**
+	 * Checks, if this event affects the subtree with the given root
+	 * @param prefix	the repository path of the subtree
+	 * @return <code>true</code>, if the event affects the subtree
+	 */
+	public boolean affects(String prefix) {
+		String p = normalize(prefix);
+		return isBelow(path, p) || (targetPath != null && isBelow(targetPath, p));
+	}
+	
+	/**
+	 * Normalize a repository path to the form <code>/a/b</code>
+	 * @param path	the path to normalize
+	 * @return the normalized path
+	 */
+	public static String normalize(String path) {
+		if (path == null) {
+			return "/";
+		}
+		String ret = path.startsWith("/") ? path : "/" + path;
+		while (ret.length() > 1 && ret.endsWith("/")) {
+			ret = ret.substring(0, ret.length() - 1);
+		}
+		return ret;
+	}
+	
+	protected static boolean isBelow(String path, String prefix) {
+		return prefix.equals("/") || path.equals(prefix) || path.startsWith(prefix + "/");
+	}
+	
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonRootName;
+
+import lombok.Data;
+
+/**
+ * Progress of the verification of the stored checksums
+ * @author arpablo
+ *
+ */
+@JsonRootName(value="ScrubStatus")
+@Data
+public class ScrubStatus implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean running;
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+	private Calendar started;
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+	private Calendar finished;
+	private long filesChecked;
+	private long filesVerified;
+	private long checksumsStored;
+	private long bytesRead;
+	/**
+	 * The repository paths of the files whose content does not match their checksums
+	 */
+	private List<String> mismatches = new ArrayList<String>();
+	
+}
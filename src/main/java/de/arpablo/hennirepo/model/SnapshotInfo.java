@@ -0,0 +1,39 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.model;
+
+import java.io.Serializable;
+import java.util.Calendar;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonRootName;
+
+import lombok.Data;
+
+/**
+ * A read-only point-in-time view of a subtree of the repository
+ * @author arpablo
+ *
+ */
+@JsonRootName(value="Snapshot")
+@Data
+public class SnapshotInfo implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private String name;
+	/**
+	 * The repository path of the subtree
+	 */
+	private String sourcePath;
+	/**
+	 * The repository path under which the snapshot can be browsed
+	 */
+	private String repositoryPath;
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+	private Calendar created;
+	private long files;
+	private long directories;
+	
+}
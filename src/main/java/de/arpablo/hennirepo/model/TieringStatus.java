@@ -0,0 +1,50 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.model;
+
+import java.io.Serializable;
+import java.util.Calendar;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonRootName;
+
+import lombok.Data;
+
+/**
+ * Progress of storing cold files compressed and the files stored as is
+ * again since the start of the repository
+ * @author arpablo
+ *
+ */
+@JsonRootName(value="TieringStatus")
+@Data
+public class TieringStatus implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean running;
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+	private Calendar started;
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+	private Calendar finished;
+	private long filesScanned;
+	private long filesCold;
+	private long filesCompressed;
+	private long filesIncompressible;
+	/**
+	 * The size of the files compressed by the current or last run
+	 */
+	private long bytesBefore;
+	/**
+	 * The bytes stored of the files compressed by the current or last run
+	 */
+	private long bytesAfter;
+	private long errors;
+	private long filesPromoted;
+	/**
+	 * The bytes stored additionally for the files promoted
+	 */
+	private long bytesPromoted;
+	
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.model;
+
+import java.io.Serializable;
+import java.util.Calendar;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonRootName;
+
+import lombok.Data;
+
+/**
+ * A deleted resource in the trash of the repository
+ * @author arpablo
+ *
+ */
+@JsonRootName(value="TrashEntry")
+@Data
+public class TrashEntry implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private String id;
+	private String repositoryPath;
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+	private Calendar deleted;
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+	private Calendar expires;
+	private Long size;
+	private Long files;
+	
+}
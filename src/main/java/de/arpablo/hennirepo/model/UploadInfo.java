@@ -0,0 +1,33 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonRootName;
+
+import lombok.Data;
+
+/**
+ * This class describes a pending multipart upload
+ * @author arpablo
+ *
+ */
+@JsonRootName(value="Upload")
+@Data
+public class UploadInfo implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private String uploadId;
+	private String repositoryPath;
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")	
+	private Calendar creationTime;
+	private List<UploadPart> parts = new ArrayList<UploadPart>();
+	
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.model;
+
+import java.io.Serializable;
+import java.util.Calendar;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonRootName;
+
+import lombok.Data;
+
+/**
+ * A single part of a multipart upload
+ * @author arpablo
+ *
+ */
+@JsonRootName(value="Part")
+@Data
+public class UploadPart implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int partNumber;
+	private long size;
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSSZ")	
+	private Calendar lastModifiedTime;
+	
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.ProviderNotFoundException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.zip.ZipError;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import de.arpablo.hennirepo.common.FlightEvents;
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+
+/**
+ * Keeps ZIP archives of the repository open for reading their entries in
+ * place. Each archive is opened as a ZipFileSystem, which parses the central
+ * directory once, so reading an entry afterwards costs a seek and an inflate.
+ * The open archives are managed as an LRU with a maximum count, an archive is
+ * reopened when its file has been replaced or modified.
+ * <p>
+ * An evicted archive is closed when the last reader has released it.
+ * @author arpablo
+ *
+ */
+@Component
+@ConditionalOnFileStore
+public class ArchiveCache {
+
+	private static Logger logger = LoggerFactory.getLogger(ArchiveCache.class);
+	
+	@Autowired
+	private RepositoryProperties repoConfig;
+	
+	private final LinkedHashMap<Path, Archive> archives = new LinkedHashMap<Path, Archive>(16, 0.75f, true);
+	
+	/**
+	 * An open archive. Closing it releases the archive
+	 */
+	public final class Archive implements AutoCloseable {
+		private final FileSystem fileSystem;
+		private final Object key;
+		private final long size;
+		private final long modified;
+		private int references;
+		private boolean evicted;
+		
+		Archive(FileSystem fileSystem, BasicFileAttributes attr) {
+			this.fileSystem = fileSystem;
+			this.key = attr.fileKey();
+			this.size = attr.size();
+			this.modified = attr.lastModifiedTime().toMillis();
+		}
+		
+		/**
+		 * Return the path of an entry
+		 * @param entry	the name of the entry, <code>/</code> is the root of the archive
+		 * @return a Path of the ZipFileSystem
+		 */
+		public Path getPath(String entry) {
+			return fileSystem.getPath((entry == null || entry.isEmpty()) ? "/" : entry);
+		}
+		
+		/**
+		 * Return an InputStream for an entry. The stream holds its own reference
+		 * to the archive, so the archive stays open until the stream is read
+		 * to its end or closed
+		 * @param entry	the name of the entry
+		 * @return an InputStream
+		 * @throws IOException
+		 */
+		public InputStream newInputStream(String entry) throws IOException {
+			InputStream in = Files.newInputStream(getPath(entry));
+			acquire(this);
+			return new FilterInputStream(in) {
+				private boolean closed;
+				
+				@Override
+				public int read() throws IOException {
+					if (closed) {
+						return -1;
+					}
+					int ret = super.read();
+					if (ret < 0) {
+						close();
+					}
+					return ret;
+				}
+				
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if (closed) {
+						return -1;
+					}
+					int ret = super.read(b, off, len);
+					if (ret < 0) {
+						close();
+					}
+					return ret;
+				}
+				
+				@Override
+				public int available() throws IOException {
+					return closed ? 0 : super.available();
+				}
+				
+				@Override
+				public void close() throws IOException {
+					if (!closed) {
+						closed = true;
+						try {
+							super.close();
+						} finally {
+							Archive.this.close();
+						}
+					}
+				}
+			};
+		}
+		
+		boolean matches(BasicFileAttributes attr) {
+			return Objects.equals(key, attr.fileKey()) && size == attr.size() && modified == attr.lastModifiedTime().toMillis();
+		}
+		
+		/* (non-Javadoc)
+		 * @see java.lang.AutoCloseable#close()
+		 */
+		@Override
+		public void close() {
+			release(this);
+		}
+	}
+	
+	/**
+	 * Open an archive. The returned Archive must be closed after use
+	 * @param p	the file of the archive
+	 * @return the Archive
+	 * @throws IOException if the file does not exist or is no ZIP archive
+	 */
+	public Archive open(Path p) throws IOException {
+		BasicFileAttributes attr = Files.readAttributes(p, BasicFileAttributes.class);
+		if (!attr.isRegularFile()) {
+			throw new IOException(String.format("%s is not an archive", p));
+		}
+		synchronized (this) {
+			Archive archive = archives.get(p);
+			if (archive != null && archive.matches(attr)) {
+				archive.references++;
+				return archive;
+			}
+		}
+		FileSystem fs;
+		FlightEvents.CacheMiss event = FlightEvents.cacheMiss("archive", p.toString(), attr.size());
+		try {
+			// not registered with the provider, so it does not interfere with zip and unzip
+			fs = FileSystems.newFileSystem(p, (ClassLoader) null);
+		} catch (ProviderNotFoundException | ZipError ex) {
+			throw new IOException(String.format("%s is not an archive", p), ex);
+		} finally {
+			FlightEvents.commit(event);
+		}
+		logger.debug("Opened archive {}", p);
+		Archive archive = new Archive(fs, attr);
+		archive.references = 1;
+		synchronized (this) {
+			Archive old = archives.put(p, archive);
+			if (old != null) {
+				evict(old);
+			}
+			int max = Math.max(1, repoConfig.getArchives().getMaxOpen());
+			Iterator<Archive> it = archives.values().iterator();
+			while (archives.size() > max && it.hasNext()) {
+				Archive a = it.next();
+				it.remove();
+				evict(a);
+			}
+		}
+		return archive;
+	}
+	
+	/**
+	 * Close all archives, which are not in use
+	 */
+	@PreDestroy
+	public synchronized void clear() {
+		for (Archive archive : archives.values()) {
+			evict(archive);
+		}
+		archives.clear();
+	}
+	
+	protected synchronized void acquire(Archive archive) {
+		archive.references++;
+	}
+	
+	protected synchronized void release(Archive archive) {
+		archive.references--;
+		if (archive.evicted && archive.references == 0) {
+			closeQuietly(archive);
+		}
+	}
+	
+	protected void evict(Archive archive) {
+		archive.evicted = true;
+		if (archive.references == 0) {
+			closeQuietly(archive);
+		}
+	}
+	
+	protected void closeQuietly(Archive archive) {
+		try {
+			archive.fileSystem.close();
+		} catch (IOException ex) {
+			logger.warn("Unable to close archive: {}", ex.getMessage());
+		}
+	}
+	
+}
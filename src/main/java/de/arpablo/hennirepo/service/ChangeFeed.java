@@ -0,0 +1,272 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.model.RepositoryEvent;
+
+/**
+ * The change feed collects all RepositoryEvents in a bounded ring buffer
+ * and pushes them to subscribed clients as Server-Sent Events. Every event
+ * gets a sequence number, a client that reconnects with the last sequence
+ * number it has seen receives the events it has missed. If these events
+ * are no longer in the buffer, the client is told to rescan.
+ * <p>
+ * With a sequence file, the sequence numbers continue after a restart.
+ * Blocks of sequence numbers are reserved in the file, so after a crash no
+ * number is handed out twice. Clients that have missed events before the
+ * restart are told to rescan.
+ * @author arpablo
+ *
+ */
+@Component
+public class ChangeFeed {
+
+	private static Logger logger = LoggerFactory.getLogger(ChangeFeed.class);
+	
+	/**
+	 * Name of the event telling a client that events were lost
+	 */
+	public static final String RESET_EVENT = "reset";
+	
+	private static final long SEQUENCE_BLOCK = 10000;
+	
+	@Autowired
+	private RepositoryProperties repoConfig;
+	
+	private RepositoryEvent[] buffer;
+	private long nextSequence = 1;
+	private long firstSequence = 1;
+	private Path sequenceFile;
+	private long reserved;
+	
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "change-feed");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	@PostConstruct
+	protected void initialize() {
+		buffer = new RepositoryEvent[Math.max(1, repoConfig.getChanges().getCapacity())];
+	}
+	
+	@PreDestroy
+	protected void shutdown() {
+		dispatcher.shutdownNow();
+		for (Subscription sub : subscriptions) {
+			sub.emitter.complete();
+		}
+		synchronized (this) {
+			if (sequenceFile != null) {
+				try {
+					// after a regular shutdown clients that have seen all events can resume
+					writeSequence(nextSequence - 1);
+				} catch (IOException ex) {
+					logger.error("Unable to save the sequence number of the change feed", ex);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Continue the sequence numbers saved in the given file
+	 * @param file	the sequence file
+	 * @throws IOException
+	 */
+	public synchronized void open(Path file) throws IOException {
+		if (Files.exists(file)) {
+			String value = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+			try {
+				nextSequence = Math.max(nextSequence, Long.parseLong(value) + 1);
+			} catch (NumberFormatException ex) {
+				throw new IOException(String.format("Invalid sequence file %s", file));
+			}
+		}
+		firstSequence = nextSequence;
+		sequenceFile = file;
+		reserve();
+		logger.info("Change feed continues with sequence number {}", nextSequence);
+	}
+	
+	/**
+	 * Append an event to the feed
+	 * @param event	the event
+	 */
+	@EventListener
+	public void append(RepositoryEvent event) {
+		synchronized (this) {
+			event.setSequence(nextSequence++);
+			if (sequenceFile != null && event.getSequence() > reserved) {
+				reserve();
+			}
+			buffer[(int) (event.getSequence() % buffer.length)] = event;
+			// submitting while holding the lock keeps the dispatch order
+			dispatcher.execute(() -> dispatch(event));
+		}
+	}
+	
+	/**
+	 * @return the sequence number of the last event
+	 */
+	public synchronized long getLastSequence() {
+		return nextSequence - 1;
+	}
+	
+	/**
+	 * Return the events following the given sequence number that affect the
+	 * given subtree
+	 * @param sequence	the last sequence number seen by the caller
+	 * @param path		the repository path of the subtree
+	 * @return a List of events or <code>null</code> if events following
+	 * 			the sequence number are no longer available
+	 */
+	public synchronized List<RepositoryEvent> since(long sequence, String path) {
+		long first = Math.max(firstSequence, nextSequence - buffer.length);
+		if (sequence + 1 < first) {
+			return null;
+		}
+		List<RepositoryEvent> ret = new ArrayList<RepositoryEvent>();
+		for (long s = Math.max(sequence + 1, first); s < nextSequence; s++) {
+			RepositoryEvent event = buffer[(int) (s % buffer.length)];
+			if (event.affects(path)) {
+				ret.add(event);
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Subscribe to the events affecting the given subtree
+	 * @param path			the repository path of the subtree
+	 * @param lastSequence	the last sequence number seen by the client or
+	 * 						a negative number to receive new events only
+	 * @return an SseEmitter
+	 */
+	public SseEmitter subscribe(String path, long lastSequence) {
+		SseEmitter emitter = new SseEmitter(repoConfig.getChanges().getTimeout());
+		Subscription sub = new Subscription(path, emitter);
+		emitter.onCompletion(() -> subscriptions.remove(sub));
+		emitter.onTimeout(() -> subscriptions.remove(sub));
+		emitter.onError(ex -> subscriptions.remove(sub));
+		dispatcher.execute(() -> {
+			if (lastSequence < 0) {
+				sub.lastSent = getLastSequence();
+			} else {
+				List<RepositoryEvent> missed = since(lastSequence, path);
+				if (missed == null) {
+					sub.lastSent = getLastSequence();
+					logger.debug("Events after {} are lost, requesting rescan of {}", lastSequence, path);
+					if (!send(sub, SseEmitter.event().id(Long.toString(sub.lastSent)).name(RESET_EVENT).data(RepositoryEvent.normalize(path)))) {
+						return;
+					}
+				} else {
+					sub.lastSent = lastSequence;
+					for (RepositoryEvent event : missed) {
+						if (!send(sub, event)) {
+							return;
+						}
+					}
+				}
+			}
+			subscriptions.add(sub);
+		});
+		return emitter;
+	}
+	
+	/**
+	 * Send a comment to all subscribers to keep the connections open
+	 * and detect clients that are gone
+	 */
+	@Scheduled(fixedDelayString="${henni.repo.changes.heartbeat:30000}")
+	public void heartbeat() {
+		dispatcher.execute(() -> {
+			for (Subscription sub : subscriptions) {
+				send(sub, SseEmitter.event().comment("heartbeat"));
+			}
+		});
+	}
+	
+	/**
+	 * Reserve the next block of sequence numbers
+	 */
+	protected void reserve() {
+		try {
+			writeSequence(nextSequence - 1 + SEQUENCE_BLOCK);
+			reserved = nextSequence - 1 + SEQUENCE_BLOCK;
+		} catch (IOException ex) {
+			logger.error("Unable to reserve sequence numbers of the change feed", ex);
+		}
+	}
+	
+	protected void writeSequence(long sequence) throws IOException {
+		Path tmp = sequenceFile.resolveSibling(sequenceFile.getFileName() + ".tmp");
+		Files.write(tmp, Long.toString(sequence).getBytes(StandardCharsets.US_ASCII));
+		Files.move(tmp, sequenceFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	protected void dispatch(RepositoryEvent event) {
+		for (Subscription sub : subscriptions) {
+			if (event.getSequence() > sub.lastSent && event.affects(sub.path)) {
+				send(sub, event);
+			}
+		}
+	}
+	
+	protected boolean send(Subscription sub, RepositoryEvent event) {
+		sub.lastSent = event.getSequence();
+		return send(sub, SseEmitter.event()
+				.id(Long.toString(event.getSequence()))
+				.name(event.getType().name().toLowerCase())
+				.data(event, MediaType.APPLICATION_JSON));
+	}
+	
+	protected boolean send(Subscription sub, SseEmitter.SseEventBuilder builder) {
+		try {
+			sub.emitter.send(builder);
+			return true;
+		} catch (IOException | IllegalStateException ex) {
+			logger.debug("Removing subscription for {}: {}", sub.path, ex.getMessage());
+			subscriptions.remove(sub);
+			sub.emitter.completeWithError(ex);
+			return false;
+		}
+	}
+	
+	static class Subscription {
+		final String path;
+		final SseEmitter emitter;
+		long lastSent;
+		
+		Subscription(String path, SseEmitter emitter) {
+			this.path = path;
+			this.emitter = emitter;
+		}
+	}
+	
+}
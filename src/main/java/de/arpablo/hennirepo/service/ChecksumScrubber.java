@@ -0,0 +1,202 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import de.arpablo.hennirepo.common.ChecksumInputStream;
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.common.ContentChecksum;
+import de.arpablo.hennirepo.common.TokenBucket;
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.model.ScrubStatus;
+
+/**
+ * Verifies the checksums stored with the files of the repository by reading
+ * their content again, so content corrupted on disk is detected before it
+ * is served. The content is read at a limited rate to leave the bandwidth
+ * of the disks to the requests. Files without checksums get them stored,
+ * files changed while they are read are skipped.
+ * @author arpablo
+ *
+ */
+@Component
+@ConditionalOnFileStore
+public class ChecksumScrubber {
+
+	private static Logger logger = LoggerFactory.getLogger(ChecksumScrubber.class);
+
+	/**
+	 * The maximum number of mismatches listed in the status
+	 */
+	private static final int MAX_MISMATCHES = 1000;
+
+	@Autowired
+	private FileRepositoryService repository;
+
+	@Autowired
+	private RepositoryProperties repoConfig;
+
+	private final ScrubStatus status = new ScrubStatus();
+
+	/**
+	 * Start the scrubber periodically
+	 */
+	@Scheduled(fixedDelayString="${henni.repo.checksums.scrub-interval:86400000}", initialDelayString="${henni.repo.checksums.scrub-interval:86400000}")
+	public void scheduled() {
+		if (repoConfig.getChecksums().isScrub()) {
+			start();
+		}
+	}
+
+	/**
+	 * Start the scrubber in the background, if it is not running yet
+	 * @return the status of the scrubber
+	 */
+	public ScrubStatus start() {
+		synchronized (status) {
+			if (!status.isRunning()) {
+				status.setRunning(true).setStarted(Calendar.getInstance()).setFinished(null)
+					.setFilesChecked(0).setFilesVerified(0).setChecksumsStored(0).setBytesRead(0)
+					.setMismatches(new ArrayList<String>());
+				Thread t = new Thread(this::scrub, "checksum-scrubber");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				t.start();
+			}
+			return getStatus();
+		}
+	}
+
+	/**
+	 * @return a copy of the current status
+	 */
+	public ScrubStatus getStatus() {
+		synchronized (status) {
+			return new ScrubStatus().setRunning(status.isRunning()).setStarted(status.getStarted())
+					.setFinished(status.getFinished()).setFilesChecked(status.getFilesChecked())
+					.setFilesVerified(status.getFilesVerified()).setChecksumsStored(status.getChecksumsStored())
+					.setBytesRead(status.getBytesRead()).setMismatches(new ArrayList<String>(status.getMismatches()));
+		}
+	}
+
+	protected void scrub() {
+		RepositoryProperties.Checksums config = repoConfig.getChecksums();
+		long rate = config.getScrubBytesPerSecond();
+		TokenBucket bucket = (rate > 0) ? new TokenBucket(rate, Math.min(rate, 1024 * 1024)) : null;
+		logger.info("Verifying the checksums of the repository");
+		try {
+			for (Path root : repository.getPlacement().getRoots()) {
+				Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+						return repository.isSystemPath(dir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						if (attrs.isRegularFile()) {
+							verify(file, attrs, bucket, config.isStoreMissing());
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException exc) {
+						logger.debug("Not verifying {}: {}", file, exc.getMessage());
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+		} catch (IOException ex) {
+			logger.error("Verifying the checksums failed", ex);
+		} finally {
+			synchronized (status) {
+				status.setRunning(false).setFinished(Calendar.getInstance());
+				logger.info("Verified the checksums of {} files, {} mismatches, stored {} checksums",
+						status.getFilesVerified(), status.getMismatches().size(), status.getChecksumsStored());
+			}
+		}
+	}
+
+	/**
+	 * Verify the checksums of a file
+	 * @param file			the file
+	 * @param attrs			the attributes of the file before it is read
+	 * @param bucket		the rate limit or <code>null</code>
+	 * @param storeMissing	if true, checksums are stored for a file without checksums
+	 */
+	protected void verify(Path file, BasicFileAttributes attrs, TokenBucket bucket, boolean storeMissing) throws IOException {
+		ContentChecksum stored = ContentChecksum.read(file);
+		boolean verified = false;
+		boolean changed = false;
+		boolean mismatch = false;
+		long bytes = 0;
+		if (stored != null || storeMissing) {
+			ContentChecksum computed;
+			try (ChecksumInputStream in = new ChecksumInputStream(CompressedFile.newInputStream(file))) {
+				read(in, bucket);
+				bytes = in.getCount();
+				computed = in.getChecksum();
+			} catch (IOException ex) {
+				// the file was deleted or replaced
+				logger.debug("Not verifying {}: {}", file, ex.getMessage());
+				return;
+			}
+			BasicFileAttributes current = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			changed = current.size() != attrs.size() || !current.lastModifiedTime().equals(attrs.lastModifiedTime())
+					|| !Objects.equals(current.fileKey(), attrs.fileKey());
+			if (!changed && stored == null) {
+				verified = computed.write(file);
+			} else if (!changed) {
+				mismatch = !computed.equals(stored);
+				if (mismatch) {
+					logger.error("Content of {} does not match its checksums, stored {}, computed {}", file, stored, computed);
+				}
+			}
+			if (!changed && !mismatch && (stored != null || verified)) {
+				repository.getContentIndex().put(computed.getSha256(), repository.toRepositoryPath(file));
+			}
+		}
+		synchronized (status) {
+			status.setFilesChecked(status.getFilesChecked() + 1).setBytesRead(status.getBytesRead() + bytes);
+			if (stored != null && !changed && !mismatch) {
+				status.setFilesVerified(status.getFilesVerified() + 1);
+			}
+			if (stored == null && verified) {
+				status.setChecksumsStored(status.getChecksumsStored() + 1);
+			}
+			if (mismatch && status.getMismatches().size() < MAX_MISMATCHES) {
+				status.getMismatches().add(repository.toRepositoryPath(file));
+			}
+		}
+	}
+
+	protected static void read(InputStream in, TokenBucket bucket) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		for (int n; (n = in.read(buffer)) >= 0; ) {
+			if (bucket != null) {
+				bucket.acquire(n);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,352 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+
+import de.arpablo.hennirepo.common.ByteBufferInputStream;
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.common.FlightEvents;
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.model.CacheStatistics;
+import de.arpablo.hennirepo.model.RepositoryEvent;
+
+/**
+ * This cache holds the content of frequently read files. A file is admitted
+ * on its second access, files read only once do not evict others. Small files
+ * are copied into direct (off-heap) buffers managed as an LRU with a byte budget,
+ * medium sized files are memory-mapped, if mapping is enabled. Larger files are
+ * not cached at all.
+ * Entries are dropped when a RepositoryEvent reports a change and are
+ * validated against size and modification time on each access. The
+ * content of small files stored compressed is held decompressed.
+ * @author arpablo
+ *
+ */
+@Component
+@ConditionalOnFileStore
+public class ContentCache {
+
+	private static Logger logger = LoggerFactory.getLogger(ContentCache.class);
+	
+	private static final int MAX_CANDIDATES = 4096;
+	
+	@Autowired
+	private RepositoryProperties repoConfig;
+	
+	private final AntPathMatcher matcher = new AntPathMatcher();
+	
+	private final LinkedHashMap<String, Entry> buffered = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final LinkedHashMap<String, Entry> mapped = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	/** the files accessed once, with their modification time */
+	private final LinkedHashMap<String, Long> candidates = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_CANDIDATES;
+		}
+	};
+	
+	private long bytesCached;
+	private long bytesMapped;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+	
+	/**
+	 * Return an InputStream for the content of the given file from the cache.
+	 * If the file is not cached yet but cacheable and was accessed before, it is
+	 * loaded into the cache
+	 * @param p		the file
+	 * @param path	the repository path of the file
+	 * @return an InputStream or <code>null</code>, if the file is not cacheable
+	 * @throws IOException
+	 */
+	public InputStream getInputStream(Path p, String path) throws IOException {
+		ByteBuffer buffer = getBuffer(p, path);
+		return (buffer != null) ? new ByteBufferInputStream(buffer) : null;
+	}
+	
+	/**
+	 * Write the content of the given file from the cache to the OutputStream
+	 * @param p		the file
+	 * @param path	the repository path of the file
+	 * @param out	the OutputStream to write to
+	 * @return <code>true</code>, if the file was cached and has been written
+	 * @throws IOException
+	 */
+	public boolean writeTo(Path p, String path, OutputStream out) throws IOException {
+		ByteBuffer buffer = getBuffer(p, path);
+		if (buffer == null) {
+			return false;
+		}
+		WritableByteChannel channel = Channels.newChannel(out);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		return true;
+	}
+	
+	/**
+	 * Return a read-only buffer with the content of the given file
+	 * @param p		the file
+	 * @param path	the repository path of the file
+	 * @return a ByteBuffer or <code>null</code>, if the file is not cached
+	 * @throws IOException
+	 */
+	protected ByteBuffer getBuffer(Path p, String path) throws IOException {
+		RepositoryProperties.Cache config = repoConfig.getCache();
+		String key = RepositoryEvent.normalize(path);
+		if (!config.isEnabled() || !isIncluded(key)) {
+			return null;
+		}
+		BasicFileAttributes attr = Files.readAttributes(p, BasicFileAttributes.class);
+		if (!attr.isRegularFile()) {
+			return null;
+		}
+		long modified = attr.lastModifiedTime().toMillis();
+		synchronized (this) {
+			Entry entry = buffered.get(key);
+			if (entry == null) {
+				entry = mapped.get(key);
+			}
+			if (entry != null && entry.stored == attr.size() && entry.modified == modified) {
+				hits++;
+				return entry.buffer.duplicate();
+			}
+		}
+		CompressedFile compressed = CompressedFile.read(p, attr);
+		long size = (compressed != null) ? compressed.getSize() : attr.size();
+		// compressed content cannot be mapped
+		if (size > ((compressed == null && config.isMap()) ? config.getMaxMappedFileSize() : config.getMaxFileSize())) {
+			return null;
+		}
+		synchronized (this) {
+			misses++;
+			Long seen = candidates.get(key);
+			if (seen == null || seen != modified) {
+				// admitted on the next access
+				candidates.put(key, modified);
+				return null;
+			}
+			candidates.remove(key);
+		}
+		FlightEvents.CacheMiss event = FlightEvents.cacheMiss("content", key, size);
+		Entry entry = (compressed != null) ? decompress(p, compressed, attr.size(), modified)
+				: load(p, attr.size(), modified, attr.size() <= config.getMaxFileSize());
+		FlightEvents.commit(event);
+		BasicFileAttributes current = Files.readAttributes(p, BasicFileAttributes.class);
+		if (!Objects.equals(current.fileKey(), attr.fileKey()) || current.size() != attr.size()
+				|| current.lastModifiedTime().toMillis() != modified) {
+			// replaced while it was loaded, e.g. by its compressed content
+			return null;
+		}
+		if (entry.size != size) {
+			// the marker does not match the content
+			return null;
+		}
+		synchronized (this) {
+			remove(key);
+			if (!entry.mapped) {
+				buffered.put(key, entry);
+				bytesCached += entry.size;
+			} else {
+				mapped.put(key, entry);
+				bytesMapped += entry.size;
+			}
+			evict(config);
+		}
+		return entry.buffer.duplicate();
+	}
+	
+	/**
+	 * Drop the entries affected by a change of the repository
+	 * @param event	the event
+	 */
+	@EventListener
+	public void onRepositoryEvent(RepositoryEvent event) {
+		invalidate(event.getPath());
+		if (event.getTargetPath() != null) {
+			invalidate(event.getTargetPath());
+		}
+	}
+	
+	/**
+	 * Drop the entries of the given resource or subtree
+	 * @param path	the repository path
+	 */
+	public synchronized void invalidate(String path) {
+		String prefix = RepositoryEvent.normalize(path);
+		invalidate(buffered, prefix);
+		invalidate(mapped, prefix);
+		Iterator<String> it = candidates.keySet().iterator();
+		while (it.hasNext()) {
+			if (isBelow(it.next(), prefix)) {
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Drop all entries
+	 */
+	public synchronized void clear() {
+		invalidations += buffered.size() + mapped.size();
+		buffered.clear();
+		mapped.clear();
+		candidates.clear();
+		bytesCached = 0;
+		bytesMapped = 0;
+	}
+	
+	/**
+	 * @return the current statistics
+	 */
+	public synchronized CacheStatistics getStatistics() {
+		CacheStatistics ret = new CacheStatistics();
+		ret.setHits(hits);
+		ret.setMisses(misses);
+		ret.setEvictions(evictions);
+		ret.setInvalidations(invalidations);
+		ret.setEntries(buffered.size());
+		ret.setBytesCached(bytesCached);
+		ret.setMappedEntries(mapped.size());
+		ret.setBytesMapped(bytesMapped);
+		ret.setMaxBytes(repoConfig.getCache().getMaxBytes());
+		return ret;
+	}
+	
+	protected boolean isIncluded(String path) {
+		List<String> includes = repoConfig.getCache().getIncludes();
+		if (includes == null || includes.isEmpty()) {
+			return true;
+		}
+		for (String pattern : includes) {
+			if (matcher.match(pattern.startsWith("/") ? pattern : "/" + pattern, path)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	protected Entry load(Path p, long size, long modified, boolean copy) throws IOException {
+		try (FileChannel channel = FileChannel.open(p, StandardOpenOption.READ)) {
+			ByteBuffer buffer;
+			if (copy) {
+				buffer = ByteBuffer.allocateDirect((int) size);
+				while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+					// read the whole file
+				}
+				buffer.flip();
+			} else {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			logger.debug("Cached {} bytes of {}{}", size, p, copy ? "" : " (mapped)");
+			return new Entry(buffer.asReadOnlyBuffer(), size, size, modified, !copy);
+		}
+	}
+	
+	protected Entry decompress(Path p, CompressedFile compressed, long stored, long modified) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) compressed.getSize());
+		try (CompressedFile.Stored in = CompressedFile.open(p);
+				ReadableByteChannel channel = Channels.newChannel(in.getContent())) {
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// read the whole content
+			}
+		}
+		buffer.flip();
+		logger.debug("Cached {} bytes of {} (decompressed)", buffer.limit(), p);
+		return new Entry(buffer.asReadOnlyBuffer(), buffer.limit(), stored, modified, false);
+	}
+	
+	protected void remove(String key) {
+		Entry entry = buffered.remove(key);
+		if (entry != null) {
+			bytesCached -= entry.size;
+		}
+		entry = mapped.remove(key);
+		if (entry != null) {
+			bytesMapped -= entry.size;
+		}
+	}
+	
+	protected void evict(RepositoryProperties.Cache config) {
+		Iterator<Entry> it = buffered.values().iterator();
+		while (bytesCached > config.getMaxBytes() && it.hasNext()) {
+			bytesCached -= it.next().size;
+			it.remove();
+			evictions++;
+		}
+		it = mapped.values().iterator();
+		while (mapped.size() > config.getMaxMappedFiles() && it.hasNext()) {
+			bytesMapped -= it.next().size;
+			it.remove();
+			evictions++;
+		}
+	}
+	
+	protected void invalidate(Map<String, Entry> entries, String prefix) {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Entry> e = it.next();
+			if (isBelow(e.getKey(), prefix)) {
+				if (e.getValue().mapped) {
+					bytesMapped -= e.getValue().size;
+				} else {
+					bytesCached -= e.getValue().size;
+				}
+				it.remove();
+				invalidations++;
+			}
+		}
+	}
+	
+	protected static boolean isBelow(String key, String prefix) {
+		return key.equals(prefix) || prefix.equals("/") || key.startsWith(prefix + "/");
+	}
+	
+	static class Entry {
+		final ByteBuffer buffer;
+		final long size;
+		/** the size of the file, which is less than size, if the content is compressed */
+		final long stored;
+		final long modified;
+		final boolean mapped;
+		
+		Entry(ByteBuffer buffer, long size, long stored, long modified, boolean mapped) {
+			this.buffer = buffer;
+			this.size = size;
+			this.stored = stored;
+			this.modified = modified;
+			this.mapped = mapped;
+		}
+	}
+	
+}
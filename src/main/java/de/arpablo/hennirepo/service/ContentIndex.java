@@ -0,0 +1,72 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maps the SHA-256 of content to a file of the repository having it, so
+ * content the repository already has does not need to be uploaded again.
+ * The index is filled with the checksums seen while files are written,
+ * read and scrubbed, it is bounded and forgets the least recently used
+ * content first. Entries may be outdated, the caller has to verify the
+ * checksums of the file.
+ * @author arpablo
+ *
+ */
+public class ContentIndex {
+
+	private final Map<String, String> index;
+
+	/**
+	 * Constructor
+	 * @param maxSize	the maximum number of entries
+	 */
+	public ContentIndex(final int maxSize) {
+		this.index = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Remember a file having content
+	 * @param sha256	the SHA-256 of the content in hex
+	 * @param path		the repository path of the file
+	 */
+	public synchronized void put(String sha256, String path) {
+		index.put(sha256, path);
+	}
+
+	/**
+	 * Return a file that had the content when it was indexed
+	 * @param sha256	the SHA-256 of the content in hex
+	 * @return the repository path or <code>null</code>
+	 */
+	public synchronized String get(String sha256) {
+		return index.get(sha256);
+	}
+
+	/**
+	 * Forget a file, which no longer has the content
+	 * @param sha256	the SHA-256 of the content in hex
+	 * @param path		the repository path of the file
+	 */
+	public synchronized void remove(String sha256, String path) {
+		index.remove(sha256, path);
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+}
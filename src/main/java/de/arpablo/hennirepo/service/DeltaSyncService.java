@@ -0,0 +1,246 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+
+import de.arpablo.hennirepo.common.ChecksumInputStream;
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.common.ContentChecksum;
+import de.arpablo.hennirepo.common.DeltaUtils;
+import de.arpablo.hennirepo.common.FileUtils;
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.exception.InvalidResourceTypeException;
+import de.arpablo.hennirepo.exception.RepositoryException;
+import de.arpablo.hennirepo.exception.ResourceAccessException;
+import de.arpablo.hennirepo.model.BlockChecksum;
+import de.arpablo.hennirepo.model.FileSignature;
+import de.arpablo.hennirepo.model.RepoResource;
+
+/**
+ * This service implements rsync style delta synchronization. It computes
+ * the block signature of a file (and caches it below the system directory)
+ * and rebuilds a file from a delta sent by a client.
+ * @author arpablo
+ *
+ */
+@Service
+@ConditionalOnFileStore
+public class DeltaSyncService {
+
+	private static Logger logger = LoggerFactory.getLogger(DeltaSyncService.class);
+	
+	private static final String SIGNATURE_DIR = "signatures";
+	private static final String DELTA_DIR = "deltas";
+	private static final int CACHE_MAGIC = 0x484e5332;
+	
+	@Autowired
+	private FileRepositoryService repository;
+	
+	/**
+	 * Return the signature of the file at the given path. The signature is
+	 * computed in a single pass over the content and cached until the file
+	 * changes. A compressed file is decompressed while it is read and stays
+	 * compressed, a packed file is read from the pack store
+	 * @param path		the path of the file
+	 * @param blockSize	the block size to use, it is limited to the range of
+	 * 					{@link DeltaUtils#MIN_BLOCK_SIZE} and {@link DeltaUtils#MAX_BLOCK_SIZE}.
+	 * 					If 0, a block size is chosen depending on the length of the file
+	 * @return a FileSignature
+	 * @throws RepositoryException
+	 */
+	public FileSignature signature(String path, int blockSize) throws RepositoryException {
+		try {
+			byte[] packed = repository.readPacked(path);
+			if (packed != null) {
+				// small enough to be computed on every request
+				FileSignature ret = DeltaUtils.signature(new ByteArrayInputStream(packed), blockSize(blockSize, packed.length));
+				ret.setRepositoryPath(path);
+				return ret;
+			}
+			Path p = resolveFile(path);
+			BasicFileAttributes attr = Files.readAttributes(p, BasicFileAttributes.class);
+			long length = CompressedFile.size(p, attr);
+			blockSize = blockSize(blockSize, length);
+			Path cache = getCachePath(path);
+			FileSignature ret = readCache(cache, blockSize, length, attr);
+			if (ret == null) {
+				logger.debug("Computing signature of {} with block size {}", path, blockSize);
+				try (InputStream in = new BufferedInputStream(CompressedFile.newInputStream(p))) {
+					ret = DeltaUtils.signature(in, blockSize);
+				}
+				BasicFileAttributes after = Files.readAttributes(p, BasicFileAttributes.class);
+				if (after.size() == attr.size() && after.lastModifiedTime().equals(attr.lastModifiedTime())
+						&& ret.getLength() == length) {
+					writeCache(cache, ret, attr);
+				}
+			}
+			ret.setRepositoryPath(path);
+			return ret;
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+	
+	/**
+	 * Rebuild the file at the given path from its current content and the
+	 * given delta. The new content is assembled in a temporary file which
+	 * atomically replaces the file, so readers never see a partial result.
+	 * The delta is rejected, if it was computed for other content or if the
+	 * result does not have the checksum recorded in the delta. A packed file
+	 * is stored on the filesystem first
+	 * @param path	the path of the file
+	 * @param delta	the delta as created by {@link DeltaUtils#encode}
+	 * @return the RepoResource of the new content
+	 * @throws RepositoryException
+	 */
+	public RepoResource applyDelta(String path, InputStream delta) throws RepositoryException {
+		Path tmp = null;
+		try {
+			// the blocks of the basis are read at random from the file
+			if (repository.getPackStore() != null) {
+				repository.unpack(path);
+			}
+			Path p = resolveFile(path);
+			repository.uncompress(path, p);
+			tmp = Files.createTempFile(repository.getSystemPath(DELTA_DIR, p), "delta-", ".tmp");
+			ContentChecksum checksum;
+			try (FileChannel basis = FileChannel.open(p, StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				// a file replaced meanwhile is detected by the checksum of the result
+				checksum = DeltaUtils.apply(basis, basisChecksum(p).getSha256(), delta, out);
+				out.force(true);
+			}
+			checksum.write(tmp);
+			RepoResource ret = repository.commitContent(tmp, path);
+			logger.debug("Applied delta to {}, new size is {}", path, ret.getSize());
+			return ret;
+		} catch (IOException ex) {
+			FileUtils.deleteQuietly(tmp);
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(String.format("Unable to apply delta to %s: %s", path, ex.getMessage()), ex);
+		}
+	}
+	
+	/**
+	 * Return the checksums of a basis file. Files without stored checksums are read
+	 * @param p	the file
+	 * @return the checksums
+	 * @throws IOException
+	 */
+	protected ContentChecksum basisChecksum(Path p) throws IOException {
+		ContentChecksum ret = ContentChecksum.read(p);
+		if (ret == null) {
+			try (ChecksumInputStream in = new ChecksumInputStream(Files.newInputStream(p))) {
+				StreamUtils.drain(in);
+				ret = in.getChecksum();
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Return the block size of a signature
+	 * @param requested	the requested block size, 0 to choose one
+	 * @param length	the length of the file
+	 * @return the block size limited to the supported range
+	 */
+	protected static int blockSize(int requested, long length) {
+		if (requested <= 0) {
+			return DeltaUtils.blockSize(length);
+		}
+		return Math.max(DeltaUtils.MIN_BLOCK_SIZE, Math.min(DeltaUtils.MAX_BLOCK_SIZE, requested));
+	}
+	
+	protected Path resolveFile(String path) {
+		Path p = repository.resolve(path);
+		if (Files.isDirectory(p)) {
+			throw new InvalidResourceTypeException(String.format("Path '%s' qualifies a directory", path));
+		}
+		if (!Files.isRegularFile(p)) {
+			throw new ResourceAccessException(String.format("Resource %s does not exist", path));
+		}
+		return p;
+	}
+	
+	protected Path getCachePath(String path) throws IOException {
+		String relative = path.startsWith("/") ? path.substring(1) : path;
+		return repository.getSystemPath(SIGNATURE_DIR).resolve(relative + ".sig");
+	}
+	
+	protected FileSignature readCache(Path cache, int blockSize, long length, BasicFileAttributes attr) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cache)))) {
+			if (in.readInt() != CACHE_MAGIC || in.readInt() != blockSize || in.readLong() != length
+					|| in.readLong() != attr.lastModifiedTime().toMillis()) {
+				return null;
+			}
+			FileSignature ret = new FileSignature();
+			ret.setBlockSize(blockSize);
+			ret.setLength(length);
+			byte[] sha256 = new byte[32];
+			in.readFully(sha256);
+			ret.setSha256(DeltaUtils.toHex(sha256));
+			int count = in.readInt();
+			byte[] strong = new byte[DeltaUtils.newStrongDigest().getDigestLength()];
+			for (int i = 0; i < count; i++) {
+				BlockChecksum block = new BlockChecksum();
+				block.setWeak(in.readInt());
+				in.readFully(strong);
+				block.setStrong(DeltaUtils.toHex(strong));
+				ret.getBlocks().add(block);
+			}
+			return ret;
+		} catch (NoSuchFileException ex) {
+			return null;
+		} catch (IOException ex) {
+			logger.warn("Ignoring unreadable signature cache {}: {}", cache, ex.getMessage());
+			return null;
+		}
+	}
+	
+	protected void writeCache(Path cache, FileSignature signature, BasicFileAttributes attr) {
+		Path tmp = null;
+		try {
+			Files.createDirectories(cache.getParent());
+			tmp = Files.createTempFile(cache.getParent(), "sig-", ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(CACHE_MAGIC);
+				out.writeInt(signature.getBlockSize());
+				out.writeLong(signature.getLength());
+				out.writeLong(attr.lastModifiedTime().toMillis());
+				out.write(DeltaUtils.fromHex(signature.getSha256()));
+				out.writeInt(signature.getBlocks().size());
+				for (BlockChecksum block : signature.getBlocks()) {
+					out.writeInt(block.getWeak());
+					out.write(DeltaUtils.fromHex(block.getStrong()));
+				}
+			}
+			Files.move(tmp, cache, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ex) {
+			FileUtils.deleteQuietly(tmp);
+			logger.warn("Unable to cache signature in {}: {}", cache, ex.getMessage());
+		}
+	}
+	
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.exception.QuotaExceededException;
+import de.arpablo.hennirepo.model.RepositoryEvent;
+
+/**
+ * Maintains the total size and number of files of every directory of the
+ * repository, including all subdirectories. The totals are updated
+ * incrementally by the RepositoryService, an update costs one map lookup
+ * per ancestor of the changed resource. Quotas are checked against the
+ * totals before a write, so no directory has to be walked.
+ * <p>
+ * The totals are persisted as part of the {@link MetadataCheckpoint}.
+ * @author arpablo
+ *
+ */
+public class DirectoryStatistics {
+
+	/**
+	 * The total size and number of files of a directory
+	 */
+	public static final class Totals {
+		private long bytes;
+		private long files;
+
+		public Totals(long bytes, long files) {
+			this.bytes = bytes;
+			this.files = files;
+		}
+
+		/**
+		 * @return the size of all files in bytes
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return the number of files
+		 */
+		public long getFiles() {
+			return files;
+		}
+
+		protected void add(long bytes, long files) {
+			this.bytes += bytes;
+			this.files += files;
+		}
+	}
+
+	private final TreeMap<String, Totals> totals = new TreeMap<String, Totals>();
+	private final Map<String, RepositoryProperties.Quota> quotas = new HashMap<String, RepositoryProperties.Quota>();
+
+	/**
+	 * Constructor
+	 * @param quotas	the quotas to enforce
+	 */
+	public DirectoryStatistics(List<RepositoryProperties.Quota> quotas) {
+		for (RepositoryProperties.Quota quota : quotas) {
+			this.quotas.put(RepositoryEvent.normalize(quota.getPath()), quota);
+		}
+	}
+
+	/**
+	 * Return the totals of a directory
+	 * @param dir	the repository path of the directory
+	 * @return a copy of the totals or <code>null</code>, if the directory is unknown
+	 */
+	public synchronized Totals get(String dir) {
+		Totals t = totals.get(RepositoryEvent.normalize(dir));
+		return (t == null) ? null : new Totals(t.bytes, t.files);
+	}
+
+	/**
+	 * Check the quotas of a directory and its ancestors and apply the change
+	 * if no quota is exceeded
+	 * @param dir	the repository path of the directory receiving the change
+	 * @param bytes	the change of the size
+	 * @param files	the change of the number of files
+	 * @throws QuotaExceededException if a quota would be exceeded
+	 */
+	public synchronized void reserve(String dir, long bytes, long files) throws QuotaExceededException {
+		check(dir, bytes, files);
+		adjust(dir, bytes, files);
+	}
+
+	/**
+	 * Check the quotas of a directory and its ancestors
+	 * @param dir	the repository path of the directory receiving the change
+	 * @param bytes	the change of the size
+	 * @param files	the change of the number of files
+	 * @throws QuotaExceededException if a quota would be exceeded
+	 */
+	public synchronized void check(String dir, long bytes, long files) throws QuotaExceededException {
+		if (quotas.isEmpty() || (bytes <= 0 && files <= 0)) {
+			return;
+		}
+		for (String s = RepositoryEvent.normalize(dir); s != null; s = parentOf(s)) {
+			RepositoryProperties.Quota quota = quotas.get(s);
+			if (quota == null) {
+				continue;
+			}
+			Totals t = totals.get(s);
+			long currentBytes = (t == null) ? 0 : t.bytes;
+			long currentFiles = (t == null) ? 0 : t.files;
+			if (bytes > 0 && quota.getMaxBytes() >= 0 && currentBytes + bytes > quota.getMaxBytes()) {
+				throw new QuotaExceededException(String.format("The quota of %d bytes of %s would be exceeded", quota.getMaxBytes(), s));
+			}
+			if (files > 0 && quota.getMaxFiles() >= 0 && currentFiles + files > quota.getMaxFiles()) {
+				throw new QuotaExceededException(String.format("The quota of %d files of %s would be exceeded", quota.getMaxFiles(), s));
+			}
+		}
+	}
+
+	/**
+	 * Return the number of bytes a directory can grow by until a quota of
+	 * the directory or one of its ancestors is exceeded
+	 * @param dir	the repository path of the directory
+	 * @return the number of bytes or Long.MAX_VALUE, if no quota applies
+	 */
+	public synchronized long available(String dir) {
+		long ret = Long.MAX_VALUE;
+		if (quotas.isEmpty()) {
+			return ret;
+		}
+		for (String s = RepositoryEvent.normalize(dir); s != null; s = parentOf(s)) {
+			RepositoryProperties.Quota quota = quotas.get(s);
+			if (quota == null || quota.getMaxBytes() < 0) {
+				continue;
+			}
+			Totals t = totals.get(s);
+			ret = Math.min(ret, Math.max(0, quota.getMaxBytes() - ((t == null) ? 0 : t.bytes)));
+		}
+		return ret;
+	}
+
+	/**
+	 * Apply a change to a directory and all its ancestors
+	 * @param dir	the repository path of the directory
+	 * @param bytes	the change of the size
+	 * @param files	the change of the number of files
+	 */
+	public synchronized void adjust(String dir, long bytes, long files) {
+		for (String s = RepositoryEvent.normalize(dir); s != null; s = parentOf(s)) {
+			Totals t = totals.get(s);
+			if (t == null) {
+				totals.put(s, new Totals(bytes, files));
+			} else {
+				t.add(bytes, files);
+			}
+		}
+	}
+
+	/**
+	 * Remove a directory with all subdirectories and subtract its totals
+	 * from its ancestors
+	 * @param dir	the repository path of the directory
+	 * @return the totals of the removed directory or <code>null</code>, if it was unknown
+	 */
+	public synchronized Totals remove(String dir) {
+		String key = RepositoryEvent.normalize(dir);
+		Totals t = totals.remove(key);
+		subtree(key).clear();
+		if (t != null && parentOf(key) != null) {
+			adjust(parentOf(key), -t.bytes, -t.files);
+		}
+		return t;
+	}
+
+	/**
+	 * Move the totals of a directory with all subdirectories to a new path
+	 * @param source	the repository path of the directory
+	 * @param target	the new repository path of the directory
+	 */
+	public synchronized void rename(String source, String target) {
+		String from = RepositoryEvent.normalize(source);
+		String to = RepositoryEvent.normalize(target);
+		NavigableMap<String, Totals> sub = subtree(from);
+		Map<String, Totals> moved = new HashMap<String, Totals>();
+		for (Map.Entry<String, Totals> entry : sub.entrySet()) {
+			moved.put(to + entry.getKey().substring(from.length()), entry.getValue());
+		}
+		sub.clear();
+		Totals t = remove(from);
+		remove(to);
+		if (t != null) {
+			totals.putAll(moved);
+			totals.put(to, t);
+			adjust(parentOf(to), t.bytes, t.files);
+		}
+	}
+
+	/**
+	 * Replace the totals of a directory with all subdirectories by the
+	 * result of a walk of the directory
+	 * @param dir		the repository path of the directory
+	 * @param scanned	the totals of the directory and all subdirectories
+	 */
+	public synchronized void replace(String dir, Map<String, Totals> scanned) {
+		String key = RepositoryEvent.normalize(dir);
+		remove(key);
+		Totals t = scanned.get(key);
+		totals.putAll(scanned);
+		if (t != null && parentOf(key) != null) {
+			adjust(parentOf(key), t.bytes, t.files);
+		}
+	}
+
+	/**
+	 * @return the repository paths of all known directories
+	 */
+	public synchronized List<String> directories() {
+		return new ArrayList<String>(totals.keySet());
+	}
+
+	/**
+	 * @return a copy of the totals of all directories by repository path
+	 */
+	public synchronized Map<String, Totals> copy() {
+		Map<String, Totals> ret = new TreeMap<String, Totals>();
+		for (Map.Entry<String, Totals> entry : totals.entrySet()) {
+			ret.put(entry.getKey(), new Totals(entry.getValue().bytes, entry.getValue().files));
+		}
+		return ret;
+	}
+
+	/**
+	 * The entries below the given directory, not including the directory itself
+	 */
+	private NavigableMap<String, Totals> subtree(String key) {
+		String prefix = key.equals("/") ? "/" : key + "/";
+		return totals.subMap(prefix, true, prefix.substring(0, prefix.length() - 1) + "0", false);
+	}
+
+	protected static String parentOf(String path) {
+		if (path.equals("/")) {
+			return null;
+		}
+		int index = path.lastIndexOf('/');
+		return (index <= 0) ? "/" : path.substring(0, index);
+	}
+
+}
@@ -4,40 +4,85 @@
 package de.arpablo.hennirepo.service;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileVisitResult;
+import java.nio.file.FileSystems;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
+import org.apache.commons.compress.utils.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
+import org.springframework.util.AntPathMatcher;
 
+import de.arpablo.hennirepo.common.ArchiveFormat;
+import de.arpablo.hennirepo.common.ChecksumInputStream;
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.common.ContentChecksum;
+import de.arpablo.hennirepo.common.ArchiveReader;
+import de.arpablo.hennirepo.common.ArchiveWriter;
 import de.arpablo.hennirepo.common.FileUtils;
+import de.arpablo.hennirepo.common.FlightEvents;
+import de.arpablo.hennirepo.common.LimitedInputStream;
+import de.arpablo.hennirepo.common.ReadAheadArchiveWriter;
+import de.arpablo.hennirepo.common.RequestTiming;
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
 import de.arpablo.hennirepo.config.RepositoryProperties;
 import de.arpablo.hennirepo.exception.InvalidResourceTypeException;
+import de.arpablo.hennirepo.exception.QuotaExceededException;
 import de.arpablo.hennirepo.exception.RepositoryException;
+import de.arpablo.hennirepo.exception.ResourceAccessException;
 import de.arpablo.hennirepo.model.RepoResource;
+import de.arpablo.hennirepo.model.RepositoryEvent;
 
 
 
@@ -46,50 +91,1002 @@ import de.arpablo.hennirepo.model.RepoResource;
  *
  */
 @Service
+@ConditionalOnFileStore
 public class FileRepositoryService implements RepositoryService {
 
 	private static Logger logger = LoggerFactory.getLogger(RepositoryService.class);
 	
+	/**
+	 * Name of the directory below the root that holds the internal data
+	 * of the repository (upload staging area etc.)
+	 */
+	public static final String SYSTEM_DIR = ".henni";
+	
+	private static final String JOURNAL_DIR = "journal";
+	private static final String JOURNAL_FILE = "operations.log";
+	private static final String STATISTICS_DIR = "statistics";
+	private static final String CHECKPOINT_FILE = "metadata.dat";
+	/** exists, once files may have been stored compressed */
+	private static final String COMPRESSED_MARKER = "compressed";
+	private static final String CHANGES_DIR = "changes";
+	private static final String SEQUENCE_FILE = "sequence";
+	
+	/**
+	 * Directories modified this short before a checkpoint are counted again
+	 * on startup, their totals may not include the modification yet
+	 */
+	private static final long CHECKPOINT_SLACK_MILLIS = 2000;
+	protected static final String TMP_DIR = "tmp";
+	
+	/**
+	 * Name of the directory below the system directory holding deleted resources
+	 */
+	protected static final String TRASH_DIR = "trash";
+	protected static final String TRASH_CONTENT = "content";
+	protected static final String TRASH_DESCRIPTOR = "trash.properties";
+	
+	/**
+	 * Name of the directory below the system directory holding previous versions of files
+	 */
+	protected static final String VERSIONS_DIR = "versions";
+	
+	/**
+	 * The repository path under which the snapshots can be browsed
+	 */
+	public static final String SNAPSHOTS_PATH = "/.snapshots";
+	
+	/**
+	 * Name of the directory below the system directory holding the snapshots
+	 */
+	protected static final String SNAPSHOTS_DIR = "snapshots";
+	protected static final String SNAPSHOT_TREE = "tree";
+	protected static final String SNAPSHOT_DESCRIPTOR = "snapshot.properties";
+	
+	/**
+	 * Separates the path of an archive from the path of an entry, e.g.
+	 * <code>/bundle.zip!/dir/file.xml</code>. Paths into archives are read-only
+	 */
+	public static final String ARCHIVE_SEPARATOR = "!/";
+	
+	/**
+	 * Name of the directory below the system directory holding the packed small files
+	 */
+	protected static final String PACKS_DIR = "packs";
+	
+	private final AtomicLong versionCounter = new AtomicLong();
+	private final AntPathMatcher matcher = new AntPathMatcher();
+	
 	private LinkOption linkOption = LinkOption.NOFOLLOW_LINKS;
 	
-	private Path root;
+	private Path root;
+	
+	private ShardPlacement placement;
+	
+	private OperationJournal journal;
+	
+	private DirectoryStatistics statistics;
+	
+	private final Object[] pathLocks = newLocks(64);
+	
+	private PackStore packs;
+	
+	private ContentIndex contentIndex;
+	
+	private boolean compressedFiles;
+	
+	private ExecutorService archiveReadAhead;
+	
+	@Autowired
+	private RepositoryProperties repoConfig;
+	
+	@Autowired
+	private ApplicationEventPublisher publisher;
+	
+	@Autowired
+	private ContentCache contentCache;
+	
+	@Autowired
+	private ArchiveCache archiveCache;
+	
+	@Autowired(required=false)
+	private ChangeFeed changeFeed;
+	
+	@Autowired(required=false)
+	private TieringService tiering;
+	
+	@PostConstruct
+	protected void initialize() {
+		String rootPath = repoConfig.getBasedir();
+		if (rootPath == null || rootPath.length() == 0) {
+			logger.info("Root path is not set in configuration");
+			rootPath = String.format("%s", System.getProperty("user.home") + "/repo");
+		}
+		root = Paths.get(rootPath);
+		logger.info(String.format("RepositoryService is using root path '%s'. Directory is %s",root, root.toAbsolutePath().toString()));
+		logger.info(String.format("in Filesystem %s", root.getFileSystem()));
+		List<Path> roots = new ArrayList<Path>();
+		roots.add(root);
+		for (String r : repoConfig.getRoots()) {
+			Path p = Paths.get(r);
+			if (!roots.contains(p)) {
+				logger.info(String.format("Using additional root path '%s'", p.toAbsolutePath().toString()));
+				roots.add(p);
+			}
+		}
+		placement = new ShardPlacement(roots, repoConfig.getShardDepth());
+		contentIndex = new ContentIndex(repoConfig.getDedupe().getIndexSize());
+		archiveReadAhead = Executors.newFixedThreadPool(Math.max(1, repoConfig.getArchives().getReadAheadThreads()), r -> {
+			Thread t = new Thread(r, "archive-read-ahead");
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			if (repoConfig.getPack().isEnabled()) {
+				PackStore store = new PackStore(getSystemPath(PACKS_DIR), repoConfig.getPack().getSegmentSize());
+				store.open();
+				packs = store;
+			}
+			if (changeFeed != null) {
+				changeFeed.open(getSystemPath(CHANGES_DIR).resolve(SEQUENCE_FILE));
+			}
+			Path journalFile = repoConfig.getJournal().isEnabled() ? getSystemPath(JOURNAL_DIR).resolve(JOURNAL_FILE) : null;
+			journal = new OperationJournal(journalFile, repoConfig.getJournal().getMaxBytes());
+			recover(journal.open());
+			Path marker = getSystemPath(STATISTICS_DIR).resolve(COMPRESSED_MARKER);
+			if ((repoConfig.getTiering().isEnabled() || repoConfig.getCompression().isEnabled()) && !Files.exists(marker)) {
+				Files.createFile(marker);
+			}
+			compressedFiles = Files.exists(marker);
+			DirectoryStatistics stats = new DirectoryStatistics(repoConfig.getQuotas());
+			Map<String, DirectoryStatistics.Totals> totals = repoConfig.getCheckpoint().isEnabled()
+					? loadCheckpoint(getSystemPath(STATISTICS_DIR).resolve(CHECKPOINT_FILE)) : null;
+			if (totals == null) {
+				logger.info("Computing the directory statistics");
+				totals = scan("/");
+			}
+			stats.replace("/", totals);
+			statistics = stats;
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+	
+	@PreDestroy
+	protected void shutdown() throws IOException {
+		archiveReadAhead.shutdownNow();
+		journal.close();
+		if (repoConfig.getCheckpoint().isEnabled()) {
+			writeCheckpoint();
+		}
+		if (packs != null) {
+			packs.close();
+		}
+	}
+	
+	/**
+	 * Write the metadata checkpoint. The modification times of the directories
+	 * are read before the totals, so a directory modified meanwhile is either
+	 * marked dirty or has a different modification time on startup
+	 * @throws IOException
+	 */
+	public void writeCheckpoint() throws IOException {
+		long start = System.currentTimeMillis();
+		List<Path> roots = placement.getRoots();
+		Map<String, long[]> modified = new HashMap<String, long[]>();
+		for (String dir : statistics.directories()) {
+			long[] times = new long[roots.size()];
+			for (int i = 0; i < times.length; i++) {
+				times[i] = modifiedTime(roots.get(i), dir);
+				if (times[i] >= start - CHECKPOINT_SLACK_MILLIS) {
+					times[i] = MetadataCheckpoint.DIRTY;
+				}
+			}
+			modified.put(dir, times);
+		}
+		Map<String, DirectoryStatistics.Totals> own = ownTotals(statistics.copy());
+		List<MetadataCheckpoint.Record> records = new ArrayList<MetadataCheckpoint.Record>(own.size());
+		for (Map.Entry<String, DirectoryStatistics.Totals> e : own.entrySet()) {
+			long[] times = modified.get(e.getKey());
+			if (times == null) {
+				times = new long[roots.size()];
+				Arrays.fill(times, MetadataCheckpoint.DIRTY);
+			}
+			records.add(new MetadataCheckpoint.Record(e.getKey(), e.getValue().getBytes(), e.getValue().getFiles(), times));
+		}
+		long sequence = (changeFeed != null) ? changeFeed.getLastSequence() : 0;
+		new MetadataCheckpoint(sequence, start, roots.size(), records).write(getSystemPath(STATISTICS_DIR).resolve(CHECKPOINT_FILE));
+		logger.debug("Wrote the metadata checkpoint of {} directories in {} ms", records.size(), System.currentTimeMillis() - start);
+	}
+	
+	/**
+	 * Load the metadata checkpoint and count the directories changed since
+	 * it was written. New directories are walked
+	 * @param file	the checkpoint
+	 * @return the totals by repository path or <code>null</code>, if the
+	 * 			checkpoint is missing or can't be used
+	 */
+	protected Map<String, DirectoryStatistics.Totals> loadCheckpoint(Path file) {
+		if (!Files.exists(file, linkOption)) {
+			return null;
+		}
+		long start = System.currentTimeMillis();
+		try {
+			MetadataCheckpoint checkpoint = MetadataCheckpoint.read(file);
+			List<Path> roots = placement.getRoots();
+			if (checkpoint.getRoots() != roots.size()) {
+				logger.info("The roots have changed since the metadata checkpoint");
+				return null;
+			}
+			if (packs != null && packs.getDropped() > 0) {
+				logger.info("Packed files were lost, the metadata checkpoint is outdated");
+				return null;
+			}
+			Map<String, DirectoryStatistics.Totals> own = new HashMap<String, DirectoryStatistics.Totals>();
+			Set<String> known = new HashSet<String>();
+			List<String> changed = new ArrayList<String>();
+			for (MetadataCheckpoint.Record record : checkpoint.getRecords()) {
+				boolean exists = false;
+				boolean unchanged = true;
+				for (int i = 0; i < roots.size(); i++) {
+					long time = modifiedTime(roots.get(i), record.getPath());
+					exists |= (time != MetadataCheckpoint.ABSENT);
+					unchanged &= (time == record.getModified()[i]);
+				}
+				if (!exists) {
+					continue;
+				}
+				known.add(record.getPath());
+				if (unchanged) {
+					own.put(record.getPath(), new DirectoryStatistics.Totals(record.getBytes(), record.getFiles()));
+				} else {
+					changed.add(record.getPath());
+				}
+			}
+			List<String> added = new ArrayList<String>();
+			for (String dir : changed) {
+				own.put(dir, count(dir, known, added));
+			}
+			for (String dir : added) {
+				own.putAll(ownTotals(scan(dir)));
+			}
+			Map<String, DirectoryStatistics.Totals> ret = new HashMap<String, DirectoryStatistics.Totals>();
+			for (Map.Entry<String, DirectoryStatistics.Totals> e : own.entrySet()) {
+				for (String s = e.getKey(); ; s = parentPath(s)) {
+					DirectoryStatistics.Totals t = ret.get(s);
+					if (t == null) {
+						t = new DirectoryStatistics.Totals(0, 0);
+						ret.put(s, t);
+					}
+					t.add(e.getValue().getBytes(), e.getValue().getFiles());
+					if (s.equals("/")) {
+						break;
+					}
+				}
+			}
+			logger.info("Loaded the metadata checkpoint at change {} in {} ms: {} directories, {} changed, {} new",
+					checkpoint.getSequence(), System.currentTimeMillis() - start, known.size(), changed.size(), added.size());
+			return ret;
+		} catch (IOException ex) {
+			logger.warn("Unable to load the metadata checkpoint {}: {}", file, ex.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Count the files directly in a directory on all roots. Subdirectories
+	 * that are not known yet are added to the given list
+	 * @param dir		the repository path of the directory
+	 * @param known		the known directories
+	 * @param added		receives the new subdirectories
+	 * @return the totals of the files directly in the directory
+	 * @throws IOException
+	 */
+	protected DirectoryStatistics.Totals count(String dir, Set<String> known, List<String> added) throws IOException {
+		DirectoryStatistics.Totals ret = new DirectoryStatistics.Totals(0, 0);
+		for (Path root : placement.getRoots()) {
+			Path d = dir.equals("/") ? root : root.resolve(dir.substring(1));
+			if (!Files.isDirectory(d, linkOption)) {
+				continue;
+			}
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(d)) {
+				for (Path p : stream) {
+					if (isSystemPath(p)) {
+						continue;
+					}
+					BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, linkOption);
+					if (!attrs.isDirectory()) {
+						ret.add(attrs.size(), 1);
+					} else if (known.add(childPath(dir, p.getFileName()))) {
+						added.add(childPath(dir, p.getFileName()));
+					}
+				}
+			}
+		}
+		if (packs != null) {
+			for (PackStore.Entry entry : packs.children(dir).values()) {
+				ret.add(entry.getLength(), 1);
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Convert the totals of directories including their subdirectories to
+	 * the totals of the files directly in each directory
+	 * @param totals	the totals by repository path
+	 * @return the totals of the files directly in each directory
+	 */
+	protected static Map<String, DirectoryStatistics.Totals> ownTotals(Map<String, DirectoryStatistics.Totals> totals) {
+		Map<String, DirectoryStatistics.Totals> ret = new TreeMap<String, DirectoryStatistics.Totals>();
+		for (Map.Entry<String, DirectoryStatistics.Totals> e : totals.entrySet()) {
+			ret.put(e.getKey(), new DirectoryStatistics.Totals(e.getValue().getBytes(), e.getValue().getFiles()));
+		}
+		for (Map.Entry<String, DirectoryStatistics.Totals> e : totals.entrySet()) {
+			DirectoryStatistics.Totals parent = e.getKey().equals("/") ? null : ret.get(parentPath(e.getKey()));
+			if (parent != null) {
+				parent.add(-e.getValue().getBytes(), -e.getValue().getFiles());
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Return the modification time of a directory on a root
+	 * @return the time in milliseconds or {@link MetadataCheckpoint#ABSENT}
+	 */
+	protected long modifiedTime(Path root, String dir) {
+		Path d = dir.equals("/") ? root : root.resolve(dir.substring(1));
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(d, BasicFileAttributes.class, linkOption);
+			return attrs.isDirectory() ? attrs.lastModifiedTime().toMillis() : MetadataCheckpoint.ABSENT;
+		} catch (IOException ex) {
+			return MetadataCheckpoint.ABSENT;
+		}
+	}
+	
+	/**
+	 * Update the modification time of a directory whose packed files have
+	 * changed, so the checkpoint detects the change like a change of the
+	 * files on the filesystem
+	 * @param dir	the repository path of the directory
+	 */
+	protected void touch(String dir) {
+		try {
+			Files.setLastModifiedTime(resolve(dir), FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException ex) {
+			logger.debug("Unable to touch {}: {}", dir, ex.getMessage());
+		}
+	}
+	
+	/**
+	 * Compute the totals of a directory and all its subdirectories by walking
+	 * the directory on all roots
+	 * @param path	the repository path of the directory
+	 * @return the totals by repository path
+	 * @throws IOException
+	 */
+	protected Map<String, DirectoryStatistics.Totals> scan(String path) throws IOException {
+		final String top = RepositoryEvent.normalize(path);
+		final Map<String, DirectoryStatistics.Totals> ret = new HashMap<String, DirectoryStatistics.Totals>();
+		for (Path dir : resolveAll(top)) {
+			if (!Files.isDirectory(dir, linkOption)) {
+				continue;
+			}
+			Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+					if (isSystemPath(d)) {
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+					String key = toRepositoryPath(d);
+					if (!ret.containsKey(key)) {
+						ret.put(key, new DirectoryStatistics.Totals(0, 0));
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					addFile(ret, top, toRepositoryPath(file), attrs.size());
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) {
+					logger.warn("Unable to read {}: {}", file, exc.getMessage());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		if (packs != null && !isSnapshotPath(top)) {
+			for (Map.Entry<String, PackStore.Entry> e : packs.list(top).entrySet()) {
+				addFile(ret, top, e.getKey(), e.getValue().getLength());
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Add a file to the totals of its directory and all ancestors up to the top
+	 */
+	protected static void addFile(Map<String, DirectoryStatistics.Totals> totals, String top, String path, long size) {
+		for (String s = parentPath(path); ; s = parentPath(s)) {
+			DirectoryStatistics.Totals t = totals.get(s);
+			if (t == null) {
+				t = new DirectoryStatistics.Totals(0, 0);
+				totals.put(s, t);
+			}
+			t.add(size, 1);
+			if (s.equals(top) || s.equals("/")) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Check the quotas for a resource moved from one directory to another.
+	 * Directories containing the source and the target are not affected
+	 * @param sourceDir	the repository path of the source directory
+	 * @param targetDir	the repository path of the target directory
+	 * @param bytes		the size of the resource
+	 * @param files		the number of files of the resource
+	 */
+	protected void checkMove(String sourceDir, String targetDir, long bytes, long files) {
+		synchronized (statistics) {
+			statistics.adjust(sourceDir, -bytes, -files);
+			try {
+				statistics.check(targetDir, bytes, files);
+			} finally {
+				statistics.adjust(sourceDir, bytes, files);
+			}
+		}
+	}
+	
+	/**
+	 * Return the lock serializing the replacements of a file. The statistics
+	 * are updated atomically, so only replacements of the same file have
+	 * to be serialized
+	 * @param path	the repository path of the file
+	 * @return the lock
+	 */
+	protected Object lockOf(String path) {
+		return pathLocks[(RepositoryEvent.normalize(path).hashCode() & 0x7fffffff) % pathLocks.length];
+	}
+	
+	protected static Object[] newLocks(int count) {
+		Object[] ret = new Object[count];
+		for (int i = 0; i < count; i++) {
+			ret[i] = new Object();
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return the directory statistics of the repository
+	 */
+	public DirectoryStatistics getStatistics() {
+		return statistics;
+	}
+	
+	/**
+	 * @return the store of the packed small files or <code>null</code>, if packing is disabled
+	 */
+	public ContentIndex getContentIndex() {
+		return contentIndex;
+	}
+	
+	public PackStore getPackStore() {
+		return packs;
+	}
+	
+	/**
+	 * Files compressed while tiering or compression at rest were enabled stay
+	 * compressed after they are disabled. The directory statistics count the
+	 * bytes stored, which are less than the size of the content then
+	 * @return <code>true</code>, if files may be stored compressed
+	 */
+	public boolean hasCompressedFiles() {
+		return compressedFiles;
+	}
+	
+	/**
+	 * Return the location of a packed file
+	 * @param path	the repository path
+	 * @return the Entry or <code>null</code>, if the path is no packed file
+	 */
+	protected PackStore.Entry getPacked(String path) {
+		if (packs == null || isSnapshotPath(path) || isArchivePath(path)) {
+			return null;
+		}
+		return packs.get(RepositoryEvent.normalize(path));
+	}
+	
+	/**
+	 * Read the content of a packed file
+	 * @param path	the repository path
+	 * @return the content or <code>null</code>, if the path is no packed file
+	 * @throws IOException
+	 */
+	protected byte[] readPacked(String path) throws IOException {
+		return (getPacked(path) != null) ? packs.read(RepositoryEvent.normalize(path)) : null;
+	}
+	
+	/**
+	 * Store a small file in the pack store. A file with the same path on the
+	 * filesystem is replaced, so a path is never both packed and a file
+	 * @param path		the repository path
+	 * @param data		the content
+	 * @param modified	the modification time in milliseconds
+	 * @return <code>true</code>, if the file existed before
+	 * @throws IOException
+	 */
+	protected boolean storePacked(String path, byte[] data, long modified) throws IOException {
+		String key = RepositoryEvent.normalize(path);
+		Path p = resolve(key);
+		if (!Files.isDirectory(p.getParent(), linkOption)) {
+			throw new NoSuchFileException(parentPath(key));
+		}
+		synchronized (lockOf(key)) {
+			PackStore.Entry packed = packs.get(key);
+			boolean onDisk = (packed == null) && Files.isRegularFile(p, linkOption);
+			boolean exists = (packed != null) || onDisk;
+			long old = (packed != null) ? packed.getLength() : onDisk ? Files.size(p) : 0;
+			statistics.reserve(parentPath(key), data.length - old, exists ? 0 : 1);
+			try {
+				if (onDisk && !keepVersion(p, key, true)) {
+					Files.delete(p);
+				}
+				packs.put(key, data, modified);
+			} catch (IOException ex) {
+				statistics.adjust(parentPath(key), old - data.length, exists ? 0 : -1);
+				throw ex;
+			}
+			touch(parentPath(key));
+			return exists;
+		}
+	}
+	
+	/**
+	 * Align the pack store with a directory copied or moved on the filesystem.
+	 * Packed files of the target replaced by files of the source are removed,
+	 * packed files of the source replace the files of the target
+	 * @param source	the repository path of the source directory
+	 * @param target	the repository path of the target directory
+	 * @param move		if true, the packed files are moved
+	 * @throws IOException
+	 */
+	protected void mergePacked(String source, String target, boolean move) throws IOException {
+		String from = RepositoryEvent.normalize(source);
+		String to = RepositoryEvent.normalize(target);
+		Set<String> dirs = new HashSet<String>();
+		for (String key : packs.list(to).keySet()) {
+			if (Files.isRegularFile(resolve(key), linkOption)) {
+				packs.remove(key);
+			}
+		}
+		for (String key : packs.list(from).keySet()) {
+			String dest = to + key.substring(from.length());
+			Files.deleteIfExists(resolve(dest));
+			if (move) {
+				packs.move(key, dest);
+			} else {
+				packs.copy(key, dest);
+			}
+			dirs.add(parentPath(dest));
+		}
+		for (String dir : dirs) {
+			touch(dir);
+		}
+	}
+	
+	/**
+	 * Read at most the given number of bytes from a stream
+	 */
+	protected static byte[] readHead(InputStream in, int max) throws IOException {
+		byte[] buffer = new byte[max];
+		int length = 0;
+		int n;
+		while (length < max && (n = in.read(buffer, length, max - length)) > 0) {
+			length += n;
+		}
+		byte[] ret = new byte[length];
+		System.arraycopy(buffer, 0, ret, 0, length);
+		return ret;
+	}
+	
+	/**
+	 * Repeat the operations that were interrupted by a crash. The operations
+	 * are rolled forward: what is left of the source is copied, moved or
+	 * deleted again
+	 * @param entries	the unfinished operations of the journal
+	 */
+	protected void recover(List<OperationJournal.Entry> entries) {
+		for (OperationJournal.Entry entry : entries) {
+			logger.info("Recovering {} of {} to {}", entry.getOperation(), entry.getSource(), entry.getTarget());
+			try {
+				Path pSource = resolve(entry.getSource());
+				boolean exists = Files.exists(pSource, linkOption);
+				switch (entry.getOperation()) {
+				case DELETE:
+					// the operation may have failed before anything was deleted
+					if (exists) {
+						moveToTrash(entry.getSource(), null);
+					}
+					break;
+				case COPY:
+					if (exists) {
+						for (Path source : resolveAll(entry.getSource())) {
+							FileUtils.copyDirectory(source, resolveTarget(entry.getTarget()), true, false);
+						}
+					}
+					break;
+				case MOVE:
+					if (exists) {
+						for (Path source : resolveAll(entry.getSource())) {
+							FileUtils.copyDirectory(source, resolveTarget(entry.getTarget()), true, true);
+							deleteTree(source);
+						}
+					}
+					break;
+				case UNZIP:
+					if (exists) {
+						FileUtils.unzip(pSource.toString(), resolve(entry.getTarget()).toString());
+					}
+					break;
+				}
+				journal.complete(entry);
+			} catch (IOException ex) {
+				// the entry stays in the journal and is retried on the next start
+				logger.error("Unable to recover {} of {}: {}", entry.getOperation(), entry.getSource(), ex.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Log a multi-step operation in the journal before it runs
+	 * @param operation		the operation
+	 * @param source		the repository path of the source
+	 * @param target		the repository path of the final target or <code>null</code>
+	 * @param multiStep		if false, the operation is atomic and not logged
+	 * @return a Record that completes the operation on success
+	 * @throws IOException
+	 */
+	protected OperationJournal.Record journal(OperationJournal.Operation operation, String source, String target, boolean multiStep) throws IOException {
+		return multiStep ? journal.begin(operation, source, target) : OperationJournal.NOOP;
+	}
+	
+	/**
+	 * @return the placement of resources on the roots
+	 */
+	protected ShardPlacement getPlacement() {
+		return placement;
+	}
+	
+	/* (non-Javadoc)
+	 * @see de.docufy.layouter.service.repo.RepositoryAPI#getRoot()
+	 */
+	@Override
+	public RepoResource getRoot() {
+		return new RepoResource(root,"");
+	}
+	
+	/**
+	 * Return a directory inside the system directory of the repository.
+	 * The directory is created if it does not exist yet
+	 * @param name	the name of the directory
+	 * @return the Path of the directory
+	 * @throws IOException
+	 */
+	protected Path getSystemPath(String name) throws IOException {
+		return Files.createDirectories(root.resolve(SYSTEM_DIR).resolve(name));
+	}
+	
+	/**
+	 * Return a directory inside the system directory of the root holding the
+	 * given path. Files in this directory can be moved atomically to p
+	 * @param name	the name of the directory
+	 * @param p		a path below one of the roots
+	 * @return the Path of the directory
+	 * @throws IOException
+	 */
+	protected Path getSystemPath(String name, Path p) throws IOException {
+		return Files.createDirectories(placement.rootOf(p).resolve(SYSTEM_DIR).resolve(name));
+	}
+	
+	/**
+	 * Checks, if the given path is the system directory of the repository
+	 * or inside of it
+	 * @param p the path to check
+	 * @return <code>true</code>, if p belongs to the system directory
+	 */
+	protected boolean isSystemPath(Path p) {
+		return p.startsWith(placement.rootOf(p).resolve(SYSTEM_DIR));
+	}
+	
+	/**
+	 * Return the repository path of the given filesystem path
+	 * @param p	a path below the root
+	 * @return the repository path in the form <code>/a/b</code>
+	 */
+	protected String toRepositoryPath(Path p) {
+		StringBuilder sb = new StringBuilder();
+		for (Path name : placement.rootOf(p).relativize(p)) {
+			if (name.toString().length() > 0) {
+				sb.append('/').append(name.toString());
+			}
+		}
+		return (sb.length() == 0) ? "/" : sb.toString();
+	}
+	
+	/**
+	 * Return the repository path of a child of the given directory
+	 * @param dirPath	the repository path of the directory
+	 * @param name		the name of the child
+	 * @return the repository path of the child
+	 */
+	protected static String childPath(String dirPath, Object name) {
+		String p = RepositoryEvent.normalize(dirPath);
+		return p.equals("/") ? "/" + name : p + "/" + name;
+	}
+	
+	/**
+	 * Publish a change of the repository
+	 * @param type			the type of the change
+	 * @param path			the repository path of the changed resource
+	 * @param targetPath	the new repository path of a moved resource or <code>null</code>
+	 */
+	protected void publish(RepositoryEvent.Type type, String path, String targetPath) {
+		publisher.publishEvent(new RepositoryEvent(type, path, targetPath, false));
+	}
+	
+	/**
+	 * Resolve the given path
+	 * @param path
+	 * @return
+	 */
+	protected Path resolve(String path) {
+		Path p;
+		if (path == null || path.length() == 0) {
+			p = root;
+		} else if (isSnapshotPath(path)) {
+			p = resolveSnapshot(placement.getPrimary(), path);
+			for (Path shard : placement.getRoots()) {
+				Path candidate = resolveSnapshot(shard, path);
+				if (Files.exists(candidate, linkOption)) {
+					p = candidate;
+					break;
+				}
+			}
+		} else {
+			Path shard = placement.locate(placement.keyOf(path));
+			p = shard.resolve(path.startsWith("/")?path.substring(1):path);			
+		}
+		return p;
+	}
+	
+	/**
+	 * Resolve the given path on all roots it exists on. Only directories above
+	 * the placement level exist on more than one root
+	 * @param path	the repository path
+	 * @return a List of paths, which contains at least resolve(path)
+	 */
+	protected List<Path> resolveAll(String path) {
+		List<Path> ret = new ArrayList<Path>();
+		Path p = resolve(path);
+		ret.add(p);
+		if (placement.isSharded() && isSnapshotPath(path)) {
+			for (Path shard : placement.getRoots()) {
+				Path other = resolveSnapshot(shard, path);
+				if (!other.equals(p) && Files.isDirectory(other, linkOption)) {
+					ret.add(other);
+				}
+			}
+		} else if (placement.isSharded() && placement.isSpanning(path)) {
+			String relative = (path == null) ? "" : path.startsWith("/") ? path.substring(1) : path;
+			for (Path shard : placement.getRoots()) {
+				Path other = shard.resolve(relative);
+				if (!other.equals(p) && Files.isDirectory(other, linkOption)) {
+					ret.add(other);
+				}
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Checks, if the given path belongs to the read-only snapshots
+	 * @param path	the repository path
+	 * @return <code>true</code>, if the path is {@link #SNAPSHOTS_PATH} or below
+	 */
+	protected static boolean isSnapshotPath(String path) {
+		String p = RepositoryEvent.normalize(path);
+		return p.equals(SNAPSHOTS_PATH) || p.startsWith(SNAPSHOTS_PATH + "/");
+	}
+	
+	/**
+	 * Resolve a path below {@link #SNAPSHOTS_PATH} on the given root.
+	 * <code>/.snapshots/name/a</code> is stored as
+	 * <code>.henni/snapshots/name/tree/a</code>
+	 * @param shard	the root
+	 * @param path	the repository path
+	 * @return the resolved path
+	 */
+	protected static Path resolveSnapshot(Path shard, String path) {
+		Path dir = shard.resolve(SYSTEM_DIR).resolve(SNAPSHOTS_DIR);
+		String rest = RepositoryEvent.normalize(path).substring(SNAPSHOTS_PATH.length());
+		if (rest.isEmpty()) {
+			return dir;
+		}
+		int index = rest.indexOf('/', 1);
+		String name = (index < 0) ? rest.substring(1) : rest.substring(1, index);
+		Path tree = dir.resolve(name).resolve(SNAPSHOT_TREE);
+		return (index < 0) ? tree : tree.resolve(rest.substring(index + 1));
+	}
+	
+	/**
+	 * Checks, if the given path points into an archive
+	 * @param path	the repository path
+	 * @return <code>true</code>, if the path contains {@link #ARCHIVE_SEPARATOR} after a ZIP archive
+	 */
+	protected boolean isArchivePath(String path) {
+		return archiveIndex(path) >= 0;
+	}
 	
-	@Autowired
-	private RepositoryProperties repoConfig;
+	/**
+	 * Return the index of the separator of archive and entry. A trailing
+	 * <code>!</code> denotes the root of the archive as well, since the
+	 * trailing slash is lost in request paths. A <code>!</code> only separates
+	 * archive and entry, if the path before it is a ZIP archive, so files
+	 * with a <code>!</code> in their name are accessed as usual
+	 */
+	protected int archiveIndex(String path) {
+		if (path == null || path.indexOf('!') < 0) {
+			return -1;
+		}
+		for (int index = path.indexOf(ARCHIVE_SEPARATOR); index >= 0; index = path.indexOf(ARCHIVE_SEPARATOR, index + 1)) {
+			if (isArchive(path.substring(0, index))) {
+				return index;
+			}
+		}
+		int index = path.length() - 1;
+		return (path.endsWith("!") && isArchive(path.substring(0, index))) ? index : -1;
+	}
 	
-	@PostConstruct
-	protected void initialize() {
-		String rootPath = repoConfig.getBasedir();
-		if (rootPath == null || rootPath.length() == 0) {
-			logger.info("Root path is not set in configuration");
-			rootPath = String.format("%s", System.getProperty("user.home") + "/repo");
+	/**
+	 * Checks, if a file is a ZIP archive by its signature
+	 * @param path	the repository path of the file, packed or on the filesystem
+	 * @return <code>true</code>, if the file exists and starts like a ZIP archive
+	 */
+	protected boolean isArchive(String path) {
+		if (path.isEmpty() || path.endsWith("/")) {
+			return false;
 		}
-		root = Paths.get(rootPath);
-		logger.info(String.format("RepositoryService is using root path '%s'. Directory is %s",root, root.toAbsolutePath().toString()));
-		logger.info(String.format("in Filesystem %s", root.getFileSystem()));
+		String key = RepositoryEvent.normalize(path);
+		byte[] signature = new byte[4];
+		try {
+			if (packs != null && !isSnapshotPath(key) && packs.get(key) != null) {
+				byte[] data = packs.read(key);
+				System.arraycopy(data, 0, signature, 0, Math.min(data.length, signature.length));
+			} else {
+				Path p = resolve(key);
+				if (!Files.isRegularFile(p, linkOption)) {
+					return false;
+				}
+				try (InputStream in = CompressedFile.newInputStream(p)) {
+					int n = 0;
+					for (int read; n < signature.length && (read = in.read(signature, n, signature.length - n)) >= 0; n += read) {
+						// read the signature
+					}
+				}
+			}
+		} catch (IOException ex) {
+			logger.debug("Unable to read the signature of {}: {}", path, ex.getMessage());
+			return false;
+		}
+		// a local file header or the end of central directory of an empty archive
+		return signature[0] == 'P' && signature[1] == 'K'
+				&& ((signature[2] == 3 && signature[3] == 4) || (signature[2] == 5 && signature[3] == 6));
 	}
 	
-	/* (non-Javadoc)
-	 * @see de.docufy.layouter.service.repo.RepositoryAPI#getRoot()
+	/**
+	 * Open the archive a path points into
+	 * @param path	the repository path of the form <code>archive!/entry</code>
+	 * @return the open archive, which must be closed after use
+	 * @throws IOException if the archive does not exist or is no ZIP archive
 	 */
-	@Override
-	public RepoResource getRoot() {
-		return new RepoResource(root,"");
+	protected ArchiveCache.Archive openArchive(String path) throws IOException {
+		String archivePath = path.substring(0, archiveIndex(path));
+		Path p = resolve(archivePath);
+		if (getPacked(archivePath) != null) {
+			// the entries are read from a file, the packed archive is stored as a file again
+			unpack(archivePath);
+		} else if (compressedFiles && CompressedFile.read(p) != null) {
+			// the entries are read at random, the archive is stored as is again
+			uncompress(archivePath, p);
+		}
+		return archiveCache.open(p);
 	}
 	
 	/**
-	 * Resolve the given path
-	 * @param path
-	 * @return
+	 * Store a packed file on the filesystem again. No event is published,
+	 * the content and its modification time stay the same
+	 * @param path	the repository path of the file
+	 * @return <code>true</code>, if the file was packed and is replaced
+	 * @throws IOException
 	 */
-	protected Path resolve(String path) {
-		Path p;
-		if (path == null || path.length() == 0) {
-			p = root;
-		} else {
-			p = root.resolve(path.startsWith("/")?path.substring(1):path);			
+	protected boolean unpack(String path) throws IOException {
+		String key = RepositoryEvent.normalize(path);
+		try (ShardPlacement.Unlock lock = placement.lockShared(key)) {
+			synchronized (lockOf(key)) {
+				PackStore.Entry packed = packs.get(key);
+				if (packed == null) {
+					return false;
+				}
+				Path p = resolve(key);
+				Path tmp = getSystemPath(TMP_DIR, p).resolve("unpack-" + UUID.randomUUID() + ".tmp");
+				try {
+					Files.write(tmp, packs.read(key));
+					Files.setLastModifiedTime(tmp, FileTime.fromMillis(packed.getModified()));
+					Files.move(tmp, p, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					packs.remove(key);
+				} finally {
+					FileUtils.deleteQuietly(tmp);
+				}
+				logger.debug("Unpacked {}", key);
+				return true;
+			}
 		}
-		return p;
+	}
+	
+	/**
+	 * Return the name of the entry a path points to
+	 * @param path	the repository path of the form <code>archive!/entry</code>
+	 * @return the name of the entry starting with <code>/</code>
+	 */
+	protected String entryName(String path) {
+		String entry = path.substring(archiveIndex(path) + 1);
+		return entry.isEmpty() ? "/" : entry;
+	}
+	
+	/**
+	 * Reject modifications of snapshots
+	 * @param paths	the repository paths to modify
+	 * @throws ResourceAccessException if a path belongs to a snapshot
+	 */
+	protected void checkWritable(String... paths) throws ResourceAccessException {
+		for (String path : paths) {
+			if (isSnapshotPath(path)) {
+				throw new ResourceAccessException(String.format("Path %s belongs to a snapshot and is read-only", path));
+			}
+			if (isArchivePath(path)) {
+				throw new ResourceAccessException(String.format("Path %s points into an archive and is read-only", path));
+			}
+		}
+	}
+	
+	/**
+	 * Reject the creation of a file or directory at or below a packed file,
+	 * so a path is never both packed and on the filesystem
+	 * @param path	the repository path to create
+	 * @throws FileAlreadyExistsException if the path or one of its ancestors is a packed file
+	 */
+	protected void checkNotPacked(String path) throws FileAlreadyExistsException {
+		if (packs == null) {
+			return;
+		}
+		for (String p = RepositoryEvent.normalize(path); !p.equals("/"); p = parentPath(p)) {
+			if (getPacked(p) != null) {
+				throw new FileAlreadyExistsException(p);
+			}
+		}
+	}
+	
+	/**
+	 * @return the root directories of the repository
+	 */
+	public List<Path> getRoots() {
+		return placement.getRoots();
 	}
 	
 	/* (non-Javadoc)
@@ -98,23 +1095,60 @@ public class FileRepositoryService implements RepositoryService {
 	@Override
 	public Source getSource(String path) {
 		logger.debug(String.format("Retrieving Source for path %s",path));
+		if (isArchivePath(path)) {
+			return getArchiveSource(path);
+		}
 		Path p = resolve(path);
 		StreamSource src = new StreamSource(p.toFile());
+		try {
+			byte[] packed = readPacked(path);
+			InputStream in = (packed != null) ? new ByteArrayInputStream(packed) : contentCache.getInputStream(p, path);
+			if (in == null && compressedFiles && CompressedFile.read(p) != null) {
+				in = new BufferedInputStream(openContent(p, path));
+			}
+			if (in != null) {
+				src = new StreamSource(in);
+			}
+		} catch (IOException ex) {
+			logger.debug("Content of {} is not cached: {}", path, ex.getMessage());
+		}
 		String uri = p.toAbsolutePath().toUri().toString();
 		logger.debug("System ID set to {}", uri);
 		src.setSystemId(uri);
 		return src;
 	}
 
-	/* (non-Javadoc)
+	/**
+	 * Return a stream result for the given path. The content written to the
+	 * stream of the result is added to the directory statistics, when the
+	 * stream is closed
 	 * @see de.docufy.layouter.service.repo.RepositoryAPI#getResult(java.lang.String)
 	 */
 	@Override
 	public Result getResult(String path) throws IOException {
 		logger.debug(String.format("Retrieving Result for path %s",path));
+		checkWritable(path);
 		Path p = resolve(path);
 		Files.createDirectories(p.getParent());
-		StreamResult r = new StreamResult(p.toFile());
+		ResultOutputStream out;
+		synchronized (lockOf(path)) {
+			// the result is counted as an empty file, its bytes are added when its stream is closed
+			PackStore.Entry packed = getPacked(path);
+			boolean exists = (packed != null) || Files.isRegularFile(p, linkOption);
+			long old = (packed != null) ? packed.getLength() : exists ? Files.size(p) : 0;
+			if (packed != null) {
+				// the result is written to the filesystem
+				packs.remove(RepositoryEvent.normalize(path));
+			} else if (exists) {
+				// the file is written in place, its content may be shared by a hard link
+				if (!keepVersion(p, path, true)) {
+					Files.delete(p);
+				}
+			}
+			statistics.adjust(parentPath(path), -old, exists ? 0 : 1);
+			out = new ResultOutputStream(p, path);
+		}
+		StreamResult r = new StreamResult(out);
 		String uri = p.toAbsolutePath().toUri().toString();
 		logger.debug("System ID set to {}", uri);
 		r.setSystemId(uri);
@@ -126,9 +1160,18 @@ public class FileRepositoryService implements RepositoryService {
 	 */
 	@Override
 	public RepoResource info(String path) {
-		Path p = resolve(path);
-		logger.debug(String.format("Returning info for path %s which resolved to %s",path, p.toFile().getAbsolutePath()));
-		return pathToResource(p, path);
+		return FlightEvents.instrumented("info", path, () -> {
+			if (isArchivePath(path)) {
+				return archiveInfo(path);
+			}
+			PackStore.Entry packed = getPacked(path);
+			if (packed != null) {
+				return packedResource(path, packed);
+			}
+			Path p = resolve(path);
+			logger.debug(String.format("Returning info for path %s which resolved to %s",path, p.toFile().getAbsolutePath()));
+			return withChecksum(pathToResource(p, path), p);
+		});
 	}
 
 	
@@ -138,9 +1181,18 @@ public class FileRepositoryService implements RepositoryService {
 	 */
 	@Override
 	public boolean exists(String path) {
+		if (isArchivePath(path)) {
+			return archiveInfo(path).isExists();
+		}
+		if (getPacked(path) != null) {
+			return true;
+		}
 		Path p = resolve(path);
 		logger.debug(String.format("Executing exists for path %s which resolved to %s",path, p.toFile().getAbsolutePath()));
-		return Files.exists(p, linkOption);
+		long t = RequestTiming.start();
+		boolean ret = Files.exists(p, linkOption);
+		RequestTiming.record(RequestTiming.Phase.STAT, t, 1, 0);
+		return ret;
 	}
 
 	/* (non-Javadoc)
@@ -148,9 +1200,18 @@ public class FileRepositoryService implements RepositoryService {
 	 */
 	@Override
 	public boolean existsFile(String path) {
+		if (isArchivePath(path)) {
+			return archiveInfo(path).isFile();
+		}
+		if (getPacked(path) != null) {
+			return true;
+		}
 		Path p = resolve(path);
 		logger.debug(String.format("Executing existsFile for path %s which resolved to %s",path, p.toFile().getAbsolutePath()));
-		return Files.exists(p, linkOption) && Files.isRegularFile(p, linkOption);
+		long t = RequestTiming.start();
+		boolean ret = Files.isRegularFile(p, linkOption);
+		RequestTiming.record(RequestTiming.Phase.STAT, t, 1, 0);
+		return ret;
 	}
 
 	/* (non-Javadoc)
@@ -158,9 +1219,15 @@ public class FileRepositoryService implements RepositoryService {
 	 */
 	@Override
 	public boolean existsDirectory(String path) {
+		if (isArchivePath(path)) {
+			return archiveInfo(path).isDirectory();
+		}
 		Path p = resolve(path);
 		logger.debug(String.format("Executing existsDirectory for path %s which resolved to %s",path, p.toFile().getAbsolutePath()));
-		return Files.exists(p, linkOption) && Files.isDirectory(p, linkOption);
+		long t = RequestTiming.start();
+		boolean ret = Files.isDirectory(p, linkOption);
+		RequestTiming.record(RequestTiming.Phase.STAT, t, 1, 0);
+		return ret;
 	}
 
 	
@@ -185,27 +1252,58 @@ public class FileRepositoryService implements RepositoryService {
 	 */
 	@Override
 	public List<RepoResource> list(String path, boolean showHidden, String glob) throws RepositoryException {
-		ArrayList<RepoResource> ret = new ArrayList<RepoResource>();
-		Path p = resolve(path);
-		logger.debug(String.format("Listing content for path %s which resolved to %s",path, p.toFile().getAbsolutePath()));
+		return FlightEvents.instrumented("list", path, () -> {
+			if (isArchivePath(path)) {
+				return listArchive(path, showHidden, glob);
+			}
+			ArrayList<RepoResource> ret = new ArrayList<RepoResource>();
+			List<Path> dirs = resolveAll(path);
+			Path p = dirs.get(0);
+			logger.debug(String.format("Listing content for path %s which resolved to %s",path, p.toFile().getAbsolutePath()));
 		
-		if (Files.isDirectory(p, linkOption)) {
-			try (DirectoryStream<Path> stream = (glob != null) ? Files.newDirectoryStream(p, glob) : Files.newDirectoryStream(p)) {
-				for (Path file : stream) {
-					if (showHidden || !Files.isHidden(file)) {
-						String prefix = path.endsWith("/") ? path : path + "/";
-						ret.add(pathToResource(file, prefix + file.getFileName().toString()));
+			if (Files.isDirectory(p, linkOption)) {
+				Set<String> names = new HashSet<String>();
+				String prefix = path.endsWith("/") ? path : path + "/";
+				for (Path dir : dirs) {
+					long t = RequestTiming.start();
+					try (DirectoryStream<Path> stream = (glob != null) ? Files.newDirectoryStream(dir, glob) : Files.newDirectoryStream(dir)) {
+						for (Path file : stream) {
+							// the time between the entries is the time of the iteration
+							t = RequestTiming.record(RequestTiming.Phase.LIST, t, 1, 0);
+							if (isSystemPath(file) && !isSnapshotPath(path)) {
+								continue;
+							}
+							String name = file.getFileName().toString();
+							if ((showHidden || !Files.isHidden(file)) && names.add(name)) {
+								// with several roots the same name may exist twice, use the one resolve() finds
+								Path resolved = (dirs.size() > 1) ? resolve(prefix + name) : file;
+								ret.add(pathToResource(resolved, prefix + name));
+								t = RequestTiming.start();
+							}
+						}
+						RequestTiming.record(RequestTiming.Phase.LIST, t, 1, 0);
+					} catch (IOException | DirectoryIteratorException ex) {
+						String msg = String.format("Exception listing content of directory %s", path);
+						logger.error(msg, ex);
+						throw new RepositoryException(msg, ex);
+					}
+				}
+				if (packs != null && !isSnapshotPath(path)) {
+					PathMatcher globMatcher = (glob != null) ? FileSystems.getDefault().getPathMatcher("glob:" + glob) : null;
+					for (Map.Entry<String, PackStore.Entry> e : packs.children(RepositoryEvent.normalize(path)).entrySet()) {
+						String name = e.getKey();
+						if ((showHidden || !name.startsWith(".")) && (globMatcher == null || globMatcher.matches(Paths.get(name)))
+								&& names.add(name)) {
+							ret.add(packedResource(prefix + name, e.getValue()));
+						}
 					}
 				}
-			} catch (IOException | DirectoryIteratorException ex) {
-				String msg = String.format("Exception listing content of directory %s", path);
-				logger.error(msg, ex);
-				throw new RepositoryException(msg, ex);
+			} else {
+				throw new InvalidResourceTypeException(String.format("Path %s does not specifiy a directory", path));
 			}
-		} else {
-			throw new InvalidResourceTypeException(String.format("Path %s does not specifiy a directory", path));
-		}
-		return ret;
+			FlightEvents.count(0, ret.size());
+			return ret;
+		});
 	}
 
 	
@@ -214,12 +1312,60 @@ public class FileRepositoryService implements RepositoryService {
 	 */
 	@Override
 	public InputStream getContentInputStream(String path) throws RepositoryException {
-		Path p = resolve(path);
-		try {
-			return new BufferedInputStream(Files.newInputStream(p));
-		} catch (IOException ex) {
-			throw new RepositoryException("Failed to create InputStram for resource", ex);
+		return FlightEvents.instrumented("read", path, () -> {
+			if (isArchivePath(path)) {
+				try (ArchiveCache.Archive archive = openArchive(path)) {
+					return new BufferedInputStream(archive.newInputStream(entryName(path)));
+				} catch (IOException ex) {
+					throw new RepositoryException("Failed to create InputStram for archive entry", ex);
+				}
+			}
+			Path p = resolve(path);
+			try {
+				long t = RequestTiming.start();
+				byte[] packed = readPacked(path);
+				if (packed != null) {
+					RequestTiming.record(RequestTiming.Phase.READ, t, 1, packed.length);
+					return new ByteArrayInputStream(packed);
+				}
+				InputStream in = contentCache.getInputStream(p, path);
+				if (in != null) {
+					return in;
+				}
+				in = openContent(p, path);
+				RequestTiming.record(RequestTiming.Phase.READ, t, 1, 0);
+				return new BufferedInputStream(RequestTiming.timed(in));
+			} catch (IOException ex) {
+				throw new RepositoryException("Failed to create InputStram for resource", ex);
+			}
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#getEncodedContent(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public CompressedFile.Stored getEncodedContent(String path, String encoding) throws RepositoryException {
+		if (!compressedFiles || isArchivePath(path) || getPacked(path) != null) {
+			return null;
 		}
+		return FlightEvents.instrumented("read", path, () -> {
+			try {
+				Path p = resolve(path);
+				long t = RequestTiming.start();
+				CompressedFile.Stored stored = CompressedFile.open(p);
+				if (stored.getCompressed() == null || !stored.getCompressed().getEncoding().equals(encoding)) {
+					stored.close();
+					return null;
+				}
+				// served as stored, reading it costs less than reading the content
+				RequestTiming.record(RequestTiming.Phase.READ, t, 1, 0);
+				return new CompressedFile.Stored(new BufferedInputStream(RequestTiming.timed(stored.getInputStream())),
+						stored.getCompressed(), stored.getLength());
+			} catch (IOException ex) {
+				throw new RepositoryException("Failed to create InputStram for resource", ex);
+			}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -227,13 +1373,41 @@ public class FileRepositoryService implements RepositoryService {
 	 */
 	@Override
 	public void getContent(String path, OutputStream out) throws RepositoryException {
-		Path p = resolve(path);
-		try {
-			Files.copy(p, out);
-		} catch (IOException ex) {
-			logger.error(ex.getClass().getName()+": "+ex.getMessage());
-			throw new RepositoryException(ex);
-		}
+		FlightEvents.instrumented("read", path, () -> {
+			if (isArchivePath(path)) {
+				try (ArchiveCache.Archive archive = openArchive(path)) {
+					Files.copy(archive.getPath(entryName(path)), out);
+				} catch (IOException ex) {
+					logger.error(ex.getClass().getName()+": "+ex.getMessage());
+					throw new RepositoryException(ex);
+				}
+				return;
+			}
+			Path p = resolve(path);
+			try {
+				long t = RequestTiming.start();
+				byte[] packed = readPacked(path);
+				if (packed != null) {
+					RequestTiming.record(RequestTiming.Phase.READ, t, 1, packed.length);
+					FlightEvents.count(packed.length, 1);
+					out.write(packed);
+					return;
+				}
+				if (contentCache.writeTo(p, path, out)) {
+					return;
+				}
+				long n;
+				try (InputStream in = openContent(p, path)) {
+					n = IOUtils.copy(in, out, 64 * 1024);
+				}
+				// includes the time of writing to out
+				RequestTiming.record(RequestTiming.Phase.READ, t, 1, n);
+				FlightEvents.count(n, 1);
+			} catch (IOException ex) {
+				logger.error(ex.getClass().getName()+": "+ex.getMessage());
+				throw new RepositoryException(ex);
+			}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -241,14 +1415,257 @@ public class FileRepositoryService implements RepositoryService {
 	 */
 	@Override
 	public RepoResource setContent(String path, InputStream in)	throws RepositoryException {
-		Path p = resolve(path);
+		return setContent(path, in, -1);
+	}
+	
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#setContent(java.lang.String, java.io.InputStream, long)
+	 */
+	@Override
+	public RepoResource setContent(String path, InputStream in, long length) throws RepositoryException {
+		return FlightEvents.instrumented("write", path, () -> {
+			checkWritable(path);
+			Path tmp = null;
+			try (ShardPlacement.Unlock lock = placement.lockShared(path)) {
+				Path p = resolveTarget(path);
+				InputStream body = limitToQuota(path, p, in, length);
+				if (packs != null && !Files.isDirectory(p, linkOption)) {
+					int max = repoConfig.getPack().getMaxFileSize();
+					byte[] head = readHead(body, max + 1);
+					if (head.length <= max) {
+						long t = RequestTiming.start();
+						boolean exists = storePacked(path, head, System.currentTimeMillis());
+						RequestTiming.record(RequestTiming.Phase.WRITE, t, 1, head.length);
+						FlightEvents.count(head.length, 1);
+						publish(exists ? RepositoryEvent.Type.MODIFY : RepositoryEvent.Type.CREATE, path, null);
+						return info(path);
+					}
+					body = new SequenceInputStream(new ByteArrayInputStream(head), body);
+				}
+				// the size is not known before, write to a temporary file to check the quota
+				tmp = Files.createTempFile(getSystemPath(TMP_DIR, p), "content-", ".tmp");
+				long t = RequestTiming.start();
+				ChecksumInputStream content = new ChecksumInputStream(body);
+				// includes the time of receiving the content
+				long n;
+				if (isCompressedAtRest(path)) {
+					n = CompressedFile.compress(content, tmp, repoConfig.getCompression().getLevel(), System.currentTimeMillis()).getSize();
+					if (Files.size(tmp) >= n) {
+						// stored as is, if it does not get smaller
+						Path compressed = tmp;
+						tmp = Files.createTempFile(getSystemPath(TMP_DIR, p), "content-", ".tmp");
+						try {
+							CompressedFile.decompress(compressed, tmp);
+						} finally {
+							Files.delete(compressed);
+						}
+						CompressedFile.markIncompressible(tmp);
+					}
+				} else {
+					n = Files.copy(content, tmp, StandardCopyOption.REPLACE_EXISTING);
+				}
+				RequestTiming.record(RequestTiming.Phase.WRITE, t, 1, n);
+				FlightEvents.count(n, 1);
+				content.getChecksum().write(tmp);
+				return commitContent(tmp, path);
+			} catch (IOException ex) {
+				FileUtils.deleteQuietly(tmp);
+				logger.error(ex.getClass().getName()+": "+ex.getMessage());
+				throw new RepositoryException(ex);
+			} catch (RuntimeException ex) {
+				// e.g. a quota is exceeded
+				FileUtils.deleteQuietly(tmp);
+				throw ex;
+			}
+		});
+	}
+	
+	/**
+	 * Check the quotas for new content of a file before it is received and
+	 * limit the content to the quotas. The size of content compressed at rest
+	 * is only known after it is written, it is checked when it is committed
+	 * @param path		the repository path of the file
+	 * @param p			the file
+	 * @param in		the content
+	 * @param length	the length of the content or -1, if it is not known
+	 * @return the content limited to the quotas
+	 * @throws IOException
+	 */
+	protected InputStream limitToQuota(String path, Path p, InputStream in, long length) throws IOException {
+		String parent = parentPath(path);
+		PackStore.Entry packed = getPacked(path);
+		boolean exists = (packed != null) || Files.isRegularFile(p, linkOption);
+		long old = (packed != null) ? packed.getLength() : exists ? Files.size(p) : 0;
+		if (length >= 0) {
+			statistics.check(parent, length - old, exists ? 0 : 1);
+		}
+		long available = statistics.available(parent);
+		if (available == Long.MAX_VALUE || isCompressedAtRest(path)) {
+			return in;
+		}
+		return new LimitedInputStream(in, available + old, () -> new QuotaExceededException(
+				String.format("The content of %s exceeds the quota of %s", path, parent)));
+	}
+	
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#linkContent(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public RepoResource linkContent(String path, String sha256) throws RepositoryException {
+		if (!repoConfig.getDedupe().isEnabled()) {
+			return null;
+		}
+		return FlightEvents.instrumented("link", path, () -> {
+			checkWritable(path);
+			String source = contentIndex.get(sha256);
+			if (source == null) {
+				return null;
+			}
+			Path tmp = null;
+			try (ShardPlacement.Unlock lock = placement.lockShared(path)) {
+				Path pSource = resolve(source);
+				if (!hasContent(pSource, sha256)) {
+					contentIndex.remove(sha256, source);
+					return null;
+				}
+				Path p = resolveTarget(path);
+				tmp = getSystemPath(TMP_DIR, p).resolve("link-" + UUID.randomUUID() + ".tmp");
+				long t = RequestTiming.start();
+				boolean linked = false;
+				if (repoConfig.getDedupe().isHardLinks()) {
+					try {
+						// content is never written in place, so the file can be shared
+						Files.createLink(tmp, pSource);
+						linked = true;
+					} catch (IOException | UnsupportedOperationException ex) {
+						logger.debug("Copying "+source+", it cannot be linked: "+ex.getMessage());
+					}
+				}
+				if (!linked) {
+					FileUtils.copyFile(pSource, tmp, true, false);
+				}
+				long n = Files.size(tmp);
+				RequestTiming.record(RequestTiming.Phase.WRITE, t, 1, linked ? 0 : n);
+				// the source may have been replaced since it was checked
+				if (!hasContent(tmp, sha256)) {
+					FileUtils.deleteQuietly(tmp);
+					contentIndex.remove(sha256, source);
+					return null;
+				}
+				FlightEvents.count(n, 1);
+				return commitContent(tmp, path);
+			} catch (IOException ex) {
+				FileUtils.deleteQuietly(tmp);
+				logger.error(ex.getClass().getName()+": "+ex.getMessage());
+				throw new RepositoryException(ex);
+			}
+		});
+	}
+	
+	/**
+	 * Check, if a file has content with the given SHA-256 according to
+	 * its stored checksum
+	 */
+	private boolean hasContent(Path p, String sha256) {
+		ContentChecksum checksum = Files.isRegularFile(p, linkOption) ? ContentChecksum.read(p) : null;
+		return checksum != null && checksum.getSha256().equals(sha256);
+	}
+	
+	/**
+	 * Open the content of a file, which is decompressed while it is read,
+	 * if the file is stored compressed. A compressed file that is read is
+	 * handed to the tiering to be promoted
+	 * @param p		the file
+	 * @param path	the repository path of the file
+	 * @return an InputStream
+	 * @throws IOException
+	 */
+	protected InputStream openContent(Path p, String path) throws IOException {
+		if (!compressedFiles) {
+			return Files.newInputStream(p);
+		}
+		CompressedFile.Stored stored = CompressedFile.open(p);
+		if (stored.getCompressed() != null && tiering != null && !isCompressedAtRest(path)) {
+			tiering.promoteLater(path);
+		}
+		return stored.getContent();
+	}
+	
+	/**
+	 * Checks, if the content of a file is stored compressed when it is written
+	 * @param path	the repository path of the file
+	 * @return <code>true</code>, if compression is enabled and the path matches its includes
+	 */
+	public boolean isCompressedAtRest(String path) {
+		RepositoryProperties.Compression config = repoConfig.getCompression();
+		if (!config.isEnabled() || config.getIncludes() == null) {
+			return false;
+		}
+		String p = RepositoryEvent.normalize(path);
+		for (String pattern : config.getIncludes()) {
+			if (matcher.match(pattern.startsWith("/") ? pattern : "/" + pattern, p)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Store the content of a compressed file as is again
+	 * @param path	the repository path of the file
+	 * @param p		the file
+	 * @return <code>true</code>, if the file was compressed and is replaced
+	 * @throws IOException
+	 */
+	public boolean uncompress(String path, Path p) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, linkOption);
+		if (CompressedFile.read(p, attrs) == null) {
+			return false;
+		}
+		Path tmp = getSystemPath(TMP_DIR, p).resolve("uncompress-" + UUID.randomUUID() + ".tmp");
 		try {
-			Files.copy(in, p, StandardCopyOption.REPLACE_EXISTING);
-			return pathToResource(p, path);
-		} catch (IOException ex) {
-			logger.error(ex.getClass().getName()+": "+ex.getMessage());
-			throw new RepositoryException(ex);
+			CompressedFile.decompress(p, tmp);
+			ContentChecksum.copy(p, tmp);
+			return replaceStored(path, p, attrs, tmp);
+		} finally {
+			FileUtils.deleteQuietly(tmp);
+		}
+	}
+	
+	/**
+	 * Replace a file by a file with the same content stored differently, e.g.
+	 * compressed. The file is only replaced, if it is unchanged since the
+	 * replacement was made from it. No event is published, the content and
+	 * its modification time stay the same, the statistics count the bytes
+	 * stored
+	 * @param path			the repository path of the file
+	 * @param p				the file
+	 * @param attrs			the attributes of the file the replacement was made from
+	 * @param replacement	the replacement on the filesystem of the file
+	 * @return <code>true</code>, if the file was replaced
+	 * @throws IOException
+	 */
+	public boolean replaceStored(String path, Path p, BasicFileAttributes attrs, Path replacement) throws IOException {
+		try (ShardPlacement.Unlock lock = placement.lockShared(path)) {
+			// replacing the file must not interleave with commits
+			synchronized (lockOf(path)) {
+				BasicFileAttributes current;
+				try {
+					current = Files.readAttributes(p, BasicFileAttributes.class, linkOption);
+				} catch (NoSuchFileException ex) {
+					return false;
+				}
+				if (!Objects.equals(current.fileKey(), attrs.fileKey()) || current.size() != attrs.size()
+						|| !current.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+					return false;
+				}
+				long size = Files.size(replacement);
+				Files.move(replacement, p, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				statistics.adjust(parentPath(path), size - current.size(), 0);
+			}
 		}
+		contentCache.invalidate(path);
+		return true;
 	}
 	
 	/* (non-Javadoc)
@@ -256,40 +1673,164 @@ public class FileRepositoryService implements RepositoryService {
 	 */
 	@Override
 	public void delete(String path) throws RepositoryException {
-		Path p = resolve(path);
+		FlightEvents.instrumented("delete", path, () -> {
+			if (isSnapshotPath(path) && parentPath(path).equals(SNAPSHOTS_PATH)) {
+				deleteSnapshot(path);
+				return;
+			}
+			checkWritable(path);
+			try (ShardPlacement.Unlock lock = placement.lockShared(path);
+					OperationJournal.Record record = journal(OperationJournal.Operation.DELETE, path, null, resolveAll(path).size() > 1)) {
+				Path pFile = resolve(path);
+				PackStore.Entry packed = getPacked(path);
+				if (packed == null && !Files.exists(pFile, linkOption)) {
+					throw new NoSuchFileException(path);
+				}
+				boolean isFile = (packed != null) || Files.isRegularFile(pFile, linkOption);
+				long size = (packed != null) ? packed.getLength() : isFile ? Files.size(pFile) : 0;
+				DirectoryStatistics.Totals t = isFile ? new DirectoryStatistics.Totals(size, 1) : statistics.get(path);
+				// the tree is removed by the TrashService in the background
+				moveToTrash(path, t);
+				if (t != null) {
+					FlightEvents.count(t.getBytes(), t.getFiles());
+				}
+				if (isFile) {
+					statistics.adjust(parentPath(path), -t.getBytes(), -1);
+				} else {
+					statistics.remove(path);
+				}
+				record.success();
+				publish(RepositoryEvent.Type.DELETE, path, null);
+			} catch (IOException ex) {
+				logger.error(ex.getClass().getName()+": "+ex.getMessage());
+				throw new RepositoryException(ex);
+			}
+		});
+	}
+	
+	/**
+	 * Delete a snapshot by moving it to the trash, it is purged by the TrashService
+	 * @param path	the repository path of the snapshot
+	 * @throws RepositoryException
+	 */
+	protected void deleteSnapshot(String path) throws RepositoryException {
 		try {
-			if ( Files.isDirectory(p) ) {
-				Files.walkFileTree(p, new FileVisitor<Path>() {
-					@Override
-					public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-						logger.debug("Deleting directory: "+dir);
-						Files.delete(dir);
-						return FileVisitResult.CONTINUE;
-					}
-		
-					@Override
-					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-						return FileVisitResult.CONTINUE;
-					}
-		
-					@Override
-					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-						logger.debug("Deleting file: "+file);
-						Files.delete(file);
-						return FileVisitResult.CONTINUE;
-					}
-		
-					@Override
-					public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+			boolean found = false;
+			for (Path shard : placement.getRoots()) {
+				Path dir = resolveSnapshot(shard, path).getParent();
+				if (Files.isDirectory(dir, linkOption)) {
+					Files.move(dir, getSystemPath(TRASH_DIR, dir).resolve(UUID.randomUUID().toString()), StandardCopyOption.ATOMIC_MOVE);
+					found = true;
+				}
+			}
+			if (!found) {
+				throw new NoSuchFileException(path);
+			}
+			logger.info("Deleted snapshot {}", path);
+			publish(RepositoryEvent.Type.DELETE, path, null);
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+	
+	/**
+	 * Move a resource to the trash. This is a rename on every root holding
+	 * the resource. The trash entry is described by a properties file, which
+	 * is written atomically after the content, so an entry without it is
+	 * still being created
+	 * @param path		the repository path of the resource
+	 * @param totals	the size and number of files of the resource or <code>null</code>
+	 * @return the id of the trash entry
+	 * @throws IOException
+	 */
+	protected String moveToTrash(String path, DirectoryStatistics.Totals totals) throws IOException {
+		String id = UUID.randomUUID().toString();
+		Properties props = new Properties();
+		props.setProperty("path", RepositoryEvent.normalize(path));
+		props.setProperty("deleted", Long.toString(System.currentTimeMillis()));
+		if (totals != null) {
+			props.setProperty("size", Long.toString(totals.getBytes()));
+			props.setProperty("files", Long.toString(totals.getFiles()));
+		}
+		Set<Path> created = new LinkedHashSet<Path>();
+		for (Path p : resolveAll(path)) {
+			if (!Files.exists(p, linkOption)) {
+				continue;
+			}
+			Path entry = Files.createDirectories(getSystemPath(TRASH_DIR, p).resolve(id));
+			created.add(entry);
+			Files.move(p, entry.resolve(TRASH_CONTENT), StandardCopyOption.ATOMIC_MOVE);
+			logger.debug("Moved {} to trash entry {}", p, entry);
+		}
+		if (packs != null) {
+			// packed files are written to the trash entry of their root
+			String key = RepositoryEvent.normalize(path);
+			PackStore.Entry file = packs.get(key);
+			Map<String, PackStore.Entry> entries = (file != null) ? Collections.singletonMap(key, file) : packs.list(key);
+			for (Map.Entry<String, PackStore.Entry> e : entries.entrySet()) {
+				byte[] data = packs.read(e.getKey());
+				Path entry = Files.createDirectories(getSystemPath(TRASH_DIR, resolve(e.getKey())).resolve(id));
+				created.add(entry);
+				Path content = (file != null) ? entry.resolve(TRASH_CONTENT) : entry.resolve(TRASH_CONTENT).resolve(e.getKey().substring(key.length() + 1));
+				if (data != null) {
+					Files.createDirectories(content.getParent());
+					Files.write(content, data);
+					Files.setLastModifiedTime(content, FileTime.fromMillis(e.getValue().getModified()));
+				}
+				packs.remove(e.getKey());
+			}
+			if (file != null) {
+				touch(parentPath(key));
+			}
+		}
+		for (Path entry : created) {
+			Path tmp = entry.resolve(TRASH_DESCRIPTOR + ".tmp");
+			try (OutputStream out = Files.newOutputStream(tmp)) {
+				props.store(out, null);
+			}
+			Files.move(tmp, entry.resolve(TRASH_DESCRIPTOR), StandardCopyOption.ATOMIC_MOVE);
+		}
+		return id;
+	}
+	
+	/**
+	 * Delete a file or a directory with all its content
+	 * @param p	the path to delete
+	 * @throws IOException
+	 */
+	protected void deleteTree(Path p) throws IOException {
+		if ( Files.isDirectory(p) ) {
+			Files.walkFileTree(p, new FileVisitor<Path>() {
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+					logger.debug("Deleting directory: "+dir);
+					Files.delete(dir);
+					return FileVisitResult.CONTINUE;
+				}
+	
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+					return FileVisitResult.CONTINUE;
+				}
+	
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					logger.debug("Deleting file: "+file);
+					Files.delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+	
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+					if (exc instanceof NoSuchFileException) {
 						return FileVisitResult.CONTINUE;
 					}
-				});
-			} else { 
-				Files.delete(p);
-			}				
-		} catch (IOException ex) {
-			logger.error(ex.getClass().getName()+": "+ex.getMessage());
-			throw new RepositoryException(ex);
+					throw exc;
+				}
+			});
+		} else { 
+			Files.delete(p);
 		}
 	}
 
@@ -298,33 +1839,95 @@ public class FileRepositoryService implements RepositoryService {
 	 */
 	@Override
 	public void copy(String sourcePath, String targetPath) throws RepositoryException {
-		Path pSource = resolve(sourcePath);
-		Path pTarget = resolve(targetPath);
+		FlightEvents.instrumented("copy", sourcePath, () -> {
+			checkWritable(targetPath);
+			Path pSource = resolve(sourcePath);
+			Path pTarget = resolve(targetPath);
 		
-		logger.debug("Copy {} to {}", pSource.toAbsolutePath().toString(), pTarget.toAbsolutePath().toString());
+			logger.debug("Copy {} to {}", pSource.toAbsolutePath().toString(), pTarget.toAbsolutePath().toString());
 		
-		boolean isSourceDir = Files.isDirectory(pSource);
-		boolean isTargetDir = Files.isDirectory(pTarget);
+			boolean isSourceDir = Files.isDirectory(pSource);
+			boolean isTargetDir = Files.isDirectory(pTarget);
+			String destPath = (isTargetDir) ? childPath(targetPath, pSource.getFileName()) : targetPath;
 		
-		if (isSourceDir) {
-			if (!isTargetDir) {
-				throw new RepositoryException(String.format("Target path %s does not specify a directory", targetPath));
+			if (isSourceDir) {
+				if (!isTargetDir) {
+					throw new RepositoryException(String.format("Target path %s does not specify a directory", targetPath));
+				} else {
+					try (ShardPlacement.Unlock lock = placement.lockShared(destPath)) {
+						DirectoryStatistics.Totals t = statistics.get(sourcePath);
+						if (t != null) {
+							statistics.check(destPath, t.getBytes(), t.getFiles());
+						}
+						try (OperationJournal.Record record = journal(OperationJournal.Operation.COPY, sourcePath, destPath, true)) {
+							Path pDest = resolveTarget(destPath);
+							// the entries of a directory above the placement level are spread over the roots
+							for (Path source : resolveAll(sourcePath)) {
+								FileUtils.copyDirectory(source, pDest, true, false);
+							}
+							if (packs != null) {
+								mergePacked(sourcePath, destPath, false);
+							}
+							statistics.replace(destPath, scan(destPath));
+							record.success();
+						}
+						publish(RepositoryEvent.Type.CREATE, destPath, null);
+					} catch (IOException ex) {
+						logger.error(ex.getClass().getName()+": "+ex.getMessage());
+						throw new RepositoryException(ex);
+					}
+				}
 			} else {
-				try {
-					FileUtils.copyDirectory(pSource, pTarget.resolve(pSource.getFileName()), true, false);
+				try (ShardPlacement.Unlock lock = placement.lockShared(destPath)) {
+					Path pDest = resolveTarget(destPath);
+					PackStore.Entry packed = getPacked(sourcePath);
+					if (packed == null && isCompressedAtRest(destPath) && CompressedFile.read(pSource) == null) {
+						// the copy is compressed like content written to the target
+						Path tmp = Files.createTempFile(getSystemPath(TMP_DIR, pDest), "copy-", ".tmp");
+						try {
+							FileUtils.copyFile(pSource, tmp, true, false);
+							commitContent(tmp, destPath);
+						} finally {
+							FileUtils.deleteQuietly(tmp);
+						}
+						return;
+					}
+					PackStore.Entry replaced = getPacked(destPath);
+					long size = (packed != null) ? packed.getLength() : Files.size(pSource);
+					boolean exists = (replaced != null) || Files.isRegularFile(pDest, linkOption);
+					long old = (replaced != null) ? replaced.getLength() : exists ? Files.size(pDest) : 0;
+					statistics.reserve(parentPath(destPath), size - old, exists ? 0 : 1);
+					try {
+						if (packed != null) {
+							// the copy shares the packed content of the source
+							if (!Files.isDirectory(pDest.getParent(), linkOption)) {
+								throw new NoSuchFileException(parentPath(destPath));
+							}
+							if (replaced == null && exists && !keepVersion(pDest, destPath, true)) {
+								Files.delete(pDest);
+							}
+							packs.copy(RepositoryEvent.normalize(sourcePath), RepositoryEvent.normalize(destPath));
+							touch(parentPath(destPath));
+						} else {
+							if (replaced == null && exists) {
+								keepVersion(pDest, destPath, false);
+							}
+							FileUtils.copyFile(pSource, pDest, true, false);
+							if (replaced != null) {
+								packs.remove(RepositoryEvent.normalize(destPath));
+							}
+						}
+					} catch (IOException ex) {
+						statistics.adjust(parentPath(destPath), old - size, exists ? 0 : -1);
+						throw ex;
+					}
+					publish(RepositoryEvent.Type.CREATE, destPath, null);
 				} catch (IOException ex) {
-					logger.error(ex.getClass().getName()+": "+ex.getMessage());
+	                logger.error(String.format("Unable to copy: %s%n", sourcePath), ex);
 					throw new RepositoryException(ex);
 				}
 			}
-		} else {
-			try {
-				FileUtils.copyFile(pSource, (isTargetDir)? pTarget.resolve(pSource.getFileName()) : pTarget, true, false);
-			} catch (IOException ex) {
-                logger.error(String.format("Unable to copy: %s%n", sourcePath), ex);
-				throw new RepositoryException(ex);
-			}
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -332,16 +1935,71 @@ public class FileRepositoryService implements RepositoryService {
 	 */
 	@Override
 	public void move(String sourcePath, String targetPath) throws RepositoryException {
-		Path pSource = resolve(sourcePath);
-		Path pTarget = resolve(targetPath);
-		try {
-			boolean isDir = Files.isDirectory(pTarget);
-			Path pDest = (isDir) ? pTarget.resolve(pSource.getFileName()) : pTarget;
-			Files.move(pSource, pDest, StandardCopyOption.REPLACE_EXISTING);
-		} catch (IOException ex) {
-			logger.error(ex.getClass().getName()+": "+ex.getMessage());
-			throw new RepositoryException(ex);
-		}
+		FlightEvents.instrumented("move", sourcePath, () -> {
+			checkWritable(sourcePath, targetPath);
+			try (ShardPlacement.Unlock lock = placement.lockShared(sourcePath, targetPath)) {
+				Path pSource = resolve(sourcePath);
+				Path pTarget = resolve(targetPath);
+				boolean isDir = Files.isDirectory(pTarget);
+				String destPath = (isDir) ? childPath(targetPath, pSource.getFileName()) : targetPath;
+				try (ShardPlacement.Unlock destLock = placement.lockShared(destPath)) {
+					Path pDest = resolveTarget(destPath);
+					PackStore.Entry packed = getPacked(sourcePath);
+					PackStore.Entry replaced = getPacked(destPath);
+					boolean isSourceDir = (packed == null) && Files.isDirectory(pSource, linkOption);
+					List<Path> sources = isSourceDir ? resolveAll(sourcePath) : Collections.singletonList(pSource);
+					long size = (packed != null) ? packed.getLength() : isSourceDir ? 0 : Files.size(pSource);
+					DirectoryStatistics.Totals t = isSourceDir ? statistics.get(sourcePath) : new DirectoryStatistics.Totals(size, 1);
+					long old = (replaced != null) ? replaced.getLength() : Files.isRegularFile(pDest, linkOption) ? Files.size(pDest) : -1;
+					if (t != null) {
+						checkMove(parentPath(sourcePath), parentPath(destPath), t.getBytes() - Math.max(old, 0), t.getFiles() - ((old >= 0) ? 1 : 0));
+					}
+					if (packed != null) {
+						if (!Files.isDirectory(pDest.getParent(), linkOption)) {
+							throw new NoSuchFileException(parentPath(destPath));
+						}
+						if (replaced == null && old >= 0 && !keepVersion(pDest, destPath, true)) {
+							Files.delete(pDest);
+						}
+						packs.move(RepositoryEvent.normalize(sourcePath), RepositoryEvent.normalize(destPath));
+						touch(parentPath(sourcePath));
+						touch(parentPath(destPath));
+					} else if (isSourceDir && (sources.size() > 1 || !placement.rootOf(pSource).equals(placement.rootOf(pDest)))) {
+						// directories can't be renamed across roots, the entries of a
+						// directory above the placement level are spread over the roots
+						logger.debug("Moving {} to {} on another root", sources, pDest);
+						try (OperationJournal.Record record = journal(OperationJournal.Operation.MOVE, sourcePath, destPath, true)) {
+							for (Path source : sources) {
+								FileUtils.copyDirectory(source, pDest, true, true);
+								deleteTree(source);
+							}
+							record.success();
+						}
+					} else {
+						if (replaced == null && old >= 0) {
+							keepVersion(pDest, destPath, false);
+						}
+						Files.move(pSource, pDest, StandardCopyOption.REPLACE_EXISTING);
+						if (replaced != null) {
+							packs.remove(RepositoryEvent.normalize(destPath));
+						}
+					}
+					if (isSourceDir) {
+						statistics.rename(sourcePath, destPath);
+						if (packs != null) {
+							mergePacked(sourcePath, destPath, true);
+						}
+					} else {
+						statistics.adjust(parentPath(sourcePath), -t.getBytes(), -1);
+						statistics.adjust(parentPath(destPath), t.getBytes() - Math.max(old, 0), (old >= 0) ? 0 : 1);
+					}
+				}
+				publish(RepositoryEvent.Type.MOVE, sourcePath, destPath);
+			} catch (IOException ex) {
+				logger.error(ex.getClass().getName()+": "+ex.getMessage());
+				throw new RepositoryException(ex);
+			}
+		});
 	}
 	
 	
@@ -350,12 +2008,27 @@ public class FileRepositoryService implements RepositoryService {
 	 */
 	@Override
 	public RepoResource zip(String sourcePath, String targetPath) throws RepositoryException {
-		Path pSource = resolve(sourcePath);
-		Path pTarget = resolve(targetPath);
+		checkWritable(targetPath);
+		ArchiveFormat format = ArchiveFormat.of(targetPath);
+		if (format != ArchiveFormat.ZIP || packs != null || compressedFiles) {
+			// packed files are only seen by the archive writer, which decompresses compressed files as well
+			return archive(sourcePath, format, targetPath);
+		}
+		List<Path> sources = resolveAll(sourcePath);
 
-		try {
-			logger.info("Zipping {} to {}", pSource.toString(), pTarget.toString());
-			FileUtils.zip(pTarget.toString(), pSource.toString());
+		try (ShardPlacement.Unlock lock = placement.lockShared(targetPath)) {
+			Path pTarget = resolve(targetPath);
+			logger.info("Zipping {} to {}", sources, pTarget.toString());
+			boolean exists = Files.exists(pTarget, linkOption);
+			long old = exists ? Files.size(pTarget) : 0;
+			String[] names = new String[sources.size()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = sources.get(i).toString();
+			}
+			FileUtils.zip(pTarget.toString(), names);
+			// the size of the archive is not known in advance, it is only accounted
+			statistics.adjust(parentPath(targetPath), Files.size(pTarget) - old, exists ? 0 : 1);
+			publish(exists ? RepositoryEvent.Type.MODIFY : RepositoryEvent.Type.CREATE, targetPath, null);
 			return pathToResource(pTarget, targetPath);
 		} catch (IOException ex) {
 			logger.error(ex.getClass().getName()+": "+ex.getMessage());
@@ -368,30 +2041,193 @@ public class FileRepositoryService implements RepositoryService {
 	 */
 	@Override
 	public void unzip(String sourcePath, String targetPath) throws RepositoryException {
+		checkWritable(targetPath);
 		Path pSource = resolve(sourcePath);
-		Path pTarget = resolve(targetPath);
 
-		try {
-			FileUtils.unzip(pSource.toString(), pTarget.toString());
+		try (ShardPlacement.Unlock lock = placement.lockShared(targetPath);
+				OperationJournal.Record record = journal(OperationJournal.Operation.UNZIP, sourcePath, targetPath, true)) {
+			Path pTarget = resolve(targetPath);
+			ArchiveFormat format = ArchiveFormat.of(sourcePath);
+			if (format == ArchiveFormat.ZIP && packs == null && !repoConfig.getCompression().isEnabled() && CompressedFile.read(pSource) == null) {
+				checkArchive(pSource, targetPath);
+				FileUtils.unzip(pSource.toString(), pTarget.toString());
+				statistics.replace(targetPath, scan(targetPath));
+			} else {
+				try (InputStream in = new BufferedInputStream(CompressedFile.newInputStream(pSource))) {
+					extract(in, format, targetPath);
+				}
+			}
+			record.success();
+			publish(RepositoryEvent.Type.MODIFY, targetPath, null);
 		} catch (IOException ex) {
 			logger.error(ex.getClass().getName()+": "+ex.getMessage());
 			throw new RepositoryException(ex);
 		}
 	}
 
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#writeArchive(java.lang.String, de.arpablo.hennirepo.common.ArchiveFormat, java.io.OutputStream)
+	 */
+	@Override
+	public void writeArchive(String path, ArchiveFormat format, OutputStream out) throws RepositoryException {
+		writeArchive(Collections.singletonMap(RepositoryEvent.normalize(path), ""), format, out, path);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#writeArchive(java.util.List, de.arpablo.hennirepo.common.ArchiveFormat, java.io.OutputStream)
+	 */
+	@Override
+	public void writeArchive(List<String> paths, ArchiveFormat format, OutputStream out) throws RepositoryException {
+		List<String> normalized = new ArrayList<String>(paths.size());
+		for (String path : paths) {
+			normalized.add(RepositoryEvent.normalize(path));
+		}
+		Map<String, String> names = ArchiveWriter.selectionNames(normalized);
+		writeArchive(names, format, out, names.isEmpty() ? "/" : names.keySet().iterator().next());
+	}
+
+	/**
+	 * Write resources as archive. The files are read ahead in parallel
+	 * @param entries	the entry names by repository path, the content of a
+	 * 					directory with an empty name is added without prefix
+	 * @param format	the archive format
+	 * @param out		the stream to write to
+	 * @param path		the path to record the operation with
+	 */
+	protected void writeArchive(Map<String, String> entries, ArchiveFormat format, OutputStream out, String path) {
+		FlightEvents.instrumented("archive", path, () -> {
+			for (String source : entries.keySet()) {
+				if (getPacked(source) == null && !Files.exists(resolve(source), linkOption)) {
+					throw new ResourceAccessException(String.format("Resource %s does not exist", source));
+				}
+			}
+			logger.info("Writing {} as {} archive", (entries.size() == 1) ? path : entries.size() + " resources", format.getName());
+			RepositoryProperties.Archives config = repoConfig.getArchives();
+			try (ReadAheadArchiveWriter writer = new ReadAheadArchiveWriter(new ArchiveWriter(out, format), archiveReadAhead,
+					config.getReadAheadEntries(), config.getReadAheadBytes(), config.getReadAheadFileSize())) {
+				Set<String> names = new HashSet<String>();
+				for (Map.Entry<String, String> e : entries.entrySet()) {
+					addToArchive(e.getKey(), e.getValue(), writer, names);
+				}
+			} catch (IOException ex) {
+				logger.error(ex.getClass().getName()+": "+ex.getMessage());
+				throw new RepositoryException(ex);
+			}
+		});
+	}
+
+	/**
+	 * Add a file or directory with its content to an archive
+	 * @param path		the repository path
+	 * @param prefix	the entry name of the resource, if empty a file is
+	 * 					added with its name and the content of a directory
+	 * 					without prefix
+	 * @param writer	the archive
+	 * @param names		the names of the entries added so far
+	 * @throws IOException
+	 */
+	protected void addToArchive(String path, String prefix, ReadAheadArchiveWriter writer, Set<String> names) throws IOException {
+		List<Path> sources = resolveAll(path);
+		PackStore.Entry packed = getPacked(path);
+		if (packed != null) {
+			String name = prefix.isEmpty() ? sources.get(0).getFileName().toString() : prefix;
+			byte[] data = packs.read(RepositoryEvent.normalize(path));
+			if (data != null && names.add(name)) {
+				writer.addFile(name, packed.getModified(), data);
+			}
+			return;
+		}
+		String dirPrefix = prefix.isEmpty() ? "" : prefix + "/";
+		// with several roots a directory exists on each of them
+		for (Path source : sources) {
+			if (!Files.isDirectory(source, linkOption)) {
+				String name = prefix.isEmpty() ? source.getFileName().toString() : prefix;
+				if (names.add(name)) {
+					writer.addFile(name, source);
+				}
+				continue;
+			}
+			boolean system = isSystemPath(source);
+			Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+					if (dir.equals(source)) {
+						if (!prefix.isEmpty() && names.add(prefix)) {
+							writer.addDirectory(prefix, attrs.lastModifiedTime().toMillis());
+						}
+						return FileVisitResult.CONTINUE;
+					}
+					if (!system && isSystemPath(dir)) {
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+					String name = dirPrefix + relativeName(source, dir);
+					if (names.add(name)) {
+						writer.addDirectory(name, attrs.lastModifiedTime().toMillis());
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					String name = dirPrefix + relativeName(source, file);
+					if (attrs.isRegularFile() && names.add(name)) {
+						writer.addFile(name, file, attrs);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		if (packs != null && !isSnapshotPath(path) && Files.isDirectory(sources.get(0), linkOption)) {
+			String dir = RepositoryEvent.normalize(path);
+			for (Map.Entry<String, PackStore.Entry> e : packs.list(dir).entrySet()) {
+				byte[] data = packs.read(e.getKey());
+				String name = dirPrefix + e.getKey().substring(dir.equals("/") ? 1 : dir.length() + 1);
+				if (data != null && names.add(name)) {
+					writer.addFile(name, e.getValue().getModified(), data);
+				}
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#extractArchive(java.io.InputStream, de.arpablo.hennirepo.common.ArchiveFormat, java.lang.String)
+	 */
+	@Override
+	public void extractArchive(InputStream in, ArchiveFormat format, String targetPath) throws RepositoryException {
+		FlightEvents.instrumented("extract", targetPath, () -> {
+			checkWritable(targetPath);
+			try (ShardPlacement.Unlock lock = placement.lockShared(targetPath)) {
+				extract(in, format, targetPath);
+				publish(RepositoryEvent.Type.MODIFY, targetPath, null);
+			} catch (IOException ex) {
+				logger.error(ex.getClass().getName()+": "+ex.getMessage());
+				throw new RepositoryException(ex);
+			}
+		});
+	}
+
 	/* (non-Javadoc)
 	 * @see de.docufy.layouter.service.repo.RepositoryAPI#createDirectories(java.lang.String)
 	 */
 	@Override
 	public RepoResource createDirectories(String dirPath) throws RepositoryException {
-		Path path = resolve(dirPath);
-		try {
-			path = Files.createDirectories(path);
-			return pathToResource(path, dirPath);
-		} catch (IOException ex) {
-			logger.error(ex.getClass().getName()+": "+ex.getMessage());
-			throw new RepositoryException(ex);
-		}
+		return FlightEvents.instrumented("mkdirs", dirPath, () -> {
+			checkWritable(dirPath);
+			try (ShardPlacement.Unlock lock = placement.lockShared(dirPath)) {
+				checkNotPacked(dirPath);
+				Path path = resolve(dirPath);
+				boolean exists = Files.isDirectory(path, linkOption);
+				path = Files.createDirectories(path);
+				statistics.adjust(dirPath, 0, 0);
+				if (!exists) {
+					publish(RepositoryEvent.Type.CREATE, dirPath, null);
+				}
+				return pathToResource(path, dirPath);
+			} catch (IOException ex) {
+				logger.error(ex.getClass().getName()+": "+ex.getMessage());
+				throw new RepositoryException(ex);
+			}
+		});
 	}
 
 	
@@ -400,25 +2236,466 @@ public class FileRepositoryService implements RepositoryService {
 	 */
 	@Override
 	public RepoResource createFile(String filePath) throws RepositoryException {
-		Path path = resolve(filePath);
+		return FlightEvents.instrumented("create", filePath, () -> {
+			checkWritable(filePath);
+			try (ShardPlacement.Unlock lock = placement.lockShared(filePath)) {
+				checkNotPacked(filePath);
+				Path path = resolveTarget(filePath);
+				statistics.reserve(parentPath(filePath), 0, 1);
+				try {
+					path = Files.createFile(path);
+				} catch (IOException ex) {
+					statistics.adjust(parentPath(filePath), 0, -1);
+					throw ex;
+				}
+				publish(RepositoryEvent.Type.CREATE, filePath, null);
+				return pathToResource(path, filePath);
+			} catch (IOException ex) {
+				logger.error(ex.getClass().getName()+": "+ex.getMessage());
+				throw new RepositoryException(ex);
+			}
+		});
+	}
+
+	/**
+	 * Atomically replace the resource at the given path by the given file.
+	 * The file has to reside on the filesystem of the repository, it is
+	 * moved and not copied
+	 * @param file	the file with the new content
+	 * @param path	the repository path of the resource to replace
+	 * @return the RepoResource of the new content
+	 * @throws IOException
+	 */
+	protected RepoResource commitContent(Path file, String path) throws IOException {
+		checkWritable(path);
+		Path given = file;
+		try (ShardPlacement.Unlock lock = placement.lockShared(path)) {
+			Path p = resolveTarget(path);
+			boolean exists = Files.exists(p, linkOption);
+			if (!placement.rootOf(file).equals(placement.rootOf(p))) {
+				// the file is on another root, copy it next to the target first
+				Path tmp = Files.createTempFile(getSystemPath(TMP_DIR, p), "commit-", ".tmp");
+				Files.move(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+				file = tmp;
+			}
+			file = compressAtRest(file, path);
+			long size = Files.size(file);
+			// reading the old size and replacing the file must not interleave with other commits of the path
+			synchronized (lockOf(path)) {
+				PackStore.Entry packed = getPacked(path);
+				exists = (packed != null) || Files.exists(p, linkOption);
+				long old = (packed != null) ? packed.getLength() : exists ? Files.size(p) : 0;
+				statistics.reserve(parentPath(path), size - old, exists ? 0 : 1);
+				try {
+					if (packed == null && exists) {
+						keepVersion(p, path, false);
+					}
+					Files.move(file, p, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					if (packed != null) {
+						packs.remove(RepositoryEvent.normalize(path));
+					}
+				} catch (IOException ex) {
+					statistics.adjust(parentPath(path), old - size, exists ? 0 : -1);
+					throw ex;
+				}
+			}
+			publish(exists ? RepositoryEvent.Type.MODIFY : RepositoryEvent.Type.CREATE, path, null);
+			return withChecksum(pathToResource(p, path), p);
+		} catch (IOException | RuntimeException ex) {
+			// the caller removes the file it gave
+			if (!file.equals(given)) {
+				FileUtils.deleteQuietly(file);
+			}
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Compress a file before it is committed, if its path is compressed at
+	 * rest. The content keeps its modification time and checksums. Files
+	 * compressed while they were written and files that do not get smaller
+	 * are committed as they are
+	 * @param file	the file to commit, it is deleted, if it is compressed
+	 * @param path	the repository path of the file
+	 * @return the file to commit
+	 * @throws IOException
+	 */
+	protected Path compressAtRest(Path file, String path) throws IOException {
+		if (!isCompressedAtRest(path)) {
+			return file;
+		}
+		BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		if (CompressedFile.read(file, attrs) != null || CompressedFile.isIncompressible(file, attrs)) {
+			return file;
+		}
+		ContentChecksum checksum = ContentChecksum.read(file);
+		Path tmp = Files.createTempFile(file.getParent(), "compress-", ".tmp");
+		try {
+			try (InputStream in = Files.newInputStream(file)) {
+				CompressedFile.compress(in, tmp, repoConfig.getCompression().getLevel(), attrs.lastModifiedTime().toMillis());
+			}
+			if (Files.size(tmp) >= attrs.size()) {
+				// the file may be linked to other content, so it is not marked
+				return file;
+			}
+			if (checksum != null) {
+				checksum.write(tmp);
+			}
+			Files.delete(file);
+			Path ret = tmp;
+			tmp = null;
+			return ret;
+		} finally {
+			FileUtils.deleteQuietly(tmp);
+		}
+	}
+	
+	/**
+	 * Keep the current content of a file as a version before it is replaced.
+	 * The version is a hard link to the file, so no content is copied
+	 * @param p		the file
+	 * @param path	the repository path of the file
+	 * @param move	if true, the file is moved to the version instead of linked
+	 * @return <code>true</code>, if a version was created
+	 * @throws IOException
+	 */
+	protected boolean keepVersion(Path p, String path, boolean move) throws IOException {
+		if (!repoConfig.getVersions().isEnabled() || !hasHistory(path)) {
+			return false;
+		}
+		Path version = Files.createDirectories(getVersionDirectory(p, path)).resolve(newVersionId());
+		if (move) {
+			Files.move(p, version, StandardCopyOption.ATOMIC_MOVE);
+		} else {
+			try {
+				Files.createLink(version, p);
+			} catch (UnsupportedOperationException ex) {
+				logger.debug("Hard links are not supported, copying {}", p);
+				Files.copy(p, version, StandardCopyOption.COPY_ATTRIBUTES);
+			}
+		}
+		logger.debug("Kept version {} of {}", version.getFileName(), path);
+		return true;
+	}
+	
+	/**
+	 * Return the directory holding the versions of a file, it may not exist
+	 * @param p		the file
+	 * @param path	the repository path of the file
+	 * @return the directory
+	 * @throws IOException
+	 */
+	protected Path getVersionDirectory(Path p, String path) throws IOException {
+		String relative = RepositoryEvent.normalize(path).substring(1);
+		return getSystemPath(VERSIONS_DIR, p).resolve(relative);
+	}
+	
+	/**
+	 * Checks, if the file with the given path has a version history
+	 * @param path	the repository path
+	 * @return <code>true</code>, if the path matches the configured includes
+	 */
+	protected boolean hasHistory(String path) {
+		List<String> includes = repoConfig.getVersions().getIncludes();
+		if (includes == null || includes.isEmpty()) {
+			return true;
+		}
+		String p = RepositoryEvent.normalize(path);
+		for (String pattern : includes) {
+			if (matcher.match(pattern.startsWith("/") ? pattern : "/" + pattern, p)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return a new version id, ids sort by the time of their creation
+	 */
+	protected String newVersionId() {
+		return String.format("%013d-%06d", System.currentTimeMillis(), versionCounter.incrementAndGet() % 1000000);
+	}
+	
+	/**
+	 * Resolve the target path of a new resource and create its parent directory,
+	 * which may be missing on the root of the resource if the parent is above
+	 * the placement level
+	 * @param path	the repository path
+	 * @return the resolved path
+	 * @throws IOException
+	 */
+	protected Path resolveTarget(String path) throws IOException {
+		Path p = resolve(path);
+		if (p.getParent() != null && !Files.isDirectory(p.getParent(), linkOption)
+				&& (!placement.isSharded() || placement.isSpanning(parentPath(path)))) {
+			Files.createDirectories(p.getParent());
+		}
+		return p;
+	}
+	
+	/**
+	 * Create an archive of a resource in a temporary file and commit it to the target
+	 * @param sourcePath	the repository path of the resource
+	 * @param format		the format of the archive
+	 * @param targetPath	the repository path of the archive
+	 * @return the RepoResource of the archive
+	 */
+	protected RepoResource archive(String sourcePath, ArchiveFormat format, String targetPath) throws RepositoryException {
+		Path tmp = null;
 		try {
-			path = Files.createFile(path);
-			return pathToResource(path, filePath);
+			tmp = Files.createTempFile(getSystemPath(TMP_DIR, resolve(targetPath)), "archive-", ".tmp");
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+				writeArchive(sourcePath, format, out);
+			}
+			return commitContent(tmp, targetPath);
 		} catch (IOException ex) {
 			logger.error(ex.getClass().getName()+": "+ex.getMessage());
 			throw new RepositoryException(ex);
+		} finally {
+			FileUtils.deleteQuietly(tmp);
 		}
 	}
-
+	
+	/**
+	 * Extract an archive in a single pass. Every file is written to the root
+	 * owning it. The quotas are checked before a file is written if the archive
+	 * records its size, otherwise afterwards. A file is written to a temporary
+	 * file first, which replaces the existing file when the entry is complete
+	 * @param in			the archive
+	 * @param format		the format of the archive
+	 * @param targetPath	the repository path of the target directory
+	 * @throws IOException
+	 */
+	protected void extract(InputStream in, ArchiveFormat format, String targetPath) throws IOException {
+		String target = RepositoryEvent.normalize(targetPath);
+		Files.createDirectories(resolve(target));
+		statistics.adjust(target, 0, 0);
+		ArchiveReader.read(in, format, new ArchiveReader.EntryHandler() {
+			@Override
+			public void directory(String name, long lastModified) throws IOException {
+				if (name.isEmpty()) {
+					return;
+				}
+				String path = childPath(target, name);
+				Files.createDirectories(resolve(path));
+				statistics.adjust(path, 0, 0);
+			}
+			
+			@Override
+			public void file(String name, long size, long lastModified, InputStream content) throws IOException {
+				String path = childPath(target, name);
+				String parent = parentPath(path);
+				Path p = resolve(path);
+				Files.createDirectories(p.getParent());
+				int max = repoConfig.getPack().getMaxFileSize();
+				if (packs != null && size <= max && !Files.isDirectory(p, linkOption)) {
+					byte[] head = readHead(content, max + 1);
+					if (head.length <= max) {
+						storePacked(path, head, (lastModified >= 0) ? lastModified : System.currentTimeMillis());
+						return;
+					}
+					content = new SequenceInputStream(new ByteArrayInputStream(head), content);
+				}
+				if (size >= 0) {
+					PackStore.Entry packed = getPacked(path);
+					boolean exists = (packed != null) || Files.isRegularFile(p, linkOption);
+					long old = (packed != null) ? packed.getLength() : exists ? Files.size(p) : 0;
+					statistics.check(parent, size - old, exists ? 0 : 1);
+				}
+				// the entry is written next to the file, which is replaced when the entry is complete
+				Path tmp = Files.createTempFile(getSystemPath(TMP_DIR, p), "extract-", ".tmp");
+				try {
+					ChecksumInputStream checksummed = new ChecksumInputStream(content);
+					Files.copy(checksummed, tmp, StandardCopyOption.REPLACE_EXISTING);
+					if (lastModified >= 0) {
+						Files.setLastModifiedTime(tmp, FileTime.fromMillis(lastModified));
+					}
+					checksummed.getChecksum().write(tmp);
+					tmp = compressAtRest(tmp, path);
+					long written = Files.size(tmp);
+					synchronized (lockOf(path)) {
+						PackStore.Entry packed = getPacked(path);
+						boolean exists = (packed != null) || Files.isRegularFile(p, linkOption);
+						long old = (packed != null) ? packed.getLength() : exists ? Files.size(p) : 0;
+						statistics.reserve(parent, written - old, exists ? 0 : 1);
+						try {
+							if (packed == null && exists) {
+								// the content may be shared by a hard link, it is replaced and not written in place
+								keepVersion(p, path, false);
+							}
+							Files.move(tmp, p, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+							if (packed != null) {
+								packs.remove(RepositoryEvent.normalize(path));
+							}
+						} catch (IOException ex) {
+							statistics.adjust(parent, old - written, exists ? 0 : -1);
+							throw ex;
+						}
+					}
+				} finally {
+					FileUtils.deleteQuietly(tmp);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * The name of an archive entry relative to the archived directory
+	 */
+	protected static String relativeName(Path dir, Path p) {
+		return dir.relativize(p).toString().replace(File.separatorChar, '/');
+	}
+	
+	/**
+	 * Check the quotas for the extraction of an archive using the sizes
+	 * recorded in the archive
+	 * @param archive		the archive
+	 * @param targetPath	the repository path of the target directory
+	 * @throws IOException
+	 */
+	protected void checkArchive(Path archive, String targetPath) throws IOException {
+		long bytes = 0;
+		long files = 0;
+		try (ZipFile zip = new ZipFile(archive.toFile())) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (!entry.isDirectory()) {
+					bytes += Math.max(entry.getSize(), 0);
+					files++;
+				}
+			}
+		}
+		statistics.check(targetPath, bytes, files);
+	}
+	
+	/**
+	 * Return the info of an archive entry. If the archive does not exist or
+	 * is no ZIP archive, the entry does not exist
+	 */
+	protected RepoResource archiveInfo(String path) {
+		try (ArchiveCache.Archive archive = openArchive(path)) {
+			return archiveResource(archive.getPath(entryName(path)), path);
+		} catch (IOException ex) {
+			logger.debug("Unable to open the archive of {}: {}", path, ex.getMessage());
+			return new RepoResource(resolve(path), path);
+		}
+	}
+	
+	protected List<RepoResource> listArchive(String path, boolean showHidden, String glob) throws RepositoryException {
+		ArrayList<RepoResource> ret = new ArrayList<RepoResource>();
+		try (ArchiveCache.Archive archive = openArchive(path)) {
+			Path dir = archive.getPath(entryName(path));
+			if (!Files.isDirectory(dir)) {
+				throw new InvalidResourceTypeException(String.format("Path %s does not specifiy a directory", path));
+			}
+			String prefix = path.endsWith("/") ? path : path + "/";
+			try (DirectoryStream<Path> stream = (glob != null) ? Files.newDirectoryStream(dir, glob) : Files.newDirectoryStream(dir)) {
+				for (Path entry : stream) {
+					String name = entry.getFileName().toString();
+					if (name.endsWith("/")) {
+						name = name.substring(0, name.length() - 1);
+					}
+					if (showHidden || !name.startsWith(".")) {
+						ret.add(archiveResource(entry, prefix + name));
+					}
+				}
+			}
+		} catch (IOException | DirectoryIteratorException ex) {
+			String msg = String.format("Exception listing content of archive directory %s", path);
+			logger.error(msg, ex);
+			throw new RepositoryException(msg, ex);
+		}
+		return ret;
+	}
+	
+	/**
+	 * The system id of the source is the <code>jar:</code> URI of the entry,
+	 * so relative references are resolved within the archive
+	 */
+	protected Source getArchiveSource(String path) {
+		try (ArchiveCache.Archive archive = openArchive(path)) {
+			Path entry = archive.getPath(entryName(path));
+			StreamSource src = new StreamSource(new BufferedInputStream(archive.newInputStream(entryName(path))));
+			src.setSystemId(entry.toUri().toString());
+			logger.debug("System ID set to {}", src.getSystemId());
+			return src;
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+	
+	protected RepoResource archiveResource(Path entry, String repositoryPath) {
+		RepoResource ret = pathToResource(entry, repositoryPath).setCanWrite(false);
+		if (entry.getFileName() == null) {
+			// the root of the archive is named like the archive
+			ret.setPath(resolve(repositoryPath.substring(0, archiveIndex(repositoryPath))));
+		}
+		return ret;
+	}
+	
+	/**
+	 * Return the info of a packed file. It is located at the path the file
+	 * would have on the filesystem
+	 */
+	protected RepoResource packedResource(String repositoryPath, PackStore.Entry entry) {
+		RepoResource ret = new RepoResource(resolve(repositoryPath), repositoryPath);
+		Calendar modified = Calendar.getInstance();
+		modified.setTimeInMillis(entry.getModified());
+		ret.setExists(true);
+		ret.setCanRead(true);
+		ret.setCanWrite(true);
+		ret.setFile(true);
+		ret.setHidden(ret.getPath().getFileName().toString().startsWith("."));
+		ret.setCreationTime(modified);
+		ret.setLastAccesTime(modified);
+		ret.setLastModifiedTime(modified);
+		ret.setSize(entry.getLength());
+		ret.setCrc32(String.format("%08x", entry.getCrc()));
+		return ret;
+	}
+	
+	protected static String parentPath(String path) {
+		String p = RepositoryEvent.normalize(path);
+		int index = p.lastIndexOf('/');
+		return (index <= 0) ? "/" : p.substring(0, index);
+	}
+	
 	protected static Calendar toCalendar(FileTime ft) {
+		if (ft == null) {
+			// not every file system knows all times, e.g. archive entries
+			return null;
+		}
 		Calendar ct = Calendar.getInstance();
 		ct.setTimeInMillis(ft.toMillis());
 		return ct;
 	}
 	
+	/**
+	 * Add the checksums stored with a file to its RepoResource
+	 * @param res	the RepoResource
+	 * @param p		the file
+	 * @return res
+	 */
+	protected RepoResource withChecksum(RepoResource res, Path p) {
+		if (res.isFile()) {
+			long start = RequestTiming.start();
+			ContentChecksum checksum = ContentChecksum.read(p);
+			RequestTiming.record(RequestTiming.Phase.STAT, start, 1, 0);
+			if (checksum != null) {
+				res.setSha256(checksum.getSha256());
+				res.setCrc32(checksum.getCrc32());
+				contentIndex.put(checksum.getSha256(), res.getRepositoryPath());
+			}
+		}
+		return res;
+	}
+	
 	protected RepoResource pathToResource(Path p, String repositoryPath) {
 //		int start = root.normalize().getNameCount();
 //		int end = p.normalize().getNameCount();
+		long start = RequestTiming.start();
 		RepoResource ret = new RepoResource(p, repositoryPath);
 		ret.setExists(Files.exists(p, linkOption));
 		ret.setCanRead(Files.isReadable(p));
@@ -433,13 +2710,65 @@ public class FileRepositoryService implements RepositoryService {
 				ret.setLastAccesTime(toCalendar(attr.lastAccessTime()));
 				ret.setLastModifiedTime(toCalendar(attr.lastModifiedTime()));
 				ret.setSize(attr.size());
+				CompressedFile compressed = (ret.isFile() && compressedFiles) ? CompressedFile.read(p, attr) : null;
+				if (compressed != null) {
+					ret.setSize(compressed.getSize());
+					ret.setStoredSize(attr.size());
+				}
+				DirectoryStatistics.Totals t = (ret.isDirectory() && statistics != null) ? statistics.get(repositoryPath) : null;
+				if (t != null) {
+					ret.setTotalSize(t.getBytes());
+					ret.setFileCount(t.getFiles());
+				}
 			} catch (Exception ex) {
 				logger.error(ex.getMessage(), ex);
 				ret.setHidden(true);
 			}
 		}
+		// exists, isReadable, isWritable, isDirectory, isRegularFile and for existing files isHidden, readAttributes and the marker of compressed files
+		RequestTiming.record(RequestTiming.Phase.STAT, start, ret.isExists() ? ((ret.isFile() && compressedFiles) ? 8 : 7) : 5, 0);
 		return ret;
 	}
 	
+	/**
+	 * Writes the content of a result to its file and adds the bytes written
+	 * to the directory statistics, when it is closed
+	 */
+	class ResultOutputStream extends FilterOutputStream {
+		
+		private final String parent;
+		private long written;
+		private boolean closed;
+		
+		ResultOutputStream(Path p, String path) throws IOException {
+			super(new BufferedOutputStream(Files.newOutputStream(p)));
+			this.parent = parentPath(path);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			written++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			written += len;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				super.close();
+			} finally {
+				statistics.adjust(parent, written, 0);
+			}
+		}
+	}
 	
 }
@@ -0,0 +1,308 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.model.RepositoryEvent;
+import lombok.Data;
+
+/**
+ * This component watches the repository directory with a WatchService and
+ * publishes RepositoryEvents for changes that were not made through the
+ * RepositoryService. The state a resource was left in by the RepositoryService
+ * itself is remembered, events of a resource that is still in this state have
+ * already been published and are suppressed.
+ * @author arpablo
+ *
+ */
+@Component
+@ConditionalOnFileStore
+public class FileSystemWatcher implements Runnable {
+
+	private static Logger logger = LoggerFactory.getLogger(FileSystemWatcher.class);
+	
+	private static final int MAX_RECENT = 10000;
+	
+	@Autowired
+	private FileRepositoryService repository;
+	
+	@Autowired
+	private RepositoryProperties repoConfig;
+	
+	@Autowired
+	private ApplicationEventPublisher publisher;
+	
+	private WatchService watchService;
+	private final Map<WatchKey, Path> keys = new ConcurrentHashMap<WatchKey, Path>();
+	private final Map<String, State> recent = Collections.synchronizedMap(new LinkedHashMap<String, State>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, State> eldest) {
+			return size() > MAX_RECENT;
+		}
+	});
+	
+	@PostConstruct
+	protected void start() throws IOException {
+		if (!repoConfig.getChanges().isWatch()) {
+			return;
+		}
+		watchService = repository.getRoot().getPath().getFileSystem().newWatchService();
+		Thread t = new Thread(this, "repository-watcher");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	@PreDestroy
+	protected void stop() throws IOException {
+		if (watchService != null) {
+			watchService.close();
+		}
+	}
+	
+	/**
+	 * Remember the resources changed by the RepositoryService
+	 * @param event	the event
+	 */
+	@EventListener
+	public void onRepositoryEvent(RepositoryEvent event) {
+		if (!event.isExternal()) {
+			suppress(event.getPath());
+			if (event.getTargetPath() != null) {
+				suppress(event.getTargetPath());
+			}
+		}
+	}
+	
+	/**
+	 * Suppress the events of a change of a resource that is not published,
+	 * because its content stays the same. Must be called after the change
+	 * @param path	the repository path of the resource
+	 */
+	public void suppress(String path) {
+		recent.put(RepositoryEvent.normalize(path), State.of(repository.resolve(path), System.currentTimeMillis()));
+	}
+	
+	@Override
+	public void run() {
+		try {
+			for (Path root : repository.getRoots()) {
+				register(root);
+			}
+			logger.info("Watching {} directories for external changes", keys.size());
+			while (true) {
+				WatchKey key = watchService.take();
+				Path dir = keys.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (dir == null) {
+						break;
+					}
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						// events were lost, report the directory as changed
+						publishExternal(RepositoryEvent.Type.MODIFY, dir);
+						continue;
+					}
+					Path child = dir.resolve((Path) event.context());
+					if (repository.isSystemPath(child)) {
+						continue;
+					}
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+						if (Files.isDirectory(child)) {
+							register(child);
+						}
+						publishExternal(RepositoryEvent.Type.CREATE, child);
+					} else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+						publishExternal(RepositoryEvent.Type.DELETE, child);
+					} else {
+						publishExternal(RepositoryEvent.Type.MODIFY, child);
+					}
+				}
+				if (!key.reset()) {
+					keys.remove(key);
+				}
+			}
+		} catch (ClosedWatchServiceException | InterruptedException ex) {
+			logger.debug("Watcher stopped");
+		}
+	}
+	
+	/**
+	 * Watch a directory and its subdirectories. A directory, which cannot be
+	 * watched, e.g. because the limit of watches is reached, is logged and skipped
+	 * @param start	the directory
+	 */
+	protected void register(Path start) {
+		try {
+			Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					if (repository.isSystemPath(dir)) {
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+					try {
+						WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+								StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+						keys.put(key, dir);
+					} catch (IOException | RuntimeException ex) {
+						if (ex instanceof ClosedWatchServiceException) {
+							throw (ClosedWatchServiceException) ex;
+						}
+						logger.warn("Unable to watch {}: {}", dir, ex.getMessage());
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) {
+					logger.warn("Unable to watch {}: {}", file, exc.getMessage());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException ex) {
+			logger.warn("Unable to watch {}: {}", start, ex.getMessage());
+		}
+	}
+	
+	protected void publishExternal(RepositoryEvent.Type type, Path p) {
+		String path = repository.toRepositoryPath(p);
+		State current = State.of(p, System.currentTimeMillis());
+		State known = recent.get(path);
+		if (known != null) {
+			// the resource is still in the state the service left it in
+			if (known.matches(current)) {
+				return;
+			}
+			recent.remove(path);
+		} else {
+			// the change was made by a change of an ancestor through the service
+			for (String s = parentOf(path); s != null; s = parentOf(s)) {
+				State ancestor = recent.get(s);
+				if (ancestor != null) {
+					if (ancestor.contains(current)) {
+						return;
+					}
+					break;
+				}
+			}
+		}
+		publisher.publishEvent(new RepositoryEvent(type, path, null, true));
+	}
+	
+	protected static String parentOf(String path) {
+		int index = path.lastIndexOf('/');
+		if (index < 0 || path.equals("/")) {
+			return null;
+		}
+		return (index == 0) ? "/" : path.substring(0, index);
+	}
+	
+	/**
+	 * The state of a resource
+	 */
+	@Data
+	protected static class State {
+		
+		private final long time;
+		private final boolean exists;
+		private final boolean directory;
+		private final long size;
+		private final long modified;
+		private final Object fileKey;
+		
+		/**
+		 * Constructor
+		 * @param time		the time the state was read at
+		 * @param exists	<code>true</code>, if the resource exists
+		 * @param directory	<code>true</code>, if the resource is a directory
+		 * @param size		the size of the file
+		 * @param modified	the time of the last modification
+		 * @param fileKey	the key of the file in its filesystem
+		 */
+		public State(long time, boolean exists, boolean directory, long size, long modified, Object fileKey) {
+			this.time = time;
+			this.exists = exists;
+			this.directory = directory;
+			this.size = size;
+			this.modified = modified;
+			this.fileKey = fileKey;
+		}
+		
+		/**
+		 * Read the state of a file
+		 * @param p		the path of the file
+		 * @param time	the time the state is read at
+		 * @return the State
+		 */
+		public static State of(Path p, long time) {
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				return new State(time, true, attrs.isDirectory(), attrs.size(), attrs.lastModifiedTime().toMillis(), attrs.fileKey());
+			} catch (IOException ex) {
+				return new State(time, false, false, 0, 0, null);
+			}
+		}
+		
+		/**
+		 * Checks, if a resource is still in this state. A directory changes with
+		 * its entries and exists on every root of a sharded repository, only
+		 * its existence is compared
+		 * @param current	the current state of the resource
+		 * @return <code>true</code>, if the resource was not changed since
+		 */
+		public boolean matches(State current) {
+			if (exists != current.exists || directory != current.directory) {
+				return false;
+			}
+			if (!exists || directory) {
+				return true;
+			}
+			return size == current.size && modified == current.modified && Objects.equals(fileKey, current.fileKey);
+		}
+		
+		/**
+		 * Checks, if a descendant was changed together with the directory in
+		 * this state: it is gone with a removed directory or it was last modified
+		 * before the state of the directory was read
+		 * @param current	the current state of the descendant
+		 * @return <code>true</code>, if the descendant was not changed since
+		 */
+		public boolean contains(State current) {
+			if (!exists) {
+				return !current.exists;
+			}
+			return current.exists && current.modified <= time;
+		}
+	}
+	
+}
@@ -0,0 +1,644 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+
+import de.arpablo.hennirepo.common.ArchiveFormat;
+import de.arpablo.hennirepo.common.ArchiveReader;
+import de.arpablo.hennirepo.common.ArchiveWriter;
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.exception.InvalidResourceTypeException;
+import de.arpablo.hennirepo.exception.RepositoryException;
+import de.arpablo.hennirepo.exception.ResourceAccessException;
+import de.arpablo.hennirepo.model.RepoResource;
+import de.arpablo.hennirepo.model.RepositoryEvent;
+
+/**
+ * A RepositoryService keeping all resources in memory. The resources are
+ * stored in a sorted concurrent map keyed by their normalized path, so a
+ * subtree is a contiguous range of keys. Reads are lock-free, mutations are
+ * serialized. The content of a file is an immutable byte array that is
+ * replaced as a whole on write.
+ * This store is selected with <code>henni.repo.store=memory</code>. Nothing
+ * survives a restart.
+ * @author arpablo
+ *
+ */
+@Service
+@ConditionalOnProperty(prefix="henni.repo", name="store", havingValue="memory")
+public class MemoryRepositoryService implements RepositoryService {
+
+	private static Logger logger = LoggerFactory.getLogger(MemoryRepositoryService.class);
+	
+	/**
+	 * The system ID prefix of Sources and Results
+	 */
+	public static final String SCHEME = "memory:";
+	
+	private static final byte[] EMPTY = new byte[0];
+	
+	private final Path base = Paths.get("/henni-memory");
+	private final ConcurrentSkipListMap<String, Node> nodes = new ConcurrentSkipListMap<String, Node>();
+	
+	@Autowired
+	private ApplicationEventPublisher publisher;
+	
+	public MemoryRepositoryService() {
+		nodes.put("/", new Node(null));
+		logger.info("RepositoryService is using an in-memory store");
+	}
+	
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#getRoot()
+	 */
+	@Override
+	public RepoResource getRoot() {
+		return info("/");
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#getSource(java.lang.String)
+	 */
+	@Override
+	public Source getSource(String path) {
+		String key = key(path);
+		return new StreamSource(getContentInputStream(key), SCHEME + key);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#getResult(java.lang.String)
+	 */
+	@Override
+	public Result getResult(String path) throws IOException {
+		String key = key(path);
+		createDirectories(parentOf(key));
+		StreamResult ret = new StreamResult(new ContentOutputStream(key));
+		ret.setSystemId(SCHEME + key);
+		return ret;
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#info(java.lang.String)
+	 */
+	@Override
+	public RepoResource info(String path) {
+		String key = key(path);
+		return toResource(key, nodes.get(key));
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#exists(java.lang.String)
+	 */
+	@Override
+	public boolean exists(String path) {
+		return nodes.containsKey(key(path));
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#existsFile(java.lang.String)
+	 */
+	@Override
+	public boolean existsFile(String path) {
+		Node node = nodes.get(key(path));
+		return node != null && !node.isDirectory();
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#existsDirectory(java.lang.String)
+	 */
+	@Override
+	public boolean existsDirectory(String path) {
+		Node node = nodes.get(key(path));
+		return node != null && node.isDirectory();
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#list(java.lang.String)
+	 */
+	@Override
+	public List<RepoResource> list(String path) throws RepositoryException {
+		return list(path, false, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#list(java.lang.String, boolean)
+	 */
+	@Override
+	public List<RepoResource> list(String path, boolean showHidden) throws RepositoryException {
+		return list(path, showHidden, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#list(java.lang.String, boolean, java.lang.String)
+	 */
+	@Override
+	public List<RepoResource> list(String path, boolean showHidden, String glob) throws RepositoryException {
+		String key = key(path);
+		if (!existsDirectory(key)) {
+			throw new InvalidResourceTypeException(String.format("Path %s does not specifiy a directory", path));
+		}
+		PathMatcher matcher = (glob != null) ? FileSystems.getDefault().getPathMatcher("glob:" + glob) : null;
+		List<RepoResource> ret = new ArrayList<RepoResource>();
+		for (Map.Entry<String, Node> e : children(key)) {
+			String name = nameOf(e.getKey());
+			if ((showHidden || !name.startsWith(".")) && (matcher == null || matcher.matches(Paths.get(name)))) {
+				ret.add(toResource(e.getKey(), e.getValue()));
+			}
+		}
+		return ret;
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#getContentInputStream(java.lang.String)
+	 */
+	@Override
+	public InputStream getContentInputStream(String path) throws RepositoryException {
+		return new ByteArrayInputStream(getFile(key(path)).read());
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#getEncodedContent(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public CompressedFile.Stored getEncodedContent(String path, String encoding) throws RepositoryException {
+		// the content is held as is
+		return null;
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#getContent(java.lang.String, java.io.OutputStream)
+	 */
+	@Override
+	public void getContent(String path, OutputStream out) throws RepositoryException {
+		try {
+			out.write(getFile(key(path)).read());
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#setContent(java.lang.String, java.io.InputStream)
+	 */
+	@Override
+	public RepoResource setContent(String path, InputStream in) throws RepositoryException {
+		try {
+			return write(key(path), StreamUtils.copyToByteArray(in));
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#linkContent(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public RepoResource linkContent(String path, String sha256) throws RepositoryException {
+		// the content held in memory is not indexed, it is always sent
+		return null;
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#delete(java.lang.String)
+	 */
+	@Override
+	public synchronized void delete(String path) throws RepositoryException {
+		String key = key(path);
+		if (key.equals("/")) {
+			throw new RepositoryException("The root directory cannot be deleted");
+		}
+		if (nodes.remove(key) == null) {
+			throw new ResourceAccessException(String.format("Resource %s does not exist", path));
+		}
+		subtree(key).clear();
+		publish(RepositoryEvent.Type.DELETE, key, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#copy(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public synchronized void copy(String sourcePath, String targetPath) throws RepositoryException {
+		String source = key(sourcePath);
+		String target = key(targetPath);
+		Node node = getNode(source);
+		boolean isTargetDir = existsDirectory(target);
+		if (node.isDirectory() && !isTargetDir) {
+			throw new RepositoryException(String.format("Target path %s does not specify a directory", targetPath));
+		}
+		String dest = (isTargetDir) ? FileRepositoryService.childPath(target, nameOf(source)) : target;
+		if (dest.equals(source) || dest.startsWith(source + "/")) {
+			throw new RepositoryException(String.format("Cannot copy %s into itself", sourcePath));
+		}
+		checkParent(dest);
+		List<Map.Entry<String, Node>> entries = new ArrayList<Map.Entry<String, Node>>(subtree(source).entrySet());
+		nodes.put(dest, node.copy());
+		for (Map.Entry<String, Node> e : entries) {
+			nodes.put(dest + e.getKey().substring(source.length()), e.getValue().copy());
+		}
+		publish(RepositoryEvent.Type.CREATE, dest, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#move(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public synchronized void move(String sourcePath, String targetPath) throws RepositoryException {
+		String source = key(sourcePath);
+		String target = key(targetPath);
+		Node node = getNode(source);
+		String dest = existsDirectory(target) ? FileRepositoryService.childPath(target, nameOf(source)) : target;
+		if (dest.equals(source)) {
+			return;
+		}
+		if (source.equals("/") || dest.startsWith(source + "/")) {
+			throw new RepositoryException(String.format("Cannot move %s into itself", sourcePath));
+		}
+		checkParent(dest);
+		Node existing = nodes.get(dest);
+		if (existing != null && existing.isDirectory() && !subtree(dest).isEmpty()) {
+			throw new RepositoryException(String.format("Directory %s is not empty", dest));
+		}
+		NavigableMap<String, Node> entries = subtree(source);
+		List<Map.Entry<String, Node>> moved = new ArrayList<Map.Entry<String, Node>>(entries.entrySet());
+		nodes.put(dest, node);
+		for (Map.Entry<String, Node> e : moved) {
+			nodes.put(dest + e.getKey().substring(source.length()), e.getValue());
+		}
+		entries.clear();
+		nodes.remove(source);
+		publish(RepositoryEvent.Type.MOVE, source, dest);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#zip(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public synchronized RepoResource zip(String sourcePath, String targetPath) throws RepositoryException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		writeArchive(sourcePath, ArchiveFormat.of(targetPath), bos);
+		return write(key(targetPath), bos.toByteArray());
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#unzip(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public synchronized void unzip(String sourcePath, String targetPath) throws RepositoryException {
+		extractArchive(getContentInputStream(sourcePath), ArchiveFormat.of(sourcePath), targetPath);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#writeArchive(java.lang.String, de.arpablo.hennirepo.common.ArchiveFormat, java.io.OutputStream)
+	 */
+	@Override
+	public void writeArchive(String path, ArchiveFormat format, OutputStream out) throws RepositoryException {
+		writeArchive(Collections.singletonMap(key(path), ""), format, out);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#writeArchive(java.util.List, de.arpablo.hennirepo.common.ArchiveFormat, java.io.OutputStream)
+	 */
+	@Override
+	public void writeArchive(List<String> paths, ArchiveFormat format, OutputStream out) throws RepositoryException {
+		List<String> keys = new ArrayList<String>(paths.size());
+		for (String path : paths) {
+			keys.add(key(path));
+		}
+		writeArchive(ArchiveWriter.selectionNames(keys), format, out);
+	}
+
+	/**
+	 * Write resources as archive
+	 * @param entries	the entry names by key, the content of a directory
+	 * 					with an empty name is added without prefix
+	 */
+	protected void writeArchive(Map<String, String> entries, ArchiveFormat format, OutputStream out) throws RepositoryException {
+		Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+		for (String source : entries.keySet()) {
+			nodes.put(source, getNode(source));
+		}
+		Set<String> names = new HashSet<String>();
+		try (ArchiveWriter writer = new ArchiveWriter(out, format)) {
+			for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+				String source = entry.getKey();
+				String prefix = entries.get(source);
+				Node node = entry.getValue();
+				if (!node.isDirectory()) {
+					String name = prefix.isEmpty() ? nameOf(source) : prefix;
+					if (names.add(name)) {
+						writer.addFile(name, node.content.length, node.modified, new ByteArrayInputStream(node.read()));
+					}
+					continue;
+				}
+				if (!prefix.isEmpty() && names.add(prefix)) {
+					writer.addDirectory(prefix, node.modified);
+				}
+				for (Map.Entry<String, Node> e : subtree(source).entrySet()) {
+					String name = (prefix.isEmpty() ? "" : prefix + "/") + e.getKey().substring(source.equals("/") ? 1 : source.length() + 1);
+					Node n = e.getValue();
+					if (!names.add(name)) {
+						continue;
+					}
+					if (n.isDirectory()) {
+						writer.addDirectory(name, n.modified);
+					} else {
+						writer.addFile(name, n.content.length, n.modified, new ByteArrayInputStream(n.read()));
+					}
+				}
+			}
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#extractArchive(java.io.InputStream, de.arpablo.hennirepo.common.ArchiveFormat, java.lang.String)
+	 */
+	@Override
+	public synchronized void extractArchive(InputStream in, ArchiveFormat format, String targetPath) throws RepositoryException {
+		String target = key(targetPath);
+		createDirectories(target);
+		try {
+			ArchiveReader.read(in, format, new ArchiveReader.EntryHandler() {
+				@Override
+				public void directory(String name, long lastModified) {
+					createDirectories(key(target + "/" + name));
+				}
+				
+				@Override
+				public void file(String name, long size, long lastModified, InputStream content) throws IOException {
+					String dest = key(target + "/" + name);
+					Node node = nodes.get(dest);
+					if (node != null && node.isDirectory()) {
+						throw new InvalidResourceTypeException(String.format("Path '%s' qualifies a directory", dest));
+					}
+					createDirectories(parentOf(dest));
+					byte[] data = StreamUtils.copyToByteArray(content);
+					nodes.put(dest, (node != null) ? node.write(data) : new Node(data));
+				}
+			});
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+		publish(RepositoryEvent.Type.MODIFY, target, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#createDirectories(java.lang.String)
+	 */
+	@Override
+	public synchronized RepoResource createDirectories(String dirPath) throws RepositoryException {
+		String key = key(dirPath);
+		Node node = nodes.get(key);
+		if (node == null) {
+			createDirectories(parentOf(key));
+			nodes.put(key, new Node(null));
+			publish(RepositoryEvent.Type.CREATE, key, null);
+		} else if (!node.isDirectory()) {
+			throw new RepositoryException(String.format("File %s exists", key));
+		}
+		return info(key);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.arpablo.hennirepo.service.RepositoryService#createFile(java.lang.String)
+	 */
+	@Override
+	public synchronized RepoResource createFile(String path) throws RepositoryException {
+		String key = key(path);
+		if (nodes.containsKey(key)) {
+			throw new RepositoryException(String.format("Resource %s exists", key));
+		}
+		return write(key, EMPTY);
+	}
+	
+	/**
+	 * Replace the content of the file with the given key
+	 * @param key		the normalized path
+	 * @param content	the new content
+	 * @return the RepoResource of the file
+	 */
+	protected synchronized RepoResource write(String key, byte[] content) {
+		Node node = nodes.get(key);
+		if (node != null && node.isDirectory()) {
+			throw new InvalidResourceTypeException(String.format("Path '%s' qualifies a directory", key));
+		}
+		checkParent(key);
+		nodes.put(key, (node != null) ? node.write(content) : new Node(content));
+		publish((node != null) ? RepositoryEvent.Type.MODIFY : RepositoryEvent.Type.CREATE, key, null);
+		return info(key);
+	}
+	
+	protected void publish(RepositoryEvent.Type type, String path, String targetPath) {
+		publisher.publishEvent(new RepositoryEvent(type, path, targetPath, false));
+	}
+	
+	protected Node getNode(String key) {
+		Node node = nodes.get(key);
+		if (node == null) {
+			throw new ResourceAccessException(String.format("Resource %s does not exist", key));
+		}
+		return node;
+	}
+	
+	protected Node getFile(String key) {
+		Node node = getNode(key);
+		if (node.isDirectory()) {
+			throw new InvalidResourceTypeException(String.format("Path '%s' qualifies a directory", key));
+		}
+		return node;
+	}
+	
+	protected void checkParent(String key) {
+		if (!existsDirectory(parentOf(key))) {
+			throw new ResourceAccessException(String.format("Parent directory of %s does not exist", key));
+		}
+	}
+	
+	/**
+	 * Return all descendants of the given directory. As '0' follows '/', the
+	 * keys of a subtree form the range [dir/, dir0)
+	 * @param key	the normalized path of the directory
+	 * @return a view of the descendants
+	 */
+	protected NavigableMap<String, Node> subtree(String key) {
+		if (key.equals("/")) {
+			return nodes.tailMap("/", false);
+		}
+		return nodes.subMap(key + "/", true, key + "0", false);
+	}
+	
+	/**
+	 * Return the direct children of the given directory. The descendants of
+	 * a child directory are skipped with a single lookup
+	 * @param key	the normalized path of the directory
+	 * @return a List of entries
+	 */
+	protected List<Map.Entry<String, Node>> children(String key) {
+		List<Map.Entry<String, Node>> ret = new ArrayList<Map.Entry<String, Node>>();
+		int start = key.equals("/") ? 1 : key.length() + 1;
+		NavigableMap<String, Node> range = subtree(key);
+		Map.Entry<String, Node> e = range.firstEntry();
+		while (e != null) {
+			int slash = e.getKey().indexOf('/', start);
+			if (slash < 0) {
+				ret.add(e);
+				e = range.higherEntry(e.getKey());
+			} else {
+				e = range.ceilingEntry(e.getKey().substring(0, slash) + "0");
+			}
+		}
+		return ret;
+	}
+	
+	protected RepoResource toResource(String key, Node node) {
+		RepoResource ret = new RepoResource(key.equals("/") ? base : base.resolve(key.substring(1)), key);
+		ret.setExists(node != null);
+		if (node != null) {
+			ret.setCanRead(true);
+			ret.setCanWrite(true);
+			ret.setDirectory(node.isDirectory());
+			ret.setFile(!node.isDirectory());
+			ret.setHidden(nameOf(key).startsWith("."));
+			ret.setCreationTime(toCalendar(node.created));
+			ret.setLastAccesTime(toCalendar(node.accessed));
+			ret.setLastModifiedTime(toCalendar(node.modified));
+			ret.setSize(node.isDirectory() ? 0 : node.content.length);
+		}
+		return ret;
+	}
+	
+	protected static Calendar toCalendar(long millis) {
+		Calendar ret = Calendar.getInstance();
+		ret.setTimeInMillis(millis);
+		return ret;
+	}
+	
+	/**
+	 * Normalize a repository path to the form <code>/a/b</code>
+	 * @param path	the path
+	 * @return the key of the path
+	 */
+	protected static String key(String path) {
+		StringBuilder sb = new StringBuilder();
+		for (String name : (path == null) ? new String[0] : path.split("/")) {
+			if (name.isEmpty() || name.equals(".")) {
+				continue;
+			}
+			if (name.equals("..")) {
+				throw new RepositoryException(String.format("Invalid path %s", path));
+			}
+			sb.append('/').append(name);
+		}
+		return (sb.length() == 0) ? "/" : sb.toString();
+	}
+	
+	protected static String parentOf(String key) {
+		int index = key.lastIndexOf('/');
+		return (index <= 0) ? "/" : key.substring(0, index);
+	}
+	
+	protected static String nameOf(String key) {
+		return key.substring(key.lastIndexOf('/') + 1);
+	}
+	
+	/**
+	 * A file or directory. The content of a directory is <code>null</code>
+	 */
+	static class Node {
+		final byte[] content;
+		final long created;
+		final long modified;
+		volatile long accessed;
+		
+		Node(byte[] content) {
+			this(content, System.currentTimeMillis());
+		}
+		
+		Node(byte[] content, long created) {
+			this.content = content;
+			this.created = created;
+			this.modified = System.currentTimeMillis();
+			this.accessed = modified;
+		}
+		
+		boolean isDirectory() {
+			return content == null;
+		}
+		
+		byte[] read() {
+			accessed = System.currentTimeMillis();
+			return content;
+		}
+		
+		Node write(byte[] content) {
+			return new Node(content, created);
+		}
+		
+		Node copy() {
+			return new Node(content);
+		}
+	}
+	
+	/**
+	 * Collects the content written to a Result. The content is stored on
+	 * flush and on close
+	 */
+	class ContentOutputStream extends ByteArrayOutputStream {
+		
+		private final String key;
+		
+		ContentOutputStream(String key) {
+			this.key = key;
+		}
+		
+		@Override
+		public void flush() {
+			MemoryRepositoryService.this.write(key, toByteArray());
+		}
+		
+		@Override
+		public void close() {
+			flush();
+		}
+	}
+	
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact binary image of the metadata of the repository, which allows a
+ * warm start without walking the repository. For every directory it holds
+ * the size and number of the files directly in the directory and the
+ * modification time of the directory on every root. A directory whose
+ * modification time differs on startup has changed since the checkpoint and
+ * is counted again, all others are taken as they are.
+ * <p>
+ * The checkpoint is written to a temporary file and renamed, so it is
+ * either complete or missing. It is read with memory-mapped I/O.
+ * @author arpablo
+ *
+ */
+public class MetadataCheckpoint {
+
+	private static final int MAGIC = 0x484e4350;
+	private static final int VERSION = 1;
+
+	/**
+	 * The modification time of a directory missing on a root
+	 */
+	public static final long ABSENT = Long.MIN_VALUE;
+
+	/**
+	 * The modification time of a directory that has to be counted again
+	 */
+	public static final long DIRTY = Long.MIN_VALUE + 1;
+
+	/**
+	 * The metadata of a directory
+	 */
+	public static final class Record {
+		private final String path;
+		private final long bytes;
+		private final long files;
+		private final long[] modified;
+
+		/**
+		 * Constructor
+		 * @param path		the repository path of the directory
+		 * @param bytes		the size of the files directly in the directory
+		 * @param files		the number of files directly in the directory
+		 * @param modified	the modification time of the directory on every root
+		 */
+		public Record(String path, long bytes, long files, long[] modified) {
+			this.path = path;
+			this.bytes = bytes;
+			this.files = files;
+			this.modified = modified;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getFiles() {
+			return files;
+		}
+
+		public long[] getModified() {
+			return modified;
+		}
+	}
+
+	private final long sequence;
+	private final long created;
+	private final int roots;
+	private final List<Record> records;
+
+	/**
+	 * Constructor
+	 * @param sequence	the last sequence number of the change feed
+	 * @param created	the time of the checkpoint in milliseconds
+	 * @param roots		the number of roots of the repository
+	 * @param records	the directories
+	 */
+	public MetadataCheckpoint(long sequence, long created, int roots, List<Record> records) {
+		this.sequence = sequence;
+		this.created = created;
+		this.roots = roots;
+		this.records = records;
+	}
+
+	/**
+	 * @return the last sequence number of the change feed when the checkpoint was taken
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the time of the checkpoint in milliseconds
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return the number of roots of the repository
+	 */
+	public int getRoots() {
+		return roots;
+	}
+
+	/**
+	 * @return the directories
+	 */
+	public List<Record> getRecords() {
+		return records;
+	}
+
+	/**
+	 * Write the checkpoint
+	 * @param file	the file
+	 * @throws IOException
+	 */
+	public void write(Path file) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(roots);
+			out.writeLong(sequence);
+			out.writeLong(created);
+			out.writeInt(records.size());
+			for (Record record : records) {
+				byte[] path = record.path.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(path.length);
+				out.write(path);
+				out.writeLong(record.bytes);
+				out.writeLong(record.files);
+				for (int i = 0; i < roots; i++) {
+					out.writeLong(record.modified[i]);
+				}
+			}
+		}
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Read a checkpoint
+	 * @param file	the file
+	 * @return the MetadataCheckpoint
+	 * @throws IOException if the file is missing or invalid
+	 */
+	public static MetadataCheckpoint read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException(String.format("%s is not a metadata checkpoint", file));
+			}
+			int roots = buffer.getInt();
+			long sequence = buffer.getLong();
+			long created = buffer.getLong();
+			int count = buffer.getInt();
+			List<Record> records = new ArrayList<Record>(Math.max(0, Math.min(count, 1 << 20)));
+			byte[] path = new byte[256];
+			for (int i = 0; i < count; i++) {
+				int length = buffer.getInt();
+				if (length > path.length) {
+					path = new byte[Math.max(length, path.length * 2)];
+				}
+				buffer.get(path, 0, length);
+				long bytes = buffer.getLong();
+				long files = buffer.getLong();
+				long[] modified = new long[roots];
+				for (int r = 0; r < roots; r++) {
+					modified[r] = buffer.getLong();
+				}
+				records.add(new Record(new String(path, 0, length, StandardCharsets.UTF_8), bytes, files, modified));
+			}
+			return new MetadataCheckpoint(sequence, created, roots, records);
+		} catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+			throw new IOException(String.format("%s is truncated", file));
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+
+/**
+ * Writes the {@link MetadataCheckpoint} periodically, so after a crash only
+ * the directories changed since the last checkpoint have to be counted.
+ * @author arpablo
+ *
+ */
+@Service
+@ConditionalOnFileStore
+public class MetadataCheckpointer {
+
+	private static Logger logger = LoggerFactory.getLogger(MetadataCheckpointer.class);
+
+	@Autowired
+	private FileRepositoryService repository;
+
+	@Autowired
+	private RepositoryProperties repoConfig;
+
+	/**
+	 * Write the metadata checkpoint
+	 */
+	@Scheduled(fixedDelayString="${henni.repo.checkpoint.interval:300000}", initialDelayString="${henni.repo.checkpoint.interval:300000}")
+	public void checkpoint() {
+		if (!repoConfig.getCheckpoint().isEnabled()) {
+			return;
+		}
+		try {
+			repository.writeCheckpoint();
+		} catch (IOException ex) {
+			logger.error("Failed to write the metadata checkpoint", ex);
+		}
+	}
+
+}
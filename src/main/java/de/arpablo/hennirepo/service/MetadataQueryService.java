@@ -0,0 +1,384 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.exception.InvalidResourceTypeException;
+import de.arpablo.hennirepo.exception.RepositoryException;
+import de.arpablo.hennirepo.model.MetadataQuery;
+import de.arpablo.hennirepo.model.RepositoryEvent;
+
+/**
+ * Answers queries over the metadata of the repository, e.g. the largest
+ * files below a directory or the files changed in the last hour. The
+ * directories are walked in parallel, each walker keeps the best matches
+ * in a heap bounded by the limit, so only the results are turned into
+ * RepoResources. The directory statistics serve as index: a directory
+ * whose files are smaller in total than the size a match needs is skipped.
+ * @author arpablo
+ *
+ */
+@Service
+@ConditionalOnFileStore
+public class MetadataQueryService {
+
+	private static Logger logger = LoggerFactory.getLogger(MetadataQueryService.class);
+
+	@Autowired
+	private FileRepositoryService repository;
+
+	@Autowired
+	private RepositoryProperties repoConfig;
+
+	private ForkJoinPool pool;
+
+	/**
+	 * A resource matching a query
+	 */
+	public static class Match {
+		private final String path;
+		private final long size;
+		private final long modified;
+
+		Match(String path, long size, long modified) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+		}
+
+		/**
+		 * @return the repository path
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getModified() {
+			return modified;
+		}
+
+		String getName() {
+			return path.substring(path.lastIndexOf('/') + 1);
+		}
+	}
+
+	@PostConstruct
+	protected void initialize() {
+		pool = new ForkJoinPool(Math.max(1, repoConfig.getQuery().getThreads()));
+	}
+
+	@PreDestroy
+	protected void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Return the resources below a directory matching a query
+	 * @param path	the repository path of the directory
+	 * @param query	the query
+	 * @return the matches in the order of the query, at most its limit
+	 * @throws RepositoryException
+	 */
+	public List<Match> query(String path, MetadataQuery query) throws RepositoryException {
+		String dir = RepositoryEvent.normalize(path);
+		if (!repository.existsDirectory(dir)) {
+			throw new InvalidResourceTypeException(String.format("Path %s does not specifiy a directory", path));
+		}
+		int limit = Math.min(query.getLimit(), repoConfig.getQuery().getMaxLimit());
+		if (limit <= 0) {
+			return Collections.emptyList();
+		}
+		Query q = new Query(dir, query, limit);
+		// the statistics count the bytes stored, which are less than the size of compressed files
+		q.prune = !repository.hasCompressedFiles();
+		List<WalkTask> tasks = new ArrayList<WalkTask>();
+		for (Path p : repository.resolveAll(dir)) {
+			tasks.add(new WalkTask(q, p, dir));
+		}
+		TopK result = new TopK(q);
+		for (WalkTask task : tasks) {
+			result.addAll(pool.invoke(task));
+		}
+		if (repository.getPackStore() != null && !repository.isSnapshotPath(dir)) {
+			for (Map.Entry<String, PackStore.Entry> e : repository.getPackStore().list(dir).entrySet()) {
+				Match m = new Match(e.getKey(), e.getValue().getLength(), e.getValue().getModified());
+				if ((q.hidden || !m.getName().startsWith(".")) && q.matches(m, false)) {
+					result.add(m);
+				}
+			}
+		}
+		return result.sorted();
+	}
+
+	/**
+	 * The criteria of a query prepared for matching
+	 */
+	protected static class Query {
+		final String dir;
+		final MetadataQuery.Type type;
+		final PathMatcher matcher;
+		final boolean matchPath;
+		final List<String> extensions = new ArrayList<String>();
+		final long minSize;
+		final long maxSize;
+		final long modifiedAfter;
+		final long modifiedBefore;
+		final boolean hidden;
+		final Comparator<Match> order;
+		final boolean largestFirst;
+		/** if true, the size of compressed files is read from their marker */
+		final boolean bySize;
+		final int limit;
+		/** if true, directories are skipped by their statistics */
+		boolean prune = true;
+		/** the size a file needs to be among the results, raised while the heaps fill */
+		final AtomicLong sizeFloor = new AtomicLong();
+		/** the number of matches found, if the results are not ordered */
+		final AtomicInteger found = new AtomicInteger();
+
+		Query(String dir, MetadataQuery query, int limit) {
+			this.dir = dir;
+			this.type = (query.getType() != null) ? query.getType() : MetadataQuery.Type.FILE;
+			this.matcher = (query.getGlob() != null) ? FileSystems.getDefault().getPathMatcher("glob:" + query.getGlob()) : null;
+			this.matchPath = query.getGlob() != null && query.getGlob().contains("/");
+			if (query.getExtensions() != null) {
+				for (String ext : query.getExtensions()) {
+					extensions.add("." + (ext.startsWith(".") ? ext.substring(1) : ext).toLowerCase(Locale.ROOT));
+				}
+			}
+			this.minSize = (query.getMinSize() != null) ? query.getMinSize() : 0;
+			this.maxSize = (query.getMaxSize() != null) ? query.getMaxSize() : Long.MAX_VALUE;
+			long after = (query.getModifiedAfter() != null) ? query.getModifiedAfter() : Long.MIN_VALUE;
+			if (query.getModifiedWithin() != null) {
+				after = Math.max(after, System.currentTimeMillis() - query.getModifiedWithin());
+			}
+			this.modifiedAfter = after;
+			this.modifiedBefore = (query.getModifiedBefore() != null) ? query.getModifiedBefore() : Long.MAX_VALUE;
+			this.hidden = query.isHidden();
+			this.order = comparator(query.getOrder(), query.isDescending());
+			this.largestFirst = query.getOrder() == MetadataQuery.Order.SIZE && query.isDescending();
+			this.bySize = query.getOrder() == MetadataQuery.Order.SIZE || minSize > 0 || maxSize < Long.MAX_VALUE;
+			this.limit = limit;
+			sizeFloor.set(minSize);
+		}
+
+		boolean matches(Match m, boolean directory) {
+			if (directory ? type == MetadataQuery.Type.FILE : type == MetadataQuery.Type.DIRECTORY) {
+				return false;
+			}
+			if (m.size < minSize || m.size > maxSize || m.modified < modifiedAfter || m.modified > modifiedBefore) {
+				return false;
+			}
+			String name = m.getName();
+			if (!extensions.isEmpty()) {
+				String lower = name.toLowerCase(Locale.ROOT);
+				boolean known = false;
+				for (String ext : extensions) {
+					known |= lower.endsWith(ext);
+				}
+				if (!known) {
+					return false;
+				}
+			}
+			if (matcher != null) {
+				String relative = matchPath ? m.path.substring(dir.equals("/") ? 1 : dir.length() + 1) : name;
+				return matcher.matches(Paths.get(relative));
+			}
+			return true;
+		}
+
+		/**
+		 * Check, if the files below a directory can be skipped, because
+		 * their total size is below the size a match needs
+		 */
+		boolean skip(String dirPath, FileRepositoryService repository) {
+			long floor = sizeFloor.get();
+			if (!prune || type != MetadataQuery.Type.FILE || floor <= 0 || repository.getStatistics() == null) {
+				return false;
+			}
+			DirectoryStatistics.Totals t = repository.getStatistics().get(dirPath);
+			return t != null && t.getBytes() < floor;
+		}
+
+		private static Comparator<Match> comparator(MetadataQuery.Order order, boolean descending) {
+			if (order == null) {
+				return null;
+			}
+			Comparator<Match> ret;
+			switch (order) {
+			case SIZE:
+				ret = Comparator.comparingLong(Match::getSize);
+				break;
+			case MODIFIED:
+				ret = Comparator.comparingLong(Match::getModified);
+				break;
+			case NAME:
+				ret = Comparator.comparing(Match::getName);
+				break;
+			default:
+				ret = Comparator.comparing(Match::getPath);
+				break;
+			}
+			// ties are broken by the path, so the results do not depend on the walk
+			return (descending ? ret.reversed() : ret).thenComparing(Match::getPath);
+		}
+	}
+
+	/**
+	 * The best matches found so far, at most the limit of the query. The
+	 * worst of them is the head of the heap
+	 */
+	protected static class TopK {
+		private final Query query;
+		private final PriorityQueue<Match> heap;
+		private final List<Match> unordered;
+
+		TopK(Query query) {
+			this.query = query;
+			this.heap = (query.order != null) ? new PriorityQueue<Match>(Math.min(query.limit, 1024) + 1, query.order.reversed()) : null;
+			this.unordered = (query.order == null) ? new ArrayList<Match>() : null;
+		}
+
+		void add(Match m) {
+			if (heap == null) {
+				if (unordered.size() < query.limit) {
+					unordered.add(m);
+				}
+				return;
+			}
+			if (heap.size() < query.limit) {
+				heap.add(m);
+			} else if (query.order.compare(m, heap.peek()) < 0) {
+				heap.poll();
+				heap.add(m);
+			} else {
+				return;
+			}
+			if (heap.size() == query.limit && query.largestFirst) {
+				// no file smaller than the worst of a full heap is among the results
+				long floor = heap.peek().getSize();
+				query.sizeFloor.accumulateAndGet(floor, Math::max);
+			}
+		}
+
+		void addAll(TopK other) {
+			for (Match m : (other.heap != null) ? other.heap : other.unordered) {
+				add(m);
+			}
+		}
+
+		List<Match> sorted() {
+			List<Match> ret = new ArrayList<Match>((heap != null) ? heap : unordered);
+			if (query.order != null) {
+				ret.sort(query.order);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Walks a directory, the subdirectories are walked by forked tasks
+	 */
+	protected class WalkTask extends RecursiveTask<TopK> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Query query;
+		private final Path dir;
+		private final String dirPath;
+
+		WalkTask(Query query, Path dir, String dirPath) {
+			this.query = query;
+			this.dir = dir;
+			this.dirPath = dirPath;
+		}
+
+		@Override
+		protected TopK compute() {
+			TopK ret = new TopK(query);
+			if (query.order == null && query.found.get() >= query.limit) {
+				return ret;
+			}
+			List<WalkTask> subtasks = new ArrayList<WalkTask>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path p : stream) {
+					String name = p.getFileName().toString();
+					if (!query.hidden && name.startsWith(".")) {
+						continue;
+					}
+					BasicFileAttributes attrs;
+					try {
+						attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					} catch (NoSuchFileException ex) {
+						continue;
+					}
+					String path = dirPath.equals("/") ? "/" + name : dirPath + "/" + name;
+					if (attrs.isDirectory()) {
+						if (repository.isSystemPath(p)) {
+							continue;
+						}
+						if (!query.skip(path, repository)) {
+							subtasks.add(new WalkTask(query, p, path));
+						}
+					} else if (!attrs.isRegularFile()) {
+						continue;
+					}
+					long size = (query.bySize && attrs.isRegularFile()) ? CompressedFile.size(p, attrs) : attrs.size();
+					Match m = new Match(path, size, attrs.lastModifiedTime().toMillis());
+					if (query.matches(m, attrs.isDirectory())) {
+						ret.add(m);
+						if (query.order == null && query.found.incrementAndGet() >= query.limit) {
+							break;
+						}
+					}
+				}
+			} catch (NoSuchFileException ex) {
+				return ret;
+			} catch (IOException ex) {
+				logger.warn("Unable to list {}: {}", dir, ex.getMessage());
+			}
+			for (WalkTask task : invokeAll(subtasks)) {
+				ret.addAll(task.join());
+			}
+			return ret;
+		}
+	}
+
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import de.arpablo.hennirepo.common.FileUtils;
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.exception.InvalidResourceTypeException;
+import de.arpablo.hennirepo.exception.RepositoryException;
+import de.arpablo.hennirepo.exception.ResourceAccessException;
+import de.arpablo.hennirepo.model.RepoResource;
+import de.arpablo.hennirepo.model.UploadInfo;
+import de.arpablo.hennirepo.model.UploadPart;
+
+/**
+ * This service implements multipart uploads. An upload is initiated for a
+ * repository path, its numbered parts are streamed into a staging directory
+ * (in any order and concurrently) and are finally assembled into the target
+ * resource. Uploads that are neither completed nor aborted are discarded
+ * after a configurable period of inactivity.
+ * @author arpablo
+ *
+ */
+@Service
+@ConditionalOnFileStore
+public class MultipartUploadService {
+
+	private static Logger logger = LoggerFactory.getLogger(MultipartUploadService.class);
+	
+	private static final String UPLOAD_DIR = "uploads";
+	private static final String DESCRIPTOR = "upload.properties";
+	private static final String PART_PREFIX = "part-";
+	private static final String PART_GLOB = PART_PREFIX + "[0-9][0-9][0-9][0-9][0-9]";
+	private static final int MAX_PART_NUMBER = 99999;
+	private static final String PART_TMP_PREFIX = "tmp-part-";
+	private static final String ASSEMBLY = "assembly.tmp";
+
+	@Autowired
+	private FileRepositoryService repository;
+	
+	@Autowired
+	private RepositoryProperties repoConfig;
+	
+	private final Set<String> completing = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Initiate a new multipart upload for the given path
+	 * @param path	the repository path of the resource to upload
+	 * @return an UploadInfo with the id of the new upload
+	 * @throws RepositoryException
+	 */
+	public UploadInfo initiate(String path) throws RepositoryException {
+		if (repository.existsDirectory(path)) {
+			throw new InvalidResourceTypeException(String.format("Path %s qualifies a directory", path));
+		}
+		String uploadId = UUID.randomUUID().toString();
+		try {
+			Path dir = Files.createDirectory(getUploadRoot().resolve(uploadId));
+			Properties props = new Properties();
+			props.setProperty("path", path);
+			try (OutputStream out = Files.newOutputStream(dir.resolve(DESCRIPTOR))) {
+				props.store(out, null);
+			}
+			logger.debug("Initiated upload {} for path {}", uploadId, path);
+			return info(uploadId);
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+	
+	/**
+	 * Store a part of an upload. The content is streamed to disk and becomes
+	 * visible when it has been received completely, so a failed part can
+	 * simply be uploaded again
+	 * @param uploadId		the id of the upload
+	 * @param partNumber	the number of the part, starting with 1
+	 * @param in			the content of the part
+	 * @return the UploadPart
+	 * @throws RepositoryException
+	 */
+	public UploadPart uploadPart(String uploadId, int partNumber, InputStream in) throws RepositoryException {
+		// the part numbers are five digits in the names of the parts
+		int maxParts = Math.min(repoConfig.getUpload().getMaxParts(), MAX_PART_NUMBER);
+		if (partNumber < 1 || partNumber > maxParts) {
+			throw new RepositoryException(String.format("Part number must be between 1 and %d", maxParts));
+		}
+		Path dir = getUploadDirectory(uploadId);
+		Path tmp = null;
+		try {
+			// the name of a part that is still written must not match the parts
+			tmp = Files.createTempFile(dir, PART_TMP_PREFIX, ".tmp");
+			Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+			Path part = Files.move(tmp, dir.resolve(partName(partNumber)), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			return toUploadPart(part, Files.readAttributes(part, BasicFileAttributes.class));
+		} catch (IOException ex) {
+			FileUtils.deleteQuietly(tmp);
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+	
+	/**
+	 * Return information about the upload with the given id including
+	 * the parts received so far
+	 * @param uploadId	the id of the upload
+	 * @return an UploadInfo
+	 * @throws RepositoryException
+	 */
+	public UploadInfo info(String uploadId) throws RepositoryException {
+		Path dir = getUploadDirectory(uploadId);
+		try {
+			Properties props = new Properties();
+			try (InputStream in = Files.newInputStream(dir.resolve(DESCRIPTOR))) {
+				props.load(in);
+			}
+			BasicFileAttributes attr = Files.readAttributes(dir, BasicFileAttributes.class);
+			UploadInfo ret = new UploadInfo();
+			ret.setUploadId(uploadId);
+			ret.setRepositoryPath(props.getProperty("path"));
+			ret.setCreationTime(FileRepositoryService.toCalendar(attr.creationTime()));
+			ret.setParts(listParts(dir));
+			return ret;
+		} catch (NoSuchFileException ex) {
+			throw new ResourceAccessException(String.format("Upload %s does not exist", uploadId));
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+	
+	/**
+	 * Complete the upload. The parts are concatenated in the order of their
+	 * numbers and the result atomically replaces the target resource. The parts
+	 * have to be numbered without gaps starting with 1
+	 * @param uploadId	the id of the upload
+	 * @return the RepoResource of the uploaded resource
+	 * @throws RepositoryException
+	 */
+	public RepoResource complete(String uploadId) throws RepositoryException {
+		Path dir = getUploadDirectory(uploadId);
+		if (!completing.add(uploadId)) {
+			throw new RepositoryException(String.format("Upload %s is already being completed", uploadId));
+		}
+		try {
+			UploadInfo info = info(uploadId);
+			List<UploadPart> parts = info.getParts();
+			if (parts.isEmpty()) {
+				throw new RepositoryException(String.format("Upload %s has no parts", uploadId));
+			}
+			for (int i = 0; i < parts.size(); i++) {
+				if (parts.get(i).getPartNumber() != i + 1) {
+					throw new RepositoryException(String.format("Part %d of upload %s is missing", i + 1, uploadId));
+				}
+			}
+			Path assembly = dir.resolve(ASSEMBLY);
+			try (FileChannel out = FileChannel.open(assembly, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				for (UploadPart part : parts) {
+					try (FileChannel in = FileChannel.open(dir.resolve(partName(part.getPartNumber())), StandardOpenOption.READ)) {
+						long size = in.size();
+						long position = 0;
+						while (position < size) {
+							position += in.transferTo(position, size - position, out);
+						}
+					}
+				}
+				out.force(true);
+			}
+			RepoResource ret = repository.commitContent(assembly, info.getRepositoryPath());
+			logger.debug("Completed upload {} of {} parts to {}", uploadId, parts.size(), info.getRepositoryPath());
+			deleteUpload(dir);
+			return ret;
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		} finally {
+			completing.remove(uploadId);
+		}
+	}
+	
+	/**
+	 * Abort the upload and discard all parts received so far
+	 * @param uploadId	the id of the upload
+	 * @throws RepositoryException
+	 */
+	public void abort(String uploadId) throws RepositoryException {
+		Path dir = getUploadDirectory(uploadId);
+		try {
+			deleteUpload(dir);
+			logger.debug("Aborted upload {}", uploadId);
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+	
+	/**
+	 * Discard all uploads that have not been touched within the configured
+	 * expiry period
+	 */
+	@Scheduled(fixedDelayString="${henni.repo.upload.cleanup-interval:600000}")
+	public void removeExpiredUploads() {
+		long expiry = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(repoConfig.getUpload().getExpiryMinutes());
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(getUploadRoot())) {
+			for (Path dir : stream) {
+				if (completing.contains(dir.getFileName().toString()) || lastActivity(dir) > expiry) {
+					continue;
+				}
+				logger.info("Removing expired upload {}", dir.getFileName());
+				deleteUpload(dir);
+			}
+		} catch (IOException ex) {
+			logger.error("Failed to remove expired uploads", ex);
+		}
+	}
+	
+	protected Path getUploadRoot() throws IOException {
+		return repository.getSystemPath(UPLOAD_DIR);
+	}
+	
+	protected Path getUploadDirectory(String uploadId) throws RepositoryException {
+		try {
+			UUID.fromString(uploadId);
+			Path dir = getUploadRoot().resolve(uploadId);
+			if (Files.isDirectory(dir)) {
+				return dir;
+			}
+		} catch (IllegalArgumentException ex) {
+			// not a valid upload id
+		} catch (IOException ex) {
+			throw new RepositoryException(ex);
+		}
+		throw new ResourceAccessException(String.format("Upload %s does not exist", uploadId));
+	}
+	
+	protected static String partName(int partNumber) {
+		return String.format("%s%05d", PART_PREFIX, partNumber);
+	}
+	
+	protected List<UploadPart> listParts(Path dir) throws IOException {
+		List<UploadPart> ret = new ArrayList<UploadPart>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PART_GLOB)) {
+			for (Path part : stream) {
+				try {
+					ret.add(toUploadPart(part, Files.readAttributes(part, BasicFileAttributes.class)));
+				} catch (NoSuchFileException ex) {
+					// replaced concurrently
+				}
+			}
+		}
+		Collections.sort(ret, Comparator.comparingInt(UploadPart::getPartNumber));
+		return ret;
+	}
+	
+	protected UploadPart toUploadPart(Path part, BasicFileAttributes attr) {
+		UploadPart ret = new UploadPart();
+		ret.setPartNumber(Integer.parseInt(part.getFileName().toString().substring(PART_PREFIX.length())));
+		ret.setSize(attr.size());
+		ret.setLastModifiedTime(FileRepositoryService.toCalendar(attr.lastModifiedTime()));
+		return ret;
+	}
+	
+	protected long lastActivity(Path dir) throws IOException {
+		long ret = Files.getLastModifiedTime(dir).toMillis();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path file : stream) {
+				try {
+					ret = Math.max(ret, Files.getLastModifiedTime(file).toMillis());
+				} catch (NoSuchFileException ex) {
+					// removed concurrently
+				}
+			}
+		}
+		return ret;
+	}
+	
+	protected void deleteUpload(Path dir) throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path file : stream) {
+				Files.deleteIfExists(file);
+			}
+		}
+		Files.deleteIfExists(dir);
+	}
+	
+}
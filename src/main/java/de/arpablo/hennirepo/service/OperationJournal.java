@@ -0,0 +1,359 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lombok.Data;
+
+/**
+ * An append-only journal of the multi-step operations of the repository.
+ * An operation is logged durably before it runs and marked as complete
+ * afterwards, so operations interrupted by a crash can be found and repeated
+ * on the next start.
+ * <p>
+ * Writers don't sync the journal themselves: the first writer waiting for its
+ * record becomes the leader and syncs all records appended so far with a
+ * single force, the others wait for it (group commit). Completion records
+ * are not waited for, an operation that is repeated after a crash must
+ * therefore be idempotent.
+ * <p>
+ * A record consists of its length, a CRC32 of the payload and the payload.
+ * A torn record at the end of the journal is discarded on open.
+ * @author arpablo
+ *
+ */
+public class OperationJournal implements AutoCloseable {
+
+	private static Logger logger = LoggerFactory.getLogger(OperationJournal.class);
+
+	public enum Operation {
+		COPY, MOVE, DELETE, UNZIP
+	}
+
+	private static final byte BEGIN = 1;
+	private static final byte COMPLETE = 2;
+
+	/**
+	 * An operation logged in the journal
+	 */
+	@Data
+	public static class Entry {
+		private long id;
+		private Operation operation;
+		private String source;
+		private String target;
+	}
+
+	/**
+	 * A running operation. It is marked as complete by {@link #success()}, an
+	 * operation closed without success stays in the journal and is repeated
+	 * on the next start
+	 */
+	public interface Record extends AutoCloseable {
+		/**
+		 * Mark the operation as complete
+		 */
+		void success();
+
+		@Override
+		void close();
+	}
+
+	/**
+	 * A Record of an operation that is not logged
+	 */
+	public static final Record NOOP = new Record() {
+		@Override
+		public void success() {
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	private final Path file;
+	private final long maxBytes;
+	private FileChannel channel;
+
+	private final Object lock = new Object();
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private long appended;
+	private long durable;
+	private boolean flushing;
+	private long nextId = 1;
+	private final Set<Long> running = new HashSet<Long>();
+
+	/**
+	 * Constructor
+	 * @param file		the journal file or <code>null</code> to disable journaling
+	 * @param maxBytes	the journal is truncated when it exceeds this size and no operation is running
+	 */
+	public OperationJournal(Path file, long maxBytes) {
+		this.file = file;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Open the journal and return the operations that were started but not completed
+	 * @return the unfinished operations in the order they were started
+	 * @throws IOException
+	 */
+	public List<Entry> open() throws IOException {
+		if (file == null) {
+			return new ArrayList<Entry>();
+		}
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		Map<Long, Entry> unfinished = new LinkedHashMap<Long, Entry>();
+		ByteBuffer header = ByteBuffer.allocate(8);
+		long position = 0;
+		long size = channel.size();
+		while (position + 8 <= size) {
+			header.clear();
+			readFully(header, position);
+			int length = header.getInt(0);
+			long crc = header.getInt(4) & 0xffffffffL;
+			if (length <= 0 || position + 8 + length > size) {
+				break;
+			}
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			readFully(payload, position + 8);
+			CRC32 check = new CRC32();
+			check.update(payload.array(), 0, length);
+			if (check.getValue() != crc) {
+				break;
+			}
+			try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()))) {
+				byte type = in.readByte();
+				long id = in.readLong();
+				nextId = Math.max(nextId, id + 1);
+				if (type == BEGIN) {
+					Entry entry = new Entry();
+					entry.setId(id);
+					entry.setOperation(Operation.values()[in.readByte()]);
+					entry.setSource(in.readUTF());
+					String target = in.readUTF();
+					entry.setTarget(target.isEmpty() ? null : target);
+					unfinished.put(id, entry);
+				} else {
+					unfinished.remove(id);
+				}
+			}
+			position += 8 + length;
+		}
+		if (position < size) {
+			logger.warn("Discarding {} bytes at the end of the journal {}", size - position, file);
+			channel.truncate(position);
+		}
+		channel.position(position);
+		// unfinished operations must survive the truncation of the journal
+		running.addAll(unfinished.keySet());
+		logger.info("Opened journal {} with {} unfinished operations", file, unfinished.size());
+		return new ArrayList<Entry>(unfinished.values());
+	}
+
+	/**
+	 * Log the start of an operation. The method returns after the record is durable
+	 * @param operation	the operation
+	 * @param source	the repository path of the source
+	 * @param target	the repository path of the target or <code>null</code>
+	 * @return a Record which marks the operation as complete on success
+	 * @throws IOException
+	 */
+	public Record begin(Operation operation, String source, String target) throws IOException {
+		if (channel == null) {
+			return NOOP;
+		}
+		long id;
+		long seq;
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		synchronized (lock) {
+			id = nextId++;
+			try (DataOutputStream out = new DataOutputStream(payload)) {
+				out.writeByte(BEGIN);
+				out.writeLong(id);
+				out.writeByte(operation.ordinal());
+				out.writeUTF(source);
+				out.writeUTF((target == null) ? "" : target);
+			}
+			seq = append(payload.toByteArray());
+			running.add(id);
+		}
+		await(seq);
+		return new Record() {
+			private boolean complete;
+
+			@Override
+			public void success() {
+				if (!complete) {
+					complete = true;
+					complete(id);
+				}
+			}
+
+			@Override
+			public void close() {
+				if (!complete) {
+					// still running, so the journal is not truncated
+					logger.warn("{} of {} failed, it is repeated on the next start", operation, source);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Mark an operation found by {@link #open()} as complete
+	 * @param entry	the entry
+	 */
+	public void complete(Entry entry) {
+		if (channel != null) {
+			complete(entry.getId());
+		}
+	}
+
+	protected void complete(long id) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		synchronized (lock) {
+			try (DataOutputStream out = new DataOutputStream(payload)) {
+				out.writeByte(COMPLETE);
+				out.writeLong(id);
+			} catch (IOException ex) {
+				// can't happen with a ByteArrayOutputStream
+			}
+			append(payload.toByteArray());
+			running.remove(id);
+			if (running.isEmpty() && !flushing) {
+				try {
+					if (channel.size() + pending.size() > maxBytes) {
+						// nothing to recover, start over
+						pending.reset();
+						channel.truncate(0);
+						channel.position(0);
+						channel.force(false);
+						durable = appended;
+					}
+				} catch (IOException ex) {
+					logger.warn("Unable to truncate journal {}: {}", file, ex.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write all records appended so far
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		long seq;
+		synchronized (lock) {
+			seq = appended;
+		}
+		await(seq);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.AutoCloseable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			flush();
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * Append a record to the pending records, must be called holding the lock
+	 * @return the sequence number of the record
+	 */
+	private long append(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putInt(payload.length).putInt((int) crc.getValue());
+		pending.write(header.array(), 0, 8);
+		pending.write(payload, 0, payload.length);
+		return ++appended;
+	}
+
+	/**
+	 * Wait until the record with the given sequence number is durable. If no
+	 * other thread is writing, the current thread writes and syncs all pending
+	 * records, including those of other threads
+	 */
+	private void await(long seq) throws IOException {
+		while (true) {
+			long upTo;
+			byte[] data;
+			synchronized (lock) {
+				while (flushing && durable < seq) {
+					try {
+						lock.wait();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for the journal", ex);
+					}
+				}
+				if (durable >= seq) {
+					return;
+				}
+				flushing = true;
+				upTo = appended;
+				data = pending.toByteArray();
+				pending.reset();
+			}
+			// write without holding the lock, so other threads can append meanwhile
+			IOException error = null;
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(false);
+			} catch (IOException ex) {
+				error = ex;
+			}
+			synchronized (lock) {
+				flushing = false;
+				if (error == null) {
+					durable = upTo;
+				}
+				lock.notifyAll();
+			}
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+}
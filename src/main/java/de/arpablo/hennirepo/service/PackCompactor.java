@@ -0,0 +1,51 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+
+/**
+ * Compacts the segments of the {@link PackStore} in the background, so the
+ * space of removed and replaced small files is reclaimed.
+ * @author arpablo
+ *
+ */
+@Service
+@ConditionalOnFileStore
+public class PackCompactor {
+
+	private static Logger logger = LoggerFactory.getLogger(PackCompactor.class);
+
+	@Autowired
+	private FileRepositoryService repository;
+
+	@Autowired
+	private RepositoryProperties repoConfig;
+
+	/**
+	 * Compact the segments with too much garbage
+	 */
+	@Scheduled(fixedDelayString="${henni.repo.pack.compact-interval:600000}")
+	public void compact() {
+		PackStore packs = repository.getPackStore();
+		if (packs == null) {
+			return;
+		}
+		try {
+			packs.compact(repoConfig.getPack().getGarbageRatio());
+		} catch (IOException ex) {
+			logger.error("Failed to compact the pack store", ex);
+		}
+	}
+
+}
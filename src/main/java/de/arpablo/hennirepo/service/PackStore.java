@@ -0,0 +1,616 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores small files packed into large segment files. The content of a file
+ * is appended to the active segment, an index maps the repository path to
+ * the segment, offset and length. Every change of the index is appended to
+ * an index log, which is replayed on open and rewritten when it holds much
+ * more records than the index has entries.
+ * <p>
+ * Content is never overwritten, a replaced or removed file leaves garbage in
+ * its segment. {@link #compact(double)} copies the live content of segments
+ * with too much garbage to the active segment and deletes them. A copy of a
+ * file shares the content of the source.
+ * <p>
+ * Each entry records a CRC32 of its content, which is verified on read, so
+ * content lost in a crash is detected.
+ * @author arpablo
+ *
+ */
+public class PackStore implements AutoCloseable {
+
+	private static Logger logger = LoggerFactory.getLogger(PackStore.class);
+
+	private static final String LOG_FILE = "index.log";
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	/**
+	 * The location of the content of a packed file
+	 */
+	public static final class Entry {
+		private final int segment;
+		private final long offset;
+		private final int length;
+		private final int crc;
+		private final long modified;
+
+		Entry(int segment, long offset, int length, int crc, long modified) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.crc = crc;
+			this.modified = modified;
+		}
+
+		/**
+		 * @return the size of the content in bytes
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return the modification time in milliseconds
+		 */
+		public long getModified() {
+			return modified;
+		}
+
+		/**
+		 * @return the CRC32 of the content
+		 */
+		public long getCrc() {
+			return crc & 0xffffffffL;
+		}
+	}
+
+	private final Path dir;
+	private final long segmentSize;
+
+	private final TreeMap<String, Entry> index = new TreeMap<String, Entry>();
+	private final Map<Integer, FileChannel> segments = new TreeMap<Integer, FileChannel>();
+	private final Map<Integer, Long> live = new HashMap<Integer, Long>();
+	private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+	private FileChannel log;
+	private long records;
+	private int dropped;
+	private int active;
+	private long activeSize;
+
+	/**
+	 * Constructor
+	 * @param dir			the directory of the segments and the index log
+	 * @param segmentSize	a new segment is started when the active one exceeds this size
+	 */
+	public PackStore(Path dir, long segmentSize) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Open the segments and load the index
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		Files.createDirectories(dir);
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path p : stream) {
+				String name = p.getFileName().toString();
+				int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+				segments.put(id, FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE));
+				active = Math.max(active, id);
+			}
+		}
+		if (segments.isEmpty()) {
+			startSegment();
+		} else {
+			activeSize = segments.get(active).size();
+		}
+		log = FileChannel.open(dir.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		replay();
+		if (records > 2L * index.size() + 1024) {
+			checkpoint();
+		}
+		logger.info("Opened pack store {} with {} files in {} segments", dir, index.size(), segments.size());
+	}
+
+	/**
+	 * @return the number of files dropped on open because their content was missing
+	 */
+	public synchronized int getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Return the entry of a file
+	 * @param path	the normalized repository path
+	 * @return the Entry or <code>null</code>, if the file is not packed
+	 */
+	public synchronized Entry get(String path) {
+		return index.get(path);
+	}
+
+	/**
+	 * Read the content of a file
+	 * @param path	the normalized repository path
+	 * @return the content or <code>null</code>, if the file is not packed
+	 * @throws IOException if the content can't be read or is corrupt
+	 */
+	public byte[] read(String path) throws IOException {
+		while (true) {
+			Entry entry = get(path);
+			if (entry == null) {
+				return null;
+			}
+			segmentLock.readLock().lock();
+			try {
+				FileChannel channel = segments.get(entry.segment);
+				if (channel == null) {
+					// the segment was compacted meanwhile, the entry has moved
+					continue;
+				}
+				ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+						throw new EOFException(String.format("Content of %s is truncated", path));
+					}
+				}
+				CRC32 crc = new CRC32();
+				crc.update(buffer.array(), 0, entry.length);
+				if ((int) crc.getValue() != entry.crc) {
+					throw new IOException(String.format("Content of %s is corrupt", path));
+				}
+				return buffer.array();
+			} finally {
+				segmentLock.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Store the content of a file
+	 * @param path		the normalized repository path
+	 * @param data		the content
+	 * @param modified	the modification time in milliseconds
+	 * @return the replaced entry or <code>null</code>
+	 * @throws IOException
+	 */
+	public synchronized Entry put(String path, byte[] data, long modified) throws IOException {
+		return put(path, append(data), modified);
+	}
+
+	/**
+	 * Remove a file
+	 * @param path	the normalized repository path
+	 * @return the removed entry or <code>null</code>
+	 * @throws IOException
+	 */
+	public synchronized Entry remove(String path) throws IOException {
+		Entry old = index.remove(path);
+		if (old != null) {
+			writeRemove(path);
+			release(old);
+		}
+		return old;
+	}
+
+	/**
+	 * Copy a file. The copy shares the content of the source
+	 * @param source	the normalized repository path of the source
+	 * @param target	the normalized repository path of the target
+	 * @return the replaced entry of the target or <code>null</code>
+	 * @throws IOException
+	 */
+	public synchronized Entry copy(String source, String target) throws IOException {
+		Entry entry = index.get(source);
+		if (entry == null) {
+			throw new IOException(String.format("%s is not packed", source));
+		}
+		return put(target, entry, System.currentTimeMillis());
+	}
+
+	/**
+	 * Move a file, keeping its modification time
+	 * @param source	the normalized repository path of the source
+	 * @param target	the normalized repository path of the target
+	 * @return the replaced entry of the target or <code>null</code>
+	 * @throws IOException
+	 */
+	public synchronized Entry move(String source, String target) throws IOException {
+		Entry entry = index.get(source);
+		if (entry == null) {
+			throw new IOException(String.format("%s is not packed", source));
+		}
+		Entry old = put(target, entry, entry.modified);
+		remove(source);
+		return old;
+	}
+
+	/**
+	 * Return the files directly in a directory. The files of a subdirectory
+	 * are skipped with a single lookup
+	 * @param dir	the normalized repository path of the directory
+	 * @return the entries by name
+	 */
+	public synchronized Map<String, Entry> children(String dir) {
+		Map<String, Entry> ret = new LinkedHashMap<String, Entry>();
+		String prefix = dir.equals("/") ? "/" : dir + "/";
+		NavigableMap<String, Entry> range = subtree(dir);
+		Map.Entry<String, Entry> e = range.firstEntry();
+		while (e != null) {
+			int slash = e.getKey().indexOf('/', prefix.length());
+			if (slash < 0) {
+				ret.put(e.getKey().substring(prefix.length()), e.getValue());
+				e = range.higherEntry(e.getKey());
+			} else {
+				e = range.ceilingEntry(e.getKey().substring(0, slash) + "0");
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Return all files below a directory
+	 * @param dir	the normalized repository path of the directory
+	 * @return a copy of the entries by path
+	 */
+	public synchronized Map<String, Entry> list(String dir) {
+		return new LinkedHashMap<String, Entry>(subtree(dir));
+	}
+
+	/**
+	 * Copy all files below a directory
+	 * @param source	the normalized repository path of the source directory
+	 * @param target	the normalized repository path of the target directory
+	 * @throws IOException
+	 */
+	public synchronized void copyTree(String source, String target) throws IOException {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Entry> e : list(source).entrySet()) {
+			put(target + e.getKey().substring(source.length()), e.getValue(), now);
+		}
+	}
+
+	/**
+	 * Move all files below a directory
+	 * @param source	the normalized repository path of the source directory
+	 * @param target	the normalized repository path of the target directory
+	 * @throws IOException
+	 */
+	public synchronized void renameTree(String source, String target) throws IOException {
+		for (String path : list(source).keySet()) {
+			move(path, target + path.substring(source.length()));
+		}
+	}
+
+	/**
+	 * Remove all files below a directory
+	 * @param dir	the normalized repository path of the directory
+	 * @throws IOException
+	 */
+	public synchronized void removeTree(String dir) throws IOException {
+		for (String path : list(dir).keySet()) {
+			remove(path);
+		}
+	}
+
+	/**
+	 * Reclaim the space of removed and replaced files. The live content of
+	 * every inactive segment with more garbage than the given ratio is copied
+	 * to the active segment, then the segment is deleted
+	 * @param garbageRatio	the ratio of garbage that triggers the compaction of a segment
+	 * @return the number of bytes reclaimed
+	 * @throws IOException
+	 */
+	public long compact(double garbageRatio) throws IOException {
+		List<Integer> candidates = new ArrayList<Integer>();
+		synchronized (this) {
+			for (Map.Entry<Integer, FileChannel> e : segments.entrySet()) {
+				long size = e.getValue().size();
+				long used = live.getOrDefault(e.getKey(), 0L);
+				if (e.getKey() != active && size - used > size * garbageRatio) {
+					candidates.add(e.getKey());
+				}
+			}
+		}
+		long reclaimed = 0;
+		for (int segment : candidates) {
+			Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+			synchronized (this) {
+				for (Map.Entry<String, Entry> e : index.entrySet()) {
+					if (e.getValue().segment == segment) {
+						entries.put(e.getKey(), e.getValue());
+					}
+				}
+			}
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				byte[] data;
+				try {
+					data = read(e.getKey());
+				} catch (IOException ex) {
+					// the segment is kept, so the entry is not lost by the compaction
+					logger.warn("Skipping {} in the compaction of {}: {}", e.getKey(), dir, ex.getMessage());
+					continue;
+				}
+				synchronized (this) {
+					// copies share the old location, they are moved one by one
+					if (data != null && index.get(e.getKey()) == e.getValue()) {
+						put(e.getKey(), append(data), e.getValue().modified);
+					}
+				}
+			}
+			synchronized (this) {
+				if (live.getOrDefault(segment, 0L) > 0) {
+					// changed meanwhile, try again next time
+					continue;
+				}
+				// the moved entries must be durable before their old content is gone
+				segments.get(active).force(false);
+				log.force(false);
+				reclaimed += deleteSegment(segment);
+			}
+		}
+		synchronized (this) {
+			if (records > 2L * index.size() + 1024) {
+				checkpoint();
+			}
+		}
+		if (reclaimed > 0) {
+			logger.info("Compacted {} segments of {}, reclaimed {} bytes", candidates.size(), dir, reclaimed);
+		}
+		return reclaimed;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.AutoCloseable#close()
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		segmentLock.writeLock().lock();
+		try {
+			for (FileChannel channel : segments.values()) {
+				channel.force(false);
+				channel.close();
+			}
+			segments.clear();
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+		if (log != null) {
+			log.force(false);
+			log.close();
+			log = null;
+		}
+	}
+
+	protected Entry put(String path, Entry location, long modified) throws IOException {
+		Entry entry = new Entry(location.segment, location.offset, location.length, location.crc, modified);
+		writePut(path, entry);
+		Entry old = index.put(path, entry);
+		live.merge(entry.segment, (long) entry.length, Long::sum);
+		if (old != null) {
+			release(old);
+		}
+		return old;
+	}
+
+	/**
+	 * Append content to the active segment, a new segment is started when
+	 * the active one is full
+	 * @return the location of the content
+	 */
+	protected Entry append(byte[] data) throws IOException {
+		if (activeSize > 0 && activeSize + data.length > segmentSize) {
+			startSegment();
+		}
+		FileChannel channel = segments.get(active);
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		long offset = activeSize;
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, offset + buffer.position());
+		}
+		activeSize += data.length;
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return new Entry(active, offset, data.length, (int) crc.getValue(), 0);
+	}
+
+	protected void release(Entry entry) {
+		live.merge(entry.segment, (long) -entry.length, Long::sum);
+	}
+
+	protected void startSegment() throws IOException {
+		if (!segments.isEmpty()) {
+			segments.get(active).force(false);
+			active++;
+		}
+		Path p = dir.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, active, SEGMENT_SUFFIX));
+		FileChannel channel = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		// readers look up the segments without the monitor
+		segmentLock.writeLock().lock();
+		try {
+			segments.put(active, channel);
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+		activeSize = 0;
+	}
+
+	protected long deleteSegment(int segment) throws IOException {
+		segmentLock.writeLock().lock();
+		try {
+			FileChannel channel = segments.remove(segment);
+			long size = channel.size();
+			channel.close();
+			live.remove(segment);
+			Files.delete(dir.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX)));
+			return size;
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * The entries below the given directory, not including the directory itself
+	 */
+	private NavigableMap<String, Entry> subtree(String dir) {
+		String prefix = dir.equals("/") ? "/" : dir + "/";
+		return index.subMap(prefix, true, prefix.substring(0, prefix.length() - 1) + "0", false);
+	}
+
+	/**
+	 * Load the index from the log. Entries pointing behind the end of their
+	 * segment lost their content in a crash and are dropped
+	 */
+	private void replay() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(8);
+		long position = 0;
+		long size = log.size();
+		while (position + 8 <= size) {
+			header.clear();
+			readFully(log, header, position);
+			int length = header.getInt(0);
+			long crc = header.getInt(4) & 0xffffffffL;
+			if (length <= 0 || position + 8 + length > size) {
+				break;
+			}
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			readFully(log, payload, position + 8);
+			CRC32 check = new CRC32();
+			check.update(payload.array(), 0, length);
+			if (check.getValue() != crc) {
+				break;
+			}
+			try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()))) {
+				byte type = in.readByte();
+				String path = in.readUTF();
+				if (type == PUT) {
+					index.put(path, new Entry(in.readInt(), in.readLong(), in.readInt(), in.readInt(), in.readLong()));
+				} else {
+					index.remove(path);
+				}
+			}
+			records++;
+			position += 8 + length;
+		}
+		if (position < size) {
+			logger.warn("Discarding {} bytes at the end of the pack index {}", size - position, dir);
+			log.truncate(position);
+		}
+		log.position(position);
+		for (Iterator<Entry> it = index.values().iterator(); it.hasNext(); ) {
+			Entry entry = it.next();
+			FileChannel channel = segments.get(entry.segment);
+			if (channel == null || entry.offset + entry.length > channel.size()) {
+				it.remove();
+				dropped++;
+			} else {
+				live.merge(entry.segment, (long) entry.length, Long::sum);
+			}
+		}
+		if (dropped > 0) {
+			logger.warn("Dropped {} packed files of {} whose content is missing", dropped, dir);
+			checkpoint();
+		}
+	}
+
+	/**
+	 * Rewrite the log with one record per entry
+	 */
+	private void checkpoint() throws IOException {
+		Path tmp = dir.resolve(LOG_FILE + ".tmp");
+		FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		FileChannel old = log;
+		log = channel;
+		records = 0;
+		for (Map.Entry<String, Entry> e : index.entrySet()) {
+			writePut(e.getKey(), e.getValue());
+		}
+		// the segments must be durable before the old log is replaced
+		for (FileChannel segment : segments.values()) {
+			segment.force(false);
+		}
+		log.force(false);
+		Files.move(tmp, dir.resolve(LOG_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		old.close();
+		logger.debug("Rewrote the pack index {} with {} entries", dir, records);
+	}
+
+	private void writePut(String path, Entry entry) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(payload)) {
+			out.writeByte(PUT);
+			out.writeUTF(path);
+			out.writeInt(entry.segment);
+			out.writeLong(entry.offset);
+			out.writeInt(entry.length);
+			out.writeInt(entry.crc);
+			out.writeLong(entry.modified);
+		}
+		writeRecord(payload.toByteArray());
+	}
+
+	private void writeRemove(String path) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(payload)) {
+			out.writeByte(REMOVE);
+			out.writeUTF(path);
+		}
+		writeRecord(payload.toByteArray());
+	}
+
+	private void writeRecord(byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+		buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			log.write(buffer);
+		}
+		records++;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+}
@@ -11,6 +11,8 @@ import java.util.List;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 
+import de.arpablo.hennirepo.common.ArchiveFormat;
+import de.arpablo.hennirepo.common.CompressedFile;
 import de.arpablo.hennirepo.exception.RepositoryException;
 import de.arpablo.hennirepo.model.RepoResource;
 
@@ -121,6 +123,19 @@ public interface RepositoryService {
 	 */
 	public InputStream getContentInputStream(String path) throws RepositoryException;
 	
+	/**
+	 * Return the content at the given path as stored, if it is stored with
+	 * the given content coding, so it can be served without decoding and
+	 * encoding it again
+	 * @param path		the path to query
+	 * @param encoding	the content coding, e.g. gzip
+	 * @return the encoded content with the number of bytes stored, which must
+	 * 			be closed after use, or <code>null</code>, if the content is
+	 * 			not stored with the encoding
+	 * @throws RepositoryException
+	 */
+	public CompressedFile.Stored getEncodedContent(String path, String encoding) throws RepositoryException;
+	
 	/**
 	 * Write the content at the given path to the provided OutputStream
 	 * This method will throw a RepositoryException if the given path does not
@@ -142,6 +157,33 @@ public interface RepositoryService {
 	 * @throws RepositoryException
 	 */
 	public RepoResource setContent(String path, InputStream in) throws RepositoryException;
+
+	/**
+	 * Set the content of the resource at the given path to the content of
+	 * the given stream of a known length. A store with quotas rejects the
+	 * content before it is read, if it would exceed a quota
+	 * @param path		the path to work on
+	 * @param in		the inputstream with the new content
+	 * @param length	the length of the content or -1, if it is not known
+	 * @return		the RepoResource of the saved content
+	 * @throws RepositoryException
+	 */
+	public default RepoResource setContent(String path, InputStream in, long length) throws RepositoryException {
+		return setContent(path, in);
+	}
+
+	/**
+	 * Set the content of the resource at the given path to content the
+	 * repository already has, identified by its SHA-256. The content is
+	 * linked or copied into place without transferring it.
+	 * @param path		the path to work on
+	 * @param sha256	the SHA-256 of the content in hex
+	 * @return the RepoResource of the saved content or <code>null</code>, if
+	 * 			the repository does not know the content and it has to be
+	 * 			set with {@link #setContent(String, InputStream)}
+	 * @throws RepositoryException
+	 */
+	public RepoResource linkContent(String path, String sha256) throws RepositoryException;
 	
 	/**
 	 * Delete the resource at the given path. If the resource is a directory, it will be deleted recursively
@@ -183,6 +225,36 @@ public interface RepositoryService {
 	 */
 	public void unzip(String sourcePath, String targetPath) throws RepositoryException; 
 	
+	/**
+	 * Write the Resource as archive to the stream while the archive is created.
+	 * The content of a directory is stored relative to the directory
+	 * @param path		the path of the resource
+	 * @param format	the format of the archive
+	 * @param out		the stream to write to, which is not closed
+	 * @throws RepositoryException
+	 */
+	public void writeArchive(String path, ArchiveFormat format, OutputStream out) throws RepositoryException;
+	
+	/**
+	 * Write several Resources as one archive to the stream while the archive
+	 * is created. The entries are named by the paths of the resources
+	 * relative to their common parent directory
+	 * @param paths		the paths of the resources
+	 * @param format	the format of the archive
+	 * @param out		the stream to write to, which is not closed
+	 * @throws RepositoryException
+	 */
+	public void writeArchive(List<String> paths, ArchiveFormat format, OutputStream out) throws RepositoryException;
+	
+	/**
+	 * Extract an archive while it is read from the stream
+	 * @param in			the archive, which is not closed
+	 * @param format		the format of the archive
+	 * @param targetPath	the target path to extract to
+	 * @throws RepositoryException
+	 */
+	public void extractArchive(InputStream in, ArchiveFormat format, String targetPath) throws RepositoryException;
+	
 	
 	
 	/**
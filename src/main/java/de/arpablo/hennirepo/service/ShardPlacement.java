@@ -0,0 +1,259 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import de.arpablo.hennirepo.common.FlightEvents;
+/**
+ * This class distributes the repository across several root directories
+ * (shards). The first <code>depth</code> names of a repository path form its
+ * placement key, all resources with the same key live on the same shard.
+ * The shard of a key is chosen by rendezvous hashing, so adding a root only
+ * moves the keys that now belong to the new root. Directories above the
+ * placement level may exist on every shard, their listings are merged.
+ * <p>
+ * A key that is not found on its preferred shard is looked up on the other
+ * shards, so resources placed elsewhere (e.g. before a root was added) stay
+ * accessible until the ShardRebalancer has moved them.
+ * @author arpablo
+ *
+ */
+public class ShardPlacement {
+
+	private static final int STRIPES = 64;
+	
+	/**
+	 * Releases the locks acquired by {@link ShardPlacement#lockShared(String...)}
+	 * or {@link ShardPlacement#lockExclusive(String)}
+	 */
+	public interface Unlock extends AutoCloseable {
+		@Override
+		void close();
+	}
+	
+	private static final Unlock NOOP = () -> { };
+	
+	private final List<Path> roots;
+	private final List<String> ids = new ArrayList<String>();
+	private final int depth;
+	private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[STRIPES];
+	
+	/**
+	 * Constructor
+	 * @param roots	the root directories, the first one is the primary root
+	 * @param depth	the number of names forming the placement key
+	 */
+	public ShardPlacement(List<Path> roots, int depth) {
+		this.roots = Collections.unmodifiableList(new ArrayList<Path>(roots));
+		this.depth = Math.max(1, depth);
+		for (Path root : roots) {
+			ids.add(root.toAbsolutePath().normalize().toString());
+		}
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new ReentrantReadWriteLock();
+		}
+	}
+	
+	/**
+	 * @return all roots
+	 */
+	public List<Path> getRoots() {
+		return roots;
+	}
+	
+	/**
+	 * @return the primary root
+	 */
+	public Path getPrimary() {
+		return roots.get(0);
+	}
+	
+	/**
+	 * @return the number of names forming the placement key
+	 */
+	public int getDepth() {
+		return depth;
+	}
+	
+	/**
+	 * @return <code>true</code>, if there is more than one root
+	 */
+	public boolean isSharded() {
+		return roots.size() > 1;
+	}
+	
+	/**
+	 * Return the placement key of a repository path
+	 * @param path	the repository path
+	 * @return the key in the form <code>/a/b</code> or <code>/</code> for the root
+	 */
+	public String keyOf(String path) {
+		StringBuilder sb = new StringBuilder();
+		int count = 0;
+		for (String name : (path == null) ? new String[0] : path.split("/")) {
+			if (name.isEmpty()) {
+				continue;
+			}
+			if (count++ == depth) {
+				break;
+			}
+			sb.append('/').append(name);
+		}
+		return (sb.length() == 0) ? "/" : sb.toString();
+	}
+	
+	/**
+	 * Checks, if the given path is above the placement level. Directories
+	 * above the placement level may exist on every root
+	 * @param path	the repository path
+	 * @return <code>true</code>, if the path has less than depth names
+	 */
+	public boolean isSpanning(String path) {
+		String key = keyOf(path);
+		return key.equals("/") || key.split("/").length - 1 < depth;
+	}
+	
+	/**
+	 * Return the root a key is placed on by rendezvous hashing
+	 * @param key	the placement key
+	 * @return the root
+	 */
+	public Path owner(String key) {
+		if (!isSharded() || key.equals("/")) {
+			return getPrimary();
+		}
+		int best = 0;
+		long bestWeight = Long.MIN_VALUE;
+		for (int i = 0; i < roots.size(); i++) {
+			long weight = weight(ids.get(i), key);
+			if (weight > bestWeight) {
+				bestWeight = weight;
+				best = i;
+			}
+		}
+		return roots.get(best);
+	}
+	
+	/**
+	 * Return the root that currently holds the given key. This is the owner
+	 * of the key unless the key only exists on another root
+	 * @param key	the placement key
+	 * @return the root
+	 */
+	public Path locate(String key) {
+		Path owner = owner(key);
+		if (!isSharded() || key.equals("/")) {
+			return owner;
+		}
+		String relative = key.substring(1);
+		if (Files.exists(owner.resolve(relative), LinkOption.NOFOLLOW_LINKS)) {
+			return owner;
+		}
+		for (Path root : roots) {
+			if (root != owner && Files.exists(root.resolve(relative), LinkOption.NOFOLLOW_LINKS)) {
+				return root;
+			}
+		}
+		return owner;
+	}
+	
+	/**
+	 * Return the root containing the given filesystem path
+	 * @param p	a path below one of the roots
+	 * @return the root or the primary root if p is not below any root
+	 */
+	public Path rootOf(Path p) {
+		Path ret = null;
+		for (Path root : roots) {
+			if (p.startsWith(root) && (ret == null || root.getNameCount() > ret.getNameCount())) {
+				ret = root;
+			}
+		}
+		return (ret != null) ? ret : getPrimary();
+	}
+	
+	/**
+	 * Acquire the shared locks of the keys of the given paths. Mutations hold
+	 * the shared lock, so a key can't be migrated while it is modified.
+	 * Without shards, no locks are needed
+	 * @param paths	the repository paths
+	 * @return an Unlock releasing the locks
+	 */
+	public Unlock lockShared(String... paths) {
+		if (!isSharded()) {
+			return NOOP;
+		}
+		TreeSet<Integer> stripes = new TreeSet<Integer>();
+		for (String path : paths) {
+			stripes.add(stripe(keyOf(path)));
+		}
+		List<Lock> acquired = new ArrayList<Lock>();
+		for (int stripe : stripes) {
+			Lock lock = locks[stripe].readLock();
+			lock(lock, "shared", stripe);
+			acquired.add(lock);
+		}
+		return () -> {
+			for (Lock lock : acquired) {
+				lock.unlock();
+			}
+		};
+	}
+	
+	/**
+	 * Acquire the exclusive lock of a key
+	 * @param key	the placement key
+	 * @return an Unlock releasing the lock
+	 */
+	public Unlock lockExclusive(String key) {
+		Lock lock = locks[stripe(key)].writeLock();
+		lock(lock, "exclusive", stripe(key));
+		return lock::unlock;
+	}
+	
+	/**
+	 * Acquire a lock, recording the wait if it is held by another thread
+	 */
+	private static void lock(Lock lock, String mode, int stripe) {
+		if (lock.tryLock()) {
+			return;
+		}
+		FlightEvents.LockWait event = FlightEvents.lockWait("placement." + mode, Integer.toString(stripe));
+		lock.lock();
+		FlightEvents.commit(event);
+	}
+	
+	protected int stripe(String key) {
+		return (key.hashCode() & 0x7fffffff) % STRIPES;
+	}
+	
+	/**
+	 * The weight of a root for a key: FNV-1a over id and key, followed
+	 * by the MurmurHash3 finalizer for a good distribution
+	 */
+	protected static long weight(String id, String key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : (id + '\0' + key).getBytes(StandardCharsets.UTF_8)) {
+			h ^= (b & 0xff);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+	
+}
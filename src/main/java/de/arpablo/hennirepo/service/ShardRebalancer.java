@@ -0,0 +1,306 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.model.RebalanceStatus;
+import de.arpablo.hennirepo.model.RepositoryEvent;
+
+/**
+ * Moves resources to the root they are placed on by the {@link ShardPlacement},
+ * e.g. after a root was added. A key is copied to a staging directory on its
+ * new root without blocking writers. The resources changed in the meantime
+ * are synchronized in batches, the last batch under the exclusive lock of the
+ * key. Then the copy is renamed into place and the source is deleted. Readers
+ * find the key on either root during the migration. Changes are reported by
+ * RepositoryEvents, external changes are only seen, if the repository is watched.
+ * @author arpablo
+ *
+ */
+@Component
+@ConditionalOnFileStore
+public class ShardRebalancer {
+
+	private static Logger logger = LoggerFactory.getLogger(ShardRebalancer.class);
+
+	private static final String REBALANCE_DIR = "rebalance";
+
+	/** the number of changed resources synchronized under the exclusive lock */
+	private static final int BATCH_SIZE = 100;
+
+	private static final int MAX_ROUNDS = 10;
+
+	@Autowired
+	private FileRepositoryService repository;
+
+	private final RebalanceStatus status = new RebalanceStatus();
+
+	/** the key being migrated */
+	private volatile String migrating;
+
+	/** the repository paths below the migrated key changed since they were copied */
+	private final Set<String> changed = ConcurrentHashMap.newKeySet();
+
+	@PostConstruct
+	protected void initialize() {
+		if (repository.getPlacement().isSharded()) {
+			start();
+		}
+	}
+
+	/**
+	 * Start the rebalancing in the background, if it is not running yet
+	 * @return the status of the rebalancing
+	 */
+	public RebalanceStatus start() {
+		synchronized (status) {
+			if (!status.isRunning()) {
+				status.setRunning(true).setStarted(Calendar.getInstance()).setFinished(null)
+					.setKeysChecked(0).setKeysMoved(0).setKeysFailed(0).setBytesMoved(0);
+				Thread t = new Thread(this::rebalance, "shard-rebalancer");
+				t.setDaemon(true);
+				t.start();
+			}
+			return getStatus();
+		}
+	}
+
+	/**
+	 * Remember the changes of the key being migrated
+	 * @param event	the event
+	 */
+	@EventListener
+	public void onRepositoryEvent(RepositoryEvent event) {
+		String key = migrating;
+		if (key != null) {
+			markChanged(key, event.getPath());
+			markChanged(key, event.getTargetPath());
+		}
+	}
+
+	protected void markChanged(String key, String path) {
+		if (path == null) {
+			return;
+		}
+		if (path.equals(key) || path.startsWith(key + "/")) {
+			changed.add(path);
+		} else if (path.equals("/") || key.startsWith(path + "/")) {
+			// an ancestor of the key was changed
+			changed.add(key);
+		}
+	}
+
+	/**
+	 * @return a copy of the current status
+	 */
+	public RebalanceStatus getStatus() {
+		synchronized (status) {
+			return new RebalanceStatus().setRunning(status.isRunning()).setStarted(status.getStarted())
+					.setFinished(status.getFinished()).setKeysChecked(status.getKeysChecked())
+					.setKeysMoved(status.getKeysMoved()).setKeysFailed(status.getKeysFailed())
+					.setBytesMoved(status.getBytesMoved());
+		}
+	}
+
+	protected void rebalance() {
+		ShardPlacement placement = repository.getPlacement();
+		logger.info("Rebalancing {} roots", placement.getRoots().size());
+		try {
+			for (Path root : placement.getRoots()) {
+				List<String> keys = new ArrayList<String>();
+				collectKeys(root, root, 0, placement.getDepth(), keys);
+				for (String key : keys) {
+					Path owner = placement.owner(key);
+					boolean moved = false;
+					boolean failed = false;
+					long bytes = 0;
+					if (!owner.equals(root)) {
+						try {
+							bytes = migrate(key, root, owner);
+							moved = bytes >= 0;
+						} catch (IOException ex) {
+							logger.error("Unable to move {} from {} to {}: {}", key, root, owner, ex.getMessage());
+							failed = true;
+						}
+					}
+					synchronized (status) {
+						status.setKeysChecked(status.getKeysChecked() + 1);
+						if (moved) {
+							status.setKeysMoved(status.getKeysMoved() + 1).setBytesMoved(status.getBytesMoved() + bytes);
+						}
+						if (failed) {
+							status.setKeysFailed(status.getKeysFailed() + 1);
+						}
+					}
+				}
+			}
+		} catch (IOException ex) {
+			logger.error("Rebalancing failed", ex);
+		} finally {
+			synchronized (status) {
+				status.setRunning(false).setFinished(Calendar.getInstance());
+				logger.info("Rebalancing finished, moved {} of {} keys", status.getKeysMoved(), status.getKeysChecked());
+			}
+		}
+	}
+
+	/**
+	 * Collect the placement keys found on a root. Files above the placement
+	 * level are keys of their own
+	 */
+	protected void collectKeys(Path root, Path dir, int level, int depth, List<String> keys) throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path p : stream) {
+				if (repository.isSystemPath(p)) {
+					continue;
+				}
+				if (level + 1 < depth && Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+					collectKeys(root, p, level + 1, depth, keys);
+				} else {
+					keys.add(repository.toRepositoryPath(p));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Move a key from one root to another
+	 * @return the number of bytes moved or -1, if the key was not moved
+	 */
+	protected long migrate(String key, Path from, Path to) throws IOException {
+		String relative = key.substring(1);
+		Path source = from.resolve(relative);
+		Path target = to.resolve(relative);
+		if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+			logger.warn("Not moving {} from {}, it already exists on {}", key, from, to);
+			return -1;
+		}
+		Path staging = repository.getSystemPath(REBALANCE_DIR, to).resolve(UUID.randomUUID().toString());
+		changed.clear();
+		migrating = key;
+		try {
+			// the bulk of the data is copied while the key is still writable
+			long bytes = synchronize(source, staging);
+			for (int i = 0; i < MAX_ROUNDS && changed.size() > BATCH_SIZE; i++) {
+				synchronizeChanged(key, source, staging);
+			}
+			try (ShardPlacement.Unlock lock = repository.getPlacement().lockExclusive(key)) {
+				if (!Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+					return -1;
+				}
+				synchronizeChanged(key, source, staging);
+				Files.createDirectories(target.getParent());
+				Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+				repository.deleteTree(source);
+				logger.debug("Moved {} from {} to {}", key, from, to);
+				return bytes;
+			}
+		} finally {
+			migrating = null;
+			changed.clear();
+			if (Files.exists(staging, LinkOption.NOFOLLOW_LINKS)) {
+				repository.deleteTree(staging);
+			}
+		}
+	}
+
+	/**
+	 * Synchronize the copy of a key with the resources changed since they were copied
+	 * @param key		the placement key
+	 * @param source	the key on its current root
+	 * @param copy		the copy of the key
+	 */
+	protected void synchronizeChanged(String key, Path source, Path copy) throws IOException {
+		List<String> paths = new ArrayList<String>(changed);
+		changed.removeAll(paths);
+		for (String path : paths) {
+			String relative = path.substring(key.length());
+			Path s = relative.isEmpty() ? source : source.resolve(relative.substring(1));
+			Path c = relative.isEmpty() ? copy : copy.resolve(relative.substring(1));
+			boolean exists = Files.exists(s, LinkOption.NOFOLLOW_LINKS);
+			if (Files.exists(c, LinkOption.NOFOLLOW_LINKS)
+					&& (!exists || Files.isDirectory(s, LinkOption.NOFOLLOW_LINKS) != Files.isDirectory(c, LinkOption.NOFOLLOW_LINKS))) {
+				repository.deleteTree(c);
+			}
+			if (exists) {
+				Files.createDirectories(c.getParent());
+				synchronize(s, c);
+			}
+		}
+	}
+
+	/**
+	 * Make the copy identical to the source. Files with the same size and
+	 * modification time are not copied again
+	 * @return the size of the source in bytes
+	 */
+	protected static long synchronize(Path source, Path copy) throws IOException {
+		final long[] bytes = new long[1];
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(copy.resolve(source.relativize(dir)));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Path p = copy.resolve(source.relativize(file));
+				bytes[0] += attrs.size();
+				if (Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS)) {
+					BasicFileAttributes current = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					if (current.size() == attrs.size() && current.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+						return FileVisitResult.CONTINUE;
+					}
+				}
+				Files.copy(file, p, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		// remove what was deleted from the source in the meantime
+		Files.walkFileTree(copy, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (!Files.exists(source.resolve(copy.relativize(file)), LinkOption.NOFOLLOW_LINKS)) {
+					Files.delete(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				if (!Files.exists(source.resolve(copy.relativize(dir)), LinkOption.NOFOLLOW_LINKS)) {
+					Files.delete(dir);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return bytes[0];
+	}
+
+}
@@ -0,0 +1,346 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.exception.RepositoryException;
+import de.arpablo.hennirepo.exception.ResourceAccessException;
+import de.arpablo.hennirepo.model.RepositoryEvent;
+import de.arpablo.hennirepo.model.SnapshotInfo;
+
+/**
+ * Creates snapshots of subtrees of the repository. A snapshot is a farm of
+ * hard links to the files of the subtree, so no content is copied and a
+ * snapshot of a large tree needs little more than the space for its
+ * directories. The links are created in parallel.
+ * <p>
+ * The repository never writes files in place, new content always replaces
+ * the file by a rename, so the link in the snapshot keeps the old content.
+ * Files changed in place by other programs change the snapshot as well.
+ * Writes during the creation of a snapshot may or may not be included.
+ * Packed files are written to the snapshot as files.
+ * <p>
+ * Snapshots are browsable read-only below {@link FileRepositoryService#SNAPSHOTS_PATH}
+ * and are deleted by deleting their path.
+ * @author arpablo
+ *
+ */
+@Service
+@ConditionalOnFileStore
+public class SnapshotService {
+
+	private static Logger logger = LoggerFactory.getLogger(SnapshotService.class);
+
+	private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_][A-Za-z0-9._-]*");
+
+	@Autowired
+	private FileRepositoryService repository;
+
+	@Autowired
+	private RepositoryProperties repoConfig;
+
+	private ForkJoinPool pool;
+
+	@PostConstruct
+	protected void initialize() {
+		pool = new ForkJoinPool(Math.max(1, repoConfig.getSnapshots().getThreads()));
+	}
+
+	@PreDestroy
+	protected void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Create a snapshot of a subtree
+	 * @param path	the repository path of the subtree
+	 * @param name	the name of the snapshot
+	 * @return the SnapshotInfo
+	 * @throws RepositoryException
+	 */
+	public SnapshotInfo create(String path, String name) throws RepositoryException {
+		if (name == null || !NAME.matcher(name).matches()) {
+			throw new RepositoryException(String.format("Invalid snapshot name %s", name));
+		}
+		if (FileRepositoryService.isSnapshotPath(path)) {
+			throw new ResourceAccessException("Snapshots can't be taken of snapshots");
+		}
+		String snapshotPath = FileRepositoryService.SNAPSHOTS_PATH + "/" + name;
+		if (repository.exists(snapshotPath)) {
+			throw new RepositoryException(String.format("Snapshot %s exists", name));
+		}
+		List<Path> sources = repository.resolveAll(path);
+		String key = RepositoryEvent.normalize(path);
+		PackStore.Entry packedFile = repository.getPacked(key);
+		if (packedFile == null && !Files.exists(sources.get(0), LinkOption.NOFOLLOW_LINKS)) {
+			throw new ResourceAccessException(String.format("Resource %s does not exist", path));
+		}
+		long start = System.currentTimeMillis();
+		Properties props = new Properties();
+		props.setProperty("path", key);
+		props.setProperty("created", Long.toString(start));
+		long total = 0;
+		List<Path> created = new ArrayList<Path>();
+		try {
+			Map<Path, Map<String, PackStore.Entry>> packed = packedByRoot(key, packedFile, sources);
+			for (Path source : sources) {
+				// the snapshot becomes visible by renaming the staging directory
+				Path dir = repository.getSystemPath(FileRepositoryService.SNAPSHOTS_DIR, source);
+				Path staging = Files.createDirectory(dir.resolve(".creating-" + name));
+				try {
+					AtomicLong files = new AtomicLong();
+					AtomicLong directories = new AtomicLong();
+					Path tree = staging.resolve(FileRepositoryService.SNAPSHOT_TREE);
+					if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+						pool.invoke(new LinkTask(source, tree, files, directories));
+					} else {
+						Files.createDirectory(tree);
+						if (packedFile == null) {
+							link(source, tree.resolve(source.getFileName().toString()));
+							files.incrementAndGet();
+						}
+					}
+					Map<String, PackStore.Entry> entries = packed.get(repository.getPlacement().rootOf(source));
+					if (entries != null) {
+						files.addAndGet(writePacked(key, packedFile != null, entries, tree));
+					}
+					props.setProperty("files", Long.toString(files.get()));
+					props.setProperty("directories", Long.toString(directories.get()));
+					try (OutputStream out = Files.newOutputStream(staging.resolve(FileRepositoryService.SNAPSHOT_DESCRIPTOR))) {
+						props.store(out, null);
+					}
+					Files.move(staging, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+					created.add(dir.resolve(name));
+					total += files.get();
+				} catch (IOException | RuntimeException ex) {
+					repository.deleteTree(staging);
+					throw ex;
+				}
+			}
+		} catch (IOException | RuntimeException ex) {
+			// the parts on the other roots are removed as well
+			for (Path snapshot : created) {
+				try {
+					repository.deleteTree(snapshot);
+				} catch (IOException e) {
+					logger.warn("Unable to remove the incomplete snapshot {}: {}", snapshot, e.getMessage());
+				}
+			}
+			if (ex instanceof RuntimeException) {
+				throw (RuntimeException) ex;
+			}
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+		logger.info("Created snapshot {} of {} with {} files in {} ms", name, path, total, System.currentTimeMillis() - start);
+		repository.publish(RepositoryEvent.Type.CREATE, snapshotPath, null);
+		return get(name);
+	}
+
+	/**
+	 * Return a snapshot
+	 * @param name	the name of the snapshot
+	 * @return the SnapshotInfo
+	 * @throws ResourceAccessException if the snapshot does not exist
+	 */
+	public SnapshotInfo get(String name) throws ResourceAccessException {
+		for (SnapshotInfo info : list()) {
+			if (info.getName().equals(name)) {
+				return info;
+			}
+		}
+		throw new ResourceAccessException(String.format("Snapshot %s does not exist", name));
+	}
+
+	/**
+	 * Return all snapshots
+	 * @return a List of SnapshotInfo
+	 */
+	public List<SnapshotInfo> list() {
+		Map<String, SnapshotInfo> ret = new LinkedHashMap<String, SnapshotInfo>();
+		for (Path root : repository.getRoots()) {
+			Path dir = FileRepositoryService.resolveSnapshot(root, FileRepositoryService.SNAPSHOTS_PATH);
+			if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+				continue;
+			}
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path snapshot : stream) {
+					String name = snapshot.getFileName().toString();
+					Properties props = new Properties();
+					if (name.startsWith(".")) {
+						continue;
+					}
+					try (InputStream in = Files.newInputStream(snapshot.resolve(FileRepositoryService.SNAPSHOT_DESCRIPTOR))) {
+						props.load(in);
+					}
+					SnapshotInfo info = ret.get(name);
+					if (info == null) {
+						Calendar created = Calendar.getInstance();
+						created.setTimeInMillis(Long.parseLong(props.getProperty("created", "0")));
+						info = new SnapshotInfo().setName(name)
+								.setSourcePath(props.getProperty("path"))
+								.setRepositoryPath(FileRepositoryService.SNAPSHOTS_PATH + "/" + name)
+								.setCreated(created);
+						ret.put(name, info);
+					}
+					// the parts of a snapshot spanning several roots are added up
+					info.setFiles(info.getFiles() + Long.parseLong(props.getProperty("files", "0")));
+					info.setDirectories(info.getDirectories() + Long.parseLong(props.getProperty("directories", "0")));
+				}
+			} catch (IOException ex) {
+				logger.warn("Unable to list the snapshots of {}: {}", root, ex.getMessage());
+			}
+		}
+		return new ArrayList<SnapshotInfo>(ret.values());
+	}
+
+	/**
+	 * Return the packed files of a subtree by the root holding their directory
+	 * @param key			the repository path of the subtree
+	 * @param packedFile	the entry, if the subtree is a packed file itself
+	 * @param sources		the subtree on all roots
+	 */
+	protected Map<Path, Map<String, PackStore.Entry>> packedByRoot(String key, PackStore.Entry packedFile, List<Path> sources) {
+		Map<Path, Map<String, PackStore.Entry>> ret = new LinkedHashMap<Path, Map<String, PackStore.Entry>>();
+		PackStore packs = repository.getPackStore();
+		if (packs == null) {
+			return ret;
+		}
+		Map<String, PackStore.Entry> entries = (packedFile != null) ? Collections.singletonMap(key, packedFile) : packs.list(key);
+		ShardPlacement placement = repository.getPlacement();
+		List<Path> roots = new ArrayList<Path>();
+		for (Path source : sources) {
+			roots.add(placement.rootOf(source));
+		}
+		for (Map.Entry<String, PackStore.Entry> e : entries.entrySet()) {
+			Path root = placement.rootOf(repository.resolve(e.getKey()));
+			if (!roots.contains(root)) {
+				// the directory of the file is not part of the snapshot yet
+				root = roots.get(0);
+			}
+			ret.computeIfAbsent(root, r -> new LinkedHashMap<String, PackStore.Entry>()).put(e.getKey(), e.getValue());
+		}
+		return ret;
+	}
+
+	/**
+	 * Write packed files to the tree of a snapshot
+	 * @param key		the repository path of the subtree
+	 * @param isFile	<code>true</code>, if the subtree is a packed file itself
+	 * @param entries	the packed files
+	 * @param tree		the tree of the snapshot
+	 * @return the number of files written
+	 */
+	protected long writePacked(String key, boolean isFile, Map<String, PackStore.Entry> entries, Path tree) throws IOException {
+		long ret = 0;
+		for (Map.Entry<String, PackStore.Entry> e : entries.entrySet()) {
+			byte[] data = repository.getPackStore().read(e.getKey());
+			if (data == null) {
+				// removed in the meantime
+				continue;
+			}
+			String relative = isFile ? key.substring(key.lastIndexOf('/') + 1)
+					: e.getKey().substring(key.equals("/") ? 1 : key.length() + 1);
+			Path p = tree.resolve(relative);
+			Files.createDirectories(p.getParent());
+			Files.write(p, data);
+			Files.setLastModifiedTime(p, FileTime.fromMillis(e.getValue().getModified()));
+			ret++;
+		}
+		return ret;
+	}
+
+	protected static void link(Path source, Path target) throws IOException {
+		try {
+			Files.createLink(target, source);
+		} catch (UnsupportedOperationException ex) {
+			Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+		}
+	}
+
+	/**
+	 * Recreates a directory and links its files, subdirectories are handled
+	 * by subtasks in parallel
+	 */
+	protected class LinkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path source;
+		private final Path target;
+		private final AtomicLong files;
+		private final AtomicLong directories;
+
+		LinkTask(Path source, Path target, AtomicLong files, AtomicLong directories) {
+			this.source = source;
+			this.target = target;
+			this.files = files;
+			this.directories = directories;
+		}
+
+		@Override
+		protected void compute() {
+			List<LinkTask> subtasks = new ArrayList<LinkTask>();
+			try {
+				Files.createDirectory(target);
+				directories.incrementAndGet();
+				try (DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+					for (Path p : stream) {
+						if (repository.isSystemPath(p)) {
+							continue;
+						}
+						Path t = target.resolve(p.getFileName().toString());
+						BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						if (attrs.isDirectory()) {
+							subtasks.add(new LinkTask(p, t, files, directories));
+						} else if (attrs.isRegularFile()) {
+							link(p, t);
+							files.incrementAndGet();
+						}
+					}
+				}
+			} catch (IOException ex) {
+				throw new RepositoryException(ex);
+			}
+			invokeAll(subtasks);
+			try {
+				Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+			} catch (IOException ex) {
+				logger.debug("Unable to set the modification time of {}: {}", target, ex.getMessage());
+			}
+		}
+	}
+
+}
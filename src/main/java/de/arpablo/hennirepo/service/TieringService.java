@@ -0,0 +1,377 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import de.arpablo.hennirepo.common.ChecksumInputStream;
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.common.ContentChecksum;
+import de.arpablo.hennirepo.common.FileUtils;
+import de.arpablo.hennirepo.common.TokenBucket;
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.model.RepositoryEvent;
+import de.arpablo.hennirepo.model.TieringStatus;
+
+/**
+ * Moves cold files to a compressed tier: files not accessed or modified for
+ * a configured time are compressed in place and marked as
+ * {@link CompressedFile}, the repository decompresses them while they are
+ * read. A compressed file that is read again is promoted, it is stored as
+ * is in the background. Files are read at a limited rate to leave the
+ * bandwidth of the disks to the requests. A file is only replaced, if it
+ * is unchanged since it was read, files with hard links are not compressed,
+ * since their content would be stored twice.
+ * @author arpablo
+ *
+ */
+@Component
+@ConditionalOnFileStore
+public class TieringService {
+
+	private static Logger logger = LoggerFactory.getLogger(TieringService.class);
+
+	/**
+	 * The maximum number of compressed files whose reads are counted
+	 */
+	private static final int MAX_TRACKED = 10000;
+
+	@Autowired
+	private FileRepositoryService repository;
+
+	@Autowired
+	private RepositoryProperties repoConfig;
+
+	@Autowired(required=false)
+	private FileSystemWatcher watcher;
+
+	private final TieringStatus status = new TieringStatus();
+
+	private final Map<String, Integer> reads = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > MAX_TRACKED;
+		}
+	};
+
+	private final Set<String> promoting = ConcurrentHashMap.newKeySet();
+
+	private ExecutorService promoter;
+
+	@PostConstruct
+	protected void initialize() {
+		promoter = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "tiering-promoter");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+	}
+
+	@PreDestroy
+	protected void shutdown() {
+		promoter.shutdownNow();
+	}
+
+	/**
+	 * Start the tiering periodically
+	 */
+	@Scheduled(fixedDelayString="${henni.repo.tiering.interval:3600000}", initialDelayString="${henni.repo.tiering.interval:3600000}")
+	public void scheduled() {
+		if (repoConfig.getTiering().isEnabled()) {
+			start();
+		}
+	}
+
+	/**
+	 * Start the tiering in the background, if it is not running yet
+	 * @return the status of the tiering
+	 */
+	public TieringStatus start() {
+		synchronized (status) {
+			if (!status.isRunning()) {
+				status.setRunning(true).setStarted(Calendar.getInstance()).setFinished(null)
+					.setFilesScanned(0).setFilesCold(0).setFilesCompressed(0).setFilesIncompressible(0)
+					.setBytesBefore(0).setBytesAfter(0).setErrors(0);
+				Thread t = new Thread(this::run, "tiering");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				t.start();
+			}
+			return getStatus();
+		}
+	}
+
+	/**
+	 * @return a copy of the current status
+	 */
+	public TieringStatus getStatus() {
+		synchronized (status) {
+			return new TieringStatus().setRunning(status.isRunning()).setStarted(status.getStarted())
+					.setFinished(status.getFinished()).setFilesScanned(status.getFilesScanned())
+					.setFilesCold(status.getFilesCold()).setFilesCompressed(status.getFilesCompressed())
+					.setFilesIncompressible(status.getFilesIncompressible()).setBytesBefore(status.getBytesBefore())
+					.setBytesAfter(status.getBytesAfter()).setErrors(status.getErrors())
+					.setFilesPromoted(status.getFilesPromoted()).setBytesPromoted(status.getBytesPromoted());
+		}
+	}
+
+	/**
+	 * Count a read of a compressed file and promote it in the background,
+	 * once it is read often enough
+	 * @param path	the repository path of the file
+	 */
+	public void promoteLater(String path) {
+		int promoteAfter = repoConfig.getTiering().getPromoteAfterReads();
+		if (promoteAfter <= 0) {
+			return;
+		}
+		String key = RepositoryEvent.normalize(path);
+		synchronized (reads) {
+			if (reads.merge(key, 1, Integer::sum) < promoteAfter) {
+				return;
+			}
+			reads.remove(key);
+		}
+		if (promoting.add(key)) {
+			promoter.execute(() -> {
+				try {
+					promote(key);
+				} finally {
+					promoting.remove(key);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Store a compressed file as is again
+	 * @param path	the repository path of the file
+	 * @return <code>true</code>, if the file was compressed and is promoted
+	 */
+	public boolean promote(String path) {
+		try {
+			Path p = repository.resolve(path);
+			long stored = Files.size(p);
+			if (!repository.uncompress(path, p)) {
+				return false;
+			}
+			if (watcher != null) {
+				watcher.suppress(repository.toRepositoryPath(p));
+			}
+			long size = Files.size(p);
+			logger.debug("Promoted {}, stored {} bytes instead of {}", path, size, stored);
+			synchronized (status) {
+				status.setFilesPromoted(status.getFilesPromoted() + 1).setBytesPromoted(status.getBytesPromoted() + size - stored);
+			}
+			return true;
+		} catch (IOException ex) {
+			logger.warn("Unable to promote {}: {}", path, ex.getMessage());
+			return false;
+		}
+	}
+
+	protected void run() {
+		RepositoryProperties.Tiering config = repoConfig.getTiering();
+		long rate = config.getBytesPerSecond();
+		TokenBucket bucket = (rate > 0) ? new TokenBucket(rate, Math.min(rate, 1024 * 1024)) : null;
+		Set<String> excluded = new HashSet<String>();
+		for (String ext : config.getExcludedExtensions()) {
+			excluded.add((ext.startsWith(".") ? ext.substring(1) : ext).toLowerCase(Locale.ROOT));
+		}
+		long coldBefore = System.currentTimeMillis() - config.getColdAfterMinutes() * 60 * 1000;
+		logger.info("Compressing the files not accessed for {} minutes", config.getColdAfterMinutes());
+		try {
+			for (Path root : repository.getPlacement().getRoots()) {
+				Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+						return repository.isSystemPath(dir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						if (attrs.isRegularFile()) {
+							synchronized (status) {
+								status.setFilesScanned(status.getFilesScanned() + 1);
+							}
+							if (isCold(file, attrs, coldBefore, excluded, config)) {
+								compress(file, attrs, bucket, config);
+							}
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException exc) {
+						logger.debug("Not compressing {}: {}", file, exc.getMessage());
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+		} catch (IOException ex) {
+			logger.error("Compressing the cold files failed", ex);
+		} finally {
+			synchronized (status) {
+				status.setRunning(false).setFinished(Calendar.getInstance());
+				logger.info("Compressed {} of {} cold files from {} to {} bytes", status.getFilesCompressed(),
+						status.getFilesCold(), status.getBytesBefore(), status.getBytesAfter());
+			}
+		}
+	}
+
+	/**
+	 * Check, if a file is cold and may be compressed
+	 * @param file			the file
+	 * @param attrs			the attributes of the file
+	 * @param coldBefore	the time of the last access of a cold file
+	 * @param excluded		the extensions of files not to compress
+	 * @param config		the settings
+	 * @return <code>true</code>, if the file is to be compressed
+	 */
+	protected boolean isCold(Path file, BasicFileAttributes attrs, long coldBefore, Set<String> excluded, RepositoryProperties.Tiering config) {
+		long lastUsed = Math.max(attrs.lastAccessTime().toMillis(), attrs.lastModifiedTime().toMillis());
+		if (lastUsed >= coldBefore || attrs.size() < Math.max(config.getMinFileSize(), 1)) {
+			return false;
+		}
+		String name = file.getFileName().toString();
+		int index = name.lastIndexOf('.');
+		if (index > 0 && excluded.contains(name.substring(index + 1).toLowerCase(Locale.ROOT))) {
+			return false;
+		}
+		if (CompressedFile.read(file, attrs) != null || CompressedFile.isIncompressible(file, attrs)) {
+			return false;
+		}
+		try {
+			Object links = Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+			if (links instanceof Integer && (Integer) links > 1) {
+				return false;
+			}
+		} catch (IOException | UnsupportedOperationException | IllegalArgumentException ex) {
+			// no hard links
+		}
+		synchronized (status) {
+			status.setFilesCold(status.getFilesCold() + 1);
+		}
+		return true;
+	}
+
+	/**
+	 * Compress a file in place. The compressed content is written next to
+	 * the file with the modification time and checksums of the content and
+	 * replaces the file, if it is unchanged meanwhile
+	 * @param file		the file
+	 * @param attrs		the attributes of the file before it is read
+	 * @param bucket	the rate limit or <code>null</code>
+	 * @param config	the settings
+	 */
+	protected void compress(Path file, BasicFileAttributes attrs, TokenBucket bucket, RepositoryProperties.Tiering config) {
+		Path tmp = null;
+		try {
+			tmp = repository.getSystemPath(FileRepositoryService.TMP_DIR, file).resolve("tier-" + UUID.randomUUID() + ".tmp");
+			ContentChecksum checksum;
+			try (ChecksumInputStream in = new ChecksumInputStream(new ThrottledInputStream(Files.newInputStream(file), bucket))) {
+				CompressedFile.compress(in, tmp, config.getLevel(), attrs.lastModifiedTime().toMillis());
+				checksum = in.getChecksum();
+			}
+			long stored = Files.size(tmp);
+			if (stored > attrs.size() / 100 * (100 - config.getMinSavingsPercent())) {
+				BasicFileAttributes current = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				if (current.size() == attrs.size() && current.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+					CompressedFile.markIncompressible(file);
+					synchronized (status) {
+						status.setFilesIncompressible(status.getFilesIncompressible() + 1);
+					}
+				}
+				return;
+			}
+			ContentChecksum known = ContentChecksum.read(file);
+			if (known != null && !known.equals(checksum)) {
+				// changed while it was read or corrupted, the scrubber reports it
+				logger.debug("Not compressing {}, its content does not match its checksums", file);
+				return;
+			}
+			checksum.write(tmp);
+			String path = repository.toRepositoryPath(file);
+			if (repository.replaceStored(path, file, attrs, tmp)) {
+				if (watcher != null) {
+					watcher.suppress(path);
+				}
+				logger.debug("Compressed {} from {} to {} bytes", path, attrs.size(), stored);
+				synchronized (status) {
+					status.setFilesCompressed(status.getFilesCompressed() + 1)
+						.setBytesBefore(status.getBytesBefore() + attrs.size()).setBytesAfter(status.getBytesAfter() + stored);
+				}
+			}
+		} catch (IOException ex) {
+			logger.warn("Unable to compress {}: {}", file, ex.getMessage());
+			synchronized (status) {
+				status.setErrors(status.getErrors() + 1);
+			}
+		} finally {
+			FileUtils.deleteQuietly(tmp);
+		}
+	}
+
+	/**
+	 * Reads at the rate of a TokenBucket
+	 */
+	protected static class ThrottledInputStream extends FilterInputStream {
+		private final TokenBucket bucket;
+
+		ThrottledInputStream(InputStream in, TokenBucket bucket) {
+			super(in);
+			this.bucket = bucket;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int ret = super.read();
+			if (ret >= 0 && bucket != null) {
+				bucket.acquire(1);
+			}
+			return ret;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int ret = super.read(b, off, len);
+			if (ret > 0 && bucket != null) {
+				bucket.acquire(ret);
+			}
+			return ret;
+		}
+	}
+
+}
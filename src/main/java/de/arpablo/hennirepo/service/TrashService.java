@@ -0,0 +1,357 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.exception.RepositoryException;
+import de.arpablo.hennirepo.exception.ResourceAccessException;
+import de.arpablo.hennirepo.model.RepoResource;
+import de.arpablo.hennirepo.model.RepositoryEvent;
+import de.arpablo.hennirepo.model.TrashEntry;
+
+/**
+ * Manages the trash of the repository. Deleted resources are moved to the
+ * trash by the FileRepositoryService, this service removes them in the
+ * background after the retention time. The trees are purged in parallel,
+ * the number of deletions per second can be limited to protect the
+ * foreground I/O. Within the retention time, entries can be restored.
+ * @author arpablo
+ *
+ */
+@Service
+@ConditionalOnFileStore
+public class TrashService {
+
+	private static Logger logger = LoggerFactory.getLogger(TrashService.class);
+
+	/** an entry without descriptor is still being created, unless it is older */
+	private static final long INCOMPLETE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	@Autowired
+	private FileRepositoryService repository;
+
+	@Autowired
+	private RepositoryProperties repoConfig;
+
+	private ForkJoinPool pool;
+	private ExecutorService trigger;
+	private final AtomicBoolean triggered = new AtomicBoolean();
+	private long nextDelete;
+
+	@PostConstruct
+	protected void initialize() {
+		pool = new ForkJoinPool(Math.max(1, repoConfig.getTrash().getThreads()));
+		trigger = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "trash-purger");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@PreDestroy
+	protected void shutdown() {
+		trigger.shutdownNow();
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Purge the trash soon after a deletion, if nothing has to be retained
+	 * @param event	the event
+	 */
+	@EventListener
+	public void onRepositoryEvent(RepositoryEvent event) {
+		if (event.getType() == RepositoryEvent.Type.DELETE && !event.isExternal()
+				&& repoConfig.getTrash().getRetentionMinutes() <= 0 && triggered.compareAndSet(false, true)) {
+			trigger.execute(() -> {
+				triggered.set(false);
+				purgeExpired();
+			});
+		}
+	}
+
+	/**
+	 * Return the entries of the trash
+	 * @return a List of TrashEntry
+	 * @throws RepositoryException
+	 */
+	public List<TrashEntry> list() throws RepositoryException {
+		Map<String, TrashEntry> ret = new LinkedHashMap<String, TrashEntry>();
+		for (Path root : repository.getRoots()) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(repository.getSystemPath(FileRepositoryService.TRASH_DIR, root))) {
+				for (Path entry : stream) {
+					String id = entry.getFileName().toString();
+					if (!ret.containsKey(id)) {
+						TrashEntry e = readEntry(entry);
+						if (e != null) {
+							ret.put(id, e);
+						}
+					}
+				}
+			} catch (IOException ex) {
+				logger.error(ex.getClass().getName()+": "+ex.getMessage());
+				throw new RepositoryException(ex);
+			}
+		}
+		return new ArrayList<TrashEntry>(ret.values());
+	}
+
+	/**
+	 * Restore a deleted resource to its original path
+	 * @param id	the id of the trash entry
+	 * @return the RepoResource of the restored resource
+	 * @throws RepositoryException
+	 */
+	public RepoResource restore(String id) throws RepositoryException {
+		List<Path> entries = findEntries(id);
+		TrashEntry info = entries.isEmpty() ? null : readEntry(entries.get(0));
+		if (info == null) {
+			throw new ResourceAccessException(String.format("Trash entry %s does not exist", id));
+		}
+		String path = info.getRepositoryPath();
+		try (ShardPlacement.Unlock lock = repository.getPlacement().lockShared(path)) {
+			List<Path> targets = new ArrayList<Path>();
+			for (Path entry : entries) {
+				Path target = repository.getPlacement().rootOf(entry).resolve(path.substring(1));
+				if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+					throw new RepositoryException(String.format("Cannot restore %s, the resource exists", path));
+				}
+				targets.add(target);
+			}
+			if (info.getSize() != null) {
+				repository.getStatistics().check(FileRepositoryService.parentPath(path), info.getSize(), info.getFiles());
+			}
+			for (int i = 0; i < entries.size(); i++) {
+				Path content = entries.get(i).resolve(FileRepositoryService.TRASH_CONTENT);
+				if (Files.exists(content, LinkOption.NOFOLLOW_LINKS)) {
+					Files.createDirectories(targets.get(i).getParent());
+					Files.move(content, targets.get(i), StandardCopyOption.ATOMIC_MOVE);
+				}
+				repository.deleteTree(entries.get(i));
+			}
+			Path p = repository.resolve(path);
+			if (Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS)) {
+				repository.getStatistics().adjust(FileRepositoryService.parentPath(path), Files.size(p), 1);
+			} else {
+				repository.getStatistics().replace(path, repository.scan(path));
+			}
+			logger.info("Restored {} from trash entry {}", path, id);
+			repository.publish(RepositoryEvent.Type.CREATE, path, null);
+			return repository.info(path);
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	/**
+	 * Purge a trash entry regardless of the retention time
+	 * @param id	the id of the trash entry
+	 * @throws RepositoryException
+	 */
+	public void purge(String id) throws RepositoryException {
+		List<Path> entries = findEntries(id);
+		if (entries.isEmpty()) {
+			throw new ResourceAccessException(String.format("Trash entry %s does not exist", id));
+		}
+		for (Path entry : entries) {
+			purgeEntry(entry);
+		}
+	}
+
+	/**
+	 * Purge all entries whose retention time has passed. An entry without
+	 * descriptor is purged, if it was left incomplete for an hour
+	 */
+	@Scheduled(fixedDelayString="${henni.repo.trash.purge-interval:60000}")
+	public synchronized void purgeExpired() {
+		long now = System.currentTimeMillis();
+		long expiry = now - TimeUnit.MINUTES.toMillis(repoConfig.getTrash().getRetentionMinutes());
+		for (Path root : repository.getRoots()) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(repository.getSystemPath(FileRepositoryService.TRASH_DIR, root))) {
+				for (Path entry : stream) {
+					TrashEntry e = readEntry(entry);
+					if ((e == null) ? isAbandoned(entry, now - INCOMPLETE_MILLIS) : e.getDeleted().getTimeInMillis() <= expiry) {
+						purgeEntry(entry);
+					}
+				}
+			} catch (IOException ex) {
+				logger.error("Failed to purge the trash", ex);
+			}
+		}
+	}
+
+	protected boolean isAbandoned(Path entry, long before) {
+		try {
+			return Files.getLastModifiedTime(entry, LinkOption.NOFOLLOW_LINKS).toMillis() <= before;
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	protected void purgeEntry(Path entry) {
+		long start = System.currentTimeMillis();
+		PurgeTask task = new PurgeTask(entry);
+		pool.invoke(task);
+		if (task.failed.get() > 0) {
+			logger.warn("Purging {} failed for {} files, it is retried later", entry, task.failed.get());
+		} else {
+			logger.debug("Purged {} files of {} in {} ms", task.deleted.get(), entry, System.currentTimeMillis() - start);
+		}
+	}
+
+	protected List<Path> findEntries(String id) {
+		List<Path> ret = new ArrayList<Path>();
+		if (id.contains("/") || id.contains("\\") || id.startsWith(".")) {
+			return ret;
+		}
+		for (Path root : repository.getRoots()) {
+			try {
+				Path entry = repository.getSystemPath(FileRepositoryService.TRASH_DIR, root).resolve(id);
+				if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+					ret.add(entry);
+				}
+			} catch (IOException ex) {
+				logger.warn("Unable to access the trash of {}: {}", root, ex.getMessage());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Read the descriptor of a trash entry
+	 * @return the TrashEntry or <code>null</code>, if the descriptor is missing
+	 */
+	protected TrashEntry readEntry(Path entry) {
+		Properties props = new Properties();
+		try (InputStream in = Files.newInputStream(entry.resolve(FileRepositoryService.TRASH_DESCRIPTOR))) {
+			props.load(in);
+		} catch (IOException ex) {
+			return null;
+		}
+		Calendar deleted = Calendar.getInstance();
+		deleted.setTimeInMillis(Long.parseLong(props.getProperty("deleted", "0")));
+		Calendar expires = (Calendar) deleted.clone();
+		expires.add(Calendar.MINUTE, (int) repoConfig.getTrash().getRetentionMinutes());
+		String size = props.getProperty("size");
+		String files = props.getProperty("files");
+		return new TrashEntry().setId(entry.getFileName().toString())
+				.setRepositoryPath(props.getProperty("path"))
+				.setDeleted(deleted)
+				.setExpires(expires)
+				.setSize((size == null) ? null : Long.valueOf(size))
+				.setFiles((files == null) ? null : Long.valueOf(files));
+	}
+
+	/**
+	 * Wait for the next permit, if the number of deletions per second is limited
+	 */
+	protected void throttle() {
+		int rate = repoConfig.getTrash().getMaxDeletesPerSecond();
+		if (rate <= 0) {
+			return;
+		}
+		long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+		long wait;
+		synchronized (pool) {
+			long now = System.nanoTime();
+			nextDelete = Math.max(nextDelete, now);
+			wait = nextDelete - now;
+			nextDelete += interval;
+		}
+		if (wait > 0) {
+			LockSupport.parkNanos(wait);
+		}
+	}
+
+	/**
+	 * Deletes a directory tree, subdirectories are deleted in parallel.
+	 * Failures are counted, the remaining files are deleted anyway
+	 */
+	protected class PurgeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final AtomicLong deleted;
+		private final AtomicLong failed;
+
+		PurgeTask(Path dir) {
+			this(dir, new AtomicLong(), new AtomicLong());
+		}
+
+		PurgeTask(Path dir, AtomicLong deleted, AtomicLong failed) {
+			this.dir = dir;
+			this.deleted = deleted;
+			this.failed = failed;
+		}
+
+		@Override
+		protected void compute() {
+			List<PurgeTask> subtasks = new ArrayList<PurgeTask>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path p : stream) {
+					if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+						subtasks.add(new PurgeTask(p, deleted, failed));
+					} else {
+						delete(p);
+					}
+				}
+			} catch (NoSuchFileException ex) {
+				return;
+			} catch (IOException ex) {
+				logger.warn("Unable to list {}: {}", dir, ex.getMessage());
+				failed.incrementAndGet();
+			}
+			invokeAll(subtasks);
+			delete(dir);
+		}
+
+		private void delete(Path p) {
+			throttle();
+			try {
+				Files.deleteIfExists(p);
+				deleted.incrementAndGet();
+			} catch (IOException ex) {
+				if (failed.incrementAndGet() == 1) {
+					logger.warn("Unable to delete {}: {}", p, ex.getMessage());
+				}
+			}
+		}
+	}
+
+}
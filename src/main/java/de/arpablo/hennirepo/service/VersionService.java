@@ -0,0 +1,267 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.common.FileUtils;
+import de.arpablo.hennirepo.config.ConditionalOnFileStore;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.exception.RepositoryException;
+import de.arpablo.hennirepo.exception.ResourceAccessException;
+import de.arpablo.hennirepo.model.FileVersion;
+import de.arpablo.hennirepo.model.RepoResource;
+
+/**
+ * Provides access to the previous versions of files. The versions are
+ * created by the FileRepositoryService as hard links to the replaced
+ * content in <code>.henni/versions/&lt;path&gt;/&lt;id&gt;</code>. A scheduled
+ * pruner removes the versions exceeding the configured count or age.
+ * @author arpablo
+ *
+ */
+@Service
+@ConditionalOnFileStore
+public class VersionService {
+
+	private static Logger logger = LoggerFactory.getLogger(VersionService.class);
+
+	@Autowired
+	private FileRepositoryService repository;
+
+	@Autowired
+	private RepositoryProperties repoConfig;
+
+	/**
+	 * Return the versions of a file, the newest first
+	 * @param path	the repository path of the file
+	 * @return a List of FileVersion
+	 * @throws RepositoryException
+	 */
+	public List<FileVersion> list(String path) throws RepositoryException {
+		List<FileVersion> ret = new ArrayList<FileVersion>();
+		try {
+			for (Path version : versions(path)) {
+				ret.add(toVersion(version, path));
+			}
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+		Collections.reverse(ret);
+		return ret;
+	}
+
+	/**
+	 * Return information about a version
+	 * @param path	the repository path of the file
+	 * @param id	the id of the version
+	 * @return the FileVersion
+	 * @throws RepositoryException
+	 */
+	public FileVersion info(String path, String id) throws RepositoryException {
+		try {
+			return toVersion(getVersion(path, id), path);
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	/**
+	 * Return the content of a version
+	 * @param path	the repository path of the file
+	 * @param id	the id of the version
+	 * @return an InputStream
+	 * @throws RepositoryException
+	 */
+	public InputStream getContentInputStream(String path, String id) throws RepositoryException {
+		try {
+			return new BufferedInputStream(CompressedFile.newInputStream(getVersion(path, id)));
+		} catch (IOException ex) {
+			throw new RepositoryException("Failed to create InputStream for version", ex);
+		}
+	}
+
+	/**
+	 * Make a version the current content of the file. The replaced content
+	 * becomes a version itself
+	 * @param path	the repository path of the file
+	 * @param id	the id of the version
+	 * @return the RepoResource of the file
+	 * @throws RepositoryException
+	 */
+	public RepoResource restore(String path, String id) throws RepositoryException {
+		Path version = getVersion(path, id);
+		Path tmp = null;
+		try {
+			tmp = Files.createTempFile(repository.getSystemPath(FileRepositoryService.TMP_DIR, version), "restore-", ".tmp");
+			Files.delete(tmp);
+			try {
+				Files.createLink(tmp, version);
+			} catch (UnsupportedOperationException ex) {
+				Files.copy(version, tmp, StandardCopyOption.COPY_ATTRIBUTES);
+			}
+			logger.info("Restoring version {} of {}", id, path);
+			return repository.commitContent(tmp, path);
+		} catch (IOException ex) {
+			FileUtils.deleteQuietly(tmp);
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	/**
+	 * Delete a version
+	 * @param path	the repository path of the file
+	 * @param id	the id of the version
+	 * @throws RepositoryException
+	 */
+	public void delete(String path, String id) throws RepositoryException {
+		try {
+			Files.delete(getVersion(path, id));
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	/**
+	 * Remove the versions exceeding the maximum count or age
+	 */
+	@Scheduled(fixedDelayString="${henni.repo.versions.prune-interval:600000}")
+	public void prune() {
+		RepositoryProperties.Versions config = repoConfig.getVersions();
+		final int maxCount = config.getMaxCount();
+		final long maxAge = (config.getMaxAgeMinutes() > 0)
+				? System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(config.getMaxAgeMinutes()) : -1;
+		final long[] removed = new long[1];
+		for (Path root : repository.getRoots()) {
+			try {
+				Path top = repository.getSystemPath(FileRepositoryService.VERSIONS_DIR, root);
+				Files.walkFileTree(top, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+						List<Path> versions = listVersions(dir);
+						int excess = (maxCount >= 0) ? versions.size() - maxCount : 0;
+						for (int i = 0; i < versions.size(); i++) {
+							Path version = versions.get(i);
+							if (i < excess || (maxAge >= 0 && timestamp(version) < maxAge)) {
+								Files.deleteIfExists(version);
+								removed[0]++;
+							}
+						}
+						if (!dir.equals(top)) {
+							try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+								if (!stream.iterator().hasNext()) {
+									Files.delete(dir);
+								}
+							}
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException exc) {
+						logger.warn("Unable to prune {}: {}", file, exc.getMessage());
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException ex) {
+				logger.error("Failed to prune the versions", ex);
+			}
+		}
+		if (removed[0] > 0) {
+			logger.info("Pruned {} versions", removed[0]);
+		}
+	}
+
+	/**
+	 * Return the version files of a file, the oldest first
+	 */
+	protected List<Path> versions(String path) throws IOException {
+		Path dir = repository.getVersionDirectory(repository.resolve(path), path);
+		if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+			return new ArrayList<Path>();
+		}
+		return listVersions(dir);
+	}
+
+	protected Path getVersion(String path, String id) throws RepositoryException {
+		if (id == null || id.contains("/") || id.contains("\\") || id.startsWith(".")) {
+			throw new ResourceAccessException(String.format("Invalid version id %s", id));
+		}
+		try {
+			Path version = repository.getVersionDirectory(repository.resolve(path), path).resolve(id);
+			if (!Files.isRegularFile(version, LinkOption.NOFOLLOW_LINKS)) {
+				throw new ResourceAccessException(String.format("Version %s of %s does not exist", id, path));
+			}
+			return version;
+		} catch (IOException ex) {
+			logger.error(ex.getClass().getName()+": "+ex.getMessage());
+			throw new RepositoryException(ex);
+		}
+	}
+
+	/**
+	 * The versions are the regular files of the directory, subdirectories
+	 * hold the versions of the files below the path
+	 */
+	protected static List<Path> listVersions(Path dir) throws IOException {
+		List<Path> ret = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path p : stream) {
+				if (Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS)) {
+					ret.add(p);
+				}
+			}
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	protected static long timestamp(Path version) {
+		String name = version.getFileName().toString();
+		int index = name.indexOf('-');
+		try {
+			return Long.parseLong((index < 0) ? name : name.substring(0, index));
+		} catch (NumberFormatException ex) {
+			return 0;
+		}
+	}
+
+	protected FileVersion toVersion(Path version, String path) throws IOException {
+		BasicFileAttributes attr = Files.readAttributes(version, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		Calendar replaced = Calendar.getInstance();
+		replaced.setTimeInMillis(timestamp(version));
+		return new FileVersion().setId(version.getFileName().toString())
+				.setRepositoryPath(path)
+				.setReplaced(replaced)
+				.setLastModifiedTime(FileRepositoryService.toCalendar(attr.lastModifiedTime()))
+				.setSize(CompressedFile.size(version, attr));
+	}
+
+}
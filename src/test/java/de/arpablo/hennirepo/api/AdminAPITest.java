@@ -0,0 +1,21 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.api;
+
+import org.junit.Test;
+
+import de.arpablo.hennirepo.exception.ResourceAccessException;
+
+/**
+ * @author arpablo
+ *
+ */
+public class AdminAPITest {
+
+	@Test(expected=ResourceAccessException.class)
+	public void clearCacheWithoutContentCacheIsRejected() {
+		new AdminAPI().clearCache();
+	}
+
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.model.RepoResource;
+
+/**
+ * @author arpablo
+ *
+ */
+public class ContentResourceTest {
+
+	@Test
+	public void encodedLengthIsTheOneOpened() throws IOException {
+		RepoResource res = new RepoResource(Paths.get("a.xml"), "/a.xml");
+		res.setSize(100);
+		// the file was replaced after its resource was read
+		res.setStoredSize(20L);
+		CompressedFile.Stored stored = new CompressedFile.Stored(new ByteArrayInputStream(new byte[30]),
+				new CompressedFile(CompressedFile.GZIP, 120), 30);
+		ContentResource resource = new ContentResource(null, res, stored);
+		assertEquals(30, resource.contentLength());
+		assertEquals(30, resource.getInputStream().available());
+		try {
+			resource.getInputStream();
+			fail("encoded content read twice");
+		} catch (IOException ex) {
+			// expected
+		}
+		assertEquals(100, new ContentResource(null, res).contentLength());
+	}
+
+}
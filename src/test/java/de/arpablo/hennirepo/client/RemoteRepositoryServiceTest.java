@@ -0,0 +1,122 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import de.arpablo.hennirepo.exception.ResourceAccessException;
+import de.arpablo.hennirepo.model.RepoResource;
+
+/**
+ * @author arpablo
+ *
+ */
+public class RemoteRepositoryServiceTest {
+
+	private HttpServer server;
+
+	private RemoteRepositoryService repository;
+
+	/** the responses by the path and query of the request */
+	private final Map<String, Response> responses = new ConcurrentHashMap<String, Response>();
+
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private static final class Response {
+		private final AtomicInteger failures;
+		private final int status;
+		private final String body;
+
+		Response(int failures, int status, String body) {
+			this.failures = new AtomicInteger(failures);
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", this::handle);
+		server.start();
+		RemoteRepositoryConfig config = new RemoteRepositoryConfig("http://127.0.0.1:" + server.getAddress().getPort());
+		config.setBatchSize(1);
+		config.setRangeThreads(1);
+		config.setRetryBackoffMillis(1);
+		repository = new RemoteRepositoryService(config);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		repository.close();
+		server.stop(0);
+	}
+
+	@Test
+	public void infoIsRetriedWhenTheServerIsOverloaded() {
+		responses.put(RemoteRepositoryService.API + "/a.txt",
+				new Response(1, 200, "{\"repositoryPath\":\"/a.txt\",\"exists\":true,\"file\":true,\"size\":5}"));
+		RepoResource res = repository.info("/a.txt");
+		assertTrue(res.isExists());
+		assertTrue(res.isFile());
+		assertEquals(5, res.getSize());
+		assertEquals(2, requests.get());
+	}
+
+	@Test
+	public void contentIsRead() throws IOException {
+		responses.put(RemoteRepositoryService.API + "/a.txt?content=", new Response(0, 200, "hello"));
+		byte[] buffer = new byte[16];
+		int n;
+		try (InputStream in = repository.getContentInputStream("/a.txt")) {
+			n = in.read(buffer);
+		}
+		assertEquals("hello", new String(buffer, 0, n, StandardCharsets.UTF_8));
+	}
+
+	@Test(expected=ResourceAccessException.class)
+	public void missingResourceIsRejected() {
+		repository.getContentInputStream("/missing.txt");
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		String query = exchange.getRequestURI().getRawQuery();
+		Response response = responses.get(exchange.getRequestURI().getPath() + ((query != null) ? "?" + query : ""));
+		byte[] body;
+		int status;
+		if (response == null) {
+			status = 404;
+			body = "{\"message\":\"not found\"}".getBytes(StandardCharsets.UTF_8);
+		} else if (response.failures.getAndDecrement() > 0) {
+			status = 503;
+			body = new byte[0];
+		} else {
+			status = response.status;
+			body = response.body.getBytes(StandardCharsets.UTF_8);
+		}
+		exchange.sendResponseHeaders(status, (body.length > 0) ? body.length : -1);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * @author arpablo
+ *
+ */
+public class BulkheadTest {
+
+	@Test
+	public void operationsBeyondTheQueueAreRejected() throws InterruptedException {
+		Bulkhead bulkhead = new Bulkhead("test", 1, 0, 1000);
+		assertTrue(bulkhead.tryEnter());
+		assertEquals(1, bulkhead.getActive());
+		assertFalse(bulkhead.tryEnter());
+		assertEquals(1, bulkhead.getRejected());
+		bulkhead.leave();
+		assertTrue(bulkhead.tryEnter());
+		bulkhead.leave();
+		assertEquals(2, bulkhead.getAdmitted());
+		assertEquals(0, bulkhead.getActive());
+	}
+
+	@Test
+	public void queuedOperationIsAdmittedWhenAPermitIsReleased() throws InterruptedException {
+		Bulkhead bulkhead = new Bulkhead("test", 1, 1, 10000);
+		assertTrue(bulkhead.tryEnter());
+		AtomicBoolean admitted = new AtomicBoolean();
+		CountDownLatch done = new CountDownLatch(1);
+		Thread waiter = new Thread(() -> {
+			try {
+				admitted.set(bulkhead.tryEnter());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			done.countDown();
+		});
+		waiter.start();
+		while (bulkhead.getQueued() == 0) {
+			Thread.sleep(10);
+		}
+		// the queue is full
+		assertFalse(bulkhead.tryEnter());
+		bulkhead.leave();
+		done.await();
+		assertTrue(admitted.get());
+		assertEquals(0, bulkhead.getQueued());
+	}
+
+	@Test
+	public void waitingOperationTimesOut() throws InterruptedException {
+		Bulkhead bulkhead = new Bulkhead("test", 1, 1, 50);
+		assertTrue(bulkhead.tryEnter());
+		assertFalse(bulkhead.tryEnter());
+		assertEquals(1, bulkhead.getRejected());
+		assertEquals(0, bulkhead.getQueued());
+	}
+
+}
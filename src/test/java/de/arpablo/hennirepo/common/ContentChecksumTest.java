@@ -0,0 +1,55 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * @author arpablo
+ *
+ */
+public class ContentChecksumTest {
+
+	private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+	@Test
+	public void checksumsAreComputedWhileReading() throws IOException {
+		try (ChecksumInputStream in = new ChecksumInputStream(new ByteArrayInputStream("abc".getBytes(StandardCharsets.US_ASCII)))) {
+			byte[] buffer = new byte[2];
+			while (in.read(buffer) >= 0) {
+				// read to the end
+			}
+			assertEquals(3, in.getCount());
+			assertEquals(ABC_SHA256, in.getChecksum().getSha256());
+			assertEquals("352441c2", in.getChecksum().getCrc32());
+		}
+	}
+
+	@Test
+	public void emptyContentHasTheEmptyDigest() throws IOException {
+		try (ChecksumInputStream in = new ChecksumInputStream(new ByteArrayInputStream(new byte[0]))) {
+			assertEquals(-1, in.read());
+			assertEquals(ContentChecksum.EMPTY_SHA256, in.getChecksum().getSha256());
+		}
+	}
+
+	@Test
+	public void digestHeadersAreParsed() {
+		ContentChecksum checksum = ContentChecksum.valueOf(ABC_SHA256, "352441c2");
+		assertEquals(ABC_SHA256, ContentChecksum.sha256FromHeader(checksum.getReprDigest()));
+		assertEquals(ABC_SHA256, ContentChecksum.sha256FromHeader(checksum.getDigest()));
+		assertEquals(ABC_SHA256, ContentChecksum.sha256FromHeader("md5=:abc:, " + ContentChecksum.toReprDigest(ABC_SHA256)));
+		assertNull(ContentChecksum.sha256FromHeader("sha-512=:abc:"));
+		assertNull(ContentChecksum.sha256FromHeader("sha-256=:not base64:"));
+		assertNull(ContentChecksum.sha256FromHeader(null));
+	}
+
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * @author arpablo
+ *
+ */
+public class FlightEventsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void operationsAreRunWithoutARecording() {
+		assertEquals("result", FlightEvents.instrumented("info", "/a", () -> "result"));
+		// nothing to count to
+		FlightEvents.count(1, 1);
+	}
+
+	@Test
+	public void countsGoToTheCurrentOperation() throws IOException {
+		Map<String, RecordedEvent> events = record(() -> {
+			FlightEvents.instrumented("copy", "/src", () -> {
+				FlightEvents.count(10, 1);
+				FlightEvents.instrumented("info", "/src/a", () -> FlightEvents.count(5, 1));
+				FlightEvents.count(20, 1);
+			});
+			try {
+				FlightEvents.instrumented("delete", "/missing", () -> {
+					throw new IllegalStateException("failed");
+				});
+				fail("exception swallowed");
+			} catch (IllegalStateException ex) {
+				// expected
+			}
+		});
+		RecordedEvent copy = events.get("copy");
+		assertEquals(30, copy.getLong("bytes"));
+		assertEquals(2, copy.getLong("entries"));
+		assertEquals("ok", copy.getString("outcome"));
+		assertEquals(1, copy.getInt("depth"));
+		assertEquals(5, events.get("info").getLong("bytes"));
+		assertEquals("IllegalStateException", events.get("delete").getString("outcome"));
+	}
+
+	/**
+	 * Record the operation events of an action by their operation
+	 */
+	private Map<String, RecordedEvent> record(Runnable action) throws IOException {
+		Path file = folder.getRoot().toPath().resolve("test.jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("de.arpablo.hennirepo.Operation").withThreshold(Duration.ZERO);
+			recording.start();
+			action.run();
+			recording.stop();
+			recording.dump(file);
+		}
+		Map<String, RecordedEvent> ret = new HashMap<String, RecordedEvent>();
+		List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+		for (RecordedEvent event : events) {
+			ret.put(event.getString("operation"), event);
+		}
+		return ret;
+	}
+
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author arpablo
+ *
+ */
+public class RequestTimingTest {
+
+	@After
+	public void tearDown() {
+		RequestTiming.detach();
+	}
+
+	@Test
+	public void nothingIsRecordedWithoutARequest() {
+		assertNull(RequestTiming.current());
+		assertEquals(0, RequestTiming.start());
+		assertEquals(0, RequestTiming.record(RequestTiming.Phase.STAT, 0, 1, 0));
+		InputStream in = new ByteArrayInputStream(new byte[1]);
+		assertSame(in, RequestTiming.timed(in));
+	}
+
+	@Test
+	public void operationsAreRecordedByPhase() {
+		RequestTiming timing = RequestTiming.begin();
+		assertSame(timing, RequestTiming.current());
+		long start = RequestTiming.start();
+		assertTrue(start != 0);
+		RequestTiming.record(RequestTiming.Phase.STAT, start, 2, 0);
+		timing.add(RequestTiming.Phase.WRITE, 1500000, 1, 10);
+		assertEquals(2, timing.getCalls(RequestTiming.Phase.STAT));
+		assertEquals(1500000, timing.getNanos(RequestTiming.Phase.WRITE));
+		String header = timing.toServerTiming();
+		assertTrue(header, header.contains("write;dur=1.5;desc=\"1 calls, 10 bytes\""));
+		assertTrue(header, header.contains("stat;dur="));
+		assertFalse(header, header.contains("list"));
+		assertTrue(header, header.matches(".*, total;dur=[0-9.]+"));
+		assertTrue(timing.toString().contains("write_bytes=10"));
+	}
+
+	@Test
+	public void readsOfTimedStreamsAreRecorded() throws IOException {
+		RequestTiming timing = RequestTiming.begin();
+		try (InputStream in = RequestTiming.timed(new ByteArrayInputStream(new byte[100]))) {
+			byte[] buffer = new byte[64];
+			while (in.read(buffer) >= 0) {
+				// read to the end
+			}
+		}
+		assertEquals(100, timing.getBytes(RequestTiming.Phase.READ));
+		assertTrue(timing.getCalls(RequestTiming.Phase.READ) > 0);
+	}
+
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author arpablo
+ *
+ */
+public class TokenBucketTest {
+
+	@Test
+	public void burstUpToTheCapacityDoesNotWait() {
+		TokenBucket bucket = new TokenBucket(1000, 1000);
+		assertTrue(bucket.isFull());
+		assertEquals(0, bucket.take(1000));
+		assertFalse(bucket.isFull());
+	}
+
+	@Test
+	public void debtIsPaidBackAtTheRate() {
+		TokenBucket bucket = new TokenBucket(1000, 1000);
+		long wait = bucket.take(3000);
+		// 2000 tokens are missing, at 1000 per second
+		assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(1900));
+		assertTrue(wait <= TimeUnit.SECONDS.toNanos(2));
+	}
+
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * @author arpablo
+ *
+ */
+public class VerifyingInputStreamTest {
+
+	private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+	@Test
+	public void matchingContentIsRead() throws IOException {
+		try (VerifyingInputStream in = verifying("abc", ABC_SHA256.toUpperCase())) {
+			assertEquals(3, drain(in));
+			assertEquals(ABC_SHA256, in.getChecksum().getSha256());
+			// the end may be read again
+			assertEquals(-1, in.read());
+		}
+	}
+
+	@Test
+	public void mismatchFailsAtTheEnd() throws IOException {
+		try (InputStream in = verifying("abd", ABC_SHA256)) {
+			assertEquals('a', in.read());
+			drain(in);
+			fail("mismatch not detected");
+		} catch (IllegalStateException ex) {
+			assertEquals("mismatch", ex.getMessage());
+		}
+	}
+
+	private static VerifyingInputStream verifying(String content, String sha256) {
+		return new VerifyingInputStream(new ByteArrayInputStream(content.getBytes(StandardCharsets.US_ASCII)), sha256,
+				() -> new IllegalStateException("mismatch"));
+	}
+
+	private static int drain(InputStream in) throws IOException {
+		byte[] buffer = new byte[2];
+		int ret = 0;
+		for (int n; (n = in.read(buffer)) >= 0; ) {
+			ret += n;
+		}
+		return ret;
+	}
+
+}
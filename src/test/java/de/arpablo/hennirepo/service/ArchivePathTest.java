@@ -0,0 +1,110 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.arpablo.hennirepo.config.RepositoryProperties;
+
+/**
+ * @author arpablo
+ *
+ */
+public class ArchivePathTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileRepositoryService repository;
+
+	@After
+	public void tearDown() throws IOException {
+		repository.shutdown();
+	}
+
+	@Test
+	public void namesWithExclamationMarkAreNoArchives() throws IOException {
+		setUp(false);
+		repository.setContent("/a!", RepositoryTestSupport.stream("plain"));
+		repository.createDirectories("/b!");
+		repository.setContent("/b!/c.txt", RepositoryTestSupport.stream("below"));
+		assertEquals("plain", RepositoryTestSupport.content(repository, "/a!"));
+		assertEquals("below", RepositoryTestSupport.content(repository, "/b!/c.txt"));
+		repository.delete("/a!");
+		assertFalse(repository.exists("/a!"));
+	}
+
+	@Test
+	public void entryIsReadInPlace() throws IOException {
+		setUp(false);
+		repository.setContent("/bundle.zip", new ByteArrayInputStream(zip("dir/file.xml", "<a/>")));
+		assertEquals("<a/>", RepositoryTestSupport.content(repository, "/bundle.zip!/dir/file.xml"));
+		assertTrue(repository.info("/bundle.zip!").isDirectory());
+	}
+
+	@Test
+	public void packedArchiveIsUnpacked() throws IOException {
+		setUp(true);
+		repository.setContent("/small.zip", new ByteArrayInputStream(zip("a.txt", "packed")));
+		assertNotNull(repository.getPacked("/small.zip"));
+		assertEquals("packed", RepositoryTestSupport.content(repository, "/small.zip!/a.txt"));
+		assertNull(repository.getPacked("/small.zip"));
+	}
+
+	@Test
+	public void streamReleasesTheArchiveAtItsEnd() throws IOException {
+		setUp(false);
+		repository.setContent("/bundle.zip", new ByteArrayInputStream(zip("a.txt", "content")));
+		ArchiveCache cache = (ArchiveCache) ReflectionTestUtils.getField(repository, "archiveCache");
+		ArchiveCache.Archive archive = cache.open(repository.resolve("/bundle.zip"));
+		InputStream in = archive.newInputStream("/a.txt");
+		archive.close();
+		assertEquals(1, ReflectionTestUtils.getField(archive, "references"));
+		byte[] buffer = new byte[64];
+		int length = 0;
+		for (int n; (n = in.read(buffer, length, buffer.length - length)) >= 0; length += n) {
+			// read to the end without closing
+		}
+		assertEquals("content", new String(buffer, 0, length, StandardCharsets.UTF_8));
+		assertEquals(0, ReflectionTestUtils.getField(archive, "references"));
+		in.close();
+		assertEquals(0, ReflectionTestUtils.getField(archive, "references"));
+	}
+
+	private void setUp(boolean pack) throws IOException {
+		RepositoryProperties config = RepositoryTestSupport.config(folder.newFolder("repo"));
+		config.getPack().setEnabled(pack);
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+	}
+
+	private static byte[] zip(String name, String content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(out)) {
+			zip.putNextEntry(new ZipEntry(name));
+			zip.write(content.getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		}
+		return out.toByteArray();
+	}
+
+}
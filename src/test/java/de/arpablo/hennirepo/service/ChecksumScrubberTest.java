@@ -0,0 +1,91 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.arpablo.hennirepo.common.ContentChecksum;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.model.ScrubStatus;
+
+/**
+ * @author arpablo
+ *
+ */
+public class ChecksumScrubberTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileRepositoryService repository;
+
+	private ChecksumScrubber scrubber;
+
+	@Before
+	public void setUp() throws IOException {
+		RepositoryProperties config = RepositoryTestSupport.config(folder.newFolder("repo"));
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+		scrubber = new ChecksumScrubber();
+		ReflectionTestUtils.setField(scrubber, "repository", repository);
+		ReflectionTestUtils.setField(scrubber, "repoConfig", config);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		repository.shutdown();
+	}
+
+	@Test
+	public void checksumsAreStoredOnWrite() {
+		repository.setContent("/a.txt", RepositoryTestSupport.stream("abc"));
+		ContentChecksum checksum = ContentChecksum.read(repository.resolve("/a.txt"));
+		assertNotNull(checksum);
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", checksum.getSha256());
+	}
+
+	@Test
+	public void checksumsOfChangedFilesAreInvalid() throws IOException {
+		repository.setContent("/a.txt", RepositoryTestSupport.stream("abc"));
+		Path p = repository.resolve("/a.txt");
+		Files.write(p, "abcd".getBytes(StandardCharsets.UTF_8));
+		assertNull(ContentChecksum.read(p));
+	}
+
+	@Test
+	public void corruptContentIsReported() throws IOException, InterruptedException {
+		repository.setContent("/a.txt", RepositoryTestSupport.stream("abc"));
+		repository.setContent("/b.txt", RepositoryTestSupport.stream("def"));
+		Path p = repository.resolve("/a.txt");
+		// same size and modification time, as bit rot would leave it
+		FileTime modified = Files.getLastModifiedTime(p);
+		Files.write(p, "abd".getBytes(StandardCharsets.UTF_8));
+		Files.setLastModifiedTime(p, modified);
+		scrubber.start();
+		ScrubStatus status = scrubber.getStatus();
+		while (status.isRunning()) {
+			Thread.sleep(10);
+			status = scrubber.getStatus();
+		}
+		assertEquals(2, status.getFilesChecked());
+		assertEquals(Collections.singletonList("/a.txt"), status.getMismatches());
+	}
+
+}
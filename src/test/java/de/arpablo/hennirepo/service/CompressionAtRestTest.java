@@ -0,0 +1,158 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.arpablo.hennirepo.common.ArchiveFormat;
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.model.RepoResource;
+
+/**
+ * @author arpablo
+ *
+ */
+public class CompressionAtRestTest {
+
+	private static final String XML = "<list>" + String.join("", Collections.nCopies(500, "<item>compressed</item>")) + "</list>";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileRepositoryService repository;
+
+	@Before
+	public void setUp() throws IOException {
+		RepositoryProperties config = RepositoryTestSupport.config(folder.newFolder("repo"));
+		config.getCompression().setEnabled(true);
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		repository.shutdown();
+	}
+
+	@Test
+	public void writtenContentIsCompressed() throws IOException {
+		RepoResource res = repository.setContent("/a.xml", RepositoryTestSupport.stream(XML));
+		assertEquals(XML.length(), res.getSize());
+		assertCompressed("/a.xml");
+		try (CompressedFile.Stored stored = repository.getEncodedContent("/a.xml", CompressedFile.GZIP)) {
+			assertEquals(Files.size(repository.resolve("/a.xml")), stored.getLength());
+			assertEquals(XML, new String(RepositoryTestSupport.read(new GZIPInputStream(stored.getInputStream())), StandardCharsets.UTF_8));
+		}
+		repository.setContent("/a.txt", RepositoryTestSupport.stream(XML));
+		assertNull(CompressedFile.read(repository.resolve("/a.txt")));
+		assertNull(repository.getEncodedContent("/a.txt", CompressedFile.GZIP));
+	}
+
+	@Test
+	public void incompressibleContentIsStoredAsIs() throws IOException {
+		byte[] random = new byte[4096];
+		new Random(1).nextBytes(random);
+		repository.setContent("/random.xml", new ByteArrayInputStream(random));
+		Path p = repository.resolve("/random.xml");
+		assertNull(CompressedFile.read(p));
+		assertEquals(random.length, Files.size(p));
+		assertTrue(CompressedFile.isIncompressible(p, Files.readAttributes(p, BasicFileAttributes.class)));
+		assertEquals(0, tmpFiles());
+	}
+
+	@Test
+	public void committedContentIsCompressed() throws IOException {
+		// e.g. an assembled multipart upload
+		Path tmp = Files.createTempFile(repository.getSystemPath(FileRepositoryService.TMP_DIR), "assembly-", ".tmp");
+		Files.write(tmp, XML.getBytes(StandardCharsets.UTF_8));
+		assertEquals(XML.length(), repository.commitContent(tmp, "/b.xml").getSize());
+		assertCompressed("/b.xml");
+		assertEquals(0, tmpFiles());
+	}
+
+	@Test
+	public void copiedContentIsCompressed() {
+		repository.setContent("/a.txt", RepositoryTestSupport.stream(XML));
+		repository.copy("/a.txt", "/c.xml");
+		assertCompressed("/c.xml");
+	}
+
+	@Test
+	public void extractedContentIsCompressed() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(out)) {
+			zip.putNextEntry(new ZipEntry("d.xml"));
+			zip.write(XML.getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		}
+		repository.createDirectories("/dir");
+		repository.extractArchive(new ByteArrayInputStream(out.toByteArray()), ArchiveFormat.ZIP, "/dir");
+		assertCompressed("/dir/d.xml");
+		try (OutputStream zip = Files.newOutputStream(repository.resolve("/e.zip"))) {
+			zip.write(out.toByteArray());
+		}
+		repository.createDirectories("/unzipped");
+		repository.unzip("/e.zip", "/unzipped");
+		assertCompressed("/unzipped/d.xml");
+		assertEquals(0, tmpFiles());
+	}
+
+	@Test
+	public void zippedContentIsDecompressed() throws IOException {
+		repository.createDirectories("/dir");
+		Path tmp = Files.createTempFile(repository.getSystemPath(FileRepositoryService.TMP_DIR), "assembly-", ".tmp");
+		Files.write(tmp, XML.getBytes(StandardCharsets.UTF_8));
+		repository.commitContent(tmp, "/dir/b.xml");
+		assertCompressed("/dir/b.xml");
+		repository.zip("/dir", "/dir.zip");
+		try (InputStream in = repository.getContentInputStream("/dir.zip"); ZipInputStream zip = new ZipInputStream(in)) {
+			ZipEntry entry = zip.getNextEntry();
+			while (entry != null && entry.isDirectory()) {
+				entry = zip.getNextEntry();
+			}
+			assertNotNull(entry);
+			assertTrue(entry.getName().endsWith("b.xml"));
+			assertEquals(XML, new String(RepositoryTestSupport.read(zip), StandardCharsets.UTF_8));
+		}
+	}
+
+	private void assertCompressed(String path) {
+		Path p = repository.resolve(path);
+		assertNotNull(CompressedFile.read(p));
+		assertEquals(XML.length(), repository.info(path).getSize());
+		assertEquals(XML, RepositoryTestSupport.content(repository, path));
+	}
+
+	private int tmpFiles() throws IOException {
+		String[] names = repository.getSystemPath(FileRepositoryService.TMP_DIR).toFile().list();
+		return (names == null) ? 0 : names.length;
+	}
+
+}
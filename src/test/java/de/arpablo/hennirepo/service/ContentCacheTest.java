@@ -0,0 +1,91 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.arpablo.hennirepo.config.RepositoryProperties;
+
+/**
+ * @author arpablo
+ *
+ */
+public class ContentCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private RepositoryProperties config;
+
+	private ContentCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+		config = RepositoryTestSupport.config(folder.newFolder("repo"));
+		cache = new ContentCache();
+		ReflectionTestUtils.setField(cache, "repoConfig", config);
+	}
+
+	@Test
+	public void fileIsAdmittedOnItsSecondAccess() throws IOException {
+		byte[] content = new byte[1000];
+		Path p = file("a.bin", content);
+		assertNull(cache.getInputStream(p, "/a.bin"));
+		assertEquals(0, cache.getStatistics().getEntries());
+		assertArrayEquals(content, RepositoryTestSupport.read(cache.getInputStream(p, "/a.bin")));
+		assertEquals(1, cache.getStatistics().getEntries());
+		assertArrayEquals(content, RepositoryTestSupport.read(cache.getInputStream(p, "/a.bin")));
+		assertEquals(1, cache.getStatistics().getHits());
+	}
+
+	@Test
+	public void changedFileIsNotAdmitted() throws IOException {
+		Path p = file("a.bin", new byte[1000]);
+		assertNull(cache.getInputStream(p, "/a.bin"));
+		Files.write(p, new byte[2000]);
+		Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis() + 60000));
+		assertNull(cache.getInputStream(p, "/a.bin"));
+		assertNotNull(cache.getInputStream(p, "/a.bin"));
+	}
+
+	@Test
+	public void mediumFileIsNotMappedByDefault() throws IOException {
+		Path p = file("medium.bin", new byte[config.getCache().getMaxFileSize() + 1]);
+		assertNull(cache.getInputStream(p, "/medium.bin"));
+		assertNull(cache.getInputStream(p, "/medium.bin"));
+		assertEquals(0, cache.getStatistics().getMappedEntries());
+	}
+
+	@Test
+	public void mediumFileIsMappedIfEnabled() throws IOException {
+		config.getCache().setMap(true);
+		byte[] content = new byte[config.getCache().getMaxFileSize() + 1];
+		content[content.length - 1] = 1;
+		Path p = file("medium.bin", content);
+		assertNull(cache.getInputStream(p, "/medium.bin"));
+		assertArrayEquals(content, RepositoryTestSupport.read(cache.getInputStream(p, "/medium.bin")));
+		assertEquals(1, cache.getStatistics().getMappedEntries());
+	}
+
+	private Path file(String name, byte[] content) throws IOException {
+		Path ret = folder.getRoot().toPath().resolve(name);
+		Files.write(ret, content);
+		return ret;
+	}
+
+}
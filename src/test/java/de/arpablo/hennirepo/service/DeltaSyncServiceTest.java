@@ -0,0 +1,171 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.common.DeltaUtils;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.exception.RepositoryException;
+import de.arpablo.hennirepo.model.FileSignature;
+import de.arpablo.hennirepo.model.RepoResource;
+
+/**
+ * @author arpablo
+ *
+ */
+public class DeltaSyncServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileRepositoryService repository;
+
+	private DeltaSyncService deltas;
+
+	private final Random random = new Random(42);
+
+	@Before
+	public void setUp() throws IOException {
+		repository = RepositoryTestSupport.fileRepository(RepositoryTestSupport.config(folder.newFolder("repo")), new ArrayList<Object>());
+		deltas = new DeltaSyncService();
+		ReflectionTestUtils.setField(deltas, "repository", repository);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		repository.shutdown();
+	}
+
+	@Test
+	public void applyRebuildsTheNewContent() throws IOException {
+		byte[] basis = randomBytes(100000);
+		repository.setContent("/data.bin", new ByteArrayInputStream(basis));
+		byte[] changed = basis.clone();
+		System.arraycopy(randomBytes(1000), 0, changed, 50000, 1000);
+		RepoResource res = deltas.applyDelta("/data.bin", new ByteArrayInputStream(delta(deltas.signature("/data.bin", 0), changed)));
+		assertEquals(changed.length, res.getSize());
+		assertEquals(deltas.signature("/data.bin", 0).getSha256(), res.getSha256());
+		assertArrayEquals(changed, content("/data.bin"));
+	}
+
+	@Test
+	public void deltaOfStaleBasisIsRejected() throws IOException {
+		byte[] basis = randomBytes(100000);
+		repository.setContent("/data.bin", new ByteArrayInputStream(basis));
+		FileSignature signature = deltas.signature("/data.bin", 0);
+		// same length, different content
+		byte[] current = randomBytes(basis.length);
+		repository.setContent("/data.bin", new ByteArrayInputStream(current));
+		try {
+			deltas.applyDelta("/data.bin", new ByteArrayInputStream(delta(signature, randomBytes(100000))));
+			fail("the delta was applied to a basis it was not computed for");
+		} catch (RepositoryException ex) {
+			// expected
+		}
+		assertArrayEquals(current, content("/data.bin"));
+	}
+
+	@Test
+	public void corruptResultIsRejected() throws IOException {
+		byte[] basis = randomBytes(100000);
+		repository.setContent("/data.bin", new ByteArrayInputStream(basis));
+		byte[] delta = delta(deltas.signature("/data.bin", 0), randomBytes(5000));
+		// the last byte belongs to the checksum of the new content
+		delta[delta.length - 1] ^= 1;
+		try {
+			deltas.applyDelta("/data.bin", new ByteArrayInputStream(delta));
+			fail("a delta with a wrong result was applied");
+		} catch (RepositoryException ex) {
+			// expected
+		}
+		assertArrayEquals(basis, content("/data.bin"));
+	}
+
+	@Test
+	public void blockSizeIsLimited() throws IOException {
+		repository.setContent("/data.bin", new ByteArrayInputStream(randomBytes(10000)));
+		assertEquals(DeltaUtils.MIN_BLOCK_SIZE, deltas.signature("/data.bin", 1).getBlockSize());
+		assertEquals(DeltaUtils.MAX_BLOCK_SIZE, deltas.signature("/data.bin", Integer.MAX_VALUE).getBlockSize());
+	}
+
+	@Test
+	public void signatureLeavesCompressedFileAsStored() throws IOException {
+		repository.shutdown();
+		RepositoryProperties config = RepositoryTestSupport.config(folder.newFolder("compressed"));
+		config.getCompression().setEnabled(true);
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+		ReflectionTestUtils.setField(deltas, "repository", repository);
+		byte[] basis = String.join("", Collections.nCopies(5000, "<item/>")).getBytes(StandardCharsets.UTF_8);
+		repository.setContent("/data.xml", new ByteArrayInputStream(basis));
+		Path p = repository.resolve("/data.xml");
+		long stored = Files.size(p);
+		FileSignature signature = deltas.signature("/data.xml", 0);
+		assertEquals(basis.length, signature.getLength());
+		assertEquals(stored, Files.size(p));
+		assertNotNull(CompressedFile.read(p));
+		// from the cache
+		assertEquals(signature.getSha256(), deltas.signature("/data.xml", 0).getSha256());
+		byte[] changed = basis.clone();
+		changed[100] = 'x';
+		deltas.applyDelta("/data.xml", new ByteArrayInputStream(delta(signature, changed)));
+		assertArrayEquals(changed, content("/data.xml"));
+	}
+
+	@Test
+	public void packedFileIsSynchronized() throws IOException {
+		repository.shutdown();
+		RepositoryProperties config = RepositoryTestSupport.config(folder.newFolder("packed"));
+		config.getPack().setEnabled(true);
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+		ReflectionTestUtils.setField(deltas, "repository", repository);
+		byte[] basis = randomBytes(3000);
+		repository.setContent("/small.bin", new ByteArrayInputStream(basis));
+		FileSignature signature = deltas.signature("/small.bin", 0);
+		assertEquals(basis.length, signature.getLength());
+		assertNotNull(repository.getPackStore().get("/small.bin"));
+		byte[] changed = basis.clone();
+		changed[10] ^= 1;
+		deltas.applyDelta("/small.bin", new ByteArrayInputStream(delta(signature, changed)));
+		assertArrayEquals(changed, content("/small.bin"));
+	}
+
+	private byte[] delta(FileSignature signature, byte[] content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DeltaUtils.encode(signature, new ByteArrayInputStream(content), out);
+		return out.toByteArray();
+	}
+
+	private byte[] content(String path) throws IOException {
+		return RepositoryTestSupport.read(repository.getContentInputStream(path));
+	}
+
+	private byte[] randomBytes(int length) {
+		byte[] ret = new byte[length];
+		random.nextBytes(ret);
+		return ret;
+	}
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.arpablo.hennirepo.common.ArchiveFormat;
+import de.arpablo.hennirepo.exception.RepositoryException;
+
+/**
+ * @author arpablo
+ *
+ */
+public class ExtractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileRepositoryService repository;
+
+	@Before
+	public void setUp() throws IOException {
+		repository = RepositoryTestSupport.fileRepository(RepositoryTestSupport.config(folder.newFolder("repo")), new ArrayList<Object>());
+		repository.createDirectories("/dst");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		repository.shutdown();
+	}
+
+	@Test
+	public void entriesReplaceExistingFiles() throws IOException {
+		repository.setContent("/dst/a.txt", RepositoryTestSupport.stream("old"));
+		repository.extractArchive(new ByteArrayInputStream(zip("new".getBytes(StandardCharsets.UTF_8))), ArchiveFormat.ZIP, "/dst");
+		assertEquals("new", RepositoryTestSupport.content(repository, "/dst/a.txt"));
+	}
+
+	@Test
+	public void failedEntryKeepsTheOldContent() throws IOException {
+		repository.setContent("/dst/a.txt", RepositoryTestSupport.stream("old"));
+		byte[] data = new byte[256 * 1024];
+		new Random(1).nextBytes(data);
+		byte[] zip = zip(data);
+		try {
+			repository.extractArchive(new ByteArrayInputStream(Arrays.copyOf(zip, zip.length / 2)) {
+				@Override
+				public synchronized int read(byte[] b, int off, int len) {
+					int n = super.read(b, off, len);
+					if (n < 0) {
+						throw new IllegalStateException("connection lost");
+					}
+					return n;
+				}
+			}, ArchiveFormat.ZIP, "/dst");
+			fail("truncated archive extracted");
+		} catch (RepositoryException | IllegalStateException ex) {
+			// expected
+		}
+		assertEquals("old", RepositoryTestSupport.content(repository, "/dst/a.txt"));
+		File[] tmp = repository.getSystemPath(FileRepositoryService.TMP_DIR, repository.resolve("/dst")).toFile().listFiles();
+		assertEquals(0, (tmp == null) ? 0 : tmp.length);
+	}
+
+	private static byte[] zip(byte[] content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(out)) {
+			zip.putNextEntry(new ZipEntry("a.txt"));
+			zip.write(content);
+			zip.closeEntry();
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.arpablo.hennirepo.model.RepositoryEvent;
+
+/**
+ * @author arpablo
+ *
+ */
+public class FileSystemWatcherTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileRepositoryService repository;
+
+	private FileSystemWatcher watcher;
+
+	private final List<Object> events = new ArrayList<Object>();
+
+	private final List<RepositoryEvent> external = new ArrayList<RepositoryEvent>();
+
+	@Before
+	public void setUp() throws IOException {
+		repository = RepositoryTestSupport.fileRepository(RepositoryTestSupport.config(folder.newFolder("repo")), events);
+		watcher = new FileSystemWatcher();
+		ApplicationEventPublisher publisher = event -> external.add((RepositoryEvent) event);
+		ReflectionTestUtils.setField(watcher, "repository", repository);
+		ReflectionTestUtils.setField(watcher, "publisher", publisher);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		repository.shutdown();
+	}
+
+	@Test
+	public void changeOfTheServiceIsSuppressed() {
+		repository.setContent("/a.txt", RepositoryTestSupport.stream("one"));
+		deliver();
+		Path p = repository.resolve("/a.txt");
+		watcher.publishExternal(RepositoryEvent.Type.CREATE, p);
+		watcher.publishExternal(RepositoryEvent.Type.MODIFY, p);
+		assertTrue(external.isEmpty());
+	}
+
+	@Test
+	public void externalChangeAfterTheServiceIsPublished() throws IOException {
+		repository.setContent("/a.txt", RepositoryTestSupport.stream("one"));
+		deliver();
+		Path p = repository.resolve("/a.txt");
+		Files.write(p, "changed".getBytes(StandardCharsets.UTF_8));
+		watcher.publishExternal(RepositoryEvent.Type.MODIFY, p);
+		assertEquals(1, external.size());
+		assertEquals("/a.txt", external.get(0).getPath());
+		assertTrue(external.get(0).isExternal());
+	}
+
+	@Test
+	public void externalChangeBelowACopyIsPublished() throws IOException {
+		repository.setContent("/src/a.txt", RepositoryTestSupport.stream("one"));
+		repository.createDirectories("/dst");
+		repository.copy("/src", "/dst");
+		deliver();
+		Path copied = repository.resolve("/dst/src/a.txt");
+		watcher.publishExternal(RepositoryEvent.Type.CREATE, copied);
+		assertTrue(external.isEmpty());
+		Path added = repository.resolve("/dst/src/b.txt");
+		Files.write(added, "external".getBytes(StandardCharsets.UTF_8));
+		Files.setLastModifiedTime(added, FileTime.fromMillis(System.currentTimeMillis() + 60000));
+		watcher.publishExternal(RepositoryEvent.Type.CREATE, added);
+		assertEquals(1, external.size());
+		assertEquals("/dst/src/b.txt", external.get(0).getPath());
+	}
+
+	@Test
+	public void deleteOfTheServiceIsSuppressed() {
+		repository.setContent("/dir/a.txt", RepositoryTestSupport.stream("one"));
+		Path p = repository.resolve("/dir/a.txt");
+		repository.delete("/dir");
+		deliver();
+		watcher.publishExternal(RepositoryEvent.Type.DELETE, p);
+		assertTrue(external.isEmpty());
+	}
+
+	@Test
+	public void unwatchableDirectoryIsSkipped() throws IOException {
+		try (WatchService watchService = repository.getRoot().getPath().getFileSystem().newWatchService()) {
+			ReflectionTestUtils.setField(watcher, "watchService", watchService);
+			watcher.register(folder.getRoot().toPath().resolve("missing"));
+		}
+	}
+
+	private void deliver() {
+		for (Object event : events) {
+			if (event instanceof RepositoryEvent) {
+				watcher.onRepositoryEvent((RepositoryEvent) event);
+			}
+		}
+		events.clear();
+	}
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.arpablo.hennirepo.common.ArchiveFormat;
+import de.arpablo.hennirepo.exception.InvalidResourceTypeException;
+
+/**
+ * @author arpablo
+ *
+ */
+public class MemoryRepositoryServiceTest {
+
+	private MemoryRepositoryService repository;
+
+	private final List<Object> events = new ArrayList<Object>();
+
+	@Before
+	public void setUp() {
+		repository = new MemoryRepositoryService();
+		ApplicationEventPublisher publisher = event -> events.add(event);
+		ReflectionTestUtils.setField(repository, "publisher", publisher);
+	}
+
+	@Test
+	public void unzipRestoresZippedTree() {
+		repository.createDirectories("/dir/sub");
+		repository.setContent("/dir/a.txt", RepositoryTestSupport.stream("a"));
+		repository.setContent("/dir/sub/b.txt", RepositoryTestSupport.stream("b"));
+		repository.zip("/dir", "/dir.zip");
+		repository.unzip("/dir.zip", "/out");
+		assertEquals("a", RepositoryTestSupport.content(repository, "/out/a.txt"));
+		assertEquals("b", RepositoryTestSupport.content(repository, "/out/sub/b.txt"));
+		assertTrue(repository.existsDirectory("/out/sub"));
+	}
+
+	@Test
+	public void entryOverDirectoryIsRejected() throws IOException {
+		repository.createDirectories("/out/a.txt");
+		repository.setContent("/out/a.txt/child.txt", RepositoryTestSupport.stream("child"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(out)) {
+			zip.putNextEntry(new ZipEntry("a.txt"));
+			zip.write("a".getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		}
+		try {
+			repository.extractArchive(new ByteArrayInputStream(out.toByteArray()), ArchiveFormat.ZIP, "/out");
+			fail("a directory was replaced by a file");
+		} catch (InvalidResourceTypeException ex) {
+			// expected
+		}
+		assertTrue(repository.existsDirectory("/out/a.txt"));
+		assertEquals("child", RepositoryTestSupport.content(repository, "/out/a.txt/child.txt"));
+	}
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.arpablo.hennirepo.config.RepositoryProperties;
+
+/**
+ * @author arpablo
+ *
+ */
+public class MetadataCheckpointTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+
+	private RepositoryProperties config;
+
+	@Before
+	public void setUp() throws IOException {
+		config = RepositoryTestSupport.config(folder.newFolder("repo"));
+	}
+
+	@Test
+	public void checkpointIsWrittenAndRead() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("metadata.dat");
+		new MetadataCheckpoint(42, 1000, 2, Arrays.asList(
+				new MetadataCheckpoint.Record("/", 10, 1, new long[] { 5, MetadataCheckpoint.ABSENT }),
+				new MetadataCheckpoint.Record("/a", 20, 2, new long[] { MetadataCheckpoint.DIRTY, 7 }))).write(file);
+		MetadataCheckpoint checkpoint = MetadataCheckpoint.read(file);
+		assertEquals(42, checkpoint.getSequence());
+		assertEquals(1000, checkpoint.getCreated());
+		assertEquals(2, checkpoint.getRoots());
+		assertEquals(2, checkpoint.getRecords().size());
+		MetadataCheckpoint.Record record = checkpoint.getRecords().get(1);
+		assertEquals("/a", record.getPath());
+		assertEquals(20, record.getBytes());
+		assertEquals(2, record.getFiles());
+		assertArrayEquals(new long[] { MetadataCheckpoint.DIRTY, 7 }, record.getModified());
+	}
+
+	@Test
+	public void unchangedDirectoriesAreTakenFromTheCheckpoint() throws IOException {
+		FileRepositoryService repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+		repository.createDirectories("/a");
+		repository.createDirectories("/b");
+		repository.setContent("/a/x.txt", RepositoryTestSupport.stream("abc"));
+		repository.setContent("/b/y.txt", RepositoryTestSupport.stream("defgh"));
+		age(repository, "/", "/a", "/b");
+		repository.shutdown();
+
+		// edited in place, which doesn't change the directory
+		Files.write(repository.resolve("/b/y.txt"), "ij".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		age(repository, "/b");
+		// added, which changes the directory
+		Files.write(repository.resolve("/a/z.txt"), "klmn".getBytes(StandardCharsets.UTF_8));
+
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+		try {
+			assertEquals(5, repository.getStatistics().get("/b").getBytes());
+			assertEquals(7, repository.getStatistics().get("/a").getBytes());
+			assertEquals(2, repository.getStatistics().get("/a").getFiles());
+			assertEquals(12, repository.getStatistics().get("/").getBytes());
+		} finally {
+			repository.shutdown();
+		}
+	}
+
+	/**
+	 * Move the modification times of directories out of the slack of the checkpoint
+	 */
+	private void age(FileRepositoryService repository, String... dirs) throws IOException {
+		for (String dir : dirs) {
+			Files.setLastModifiedTime(repository.resolve(dir), old);
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.exception.InvalidResourceTypeException;
+import de.arpablo.hennirepo.model.MetadataQuery;
+
+/**
+ * @author arpablo
+ *
+ */
+public class MetadataQueryServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileRepositoryService repository;
+
+	private MetadataQueryService queries;
+
+	@Before
+	public void setUp() throws IOException {
+		RepositoryProperties config = RepositoryTestSupport.config(folder.newFolder("repo"));
+		config.getPack().setEnabled(true);
+		config.getPack().setMaxFileSize(8);
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+		queries = new MetadataQueryService();
+		ReflectionTestUtils.setField(queries, "repository", repository);
+		ReflectionTestUtils.setField(queries, "repoConfig", config);
+		queries.initialize();
+		write("/data/big/one.bin", 300, 1000);
+		write("/data/big/two.bin", 200, 2000);
+		write("/data/small/a.txt", 20, 3000);
+		write("/data/small/b.txt", 30, 4000);
+		write("/data/small/.hidden.txt", 1000, 5000);
+		write("/data/packed.xml", 4, 0);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		queries.shutdown();
+		repository.shutdown();
+	}
+
+	@Test
+	public void largestFilesFirst() {
+		MetadataQuery query = new MetadataQuery();
+		query.setOrder(MetadataQuery.Order.SIZE);
+		query.setLimit(3);
+		assertEquals(Arrays.asList("/data/big/one.bin", "/data/big/two.bin", "/data/small/b.txt"), paths("/data", query));
+		query.setLimit(10);
+		assertEquals(Arrays.asList("/data/big/one.bin", "/data/big/two.bin", "/data/small/b.txt", "/data/small/a.txt",
+				"/data/packed.xml"), paths("/data", query));
+	}
+
+	@Test
+	public void recentlyModifiedFirst() {
+		MetadataQuery query = new MetadataQuery();
+		query.setOrder(MetadataQuery.Order.MODIFIED);
+		query.setLimit(2);
+		assertEquals(Arrays.asList("/data/packed.xml", "/data/small/b.txt"), paths("/data", query));
+		query.setHidden(true);
+		assertEquals(Arrays.asList("/data/packed.xml", "/data/small/.hidden.txt"), paths("/data", query));
+	}
+
+	@Test
+	public void filtersAreCombined() {
+		MetadataQuery query = new MetadataQuery();
+		query.setOrder(MetadataQuery.Order.PATH);
+		query.setDescending(false);
+		query.setExtensions(Arrays.asList("TXT", ".xml"));
+		query.setMaxSize(25L);
+		assertEquals(Arrays.asList("/data/packed.xml", "/data/small/a.txt"), paths("/data", query));
+		query = new MetadataQuery();
+		query.setGlob("big/*.bin");
+		query.setModifiedAfter(1500L);
+		assertEquals(Arrays.asList("/data/big/two.bin"), paths("/data", query));
+		query = new MetadataQuery();
+		query.setType(MetadataQuery.Type.DIRECTORY);
+		query.setOrder(MetadataQuery.Order.NAME);
+		query.setDescending(false);
+		assertEquals(Arrays.asList("/data/big", "/data/small"), paths("/data", query));
+	}
+
+	@Test
+	public void unorderedQueryStopsAtTheLimit() {
+		MetadataQuery query = new MetadataQuery();
+		query.setLimit(1);
+		assertEquals(1, queries.query("/data", query).size());
+		query.setLimit(0);
+		assertEquals(Collections.emptyList(), queries.query("/data", query));
+	}
+
+	@Test(expected = InvalidResourceTypeException.class)
+	public void fileCannotBeQueried() {
+		queries.query("/data/big/one.bin", new MetadataQuery());
+	}
+
+	private List<String> paths(String dir, MetadataQuery query) {
+		List<String> ret = new ArrayList<String>();
+		for (MetadataQueryService.Match m : queries.query(dir, query)) {
+			ret.add(m.getPath());
+		}
+		return ret;
+	}
+
+	private void write(String path, int size, long modified) throws IOException {
+		repository.setContent(path, RepositoryTestSupport.stream(String.join("", Collections.nCopies(size, "x"))));
+		// packed files keep the time they were written, the latest of all
+		if (repository.getPackStore().get(path) == null) {
+			Files.setLastModifiedTime(repository.resolve(path), FileTime.fromMillis(modified));
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.model.UploadInfo;
+import de.arpablo.hennirepo.model.UploadPart;
+
+/**
+ * @author arpablo
+ *
+ */
+public class MultipartUploadServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileRepositoryService repository;
+
+	private MultipartUploadService uploads;
+
+	@Before
+	public void setUp() throws IOException {
+		RepositoryProperties config = RepositoryTestSupport.config(folder.newFolder("repo"));
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+		uploads = new MultipartUploadService();
+		ReflectionTestUtils.setField(uploads, "repository", repository);
+		ReflectionTestUtils.setField(uploads, "repoConfig", config);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		repository.shutdown();
+	}
+
+	@Test
+	public void completeConcatenatesPartsInOrder() {
+		String uploadId = uploads.initiate("/data.txt").getUploadId();
+		uploads.uploadPart(uploadId, 2, RepositoryTestSupport.stream("world"));
+		uploads.uploadPart(uploadId, 1, RepositoryTestSupport.stream("hello "));
+		assertEquals(11, uploads.complete(uploadId).getSize());
+		assertEquals("hello world", RepositoryTestSupport.content(repository, "/data.txt"));
+	}
+
+	@Test
+	public void partsInFlightAreNotListed() throws Exception {
+		String uploadId = uploads.initiate("/data.txt").getUploadId();
+		uploads.uploadPart(uploadId, 1, RepositoryTestSupport.stream("hello "));
+		CountDownLatch receiving = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		InputStream slow = new InputStream() {
+			private int sent;
+
+			@Override
+			public int read() throws IOException {
+				if (sent == 1) {
+					receiving.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException ex) {
+						throw new IOException(ex);
+					}
+				}
+				return (sent < 5) ? "world".charAt(sent++) : -1;
+			}
+		};
+		AtomicReference<UploadPart> uploaded = new AtomicReference<UploadPart>();
+		Thread writer = new Thread(() -> uploaded.set(uploads.uploadPart(uploadId, 2, slow)));
+		writer.start();
+		try {
+			assertTrue(receiving.await(10, TimeUnit.SECONDS));
+			assertEquals(1, countFiles(uploads.getUploadDirectory(uploadId), "tmp-part-*"));
+			UploadInfo info = uploads.info(uploadId);
+			assertEquals(1, info.getParts().size());
+			assertEquals(1, info.getParts().get(0).getPartNumber());
+		} finally {
+			release.countDown();
+			writer.join(10000);
+		}
+		assertEquals(5, uploaded.get().getSize());
+		assertEquals(2, uploads.info(uploadId).getParts().size());
+		uploads.complete(uploadId);
+		assertEquals("hello world", RepositoryTestSupport.content(repository, "/data.txt"));
+	}
+
+	private static int countFiles(Path dir, String glob) throws IOException {
+		int ret = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+			for (@SuppressWarnings("unused") Path p : stream) {
+				ret++;
+			}
+		}
+		return ret;
+	}
+
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author arpablo
+ *
+ */
+public class OperationJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = folder.getRoot().toPath().resolve("journal");
+	}
+
+	@Test
+	public void successfulOperationIsComplete() throws IOException {
+		try (OperationJournal journal = new OperationJournal(file, 1024 * 1024)) {
+			journal.open();
+			try (OperationJournal.Record record = journal.begin(OperationJournal.Operation.COPY, "/a", "/b")) {
+				record.success();
+			}
+		}
+		assertTrue(reopen().isEmpty());
+	}
+
+	@Test
+	public void failedOperationIsRecovered() throws IOException {
+		try (OperationJournal journal = new OperationJournal(file, 1024 * 1024)) {
+			journal.open();
+			try (OperationJournal.Record record = journal.begin(OperationJournal.Operation.MOVE, "/a", "/b")) {
+				// fails before success
+			}
+		}
+		List<OperationJournal.Entry> unfinished = reopen();
+		assertEquals(1, unfinished.size());
+		assertEquals(OperationJournal.Operation.MOVE, unfinished.get(0).getOperation());
+		assertEquals("/a", unfinished.get(0).getSource());
+		assertEquals("/b", unfinished.get(0).getTarget());
+	}
+
+	@Test
+	public void failedOperationSurvivesTruncation() throws IOException {
+		try (OperationJournal journal = new OperationJournal(file, 1)) {
+			journal.open();
+			try (OperationJournal.Record record = journal.begin(OperationJournal.Operation.DELETE, "/failed", null)) {
+				// fails before success
+			}
+			try (OperationJournal.Record record = journal.begin(OperationJournal.Operation.COPY, "/a", "/b")) {
+				record.success();
+			}
+		}
+		List<OperationJournal.Entry> unfinished = reopen();
+		assertEquals(1, unfinished.size());
+		assertEquals("/failed", unfinished.get(0).getSource());
+	}
+
+	private List<OperationJournal.Entry> reopen() throws IOException {
+		try (OperationJournal journal = new OperationJournal(file, 1024 * 1024)) {
+			return journal.open();
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.xml.transform.Result;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.exception.RepositoryException;
+
+/**
+ * @author arpablo
+ *
+ */
+public class PackStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void corruptEntryIsSkippedByCompaction() throws IOException {
+		Path dir = folder.newFolder("packs").toPath();
+		try (PackStore packs = new PackStore(dir, 100)) {
+			packs.open();
+			packs.put("/a", content('a'), 1);
+			packs.put("/b", content('b'), 2);
+			packs.put("/c", content('c'), 3);
+			packs.remove("/b");
+			try (FileChannel channel = FileChannel.open(dir.resolve("segment-00000000.dat"), StandardOpenOption.WRITE)) {
+				channel.write(ByteBuffer.wrap(new byte[] { 'x' }), 0);
+			}
+			assertEquals(0, packs.compact(0.3));
+			assertNotNull(packs.get("/a"));
+			assertArrayEquals(content('c'), packs.read("/c"));
+		}
+	}
+
+	@Test
+	public void packedPathsAreNotCreatedOnTheFilesystem() throws IOException {
+		FileRepositoryService repository = packingRepository();
+		try {
+			repository.createDirectories("/d");
+			repository.setContent("/d/a.txt", RepositoryTestSupport.stream("small"));
+			assertNotNull(repository.getPacked("/d/a.txt"));
+			try {
+				repository.createFile("/d/a.txt");
+				fail("file created at a packed path");
+			} catch (RepositoryException ex) {
+				// expected
+			}
+			try {
+				repository.createDirectories("/d/a.txt/sub");
+				fail("directory created below a packed file");
+			} catch (RepositoryException ex) {
+				// expected
+			}
+			assertEquals("small", RepositoryTestSupport.content(repository, "/d/a.txt"));
+		} finally {
+			repository.shutdown();
+		}
+	}
+
+	@Test
+	public void resultReplacingAPackedFileIsCounted() throws IOException {
+		FileRepositoryService repository = packingRepository();
+		try {
+			repository.createDirectories("/d");
+			repository.setContent("/d/a.txt", RepositoryTestSupport.stream("small"));
+			assertEquals(5, repository.getStatistics().get("/d").getBytes());
+			Result result = repository.getResult("/d/a.txt");
+			assertNotNull(result);
+			assertEquals(0, repository.getStatistics().get("/d").getBytes());
+			assertEquals(1, repository.getStatistics().get("/d").getFiles());
+		} finally {
+			repository.shutdown();
+		}
+	}
+
+	private FileRepositoryService packingRepository() throws IOException {
+		RepositoryProperties config = RepositoryTestSupport.config(folder.newFolder("repo"));
+		config.getPack().setEnabled(true);
+		return RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+	}
+
+	private static byte[] content(char c) {
+		byte[] ret = new byte[40];
+		Arrays.fill(ret, (byte) c);
+		return ret;
+	}
+
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.xml.transform.stream.StreamResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.exception.QuotaExceededException;
+
+/**
+ * @author arpablo
+ *
+ */
+public class QuotaTest {
+
+	private static final int MAX_BYTES = 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File basedir;
+
+	private FileRepositoryService repository;
+
+	@Before
+	public void setUp() throws IOException {
+		basedir = folder.newFolder("repo");
+		RepositoryProperties config = RepositoryTestSupport.config(basedir);
+		RepositoryProperties.Quota quota = new RepositoryProperties.Quota();
+		quota.setPath("/q");
+		quota.setMaxBytes(MAX_BYTES);
+		config.setQuotas(Arrays.asList(quota));
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+		repository.createDirectories("/q");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		repository.shutdown();
+	}
+
+	@Test
+	public void resultIsCountedWhenClosed() throws IOException {
+		repository.setContent("/q/a.xml", RepositoryTestSupport.stream("old content"));
+		StreamResult result = (StreamResult) repository.getResult("/q/a.xml");
+		assertEquals(0, repository.getStatistics().get("/q").getBytes());
+		try (OutputStream out = result.getOutputStream()) {
+			out.write("<result/>".getBytes(StandardCharsets.UTF_8));
+			out.write('\n');
+		}
+		assertEquals(10, repository.getStatistics().get("/q").getBytes());
+		assertEquals(1, repository.getStatistics().get("/q").getFiles());
+		assertEquals("<result/>\n", RepositoryTestSupport.content(repository, "/q/a.xml"));
+	}
+
+	@Test
+	public void declaredLengthIsCheckedBeforeReading() {
+		CountingInputStream in = new CountingInputStream(100000);
+		try {
+			repository.setContent("/q/a", in, 100000);
+			fail("quota exceeded");
+		} catch (QuotaExceededException ex) {
+			assertEquals(0, in.count);
+		}
+		assertFalse(repository.exists("/q/a"));
+	}
+
+	@Test
+	public void contentOfUnknownLengthIsNotReadBeyondTheQuota() {
+		CountingInputStream in = new CountingInputStream(100000);
+		try {
+			repository.setContent("/q/a", in);
+			fail("quota exceeded");
+		} catch (QuotaExceededException ex) {
+			assertTrue(in.count <= MAX_BYTES + 1);
+		}
+		assertFalse(repository.exists("/q/a"));
+		assertEquals(0, new File(basedir, ".henni/tmp").list().length);
+	}
+
+	@Test
+	public void replacedContentCountsAsAvailable() {
+		repository.setContent("/q/a", new ByteArrayInputStream(new byte[MAX_BYTES]));
+		repository.setContent("/q/a", new ByteArrayInputStream(new byte[MAX_BYTES]), MAX_BYTES);
+		assertEquals(MAX_BYTES, repository.info("/q/a").getSize());
+	}
+
+	static class CountingInputStream extends InputStream {
+
+		private final long length;
+		long count;
+
+		CountingInputStream(long length) {
+			this.length = length;
+		}
+
+		@Override
+		public int read() {
+			return (count < length) ? (int) (count++ & 0) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (count >= length) {
+				return -1;
+			}
+			int n = (int) Math.min(len, length - count);
+			count += n;
+			return n;
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.arpablo.hennirepo.config.RepositoryProperties;
+
+/**
+ * Creates the services of the repository without an application context
+ * @author arpablo
+ *
+ */
+public final class RepositoryTestSupport {
+
+	private RepositoryTestSupport() {
+	}
+
+	/**
+	 * Create the configuration of a repository
+	 * @param basedir	the root directory of the repository
+	 * @return the RepositoryProperties
+	 */
+	public static RepositoryProperties config(File basedir) {
+		RepositoryProperties ret = new RepositoryProperties();
+		ret.setBasedir(basedir.getAbsolutePath());
+		return ret;
+	}
+
+	/**
+	 * Create and initialize a FileRepositoryService
+	 * @param config	the configuration
+	 * @param events	receives the published events
+	 * @return the FileRepositoryService
+	 */
+	public static FileRepositoryService fileRepository(RepositoryProperties config, List<Object> events) {
+		FileRepositoryService ret = new FileRepositoryService();
+		ContentCache contentCache = new ContentCache();
+		ReflectionTestUtils.setField(contentCache, "repoConfig", config);
+		ArchiveCache archiveCache = new ArchiveCache();
+		ReflectionTestUtils.setField(archiveCache, "repoConfig", config);
+		ApplicationEventPublisher publisher = event -> events.add(event);
+		ReflectionTestUtils.setField(ret, "repoConfig", config);
+		ReflectionTestUtils.setField(ret, "publisher", publisher);
+		ReflectionTestUtils.setField(ret, "contentCache", contentCache);
+		ReflectionTestUtils.setField(ret, "archiveCache", archiveCache);
+		ret.initialize();
+		return ret;
+	}
+
+	/**
+	 * @return the UTF-8 encoded text as stream
+	 */
+	public static InputStream stream(String text) {
+		return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the content of a resource as UTF-8 encoded text
+	 */
+	public static String content(RepositoryService service, String path) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		service.getContent(path, out);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the content of a stream
+	 * @throws IOException
+	 */
+	public static byte[] read(InputStream in) throws IOException {
+		try (InputStream is = in) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for (int n; (n = is.read(buffer)) >= 0; ) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.arpablo.hennirepo.common.ArchiveFormat;
+import de.arpablo.hennirepo.common.ArchiveWriter;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.exception.ResourceAccessException;
+
+/**
+ * @author arpablo
+ *
+ */
+public class SelectionArchiveTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileRepositoryService repository;
+
+	@Before
+	public void setUp() throws IOException {
+		RepositoryProperties config = RepositoryTestSupport.config(folder.newFolder("repo"));
+		config.getPack().setEnabled(true);
+		config.getPack().setMaxFileSize(16);
+		config.getArchives().setReadAheadEntries(2);
+		config.getArchives().setReadAheadFileSize(64);
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		repository.shutdown();
+	}
+
+	@Test
+	public void namesAreRelativeToTheCommonParent() {
+		Map<String, String> names = ArchiveWriter.selectionNames(Arrays.asList("/a/b/c.txt", "/a/d", "/a/b/e/f.txt"));
+		assertEquals("b/c.txt", names.get("/a/b/c.txt"));
+		assertEquals("d", names.get("/a/d"));
+		assertEquals("b/e/f.txt", names.get("/a/b/e/f.txt"));
+		assertEquals("", ArchiveWriter.selectionNames(Arrays.asList("/")).get("/"));
+	}
+
+	@Test
+	public void selectionIsWrittenInOrder() throws IOException {
+		String large = String.join("", Collections.nCopies(100, "x"));
+		repository.setContent("/docs/a/small.txt", RepositoryTestSupport.stream("small"));
+		repository.setContent("/docs/a/large.txt", RepositoryTestSupport.stream(large));
+		repository.setContent("/docs/b/one.txt", RepositoryTestSupport.stream("one and more than sixteen"));
+		repository.setContent("/docs/b/two.txt", RepositoryTestSupport.stream("two and more than sixteen"));
+		repository.setContent("/docs/c.txt", RepositoryTestSupport.stream("c"));
+		Map<String, String> entries = unzip(Arrays.asList("/docs/c.txt", "/docs/b", "/docs/a/large.txt", "/docs/a/small.txt"));
+		// the selection keeps its order, the content of a directory in the order it is walked
+		List<String> names = new ArrayList<String>(entries.keySet());
+		assertEquals(Arrays.asList("c.txt", "b/"), names.subList(0, 2));
+		assertEquals(new HashSet<String>(Arrays.asList("b/one.txt", "b/two.txt")), new HashSet<String>(names.subList(2, 4)));
+		assertEquals(Arrays.asList("a/large.txt", "a/small.txt"), names.subList(4, 6));
+		assertEquals("c", entries.get("c.txt"));
+		assertEquals("one and more than sixteen", entries.get("b/one.txt"));
+		assertEquals(large, entries.get("a/large.txt"));
+		assertEquals("small", entries.get("a/small.txt"));
+	}
+
+	@Test
+	public void overlappingSelectionIsArchivedOnce() throws IOException {
+		repository.setContent("/docs/a.txt", RepositoryTestSupport.stream("a"));
+		Map<String, String> entries = unzip(Arrays.asList("/docs", "/docs/a.txt"));
+		assertEquals(Arrays.asList("docs/", "docs/a.txt"), new ArrayList<String>(entries.keySet()));
+	}
+
+	@Test
+	public void missingPathFailsBeforeWriting() {
+		repository.setContent("/a.txt", RepositoryTestSupport.stream("a"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			repository.writeArchive(Arrays.asList("/a.txt", "/missing.txt"), ArchiveFormat.ZIP, out);
+			fail("missing path archived");
+		} catch (ResourceAccessException ex) {
+			assertEquals(0, out.size());
+		}
+	}
+
+	private Map<String, String> unzip(List<String> paths) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		repository.writeArchive(paths, ArchiveFormat.ZIP, out);
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+			for (ZipEntry e; (e = in.getNextEntry()) != null; ) {
+				ByteArrayOutputStream content = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				for (int n; (n = in.read(buffer)) >= 0; ) {
+					content.write(buffer, 0, n);
+				}
+				ret.put(e.getName(), new String(content.toByteArray(), StandardCharsets.UTF_8));
+			}
+		}
+		return ret;
+	}
+
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.model.RepositoryEvent;
+
+/**
+ * @author arpablo
+ *
+ */
+public class ShardedRepositoryTest {
+
+	private static final int FILES = 20;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File first;
+
+	private File second;
+
+	private FileRepositoryService repository;
+
+	@Before
+	public void setUp() throws IOException {
+		first = folder.newFolder("first");
+		second = folder.newFolder("second");
+		RepositoryProperties config = RepositoryTestSupport.config(first);
+		config.setRoots(Arrays.asList(second.getAbsolutePath()));
+		config.setShardDepth(2);
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+		repository.createDirectories("/src");
+		for (int i = 0; i < FILES; i++) {
+			repository.setContent("/src/f" + i, RepositoryTestSupport.stream("content " + i));
+		}
+		assertTrue(first.toPath().resolve("src").toFile().list().length > 0);
+		assertTrue(second.toPath().resolve("src").toFile().list().length > 0);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		repository.shutdown();
+	}
+
+	@Test
+	public void copyIncludesEntriesOfAllRoots() {
+		repository.createDirectories("/dst");
+		repository.copy("/src", "/dst");
+		for (int i = 0; i < FILES; i++) {
+			assertEquals("content " + i, RepositoryTestSupport.content(repository, "/dst/src/f" + i));
+		}
+	}
+
+	@Test
+	public void moveIncludesEntriesOfAllRoots() {
+		repository.move("/src", "/moved");
+		for (int i = 0; i < FILES; i++) {
+			assertEquals("content " + i, RepositoryTestSupport.content(repository, "/moved/f" + i));
+		}
+		assertFalse(repository.exists("/src"));
+		assertFalse(Files.exists(first.toPath().resolve("src")));
+		assertFalse(Files.exists(second.toPath().resolve("src")));
+	}
+
+	@Test
+	public void rebalancerSynchronizesChangedResources() throws IOException {
+		Path source = folder.newFolder("key").toPath();
+		Files.write(source.resolve("a"), "old".getBytes(StandardCharsets.UTF_8));
+		Files.write(source.resolve("b"), "b".getBytes(StandardCharsets.UTF_8));
+		Path staging = folder.getRoot().toPath().resolve("staging");
+		ShardRebalancer.synchronize(source, staging);
+		ShardRebalancer rebalancer = new ShardRebalancer();
+		ReflectionTestUtils.setField(rebalancer, "repository", repository);
+		ReflectionTestUtils.setField(rebalancer, "migrating", "/key");
+		Files.write(source.resolve("a"), "changed".getBytes(StandardCharsets.UTF_8));
+		Files.delete(source.resolve("b"));
+		Files.createDirectories(source.resolve("c"));
+		Files.write(source.resolve("c/d"), "d".getBytes(StandardCharsets.UTF_8));
+		rebalancer.onRepositoryEvent(new RepositoryEvent(RepositoryEvent.Type.MODIFY, "/key/a", null, false));
+		rebalancer.onRepositoryEvent(new RepositoryEvent(RepositoryEvent.Type.DELETE, "/key/b", null, false));
+		rebalancer.onRepositoryEvent(new RepositoryEvent(RepositoryEvent.Type.MOVE, "/other", "/key/c", false));
+		rebalancer.synchronizeChanged("/key", source, staging);
+		assertEquals("changed", new String(Files.readAllBytes(staging.resolve("a")), StandardCharsets.UTF_8));
+		assertFalse(Files.exists(staging.resolve("b")));
+		assertEquals("d", new String(Files.readAllBytes(staging.resolve("c/d")), StandardCharsets.UTF_8));
+	}
+
+}
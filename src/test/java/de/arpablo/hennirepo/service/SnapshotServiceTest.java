@@ -0,0 +1,112 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.exception.RepositoryException;
+import de.arpablo.hennirepo.model.SnapshotInfo;
+
+/**
+ * @author arpablo
+ *
+ */
+public class SnapshotServiceTest {
+
+	private static final int FILES = 20;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileRepositoryService repository;
+
+	private SnapshotService snapshots;
+
+	@After
+	public void tearDown() throws IOException {
+		snapshots.shutdown();
+		repository.shutdown();
+	}
+
+	@Test
+	public void snapshotIncludesPackedFiles() throws IOException {
+		RepositoryProperties config = RepositoryTestSupport.config(folder.newFolder("repo"));
+		config.getPack().setEnabled(true);
+		setUp(config);
+		repository.createDirectories("/d/sub");
+		repository.setContent("/d/a.txt", RepositoryTestSupport.stream("a"));
+		repository.setContent("/d/sub/b.txt", RepositoryTestSupport.stream("b"));
+		SnapshotInfo info = snapshots.create("/d", "s1");
+		assertEquals(2, info.getFiles());
+		assertEquals("a", RepositoryTestSupport.content(repository, FileRepositoryService.SNAPSHOTS_PATH + "/s1/a.txt"));
+		assertEquals("b", RepositoryTestSupport.content(repository, FileRepositoryService.SNAPSHOTS_PATH + "/s1/sub/b.txt"));
+		snapshots.create("/d/a.txt", "s2");
+		assertEquals("a", RepositoryTestSupport.content(repository, FileRepositoryService.SNAPSHOTS_PATH + "/s2/a.txt"));
+	}
+
+	@Test
+	public void snapshotOfShardedTreeCountsEachFileOnce() throws IOException {
+		setUp(sharded());
+		SnapshotInfo info = snapshots.create("/src", "s1");
+		assertEquals(FILES, info.getFiles());
+		assertEquals(2, info.getDirectories());
+	}
+
+	@Test
+	public void failedSnapshotIsRemovedFromAllRoots() throws IOException {
+		setUp(sharded());
+		List<Path> sources = repository.resolveAll("/src");
+		assertEquals(2, sources.size());
+		Files.createDirectory(repository.getSystemPath(FileRepositoryService.SNAPSHOTS_DIR, sources.get(1)).resolve(".creating-s1"));
+		try {
+			snapshots.create("/src", "s1");
+			fail("snapshot created");
+		} catch (RepositoryException ex) {
+			// expected
+		}
+		assertTrue(snapshots.list().isEmpty());
+		assertFalse(Files.exists(repository.getSystemPath(FileRepositoryService.SNAPSHOTS_DIR, sources.get(0)).resolve("s1")));
+	}
+
+	private RepositoryProperties sharded() throws IOException {
+		File second = folder.newFolder("second");
+		RepositoryProperties config = RepositoryTestSupport.config(folder.newFolder("first"));
+		config.setRoots(Arrays.asList(second.getAbsolutePath()));
+		config.setShardDepth(2);
+		return config;
+	}
+
+	private void setUp(RepositoryProperties config) {
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+		snapshots = new SnapshotService();
+		ReflectionTestUtils.setField(snapshots, "repository", repository);
+		ReflectionTestUtils.setField(snapshots, "repoConfig", config);
+		snapshots.initialize();
+		if (!config.getRoots().isEmpty()) {
+			repository.createDirectories("/src");
+			for (int i = 0; i < FILES; i++) {
+				repository.setContent("/src/f" + i, RepositoryTestSupport.stream("content " + i));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.arpablo.hennirepo.common.CompressedFile;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.model.MetadataQuery;
+
+/**
+ * @author arpablo
+ *
+ */
+public class TieringServiceTest {
+
+	private static final String COLD = String.join("", Collections.nCopies(1000, "cold content "));
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File basedir;
+
+	private FileRepositoryService repository;
+
+	private TieringService tiering;
+
+	@Before
+	public void setUp() throws IOException {
+		basedir = folder.newFolder("repo");
+		RepositoryProperties config = RepositoryTestSupport.config(basedir);
+		config.getTiering().setEnabled(true);
+		config.getTiering().setMinFileSize(1024);
+		config.getTiering().setBytesPerSecond(0);
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+		tiering = new TieringService();
+		ReflectionTestUtils.setField(tiering, "repository", repository);
+		ReflectionTestUtils.setField(tiering, "repoConfig", config);
+		tiering.initialize();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		tiering.shutdown();
+		repository.shutdown();
+	}
+
+	@Test
+	public void coldFileIsCompressedAndReadTransparently() throws IOException {
+		Path p = write("/cold/a.txt", COLD, true);
+		write("/warm.txt", COLD, false);
+		write("/small.txt", "cold", true);
+		tiering.run();
+		assertEquals(1, tiering.getStatus().getFilesCompressed());
+		assertNotNull(CompressedFile.read(p));
+		assertTrue(Files.size(p) < COLD.length());
+		assertEquals(COLD.length(), repository.info("/cold/a.txt").getSize());
+		assertEquals(COLD, RepositoryTestSupport.content(repository, "/cold/a.txt"));
+		assertNull(CompressedFile.read(repository.resolve("/warm.txt")));
+	}
+
+	@Test
+	public void compressedFileIsPromoted() throws IOException {
+		Path p = write("/a.txt", COLD, true);
+		tiering.run();
+		assertTrue(tiering.promote("/a.txt"));
+		assertNull(CompressedFile.read(p));
+		assertEquals(COLD.length(), Files.size(p));
+		assertEquals(COLD, RepositoryTestSupport.content(repository, "/a.txt"));
+		assertFalse(tiering.promote("/a.txt"));
+	}
+
+	@Test
+	public void queriesFindCompressedFilesAfterTieringIsDisabled() throws IOException {
+		byte[] random = new byte[600];
+		new Random(1).nextBytes(random);
+		repository.setContent("/data/a.bin", new ByteArrayInputStream(random));
+		write("/data/sub/cold/big.txt", COLD, true);
+		tiering.run();
+		assertEquals(1, tiering.getStatus().getFilesCompressed());
+		tiering.shutdown();
+		repository.shutdown();
+		RepositoryProperties config = RepositoryTestSupport.config(basedir);
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+		assertTrue(repository.hasCompressedFiles());
+		MetadataQueryService queries = new MetadataQueryService();
+		ReflectionTestUtils.setField(queries, "repository", repository);
+		ReflectionTestUtils.setField(queries, "repoConfig", config);
+		queries.initialize();
+		try {
+			MetadataQuery query = new MetadataQuery();
+			query.setOrder(MetadataQuery.Order.SIZE);
+			query.setLimit(1);
+			List<String> paths = new ArrayList<String>();
+			for (MetadataQueryService.Match m : queries.query("/data", query)) {
+				paths.add(m.getPath());
+			}
+			assertEquals(Arrays.asList("/data/sub/cold/big.txt"), paths);
+		} finally {
+			queries.shutdown();
+		}
+	}
+
+	@Test
+	public void zipContainsTheContentOfTieredFiles() throws IOException {
+		Path p = write("/cold/a.txt", COLD, true);
+		tiering.run();
+		assertNotNull(CompressedFile.read(p));
+		repository.zip("/cold", "/cold.zip");
+		try (InputStream in = repository.getContentInputStream("/cold.zip"); ZipInputStream zip = new ZipInputStream(in)) {
+			ZipEntry entry = zip.getNextEntry();
+			while (entry != null && entry.isDirectory()) {
+				entry = zip.getNextEntry();
+			}
+			assertNotNull(entry);
+			assertTrue(entry.getName().endsWith("a.txt"));
+			assertEquals(COLD, new String(RepositoryTestSupport.read(zip), StandardCharsets.UTF_8));
+		}
+		assertNotNull(CompressedFile.read(p));
+	}
+
+	private Path write(String path, String content, boolean cold) throws IOException {
+		repository.setContent(path, RepositoryTestSupport.stream(content));
+		Path ret = repository.resolve(path);
+		if (cold) {
+			FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 365L * 24 * 60 * 60 * 1000);
+			Files.getFileAttributeView(ret, BasicFileAttributeView.class).setTimes(old, old, null);
+		}
+		return ret;
+	}
+
+}
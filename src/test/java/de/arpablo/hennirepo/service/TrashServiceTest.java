@@ -0,0 +1,108 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.model.TrashEntry;
+
+/**
+ * @author arpablo
+ *
+ */
+public class TrashServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private RepositoryProperties config;
+
+	private FileRepositoryService repository;
+
+	private TrashService trash;
+
+	@Before
+	public void setUp() throws IOException {
+		config = RepositoryTestSupport.config(folder.newFolder("repo"));
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+		trash = new TrashService();
+		ReflectionTestUtils.setField(trash, "repository", repository);
+		ReflectionTestUtils.setField(trash, "repoConfig", config);
+		trash.initialize();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		trash.shutdown();
+		repository.shutdown();
+	}
+
+	@Test
+	public void deletedResourceIsPurged() throws IOException {
+		repository.setContent("/a.txt", RepositoryTestSupport.stream("a"));
+		repository.delete("/a.txt");
+		List<Path> entries = entries();
+		assertEquals(1, entries.size());
+		assertTrue(Files.exists(entries.get(0).resolve(FileRepositoryService.TRASH_DESCRIPTOR)));
+		assertFalse(Files.exists(entries.get(0).resolve(FileRepositoryService.TRASH_DESCRIPTOR + ".tmp")));
+		trash.purgeExpired();
+		assertTrue(entries().isEmpty());
+	}
+
+	@Test
+	public void entryBeingCreatedIsNotPurged() throws IOException {
+		Path entry = Files.createDirectories(trashDir().resolve("incomplete").resolve(FileRepositoryService.TRASH_CONTENT));
+		trash.purgeExpired();
+		assertTrue(Files.exists(entry));
+		Files.setLastModifiedTime(entry.getParent(), FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+		trash.purgeExpired();
+		assertTrue(entries().isEmpty());
+	}
+
+	@Test
+	public void retainedResourceIsRestored() {
+		config.getTrash().setRetentionMinutes(10);
+		repository.setContent("/a.txt", RepositoryTestSupport.stream("a"));
+		repository.delete("/a.txt");
+		trash.purgeExpired();
+		List<TrashEntry> listed = trash.list();
+		assertEquals(1, listed.size());
+		trash.restore(listed.get(0).getId());
+		assertEquals("a", RepositoryTestSupport.content(repository, "/a.txt"));
+	}
+
+	private Path trashDir() throws IOException {
+		return repository.getSystemPath(FileRepositoryService.TRASH_DIR, repository.getRoots().get(0));
+	}
+
+	private List<Path> entries() throws IOException {
+		List<Path> ret = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(trashDir())) {
+			for (Path p : stream) {
+				ret.add(p);
+			}
+		}
+		return ret;
+	}
+
+}
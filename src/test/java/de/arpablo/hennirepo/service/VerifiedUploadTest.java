@@ -0,0 +1,84 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.arpablo.hennirepo.common.VerifyingInputStream;
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.exception.InvalidContentException;
+
+/**
+ * @author arpablo
+ *
+ */
+public class VerifiedUploadTest {
+
+	private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileRepositoryService repository;
+
+	@After
+	public void tearDown() throws IOException {
+		repository.shutdown();
+	}
+
+	@Test
+	public void mismatchingContentIsNotStored() throws IOException {
+		setUp(false);
+		repository.setContent("/a.txt", RepositoryTestSupport.stream("old"));
+		upload("/a.txt", "abd");
+		upload("/b.txt", "abd");
+		assertEquals("old", RepositoryTestSupport.content(repository, "/a.txt"));
+		assertFalse(repository.exists("/b.txt"));
+		File[] tmp = repository.getSystemPath(FileRepositoryService.TMP_DIR, repository.resolve("/")).toFile().listFiles();
+		assertEquals(0, (tmp == null) ? 0 : tmp.length);
+	}
+
+	@Test
+	public void mismatchingContentIsNotPacked() throws IOException {
+		setUp(true);
+		upload("/b.txt", "abd");
+		assertFalse(repository.exists("/b.txt"));
+	}
+
+	@Test
+	public void matchingContentIsStored() throws IOException {
+		setUp(false);
+		repository.setContent("/a.txt", new VerifyingInputStream(RepositoryTestSupport.stream("abc"), ABC_SHA256,
+				() -> new InvalidContentException("mismatch")));
+		assertEquals("abc", RepositoryTestSupport.content(repository, "/a.txt"));
+	}
+
+	private void upload(String path, String content) {
+		try {
+			repository.setContent(path, new VerifyingInputStream(RepositoryTestSupport.stream(content), ABC_SHA256,
+					() -> new InvalidContentException("mismatch")));
+			fail("mismatching content stored");
+		} catch (InvalidContentException ex) {
+			// expected
+		}
+	}
+
+	private void setUp(boolean pack) throws IOException {
+		RepositoryProperties config = RepositoryTestSupport.config(folder.newFolder("repo"));
+		config.getPack().setEnabled(pack);
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+	}
+
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright: Armin Pfarr (c) 2018
+ */
+package de.arpablo.hennirepo.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.arpablo.hennirepo.config.RepositoryProperties;
+import de.arpablo.hennirepo.model.FileVersion;
+
+/**
+ * @author arpablo
+ *
+ */
+public class VersionServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private RepositoryProperties config;
+
+	private FileRepositoryService repository;
+
+	private VersionService versions;
+
+	@Before
+	public void setUp() throws IOException {
+		config = RepositoryTestSupport.config(folder.newFolder("repo"));
+		config.getVersions().setEnabled(true);
+		repository = RepositoryTestSupport.fileRepository(config, new ArrayList<Object>());
+		versions = new VersionService();
+		ReflectionTestUtils.setField(versions, "repository", repository);
+		ReflectionTestUtils.setField(versions, "repoConfig", config);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		repository.shutdown();
+	}
+
+	@Test
+	public void overwrittenContentIsKeptAndRestored() throws IOException {
+		repository.setContent("/a.txt", RepositoryTestSupport.stream("one"));
+		repository.setContent("/a.txt", RepositoryTestSupport.stream("two"));
+		List<FileVersion> list = versions.list("/a.txt");
+		assertEquals(1, list.size());
+		String id = list.get(0).getId();
+		assertEquals("one", new String(RepositoryTestSupport.read(versions.getContentInputStream("/a.txt", id)), StandardCharsets.UTF_8));
+		versions.restore("/a.txt", id);
+		assertEquals("one", RepositoryTestSupport.content(repository, "/a.txt"));
+		// the replaced content became a version itself
+		assertEquals(2, versions.list("/a.txt").size());
+	}
+
+	@Test
+	public void pruneKeepsMaxCountVersions() {
+		config.getVersions().setMaxCount(2);
+		for (int i = 0; i < 5; i++) {
+			repository.setContent("/a.txt", RepositoryTestSupport.stream("content " + i));
+		}
+		assertEquals(4, versions.list("/a.txt").size());
+		versions.prune();
+		List<FileVersion> list = versions.list("/a.txt");
+		assertEquals(2, list.size());
+		assertEquals("content 3", new String(read(list.get(0).getId()), StandardCharsets.UTF_8));
+	}
+
+	private byte[] read(String id) {
+		try {
+			return RepositoryTestSupport.read(versions.getContentInputStream("/a.txt", id));
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+}